@@ -0,0 +1,128 @@
+/* Copyright (c) 2010-2015 Vanderbilt University
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package edu.vu.isis.ammo.core;
+
+/**
+ * Preference keys used only by the core, which are not part of the shared
+ * INetPrefKeys. Like those, the values are stored as strings.
+ */
+public interface ICorePrefKeys {
+
+    /** the largest batch of small messages sent to the gateway, zero is no batching */
+    public static final String GATEWAY_BATCH_SIZE = "CORE_GATEWAY_BATCH_SIZE";
+    public static final int DEFAULT_GATEWAY_BATCH_SIZE = 0;
+
+    /** how long, in milliseconds, to wait for more small messages to batch */
+    public static final String GATEWAY_BATCH_LINGER = "CORE_GATEWAY_BATCH_LINGER";
+    public static final int DEFAULT_GATEWAY_BATCH_LINGER = 5;
+
+    /** the most data in each chunk of a large message sent to the gateway, zero is no chunking */
+    public static final String GATEWAY_CHUNK_SIZE = "CORE_GATEWAY_CHUNK_SIZE";
+    public static final int DEFAULT_GATEWAY_CHUNK_SIZE = 0;
+
+    /** how many bytes, at most, the gateway sender writes before each flush */
+    public static final String GATEWAY_FLUSH_BUDGET = "CORE_GATEWAY_FLUSH_BUDGET";
+    public static final int DEFAULT_GATEWAY_FLUSH_BUDGET = 0x10000;
+
+    /** how long, in milliseconds, the gateway sender waits for more messages before a flush */
+    public static final String GATEWAY_FLUSH_LINGER = "CORE_GATEWAY_FLUSH_LINGER";
+    public static final int DEFAULT_GATEWAY_FLUSH_LINGER = 0;
+
+    /** how many messages of each priority band wait to be sent to the gateway */
+    public static final String GATEWAY_LANE_CAPACITY = "CORE_GATEWAY_LANE_CAPACITY";
+    public static final int DEFAULT_GATEWAY_LANE_CAPACITY = 20;
+
+    /** how many waiting messages, over all bands, make the gateway channel busy */
+    public static final String GATEWAY_LANE_HIGH_WATER = "CORE_GATEWAY_LANE_HIGH_WATER";
+    public static final int DEFAULT_GATEWAY_LANE_HIGH_WATER = 40;
+
+    /** the shortest time, in milliseconds, without news from a tcp peer before a heartbeat */
+    public static final String HEARTBEAT_MIN_INTERVAL = "CORE_HEARTBEAT_MIN_INTERVAL";
+    public static final int DEFAULT_HEARTBEAT_MIN_INTERVAL = 2 * 1000;
+
+    /** the longest time, in milliseconds, without news from a tcp peer before a heartbeat */
+    public static final String HEARTBEAT_MAX_INTERVAL = "CORE_HEARTBEAT_MAX_INTERVAL";
+    public static final int DEFAULT_HEARTBEAT_MAX_INTERVAL = 10 * 1000;
+
+    /** how long, in milliseconds, a lost gateway session may be resumed, zero disables resumption */
+    public static final String GATEWAY_SESSION_LEASE = "CORE_GATEWAY_SESSION_LEASE";
+    public static final int DEFAULT_GATEWAY_SESSION_LEASE = 60 * 1000;
+
+    /** the most messages kept to be sent again when a gateway session is resumed */
+    public static final String GATEWAY_REPLAY_LIMIT = "CORE_GATEWAY_REPLAY_LIMIT";
+    public static final int DEFAULT_GATEWAY_REPLAY_LIMIT = 64;
+
+    /** how long, in milliseconds, after a connect to one gateway endpoint a connect to the next is started */
+    public static final String GATEWAY_CONNECT_STAGGER = "CORE_GATEWAY_CONNECT_STAGGER";
+    public static final int DEFAULT_GATEWAY_CONNECT_STAGGER = 250;
+
+    /** drive the gateway channels from the shared selector thread rather than threads per socket, read at start up */
+    public static final String GATEWAY_SELECTOR = "CORE_GATEWAY_SELECTOR";
+    public static final boolean DEFAULT_GATEWAY_SELECTOR = false;
+
+    /** how many threads insert received data into the content providers, read at start up */
+    public static final String DISTRIBUTOR_INSERT_LANES = "CORE_DISTRIBUTOR_INSERT_LANES";
+    public static final int DEFAULT_DISTRIBUTOR_INSERT_LANES = 2;
+
+    /** the most received rows inserted into a content provider at once, less than two is no batching */
+    public static final String DISTRIBUTOR_INSERT_BATCH_SIZE = "CORE_DISTRIBUTOR_INSERT_BATCH_SIZE";
+    public static final int DEFAULT_DISTRIBUTOR_INSERT_BATCH_SIZE = 32;
+
+    /** how long, in milliseconds, a received row may wait for others to be inserted with */
+    public static final String DISTRIBUTOR_INSERT_LINGER = "CORE_DISTRIBUTOR_INSERT_LINGER";
+    public static final int DEFAULT_DISTRIBUTOR_INSERT_LINGER = 50;
+
+    /** the share of the distributor given to each queue, the items taken from it each round */
+    public static final String DISTRIBUTOR_WEIGHT_ACK = "CORE_DISTRIBUTOR_WEIGHT_ACK";
+    public static final int DEFAULT_DISTRIBUTOR_WEIGHT_ACK = 1;
+    public static final String DISTRIBUTOR_WEIGHT_RESPONSE = "CORE_DISTRIBUTOR_WEIGHT_RESPONSE";
+    public static final int DEFAULT_DISTRIBUTOR_WEIGHT_RESPONSE = 4;
+    public static final String DISTRIBUTOR_WEIGHT_REQUEST = "CORE_DISTRIBUTOR_WEIGHT_REQUEST";
+    public static final int DEFAULT_DISTRIBUTOR_WEIGHT_REQUEST = 4;
+
+    /** how long, in milliseconds, the head of each queue may wait before it is served out of turn */
+    public static final String DISTRIBUTOR_MAX_AGE_ACK = "CORE_DISTRIBUTOR_MAX_AGE_ACK";
+    public static final int DEFAULT_DISTRIBUTOR_MAX_AGE_ACK = 5 * 1000;
+    public static final String DISTRIBUTOR_MAX_AGE_RESPONSE = "CORE_DISTRIBUTOR_MAX_AGE_RESPONSE";
+    public static final int DEFAULT_DISTRIBUTOR_MAX_AGE_RESPONSE = 1000;
+    public static final String DISTRIBUTOR_MAX_AGE_REQUEST = "CORE_DISTRIBUTOR_MAX_AGE_REQUEST";
+    public static final int DEFAULT_DISTRIBUTOR_MAX_AGE_REQUEST = 1000;
+
+    /** the share of the distributor given to draining the backlog, in pages each round */
+    public static final String DISTRIBUTOR_WEIGHT_BACKLOG = "CORE_DISTRIBUTOR_WEIGHT_BACKLOG";
+    public static final int DEFAULT_DISTRIBUTOR_WEIGHT_BACKLOG = 1;
+
+    /** the most waiting requests sent again in one page of the backlog */
+    public static final String DISTRIBUTOR_BACKLOG_PAGE = "CORE_DISTRIBUTOR_BACKLOG_PAGE";
+    public static final int DEFAULT_DISTRIBUTOR_BACKLOG_PAGE = 20;
+
+    /** the least time, in milliseconds, from one page of the backlog to the next */
+    public static final String DISTRIBUTOR_BACKLOG_INTERVAL = "CORE_DISTRIBUTOR_BACKLOG_INTERVAL";
+    public static final int DEFAULT_DISTRIBUTOR_BACKLOG_INTERVAL = 100;
+
+    public static final String MULTICAST_BATCH_SIZE = "CORE_MULTICAST_BATCH_SIZE";
+    public static final int DEFAULT_MULTICAST_BATCH_SIZE = 0;
+
+    public static final String MULTICAST_BATCH_LINGER = "CORE_MULTICAST_BATCH_LINGER";
+    public static final int DEFAULT_MULTICAST_BATCH_LINGER = 5;
+}
@@ -22,6 +22,8 @@
 
 package edu.vu.isis.ammo.core;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -50,8 +52,6 @@ import android.preference.PreferenceManager;
 import android.telephony.PhoneStateListener;
 import android.telephony.TelephonyManager;
 
-import com.google.protobuf.InvalidProtocolBufferException;
-
 import edu.vu.isis.ammo.INetDerivedKeys;
 import edu.vu.isis.ammo.INetPrefKeys;
 import edu.vu.isis.ammo.IntentNames;
@@ -83,6 +83,7 @@ import edu.vu.isis.ammo.core.network.NetChannel;
 import edu.vu.isis.ammo.core.network.ReliableMulticastChannel;
 import edu.vu.isis.ammo.core.network.SerialChannel;
 import edu.vu.isis.ammo.core.network.TcpChannelClient;
+import edu.vu.isis.ammo.core.network.TcpChannelNio;
 import edu.vu.isis.ammo.core.network.TcpChannelServer;
 import edu.vu.isis.ammo.core.pb.AmmoMessages;
 import edu.vu.isis.ammo.core.receiver.CellPhoneListener;
@@ -276,9 +277,32 @@ public enum NetworkManager  implements INetworkService,
 
     public DistributorPolicy policy(DistributorPolicy policy) {
         logger.info("setting new policy: \n{}", policy);
+        this.applyChannelPolicy(policy);
         return this.policy.getAndSet(policy);
     }
 
+    /**
+     * Pass the channel settings from the policy to the channels which use
+     * them.
+     */
+    private void applyChannelPolicy(DistributorPolicy policy) {
+        DistributorPolicy.ChannelPolicy settings = policy.matchChannel(tcpChannel.name);
+        this.tcpChannel.setCompression(settings.compress, settings.compressThreshold);
+        if (this.nioChannel != null)
+            this.nioChannel.setCompression(settings.compress, settings.compressThreshold);
+
+        settings = policy.matchChannel(tcpMediaChannel.name);
+        this.tcpMediaChannel.setCompression(settings.compress, settings.compressThreshold);
+        if (this.nioMediaChannel != null)
+            this.nioMediaChannel.setCompression(settings.compress, settings.compressThreshold);
+
+        settings = policy.matchChannel(reverseTcpChannel.name);
+        this.reverseTcpChannel.setCompression(settings.compress, settings.compressThreshold);
+
+        settings = policy.matchChannel(multicastChannel.name);
+        this.multicastChannel.setCompression(settings.compress, settings.compressThreshold);
+    }
+
 
     private PhoneStateListener mListener;
 
@@ -304,6 +328,16 @@ public enum NetworkManager  implements INetworkService,
 
         this.journalChannel.init(context);
         
+        // before the policy is applied, which also configures these
+        if (PreferenceManager.getDefaultSharedPreferences(this.context)
+                .getBoolean(ICorePrefKeys.GATEWAY_SELECTOR, ICorePrefKeys.DEFAULT_GATEWAY_SELECTOR)) {
+            logger.info("gateway channels driven by the selector thread");
+            this.nioChannel = TcpChannelNio.getInstance(ChannelFilter.GATEWAY, this);
+            this.nioMediaChannel = TcpChannelNio.getInstance(ChannelFilter.GATEWAYMEDIA, this);
+            this.nioChannel.init(context);
+            this.nioMediaChannel.init(context);
+        }
+
         this.tcpChannel.init(context);
         this.tcpMediaChannel.init(context);
         this.reverseTcpChannel.init(context);
@@ -378,9 +412,9 @@ public enum NetworkManager  implements INetworkService,
             logger.error("serial channel native not found");
         }
 
-        netChannelMap.put("default", tcpChannel);
-        netChannelMap.put(tcpChannel.name, tcpChannel);
-        netChannelMap.put(tcpMediaChannel.name, tcpMediaChannel); 
+        netChannelMap.put("default", gatewayChannel());
+        netChannelMap.put(tcpChannel.name, gatewayChannel());
+        netChannelMap.put(tcpMediaChannel.name, gatewayMediaChannel()); 
         netChannelMap.put(reverseTcpChannel.name, reverseTcpChannel); 
         
         netChannelMap.put(multicastChannel.name, multicastChannel);
@@ -390,9 +424,9 @@ public enum NetworkManager  implements INetworkService,
         netChannelMap.put(serialChannel.name, serialChannel);
 
         modelChannelMap.put(tcpChannel.name,
-                Gateway.getInstance(this.context, tcpChannel));
+                Gateway.getInstance(this.context, gatewayChannel()));
         modelChannelMap.put(tcpMediaChannel.name,
-                Gateway.getMediaInstance(this.context, tcpMediaChannel)); 
+                Gateway.getMediaInstance(this.context, gatewayMediaChannel())); 
         modelChannelMap.put(reverseTcpChannel.name,
                 Usb.getInstance(this.context, reverseTcpChannel));
         
@@ -425,6 +459,10 @@ public enum NetworkManager  implements INetworkService,
         // no point in enabling the socket until the preferences have been read
         this.tcpChannel.disable();
         this.tcpMediaChannel.disable();
+        if (this.nioChannel != null) {
+            this.nioChannel.disable();
+            this.nioMediaChannel.disable();
+        }
         this.reverseTcpChannel.disable();
         
         this.multicastChannel.disable();
@@ -441,8 +479,8 @@ public enum NetworkManager  implements INetworkService,
         if (this.networkingSwitch) {
         	logger.info("enable links as indicated");
             if (!this.isGatewaySuppressed) {
-                this.tcpChannel.enable();
-                this.tcpMediaChannel.enable();
+                this.gatewayChannel().enable();
+                this.gatewayMediaChannel().enable();
             }
             if (this.isServerEnabled) {
             	this.reverseTcpChannel.enable();
@@ -524,8 +562,8 @@ public enum NetworkManager  implements INetworkService,
         final Intent loginIntent = new Intent(IntentNames.AMMO_READY);
         loginIntent.addCategory(IntentNames.RESET_CATEGORY);
 
-        this.tcpChannel.reset();
-        this.tcpMediaChannel.reset();
+        this.gatewayChannel().reset();
+        this.gatewayMediaChannel().reset();
         this.reverseTcpChannel.reset();
         
         this.multicastChannel.reset();
@@ -543,10 +581,8 @@ public enum NetworkManager  implements INetworkService,
    
     public void onDestroy() {
         logger.warn("::onDestroy - NetworkManager");
-        if (tcpChannel != null)
-            this.tcpChannel.disable();
-        if (tcpMediaChannel != null)
-            this.tcpMediaChannel.disable();
+        this.gatewayChannel().disable();
+        this.gatewayMediaChannel().disable();
         if( reverseTcpChannel != null )
         	reverseTcpChannel.disable();
         
@@ -766,14 +802,80 @@ public enum NetworkManager  implements INetworkService,
         this.tcpChannel.setPort(gatewayPort);
         this.tcpChannel.setFlatLineTime(flatLineTime * 60 * 1000);
         this.tcpChannel.setMaxMsgSize(gatewayMaxMsgSize);
+
+        final int gatewayBatchSize = Integer.parseInt(this.localSettings
+                .getString(ICorePrefKeys.GATEWAY_BATCH_SIZE,
+                        String.valueOf(ICorePrefKeys.DEFAULT_GATEWAY_BATCH_SIZE)));
+        final int gatewayBatchLinger = Integer.parseInt(this.localSettings
+                .getString(ICorePrefKeys.GATEWAY_BATCH_LINGER,
+                        String.valueOf(ICorePrefKeys.DEFAULT_GATEWAY_BATCH_LINGER)));
+        this.tcpChannel.setBatching(gatewayBatchSize, gatewayBatchLinger);
+        final int gatewayChunkSize = Integer.parseInt(this.localSettings
+                .getString(ICorePrefKeys.GATEWAY_CHUNK_SIZE,
+                        String.valueOf(ICorePrefKeys.DEFAULT_GATEWAY_CHUNK_SIZE)));
+        this.tcpChannel.setChunking(gatewayChunkSize,
+                new File(this.store().applCacheDir, "transfer"));
+        final int gatewayFlushBudget = Integer.parseInt(this.localSettings
+                .getString(ICorePrefKeys.GATEWAY_FLUSH_BUDGET,
+                        String.valueOf(ICorePrefKeys.DEFAULT_GATEWAY_FLUSH_BUDGET)));
+        final int gatewayFlushLinger = Integer.parseInt(this.localSettings
+                .getString(ICorePrefKeys.GATEWAY_FLUSH_LINGER,
+                        String.valueOf(ICorePrefKeys.DEFAULT_GATEWAY_FLUSH_LINGER)));
+        this.tcpChannel.setWriteCoalescing(gatewayFlushBudget, gatewayFlushLinger);
+        final int gatewayLaneCapacity = Integer.parseInt(this.localSettings
+                .getString(ICorePrefKeys.GATEWAY_LANE_CAPACITY,
+                        String.valueOf(ICorePrefKeys.DEFAULT_GATEWAY_LANE_CAPACITY)));
+        final int gatewayLaneHighWater = Integer.parseInt(this.localSettings
+                .getString(ICorePrefKeys.GATEWAY_LANE_HIGH_WATER,
+                        String.valueOf(ICorePrefKeys.DEFAULT_GATEWAY_LANE_HIGH_WATER)));
+        this.tcpChannel.setSendLanes(gatewayLaneCapacity, gatewayLaneHighWater);
+        final int heartbeatMin = Integer.parseInt(this.localSettings
+                .getString(ICorePrefKeys.HEARTBEAT_MIN_INTERVAL,
+                        String.valueOf(ICorePrefKeys.DEFAULT_HEARTBEAT_MIN_INTERVAL)));
+        final int heartbeatMax = Integer.parseInt(this.localSettings
+                .getString(ICorePrefKeys.HEARTBEAT_MAX_INTERVAL,
+                        String.valueOf(ICorePrefKeys.DEFAULT_HEARTBEAT_MAX_INTERVAL)));
+        this.tcpChannel.setHeartbeat(heartbeatMin, heartbeatMax);
+        final int sessionLease = Integer.parseInt(this.localSettings
+                .getString(ICorePrefKeys.GATEWAY_SESSION_LEASE,
+                        String.valueOf(ICorePrefKeys.DEFAULT_GATEWAY_SESSION_LEASE)));
+        final int replayLimit = Integer.parseInt(this.localSettings
+                .getString(ICorePrefKeys.GATEWAY_REPLAY_LIMIT,
+                        String.valueOf(ICorePrefKeys.DEFAULT_GATEWAY_REPLAY_LIMIT)));
+        this.tcpChannel.setSessionLease(sessionLease, replayLimit);
+        final int connectStagger = Integer.parseInt(this.localSettings
+                .getString(ICorePrefKeys.GATEWAY_CONNECT_STAGGER,
+                        String.valueOf(ICorePrefKeys.DEFAULT_GATEWAY_CONNECT_STAGGER)));
+        this.tcpChannel.setConnectStagger(connectStagger);
         this.tcpChannel.toLog("acquire ");
 
         // tcp media channel
         this.tcpMediaChannel.setHost(gatewayHostname);
         this.tcpMediaChannel.setPort(gatewayPort);
+        this.tcpMediaChannel.setConnectStagger(connectStagger);
         this.tcpMediaChannel.setFlatLineTime(flatLineTime * 60 * 1000);
         this.tcpMediaChannel.setMaxMsgSize(gatewayMaxMsgSize);        
         this.tcpMediaChannel.toLog("acquire ");
+
+        // selector driven gateway channels, they neither linger nor chunk
+        if (this.nioChannel != null) {
+            this.nioChannel.setHost(gatewayHostname);
+            this.nioChannel.setPort(gatewayPort);
+            this.nioChannel.setFlatLineTime(flatLineTime * 60 * 1000);
+            this.nioChannel.setMaxMsgSize(gatewayMaxMsgSize);
+            this.nioChannel.setBatching(gatewayBatchSize);
+            this.nioChannel.setFlushBudget(gatewayFlushBudget);
+            this.nioChannel.setSendLanes(gatewayLaneCapacity, gatewayLaneHighWater);
+            this.nioChannel.setHeartbeat(heartbeatMin, heartbeatMax);
+            this.nioChannel.setSessionLease(sessionLease, replayLimit);
+            this.nioChannel.toLog("acquire ");
+
+            this.nioMediaChannel.setHost(gatewayHostname);
+            this.nioMediaChannel.setPort(gatewayPort);
+            this.nioMediaChannel.setFlatLineTime(flatLineTime * 60 * 1000);
+            this.nioMediaChannel.setMaxMsgSize(gatewayMaxMsgSize);
+            this.nioMediaChannel.toLog("acquire ");
+        }
         
         // tcp server channel
         this.isServerEnabled = this
@@ -792,6 +894,10 @@ public enum NetworkManager  implements INetworkService,
         this.reverseTcpChannel.setPort(serverPort);
         // this.reverseTcpChannel.setFlatLineTime(flatLineTime * 60 * 1000);
         this.reverseTcpChannel.setMaxMsgSize(gatewayMaxMsgSize);
+        this.reverseTcpChannel.setHeartbeat(heartbeatMin, heartbeatMax);
+        // each client is sent to as the gateway is
+        this.reverseTcpChannel.setWriteCoalescing(gatewayFlushBudget, gatewayFlushLinger);
+        this.reverseTcpChannel.setSendLanes(gatewayLaneCapacity, gatewayLaneHighWater);
         
         // convert minutes into milliseconds
 
@@ -829,6 +935,14 @@ public enum NetworkManager  implements INetworkService,
         this.multicastChannel.setFlatLineTime(multicastFlatLine);
         this.multicastChannel.setSocketTimeout(multicastIdleTime);
         this.multicastChannel.setTTL(multicastTTL);
+
+        final int multicastBatchSize = Integer.parseInt(this.localSettings
+                .getString(ICorePrefKeys.MULTICAST_BATCH_SIZE,
+                        String.valueOf(ICorePrefKeys.DEFAULT_MULTICAST_BATCH_SIZE)));
+        final int multicastBatchLinger = Integer.parseInt(this.localSettings
+                .getString(ICorePrefKeys.MULTICAST_BATCH_LINGER,
+                        String.valueOf(ICorePrefKeys.DEFAULT_MULTICAST_BATCH_LINGER)));
+        this.multicastChannel.setBatching(multicastBatchSize, multicastBatchLinger);
         this.multicastChannel.toLog("acquire ");
 
         /*
@@ -1251,12 +1365,12 @@ public enum NetworkManager  implements INetworkService,
                              * GATEWAY
                              */
                             if (prefs.getBoolean(key, INetPrefKeys.DEFAULT_GATEWAY_ENABLED)) {
-                                parent.tcpChannel.disable();
-                                parent.tcpMediaChannel.disable();
+                                parent.gatewayChannel().disable();
+                                parent.gatewayMediaChannel().disable();
                                 parent.reverseTcpChannel.disable();
                             } else {
-                                parent.tcpChannel.enable();
-                                parent.tcpMediaChannel.enable();
+                                parent.gatewayChannel().enable();
+                                parent.gatewayMediaChannel().enable();
                                 parent.reverseTcpChannel.enable();
                             }
                         }
@@ -1265,18 +1379,30 @@ public enum NetworkManager  implements INetworkService,
                                     .getString(key, INetPrefKeys.DEFAULT_GATEWAY_HOST);
                             parent.tcpChannel.setHost(gatewayHostname);
                             parent.tcpMediaChannel.setHost(gatewayHostname);
+                            if (parent.nioChannel != null) {
+                                parent.nioChannel.setHost(gatewayHostname);
+                                parent.nioMediaChannel.setHost(gatewayHostname);
+                            }
                         }
                         else if (key.equals(INetPrefKeys.GATEWAY_PORT)) {
                             int gatewayPort = Integer.valueOf(prefs.getString(
                                     key, String.valueOf(INetPrefKeys.DEFAULT_GATEWAY_PORT)));
                             parent.tcpChannel.setPort(gatewayPort);
                             parent.tcpMediaChannel.setPort(gatewayPort);
+                            if (parent.nioChannel != null) {
+                                parent.nioChannel.setPort(gatewayPort);
+                                parent.nioMediaChannel.setPort(gatewayPort);
+                            }
                         }
                         else if (key.equals(INetPrefKeys.GATEWAY_TIMEOUT)) {
                             final Integer timeout = Integer.valueOf(prefs.getString(
                                     key, String.valueOf(INetPrefKeys.DEFAULT_GW_TIMEOUT)));
                             parent.tcpChannel.setSocketTimeout(timeout.intValue() * 1000);
                             parent.tcpMediaChannel.setSocketTimeout(timeout.intValue() * 1000);                            
+                            if (parent.nioChannel != null) {
+                                parent.nioChannel.setSocketTimeout(timeout.intValue() * 1000);
+                                parent.nioMediaChannel.setSocketTimeout(timeout.intValue() * 1000);
+                            }
                             // convert seconds into milliseconds
                         }
                         else if (key.equals(INetPrefKeys.SERVER_PORT)) {
@@ -1297,8 +1423,8 @@ public enum NetworkManager  implements INetworkService,
                             logger.trace("explicit opererator reset on channel");
                             parent.networkingSwitch = true;
 
-                            parent.tcpChannel.reset();
-                            parent.tcpMediaChannel.reset();
+                            parent.gatewayChannel().reset();
+                            parent.gatewayMediaChannel().reset();
                             parent.reverseTcpChannel.reset();
                             
                             parent.multicastChannel.reset();
@@ -1312,6 +1438,10 @@ public enum NetworkManager  implements INetworkService,
                             // convert from minutes to milliseconds
                             parent.tcpChannel.setFlatLineTime(flatLineTime * 60 * 1000);
                             parent.tcpMediaChannel.setFlatLineTime(flatLineTime * 60 * 1000); 
+                            if (parent.nioChannel != null) {
+                                parent.nioChannel.setFlatLineTime(flatLineTime * 60 * 1000);
+                                parent.nioMediaChannel.setFlatLineTime(flatLineTime * 60 * 1000);
+                            }
                             // parent.reverseTcpChannel.setFlatLineTime(flatLineTime * 60 * 1000);                         
                         }
                         else if (key.equals(INetPrefKeys.GATEWAY_MAX_MESSAGE_SIZE)) {
@@ -1321,6 +1451,10 @@ public enum NetworkManager  implements INetworkService,
                           logger.trace("Setting gateway max message size to {}", max_msg_sz);
                           parent.tcpChannel.setMaxMsgSize(max_msg_sz);
                           parent.tcpMediaChannel.setMaxMsgSize(max_msg_sz);
+                          if (parent.nioChannel != null) {
+                              parent.nioChannel.setMaxMsgSize(max_msg_sz);
+                              parent.nioMediaChannel.setMaxMsgSize(max_msg_sz);
+                          }
                         }
                         
                         else if (key.equals(INetPrefKeys.MULTICAST_DISABLED)) {
@@ -1564,8 +1698,8 @@ public enum NetworkManager  implements INetworkService,
      */
     public void teardown() {
         logger.trace("Tearing down NPS");
-        this.tcpChannel.disable();
-        this.tcpMediaChannel.disable();
+        this.gatewayChannel().disable();
+        this.gatewayMediaChannel().disable();
         this.reverseTcpChannel.disable();
         
         this.multicastChannel.disable();
@@ -1584,8 +1718,8 @@ public enum NetworkManager  implements INetworkService,
      * @return
      */
     public boolean isConnected() {
-        boolean any = (tcpChannel.isConnected()
-        		|| tcpMediaChannel.isConnected()
+        boolean any = (gatewayChannel().isConnected()
+        		|| gatewayMediaChannel().isConnected()
         		|| reverseTcpChannel.isConnected()
                 || multicastChannel.isConnected()
                 || reliableMulticastChannel.isConnected()
@@ -1654,10 +1788,12 @@ public enum NetworkManager  implements INetworkService,
         // HACK! Fixme
         final AmmoMessages.MessageWrapper mw;
         try {
-            mw = AmmoMessages.MessageWrapper.parseFrom(agm.payload);
-        } catch (InvalidProtocolBufferException ex) {
+            mw = agm.parsePayload();
+        } catch (IOException ex) {
             logger.error("parsing payload failed", ex);
             return;
+        } finally {
+            agm.releasePayload();
         }
         if (mw == null) {
             logger.error("mw was null!");
@@ -1688,6 +1824,25 @@ public enum NetworkManager  implements INetworkService,
 
     }
 
+    /**
+     * The channel picked up its gateway session without authenticating, the
+     * session id is unchanged.
+     */
+    public void sessionResumed(NetChannel channel) {
+        PreferenceManager
+                .getDefaultSharedPreferences(this.context)
+                .edit()
+                .putBoolean(INetDerivedKeys.NET_CONN_PREF_IS_ACTIVE, true)
+                .commit();
+
+        logger.trace("session resumed, activate channel {}", channel);
+        this.distThread.onChannelChange(this.context, channel.name, ChannelChange.ACTIVATE);
+
+        final Intent connectedIntent = new Intent(IntentNames.AMMO_CONNECTED);
+        connectedIntent.putExtra("channel", channel.name);
+        this.context.sendBroadcast(connectedIntent);
+    }
+
     public void receivedCorruptPacketOnSerialChannel()
     {
         serialChannel.receivedCorruptPacket();
@@ -1776,6 +1931,20 @@ public enum NetworkManager  implements INetworkService,
             TcpChannelClient.getInstance(ChannelFilter.GATEWAY, this);
     final private TcpChannelClient tcpMediaChannel =
             TcpChannelClient.getInstance(ChannelFilter.GATEWAYMEDIA, this);
+    /** used for the gateway in place of the threaded channels, see ICorePrefKeys.GATEWAY_SELECTOR */
+    private TcpChannelNio nioChannel = null;
+    private TcpChannelNio nioMediaChannel = null;
+
+    /**
+     * @return the channel to the gateway in use, selector driven or threaded
+     */
+    private NetChannel gatewayChannel() {
+        return (this.nioChannel != null) ? this.nioChannel : this.tcpChannel;
+    }
+
+    private NetChannel gatewayMediaChannel() {
+        return (this.nioMediaChannel != null) ? this.nioMediaChannel : this.tcpMediaChannel;
+    }
     final private TcpChannelServer reverseTcpChannel =
             TcpChannelServer.getInstance(ChannelFilter.SERVER, this);
     
@@ -1921,8 +2090,8 @@ public enum NetworkManager  implements INetworkService,
 
         private void stopChannels() {
           
-          tcpChannel.linkDown(null);
-          tcpMediaChannel.linkDown(null);
+          gatewayChannel().linkDown(null);
+          gatewayMediaChannel().linkDown(null);
           reverseTcpChannel.linkDown(null);
           
           multicastChannel.linkDown(null);
@@ -1936,8 +2105,8 @@ public enum NetworkManager  implements INetworkService,
 
         private void startChannels() {
           
-          tcpChannel.linkUp(null);
-          tcpMediaChannel.linkUp(null);
+          gatewayChannel().linkUp(null);
+          gatewayMediaChannel().linkUp(null);
           reverseTcpChannel.linkUp(null);
           
           multicastChannel.linkUp(null);
@@ -0,0 +1,262 @@
+/* Copyright (c) 2010-2015 Vanderbilt University
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package edu.vu.isis.ammo.core.distributor;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import android.content.SharedPreferences;
+
+/**
+ * Keeps the place of the distributor as it drains the backlog of requests
+ * which were waiting for a channel.
+ * <p>
+ * The backlog is taken a page at a time, in the priority order of the ready
+ * queries, so new requests and responses are handled between the pages
+ * rather than after the whole backlog. The place reached in each table is
+ * the priority and key of the last request taken; it is saved after each
+ * page so a drain which is interrupted carries on from where it was.
+ * <p>
+ * Each channel change asks for the tables to be swept. A sweep which is
+ * asked for while one is under way is started from the top once the current
+ * one reaches the end, so requests before the place reached are not missed.
+ * The subscriptions are drained before the retrievals and those before the
+ * postals.
+ */
+public class BacklogDrain {
+    private static final Logger logger = LoggerFactory.getLogger("dist.backlog");
+
+    public enum Table {
+        SUBSCRIBE, RETRIEVAL, POSTAL;
+    }
+
+    /**
+     * The place reached in one table.
+     */
+    public class Checkpoint {
+        public final Table table;
+        private boolean atTop = true;
+        private boolean again = false;
+        private int priority = Integer.MAX_VALUE;
+        private long id = -1;
+        private int taken = 0;
+
+        private Checkpoint(Table table) {
+            this.table = table;
+        }
+
+        /**
+         * The priority of the last request taken, Integer.MAX_VALUE at the
+         * top of the table.
+         */
+        public int priority() {
+            return this.priority;
+        }
+
+        /**
+         * The key of the last request taken, -1 at the top of the table.
+         */
+        public long id() {
+            return this.id;
+        }
+
+        /**
+         * Record the request just taken.
+         */
+        public void advance(int priority, long id) {
+            synchronized (BacklogDrain.this) {
+                this.atTop = false;
+                this.priority = priority;
+                this.id = id;
+                this.taken++;
+            }
+        }
+
+        boolean isPending() {
+            return !this.atTop || this.again;
+        }
+
+        @Override
+        public String toString() {
+            return new StringBuilder().append(this.table).append(' ')
+                    .append(this.atTop ? "top" : "at").append(' ')
+                    .append(this.priority).append(':').append(this.id)
+                    .append(this.again ? " again" : "").toString();
+        }
+    }
+
+    private final SharedPreferences prefs;
+    private final int pageSize;
+    private final long interval;
+    private final Checkpoint[] checkpoints;
+    private long since = 0;
+    private long nextPage = 0;
+    private boolean paging = false;
+
+    /**
+     * @param prefs where the places reached are saved, null if they are not
+     * @param pageSize the most requests taken from a table in a page
+     * @param interval the least time in milliseconds from one page to the next
+     */
+    public BacklogDrain(SharedPreferences prefs, int pageSize, long interval) {
+        this.prefs = prefs;
+        this.pageSize = Math.max(1, pageSize);
+        this.interval = Math.max(0, interval);
+        final Table[] tables = Table.values();
+        this.checkpoints = new Checkpoint[tables.length];
+        for (int ix = 0; ix < tables.length; ++ix) {
+            this.checkpoints[ix] = this.load(tables[ix]);
+            if (this.checkpoints[ix].isPending() && this.since == 0)
+                this.since = System.currentTimeMillis();
+        }
+        logger.info("backlog page={} interval={} {}",
+                new Object[] { this.pageSize, this.interval, this });
+    }
+
+    public int pageSize() {
+        return this.pageSize;
+    }
+
+    /**
+     * Ask for all the tables to be swept.
+     */
+    public synchronized void request(long now) {
+        for (final Checkpoint checkpoint : this.checkpoints) {
+            checkpoint.again = true;
+        }
+        if (this.since == 0)
+            this.since = now;
+    }
+
+    public synchronized boolean isPending() {
+        for (final Checkpoint checkpoint : this.checkpoints) {
+            if (checkpoint.isPending())
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return when the oldest unfinished sweep was asked for, zero if there
+     *         is none
+     */
+    public synchronized long since() {
+        return this.since;
+    }
+
+    /**
+     * There is a page to take, none is being taken and the last one finished
+     * long enough ago.
+     */
+    public synchronized boolean isDue(long now) {
+        return !this.paging && now >= this.nextPage && this.isPending();
+    }
+
+    /**
+     * How long to wait for the next page to be due.
+     * 
+     * @param longest the wait when no page is to be started
+     */
+    public synchronized long untilDue(long now, long longest) {
+        if (this.paging || !this.isPending())
+            return longest;
+        return Math.max(1, Math.min(longest, this.nextPage - now));
+    }
+
+    /**
+     * Start a page of the first table with work.
+     * 
+     * @return the place to take the page from, null if there is no work
+     */
+    public synchronized Checkpoint begin() {
+        for (final Checkpoint checkpoint : this.checkpoints) {
+            if (!checkpoint.isPending())
+                continue;
+            if (checkpoint.atTop)
+                checkpoint.again = false;
+            checkpoint.taken = 0;
+            this.paging = true;
+            return checkpoint;
+        }
+        return null;
+    }
+
+    /**
+     * Finish the page; if it was short the table has been swept.
+     */
+    public synchronized void end(Checkpoint checkpoint, long now) {
+        if (checkpoint.taken < this.pageSize) {
+            logger.debug("swept {}", checkpoint.table);
+            checkpoint.atTop = true;
+            checkpoint.priority = Integer.MAX_VALUE;
+            checkpoint.id = -1;
+        }
+        this.save(checkpoint);
+        this.paging = false;
+        this.nextPage = now + this.interval;
+        if (!this.isPending())
+            this.since = 0;
+    }
+
+    /**
+     * The page could not be started, it is tried again when next due.
+     */
+    public synchronized void cancel(Checkpoint checkpoint) {
+        if (checkpoint.atTop)
+            checkpoint.again = true;
+        this.paging = false;
+    }
+
+    private Checkpoint load(Table table) {
+        final Checkpoint checkpoint = new Checkpoint(table);
+        if (this.prefs == null)
+            return checkpoint;
+        final String prefix = table.name();
+        checkpoint.atTop = this.prefs.getBoolean(prefix + ".top", true);
+        checkpoint.again = this.prefs.getBoolean(prefix + ".again", false);
+        checkpoint.priority = this.prefs.getInt(prefix + ".priority", Integer.MAX_VALUE);
+        checkpoint.id = this.prefs.getLong(prefix + ".id", -1);
+        return checkpoint;
+    }
+
+    private void save(Checkpoint checkpoint) {
+        if (this.prefs == null)
+            return;
+        final String prefix = checkpoint.table.name();
+        this.prefs.edit()
+                .putBoolean(prefix + ".top", checkpoint.atTop)
+                .putBoolean(prefix + ".again", checkpoint.again)
+                .putInt(prefix + ".priority", checkpoint.priority)
+                .putLong(prefix + ".id", checkpoint.id)
+                .commit();
+    }
+
+    @Override
+    public synchronized String toString() {
+        final StringBuilder sb = new StringBuilder();
+        for (final Checkpoint checkpoint : this.checkpoints) {
+            sb.append('[').append(checkpoint).append(']');
+        }
+        return sb.toString();
+    }
+}
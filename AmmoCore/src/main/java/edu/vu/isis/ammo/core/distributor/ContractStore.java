@@ -613,6 +613,8 @@ public class ContractStore {
 					typeContracts.put(mimeType, rel);
 				}
 			}
+			// the contract may change the fields of any provider
+			SerialMetadataCache.getInstance().invalidateAll();
 		} catch(ParserConfigurationException e) {
 			logger.warn("Contract parsing threw exception {}", e);
 		} catch(SAXException e) {
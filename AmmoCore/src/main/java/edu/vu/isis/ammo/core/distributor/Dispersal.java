@@ -107,6 +107,43 @@ public class Dispersal {
         return sb.toString();
     }
 
+    /**
+     * The encoding multiplexRequest() will most likely serialize with, that
+     * of the first literal still to be tried whose channel is ready; so the
+     * payload can be serialized before the request is dispatched.
+     * 
+     * @return the encoding or null if there is nothing ready to try
+     */
+    public Encoding nextEncoding(final NetworkManager that) {
+        if (this.policy == null)
+            return Encoding.DEFAULT;
+        for (final DistributorPolicy.Clause clause : this.policy.clauses) {
+            boolean clauseSuccess = false;
+            for (final DistributorPolicy.Literal literal : clause.literals) {
+                final DisposalState priorCondition = this.containsKey(literal.term)
+                        ? this.get(literal.term) : DisposalState.PENDING;
+                if (priorCondition.goalReached(literal.condition)) {
+                    clauseSuccess = true;
+                    break;
+                }
+            }
+            if (clauseSuccess)
+                continue;
+            for (final DistributorPolicy.Literal literal : clause.literals) {
+                if (this.channelFilter != null && literal.term.equals(this.channelFilter))
+                    continue;
+                final DisposalState priorCondition = this.containsKey(literal.term)
+                        ? this.get(literal.term) : DisposalState.PENDING;
+                if (priorCondition != DisposalState.PENDING
+                        && priorCondition != DisposalState.BUSY)
+                    continue;
+                if (that.checkChannel(literal.term) == ChannelStatus.READY)
+                    return literal.encoding;
+            }
+        }
+        return null;
+    }
+
     /**
      * Attempt to satisfy the distribution policy for this message's topic. The
      * policies are processed in "short circuit" disjunctive normal form. Each
@@ -190,6 +227,8 @@ public class Dispersal {
                 final DisposalState actualCondition;
                 switch (priorCondition) {
                     case PENDING:
+                    case BUSY:
+                        // a channel which was full may have drained
                         final ChannelStatus channelStatus = that.checkChannel(term);
                         switch (channelStatus) {
                             case READY:
@@ -24,10 +24,14 @@ package edu.vu.isis.ammo.core.distributor;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -75,6 +79,12 @@ public class DistributorDataStore {
     // ===========================================================
     private final Context context;
     private SQLiteDatabase db;
+
+    /**
+     * The providers subscribed to each topic, as in the subscribe table.
+     */
+    private final SubscriptionIndex subscriptions = new SubscriptionIndex();
+    private final PostalPayloadCache postalPayloads;
     private final DataStoreHelper helper;
 
     // ===========================================================
@@ -1077,6 +1087,8 @@ public class DistributorDataStore {
         this.applCachePostalDir = new File(this.applCacheDir, "postal");
         if (!this.applCachePostalDir.exists())
             this.applCachePostalDir.mkdir();
+        this.postalPayloads = new PostalPayloadCache(this.applCachePostalDir,
+                context.getContentResolver());
 
         this.applCacheRetrievalDir = new File(this.applCacheDir, "retrieval");
         if (!this.applCacheRetrievalDir.exists())
@@ -1095,6 +1107,7 @@ public class DistributorDataStore {
             this.applTempDir.mkdir();
 
         this.openWrite();
+        this.reindexSubscriptions();
         logger.trace("datastore constructed");
     }
 
@@ -1163,12 +1176,40 @@ public class DistributorDataStore {
         return null;
     }
 
+    /**
+     * A page of the postal requests ready to be sent, those which follow the
+     * given priority and key in the order of queryPostalReady.
+     * 
+     * @param priority of the last request taken, Integer.MAX_VALUE for the
+     *        first page
+     * @param id key of the last request taken, -1 for the first page
+     * @param limit the most requests in the page
+     */
+    public synchronized Cursor queryPostalReady(int priority, long id, int limit) {
+        return this.queryReadyPage(POSTAL_PAGE_QUERY, priority, id, limit);
+    }
+
+    private Cursor queryReadyPage(String query, int priority, long id, int limit) {
+        try {
+            final String paged = new StringBuilder(query)
+                    .append(" LIMIT ").append(limit).toString();
+            logger.trace("page query \n{}", paged);
+            return this.db.rawQuery(paged, new String[] {
+                    String.valueOf(priority), String.valueOf(priority), String.valueOf(id)
+            });
+        } catch (SQLiteException ex) {
+            logger.error("sql error", ex);
+        }
+        return null;
+    }
+
     private static final String POSTAL_STATUS_QUERY;
+    private static final String POSTAL_PAGE_QUERY;
     static {
         final RelationsHelper rel_postal = new RelationsHelper(Relations.POSTAL);
         final RelationsHelper rel_disposal = new RelationsHelper(Relations.DISPOSAL);
         final RelationsHelper rel_channel = new RelationsHelper(Relations.CHANNEL);
-        POSTAL_STATUS_QUERY = new StringBuilder()
+        final String ready = new StringBuilder()
                 .append(" SELECT ").append(" * ")
                 .append(" FROM ").append(rel_postal.q()).append(" AS p ")
                 .append(" WHERE EXISTS (SELECT * ")
@@ -1188,11 +1229,21 @@ public class DistributorDataStore {
                 .append(DisposalState.BUSY.q()).append(',')
                 .append(DisposalState.PENDING.q()).append(')')
                 .append(')') // close exists clause
+                .toString();
+        POSTAL_STATUS_QUERY = new StringBuilder(ready)
                 .append(" ORDER BY ")
                 .append(PostalTableSchema.PRIORITY.q()).append(" DESC ").append(',')
                 .append(PostalTableSchema._ID.q()).append(" ASC ")
                 .append(';')
                 .toString();
+        POSTAL_PAGE_QUERY = new StringBuilder(ready)
+                .append("   AND (p.").append(PostalTableSchema.PRIORITY.q()).append("<?")
+                .append("    OR (p.").append(PostalTableSchema.PRIORITY.q()).append("=?")
+                .append("   AND p.").append(PostalTableSchema._ID.q()).append(">?))")
+                .append(" ORDER BY ")
+                .append(PostalTableSchema.PRIORITY.q()).append(" DESC ").append(',')
+                .append(PostalTableSchema._ID.q()).append(" ASC ")
+                .toString();
     }
 
     public synchronized Cursor queryRetrieval(String[] projection, String selection,
@@ -1253,12 +1304,20 @@ public class DistributorDataStore {
         return null;
     }
 
+    /**
+     * @see #queryPostalReady(int, long, int)
+     */
+    public synchronized Cursor queryRetrievalReady(int priority, long id, int limit) {
+        return this.queryReadyPage(RETRIEVAL_PAGE_QUERY, priority, id, limit);
+    }
+
     private static final String RETRIEVAL_STATUS_QUERY;
+    private static final String RETRIEVAL_PAGE_QUERY;
     static {
         final RelationsHelper rel_retrieval = new RelationsHelper(Relations.RETRIEVAL);
         final RelationsHelper rel_disposal = new RelationsHelper(Relations.DISPOSAL);
         final RelationsHelper rel_channel = new RelationsHelper(Relations.CHANNEL);
-        RETRIEVAL_STATUS_QUERY = new StringBuilder()
+        final String ready = new StringBuilder()
                 .append(" SELECT ").append(" * ")
                 .append(" FROM ").append(rel_retrieval.q()).append(" AS p ")
                 .append(" WHERE EXISTS (SELECT * ")
@@ -1277,6 +1336,16 @@ public class DistributorDataStore {
                 .append(DisposalState.REJECTED.q()).append(',')
                 .append(DisposalState.PENDING.q()).append(')')
                 .append(')') // close exists clause
+                .toString();
+        RETRIEVAL_STATUS_QUERY = new StringBuilder(ready)
+                .append(" ORDER BY ")
+                .append(RetrievalTableSchema.PRIORITY.q()).append(" DESC ").append(',')
+                .append(RetrievalTableSchema._ID.q()).append(" ASC ")
+                .toString();
+        RETRIEVAL_PAGE_QUERY = new StringBuilder(ready)
+                .append("   AND (p.").append(RetrievalTableSchema.PRIORITY.q()).append("<?")
+                .append("    OR (p.").append(RetrievalTableSchema.PRIORITY.q()).append("=?")
+                .append("   AND p.").append(RetrievalTableSchema._ID.q()).append(">?))")
                 .append(" ORDER BY ")
                 .append(RetrievalTableSchema.PRIORITY.q()).append(" DESC ").append(',')
                 .append(RetrievalTableSchema._ID.q()).append(" ASC ")
@@ -1323,6 +1392,47 @@ public class DistributorDataStore {
         return null;
     }
 
+    /**
+     * The same as the first provider from querySubscribeByKey, without the
+     * query. It neither waits for the store nor touches the database.
+     * 
+     * @return the uri of the provider or null if the topic has no subscription
+     */
+    public String querySubscribeProviderByTopic(String topic) {
+        return this.subscriptions.providerOf(topic);
+    }
+
+    /**
+     * Load the subscription index from the subscribe table, done at start up
+     * and whenever rows are deleted by a selection which the index cannot
+     * follow.
+     */
+    private synchronized void reindexSubscriptions() {
+        final List<String[]> pairs = new ArrayList<String[]>();
+        try {
+            final Cursor cursor = this.db.query(Relations.SUBSCRIBE.n,
+                    new String[] {
+                            SubscribeTableSchema.TOPIC.n, SubscribeTableSchema.PROVIDER.n
+                    },
+                    null, null, null, null, SubscribeTable.PRIORITY_SORT_ORDER);
+            if (cursor == null)
+                return;
+            for (boolean more = cursor.moveToFirst(); more; more = cursor.moveToNext()) {
+                if (cursor.isNull(0) || cursor.isNull(1))
+                    continue;
+                pairs.add(new String[] {
+                        cursor.getString(0), cursor.getString(1)
+                });
+            }
+            cursor.close();
+        } catch (SQLiteException ex) {
+            logger.error("could not index subscriptions", ex);
+            return;
+        }
+        this.subscriptions.replace(pairs);
+        logger.debug("subscriptions indexed {}", this.subscriptions);
+    }
+
     static private final String SUSCRIBE_QUERY = new StringBuilder()
             .append(SubscribeTableSchema.TOPIC.q()).append("=?")
             .toString();
@@ -1336,12 +1446,20 @@ public class DistributorDataStore {
         return null;
     }
 
+    /**
+     * @see #queryPostalReady(int, long, int)
+     */
+    public synchronized Cursor querySubscribeReady(int priority, long id, int limit) {
+        return this.queryReadyPage(SUBSCRIBE_PAGE_QUERY, priority, id, limit);
+    }
+
     private static final String SUBSCRIBE_STATUS_QUERY;
+    private static final String SUBSCRIBE_PAGE_QUERY;
     static {
         final RelationsHelper rel_subscribe = new RelationsHelper(Relations.SUBSCRIBE);
         final RelationsHelper rel_disposal = new RelationsHelper(Relations.DISPOSAL);
         final RelationsHelper rel_channel = new RelationsHelper(Relations.CHANNEL);
-        SUBSCRIBE_STATUS_QUERY = new StringBuilder()
+        final String ready = new StringBuilder()
                 .append(" SELECT ").append(" * ")
                 .append(" FROM ").append(rel_subscribe.q()).append(" AS p ")
                 .append(" WHERE EXISTS (SELECT * ")
@@ -1360,6 +1478,16 @@ public class DistributorDataStore {
                 .append(DisposalState.REJECTED.q()).append(',')
                 .append(DisposalState.PENDING.q()).append(')')
                 .append(')') // close exists clause
+                .toString();
+        SUBSCRIBE_STATUS_QUERY = new StringBuilder(ready)
+                .append(" ORDER BY ")
+                .append(SubscribeTableSchema.PRIORITY.q()).append(" DESC ").append(',')
+                .append(SubscribeTableSchema._ID.q()).append(" ASC ")
+                .toString();
+        SUBSCRIBE_PAGE_QUERY = new StringBuilder(ready)
+                .append("   AND (p.").append(SubscribeTableSchema.PRIORITY.q()).append("<?")
+                .append("    OR (p.").append(SubscribeTableSchema.PRIORITY.q()).append("=?")
+                .append("   AND p.").append(SubscribeTableSchema._ID.q()).append(">?))")
                 .append(" ORDER BY ")
                 .append(SubscribeTableSchema.PRIORITY.q()).append(" DESC ").append(',')
                 .append(SubscribeTableSchema._ID.q()).append(" ASC ")
@@ -1443,6 +1571,8 @@ public class DistributorDataStore {
             logger.trace("upsert postal status=[{}] cv=[{}]", status, cv);
             final String topic = cv.getAsString(PostalTableSchema.TOPIC.cv());
             final String provider = cv.getAsString(PostalTableSchema.PROVIDER.cv());
+            if (topic != null && provider != null)
+                this.postalPayloads.invalidate(topic, provider);
 
             final long key;
             final String[] updateArgs = new String[] {
@@ -1548,6 +1678,8 @@ public class DistributorDataStore {
             } else {
                 key = this.db.insert(Relations.SUBSCRIBE.n, SubscribeTableSchema.CREATED.n, cv);
             }
+            if (key > 0 && topic != null && provider != null)
+                this.subscriptions.add(topic, provider);
             for (Entry<String, DisposalState> entry : status.entrySet()) {
                 this.upsertDisposalByParent(Relations.SUBSCRIBE, key, entry.getKey(),
                         entry.getValue());
@@ -1816,6 +1948,71 @@ public class DistributorDataStore {
         return this.upsertDisposalByParent(Relations.SUBSCRIBE, id, channel, state);
     }
 
+    /**
+     * The state of a request on a channel, as acknowledged by the channel.
+     */
+    public static class DisposalUpdate {
+        public final Relations type;
+        public final long id;
+        public final String channel;
+        public final DisposalState state;
+
+        public DisposalUpdate(Relations type, long id, String channel, DisposalState state) {
+            this.type = type;
+            this.id = id;
+            this.channel = channel;
+            this.state = state;
+        }
+
+        @Override
+        public String toString() {
+            return new StringBuilder().append(this.type).append(' ').append(this.id)
+                    .append(' ').append(this.channel).append(' ').append(this.state)
+                    .toString();
+        }
+    }
+
+    /**
+     * Update the state of several requests on their channels in a single
+     * transaction. Should the transaction fail each update is made on its
+     * own, so one bad update does not lose the rest.
+     * 
+     * @return the number of disposals updated
+     */
+    public synchronized int updateDisposalByKey(List<DisposalUpdate> updates) {
+        this.db.beginTransaction();
+        try {
+            final int count = this.upsertDisposals(updates);
+            this.db.setTransactionSuccessful();
+            return count;
+        } catch (SQLiteException ex) {
+            logger.warn("batch of {} disposals failed, updating each", updates.size(), ex);
+        } finally {
+            this.db.endTransaction();
+        }
+        int count = 0;
+        for (final DisposalUpdate update : updates) {
+            try {
+                if (this.upsertDisposalByParent(update.type, update.id, update.channel,
+                        update.state) > 0)
+                    count++;
+            } catch (SQLiteException ex) {
+                logger.error("update disposal {}", update, ex);
+            }
+        }
+        return count;
+    }
+
+    private int upsertDisposals(List<DisposalUpdate> updates) {
+        int count = 0;
+        for (final DisposalUpdate update : updates) {
+            if (this.upsertDisposalByParent(update.type, update.id, update.channel,
+                    update.state) > 0)
+                count++;
+        }
+        return count;
+    }
+
     /** Insert method helper */
     public ContentValues initializePostalDefaults(ContentValues values) {
         final Long now = Long.valueOf(System.currentTimeMillis());
@@ -1993,6 +2190,8 @@ public class DistributorDataStore {
             final int disposalCount = db.delete(Relations.DISPOSAL.n,
                     DISPOSAL_POSTAL_ORPHAN_CONDITION, null);
             logger.trace("Postal delete {} {}", count, disposalCount);
+            if (count > 0)
+                this.retainPostalPayloads(db);
             return count;
         } catch (IllegalArgumentException ex) {
             logger.error("delete postal {} {}", selection, selectionArgs);
@@ -2008,6 +2207,8 @@ public class DistributorDataStore {
             final int disposalCount = db.delete(Relations.DISPOSAL.n,
                     DISPOSAL_POSTAL_ORPHAN_CONDITION, null);
             logger.trace("Postal garbage {} {}", expireCount, disposalCount);
+            if (expireCount > 0)
+                this.retainPostalPayloads(db);
             return expireCount;
         } catch (IllegalArgumentException ex) {
             logger.error("deletePostalGarbage", ex);
@@ -2017,6 +2218,26 @@ public class DistributorDataStore {
         return 0;
     }
 
+    /**
+     * Drop the serialized payloads of the postals which have been deleted.
+     */
+    private void retainPostalPayloads(SQLiteDatabase db) {
+        final Set<String> keys = new HashSet<String>();
+        final Cursor cursor = db.query(Relations.POSTAL.n, new String[] {
+                PostalTableSchema.TOPIC.n, PostalTableSchema.PROVIDER.n
+        }, null, null, null, null, null);
+        try {
+            for (boolean more = cursor.moveToFirst(); more; more = cursor.moveToNext()) {
+                if (cursor.isNull(0) || cursor.isNull(1))
+                    continue;
+                keys.add(PostalPayloadCache.keyOf(cursor.getString(0), cursor.getString(1)));
+            }
+        } finally {
+            cursor.close();
+        }
+        this.postalPayloads.retain(keys);
+    }
+
     private static final String DISPOSAL_POSTAL_ORPHAN_CONDITION;
     static {
         final RelationsHelper rel_postal = new RelationsHelper(Relations.POSTAL);
@@ -2123,6 +2344,8 @@ public class DistributorDataStore {
             final int disposalCount = db.delete(Relations.DISPOSAL.n,
                     DISPOSAL_SUBSCRIBE_ORPHAN_CONDITION, null);
             logger.trace("Subscribe delete {} {}", count, disposalCount);
+            if (count > 0)
+                this.reindexSubscriptions();
             return count;
         } catch (IllegalArgumentException ex) {
             logger.error("delete postal {} {}", selection, selectionArgs);
@@ -2141,6 +2364,8 @@ public class DistributorDataStore {
                     new Object[] {
                             expireCount, disposalCount, DISPOSAL_SUBSCRIBE_ORPHAN_CONDITION
                     });
+            if (expireCount > 0)
+                this.reindexSubscriptions();
             return expireCount;
         } catch (IllegalArgumentException ex) {
             logger.error("deleteSubscribeGarbage", ex);
@@ -2186,6 +2411,7 @@ public class DistributorDataStore {
                     new String[] {
                         new RelationsHelper(Relations.SUBSCRIBE).qv()
                     });
+            this.subscriptions.clear();
             return db.delete(Relations.SUBSCRIBE.n, null, null);
         } catch (IllegalArgumentException ex) {
             logger.error("purgeSubscribe");
@@ -2201,6 +2427,14 @@ public class DistributorDataStore {
     public final File applCacheSubscriptionDir;
     public final File applTempDir;
 
+    /**
+     * The serialized payloads of the postals, kept under the postal cache
+     * directory.
+     */
+    public PostalPayloadCache postalPayloads() {
+        return this.postalPayloads;
+    }
+
     protected File blobFile(String table, String tuple, String field)
             throws IOException {
         File tupleCacheDir = blobDir(table, tuple);
@@ -32,7 +32,9 @@ import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.net.MalformedURLException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.xml.parsers.ParserConfigurationException;
@@ -54,6 +56,7 @@ import android.content.res.Resources.NotFoundException;
 import android.net.Uri;
 import edu.vu.isis.ammo.api.IAmmoRequest;
 import edu.vu.isis.ammo.core.distributor.DistributorDataStore.DisposalState;
+import edu.vu.isis.ammo.core.network.PayloadCompressor;
 import edu.vu.isis.ammo.pretrie.PrefixList;
 import edu.vu.isis.ammo.util.HashBuilder;
 
@@ -82,6 +85,8 @@ public class DistributorPolicy implements ContentHandler {
     public final PrefixList<Topic> postalPolicy;
     public final PrefixList<Topic> subscribePolicy;
     public final PrefixList<Topic> retrievalPolicy;
+    /** settings for the network channels, by channel name */
+    public final Map<String, ChannelPolicy> channelPolicy;
 
     public final static String policy_dir = "policy";
     public final static String policy_file = "distribution_policy.xml";
@@ -180,6 +185,7 @@ public class DistributorPolicy implements ContentHandler {
         this.postalPolicy = new PrefixList<Topic>();
         this.subscribePolicy = new PrefixList<Topic>();
         this.retrievalPolicy = new PrefixList<Topic>();
+        this.channelPolicy = new HashMap<String, ChannelPolicy>();
 
         this.builder = new TopicBuilder();
 
@@ -231,6 +237,10 @@ public class DistributorPolicy implements ContentHandler {
             for (final Topic entry : this.retrievalPolicy.values()) {
                 sb.append('\n').append("RETRIEVAL: \n").append(entry);
             }
+        if (this.channelPolicy != null)
+            for (final ChannelPolicy entry : this.channelPolicy.values()) {
+                sb.append('\n').append("CHANNEL: ").append(entry);
+            }
         return sb.toString();
     }
 
@@ -268,6 +278,45 @@ public class DistributorPolicy implements ContentHandler {
         return rule;
     }
 
+    /**
+     * The settings for the named channel.
+     * 
+     * @param name the channel name, e.g. "gateway"
+     * @return the settings, a channel not in the policy does not compress
+     */
+    public ChannelPolicy matchChannel(String name) {
+        final ChannelPolicy settings = this.channelPolicy.get(name);
+        if (settings != null)
+            return settings;
+        return new ChannelPolicy(name, false, PayloadCompressor.DEFAULT_THRESHOLD);
+    }
+
+    /**
+     * How a network channel should treat the messages it carries.
+     * <p>
+     * Payloads of at least the threshold size are compressed, if the channel
+     * can agree to it with its peer.
+     */
+    public static class ChannelPolicy {
+        public final String name;
+        public final boolean compress;
+        public final int compressThreshold;
+
+        public ChannelPolicy(String name, boolean compress, int compressThreshold) {
+            this.name = name;
+            this.compress = compress;
+            this.compressThreshold = compressThreshold;
+        }
+
+        @Override
+        public String toString() {
+            return new StringBuilder().append(this.name)
+                    .append(" compress=").append(this.compress)
+                    .append(" threshold=").append(this.compressThreshold)
+                    .toString();
+        }
+    }
+
     private int indent = 0;
 
     private String indent() {
@@ -816,6 +865,7 @@ public class DistributorPolicy implements ContentHandler {
     private boolean inLiteral = false;
 
     private boolean inTest = false;
+    private boolean inChannel = false;
 
     private boolean inDescription = false;
 
@@ -835,7 +885,7 @@ public class DistributorPolicy implements ContentHandler {
             return;
         }
         // in policy
-        if (!this.inTopic && !this.inTest) {
+        if (!this.inTopic && !this.inTest && !this.inChannel) {
             if (matchName.equals("topic")) {
                 saxlogger.trace("begin 'topic'");
                 this.inTopic = true;
@@ -890,7 +940,19 @@ public class DistributorPolicy implements ContentHandler {
 
                 return;
             }
-            saxlogger.warn("expecting begin 'topic' or 'test': got {}",
+            if (matchName.equals("channel")) {
+                saxlogger.trace("begin 'channel'");
+                this.inChannel = true;
+                final String name = atts.getValue(uri, "name");
+                if (name == null)
+                    return;
+                final boolean compress = extractCondition(uri, "compress", false, atts);
+                final int threshold = extractSize(uri, "compress-threshold",
+                        PayloadCompressor.DEFAULT_THRESHOLD, atts);
+                this.channelPolicy.put(name, new ChannelPolicy(name, compress, threshold));
+                return;
+            }
+            saxlogger.warn("expecting begin 'topic', 'test' or 'channel': got {}",
                     matchName);
             return;
         }
@@ -993,6 +1055,16 @@ public class DistributorPolicy implements ContentHandler {
             return;
         }
 
+        if (this.inChannel) {
+            if (matchName.equals("channel")) {
+                saxlogger.trace("end 'channel'");
+                this.inChannel = false;
+                return;
+            }
+            saxlogger.error("processing channel and found {}", matchName);
+            return;
+        }
+
         if (!this.inTopic) {
             if (matchName.equals("policy")) {
                 saxlogger.trace("end 'policy'");
@@ -1163,6 +1235,27 @@ public class DistributorPolicy implements ContentHandler {
         }
     }
 
+    /**
+     * A helper routine to extract a size in bytes from the xml element.
+     * 
+     * @param uri
+     * @param attrname
+     * @param def
+     * @param atts
+     * @return
+     */
+    private int extractSize(String uri, String attrname, int def,
+            Attributes atts) {
+        final String value = atts.getValue(uri, attrname);
+        if (value == null)
+            return def;
+        try {
+            return Math.max(0, Integer.parseInt(value));
+        } catch (NumberFormatException ex) {
+            return def;
+        }
+    }
+
     /**
      * The lifespan specified in the policy is in minutes. Internally all times
      * are in milliseconds. (conversion necessary) This is a maximum allowed
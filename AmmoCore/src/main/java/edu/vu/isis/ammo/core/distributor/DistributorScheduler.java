@@ -0,0 +1,159 @@
+/* Copyright (c) 2010-2015 Vanderbilt University
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package edu.vu.isis.ammo.core.distributor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.vu.isis.ammo.core.metrics.MetricsRegistry;
+
+/**
+ * Decides which of the distributor's queues is served next.
+ * <p>
+ * The queues are served by deficit round robin. Each round a queue with
+ * work earns its weight in credit and is served while it has credit, so
+ * over time each queue gets its share of the distributor in proportion to
+ * its weight however full the others are. A queue which is empty loses its
+ * credit; one whose stage is full keeps it for the next round.
+ * <p>
+ * A queue whose head has waited longer than its maximum age is served
+ * before the round, whatever its credit. The head-of-line wait of each
+ * queue is kept as the gauge <code>distributor.sched.&lt;name&gt;.wait</code>.
+ */
+public class DistributorScheduler {
+    private static final Logger logger = LoggerFactory.getLogger("dist.sched");
+
+    /**
+     * One of the queues being scheduled.
+     */
+    public interface Source {
+        /**
+         * @return when the work at the head was queued, in milliseconds, zero
+         *         if the queue is empty
+         */
+        long headTime();
+
+        /**
+         * @return true if the head can be taken now, its stage has room
+         */
+        boolean isReady();
+
+        /**
+         * Take the work at the head and hand it on to its stage.
+         */
+        void dispatch();
+    }
+
+    private static class Entry {
+        final String name;
+        final Source source;
+        final int weight;
+        final long maxAge;
+        final MetricsRegistry.Gauge headWait;
+        final MetricsRegistry.Counter overdue;
+        int deficit = 0;
+
+        Entry(String name, Source source, int weight, long maxAge) {
+            this.name = name;
+            this.source = source;
+            this.weight = Math.max(1, weight);
+            this.maxAge = maxAge;
+            final MetricsRegistry metrics = MetricsRegistry.getInstance();
+            final String prefix = new StringBuilder("distributor.sched.").append(name)
+                    .append('.').toString();
+            this.headWait = metrics.gauge(prefix + "wait");
+            this.overdue = metrics.counter(prefix + "overdue");
+        }
+    }
+
+    private final List<Entry> entries = new ArrayList<Entry>();
+
+    /**
+     * @param name of the queue, used for the metrics
+     * @param weight the work taken from the queue each round, at least one
+     * @param maxAge in milliseconds, the longest the head may wait before it
+     *        is served out of turn, not positive for no limit
+     */
+    public DistributorScheduler add(String name, Source source, int weight, long maxAge) {
+        this.entries.add(new Entry(name, source, weight, maxAge));
+        logger.info("schedule {} weight={} max age={}",
+                new Object[] { name, weight, maxAge });
+        return this;
+    }
+
+    public boolean isReady() {
+        for (final Entry entry : this.entries) {
+            if (entry.source.isReady())
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Serve the queues for one round.
+     * 
+     * @param now the current time in milliseconds
+     * @return the number of items handed on
+     */
+    public int round(long now) {
+        int served = 0;
+        for (final Entry entry : this.entries) {
+            final long head = entry.source.headTime();
+            final long wait = (head > 0) ? Math.max(0, now - head) : 0;
+            entry.headWait.set(wait);
+            if (entry.maxAge > 0 && wait > entry.maxAge && entry.source.isReady()) {
+                logger.debug("{} overdue by {} ms", entry.name, wait - entry.maxAge);
+                entry.overdue.inc();
+                entry.source.dispatch();
+                entry.deficit--;
+                served++;
+            }
+        }
+        for (final Entry entry : this.entries) {
+            if (entry.source.headTime() == 0) {
+                entry.deficit = 0;
+                continue;
+            }
+            entry.deficit = Math.min(entry.deficit + entry.weight, entry.weight);
+            while (entry.deficit > 0 && entry.source.isReady()) {
+                entry.source.dispatch();
+                entry.deficit--;
+                served++;
+            }
+        }
+        return served;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        for (final Entry entry : this.entries) {
+            sb.append(entry.name).append(':').append(entry.deficit).append('/')
+                    .append(entry.weight).append(' ');
+        }
+        return sb.toString().trim();
+    }
+}
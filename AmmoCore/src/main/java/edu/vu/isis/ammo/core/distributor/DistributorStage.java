@@ -0,0 +1,183 @@
+/* Copyright (c) 2010-2015 Vanderbilt University
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package edu.vu.isis.ammo.core.distributor;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.vu.isis.ammo.core.metrics.Histogram;
+import edu.vu.isis.ammo.core.metrics.MetricsRegistry;
+
+/**
+ * One stage of the distributor pipeline.
+ * <p>
+ * A stage has a fixed number of lanes, each a bounded queue with its own
+ * worker thread. Work is given with a key, the topic or the channel, and
+ * all work with the same key goes to the same lane so it is done in the
+ * order it was given. Work with other keys runs in the other lanes, so a
+ * slow item holds up only the keys which share its lane.
+ * <p>
+ * Submitting never blocks. The distributor asks whether the lane has room
+ * before it takes an item from its own queue; if it has none the stage
+ * calls back once the lane has been drained a little.
+ */
+public class DistributorStage {
+    private static final Logger logger = LoggerFactory.getLogger("dist.stage");
+
+    private final String name;
+    private final Lane[] lanes;
+    private final Runnable onRoom;
+    private final AtomicBoolean wanted = new AtomicBoolean(false);
+    private final Histogram dwell;
+
+    /**
+     * @param name of the stage, used for the thread names and metrics
+     * @param laneCount the number of lanes, each with its own thread
+     * @param capacity the most work waiting in a lane
+     * @param onRoom run when a lane which was full has taken some work
+     */
+    public DistributorStage(String name, int laneCount, int capacity, Runnable onRoom) {
+        this.name = name;
+        this.onRoom = onRoom;
+        this.dwell = MetricsRegistry.getInstance()
+                .histogram(new StringBuilder("distributor.stage.").append(name)
+                        .append(".dwell").toString());
+        this.lanes = new Lane[Math.max(1, laneCount)];
+        for (int ix = 0; ix < this.lanes.length; ++ix) {
+            this.lanes[ix] = new Lane(ix, Math.max(1, capacity));
+        }
+    }
+
+    public DistributorStage start() {
+        for (final Lane lane : this.lanes) {
+            lane.start();
+        }
+        logger.info("stage {} started with {} lanes", this.name, this.lanes.length);
+        return this;
+    }
+
+    public void stop() {
+        for (final Lane lane : this.lanes) {
+            lane.interrupt();
+        }
+    }
+
+    int laneOf(Object key) {
+        if (key == null)
+            return 0;
+        return (key.hashCode() & 0x7fffffff) % this.lanes.length;
+    }
+
+    /**
+     * If there is no room the stage will call back when there is.
+     */
+    public boolean hasRoom(Object key) {
+        if (this.lanes[this.laneOf(key)].queue.remainingCapacity() > 0)
+            return true;
+        this.wanted.set(true);
+        return false;
+    }
+
+    /**
+     * @return false if the lane for the key is full, the work is not done
+     */
+    public boolean submit(Object key, Runnable work) {
+        final Lane lane = this.lanes[this.laneOf(key)];
+        if (lane.queue.offer(new Work(work)))
+            return true;
+        this.wanted.set(true);
+        logger.warn("stage {} lane {} is full", this.name, lane.getName());
+        return false;
+    }
+
+    /**
+     * Wait for room in the lane; only for work handed on by another stage,
+     * never by the distributor thread.
+     */
+    public void put(Object key, Runnable work) throws InterruptedException {
+        this.lanes[this.laneOf(key)].queue.put(new Work(work));
+    }
+
+    /**
+     * The work waiting in all the lanes.
+     */
+    public int size() {
+        int size = 0;
+        for (final Lane lane : this.lanes) {
+            size += lane.queue.size();
+        }
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder(this.name).append('[');
+        for (int ix = 0; ix < this.lanes.length; ++ix) {
+            if (ix > 0)
+                sb.append(' ');
+            sb.append(this.lanes[ix].queue.size());
+        }
+        return sb.append(']').toString();
+    }
+
+    private static class Work {
+        final Runnable runnable;
+        final long queued = System.currentTimeMillis();
+
+        Work(Runnable runnable) {
+            this.runnable = runnable;
+        }
+    }
+
+    private class Lane extends Thread {
+        final LinkedBlockingQueue<Work> queue;
+
+        Lane(int ordinal, int capacity) {
+            super(new StringBuilder("Distribute-").append(DistributorStage.this.name)
+                    .append('-').append(ordinal).toString());
+            this.queue = new LinkedBlockingQueue<Work>(capacity);
+            this.setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    final Work work = this.queue.take();
+                    dwell.record(System.currentTimeMillis() - work.queued);
+                    if (wanted.getAndSet(false) && onRoom != null)
+                        onRoom.run();
+                    try {
+                        work.runnable.run();
+                    } catch (RuntimeException ex) {
+                        logger.error("stage {} work failed", this.getName(), ex);
+                    }
+                }
+            } catch (InterruptedException ex) {
+                logger.info("stage {} stopped", this.getName());
+            }
+        }
+    }
+}
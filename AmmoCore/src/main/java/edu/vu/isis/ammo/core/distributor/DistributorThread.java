@@ -23,6 +23,9 @@
 package edu.vu.isis.ammo.core.distributor;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.UUID;
@@ -31,6 +34,7 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -57,7 +61,6 @@ import android.os.Process;
 import android.preference.PreferenceManager;
 
 import com.google.protobuf.ByteString;
-import com.google.protobuf.InvalidProtocolBufferException;
 
 import edu.vu.isis.ammo.INetDerivedKeys;
 import edu.vu.isis.ammo.api.AmmoRequest;
@@ -68,6 +71,7 @@ import edu.vu.isis.ammo.api.type.Payload;
 import edu.vu.isis.ammo.api.type.Provider;
 import edu.vu.isis.ammo.core.AmmoMimeTypes;
 import edu.vu.isis.ammo.core.ChannelChange;
+import edu.vu.isis.ammo.core.ICorePrefKeys;
 import edu.vu.isis.ammo.core.NetworkManager;
 import edu.vu.isis.ammo.core.PLogger;
 import edu.vu.isis.ammo.core.R;
@@ -75,6 +79,7 @@ import edu.vu.isis.ammo.core.distributor.DistributorDataStore.ChannelState;
 import edu.vu.isis.ammo.core.distributor.DistributorDataStore.DisposalState;
 import edu.vu.isis.ammo.core.distributor.DistributorDataStore.DisposalTableSchema;
 import edu.vu.isis.ammo.core.distributor.DistributorDataStore.DisposalTotalState;
+import edu.vu.isis.ammo.core.distributor.DistributorDataStore.DisposalUpdate;
 import edu.vu.isis.ammo.core.distributor.DistributorDataStore.PostalTableSchema;
 import edu.vu.isis.ammo.core.distributor.DistributorDataStore.RetrievalTableSchema;
 import edu.vu.isis.ammo.core.distributor.DistributorDataStore.SerializeMode;
@@ -87,6 +92,8 @@ import edu.vu.isis.ammo.core.distributor.serializer.JsonSerializer;
 import edu.vu.isis.ammo.core.distributor.serializer.TerseSerializer;
 import edu.vu.isis.ammo.core.distributor.store.Capability;
 import edu.vu.isis.ammo.core.distributor.store.Presence;
+import edu.vu.isis.ammo.core.metrics.Histogram;
+import edu.vu.isis.ammo.core.metrics.MetricsRegistry;
 import edu.vu.isis.ammo.core.network.AmmoGatewayMessage;
 import edu.vu.isis.ammo.core.network.INetworkService;
 import edu.vu.isis.ammo.core.network.NetChannel;
@@ -154,6 +161,22 @@ public class DistributorThread extends Thread {
     
     private ResponseExecutor deserializeExecutor;
 
+    private static final int INBOUND_LANES = 2;
+    private static final int DISPATCH_LANES = 4;
+    private static final int ACK_LANES = 1;
+    private static final int STAGE_CAPACITY = 50;
+    /** the most channel acks applied in one transaction */
+    private static final int ACK_BATCH_SIZE = 64;
+    /** where the place reached in draining the backlog is kept */
+    private static final String BACKLOG_PREFS = "distributor_backlog";
+
+    private final DistributorStage inboundStage;
+    private final DistributorStage dispatchStage;
+    private final DistributorStage ackStage;
+    private final DistributorStage replayStage;
+    private final DistributorScheduler scheduler;
+    private final BacklogDrain backlog;
+
 
     public DistributorThread(final Context context, final NetworkManager parent) {
         super(new StringBuilder("Distribute-").
@@ -163,7 +186,14 @@ public class DistributorThread extends Thread {
         this.requestQueue = new LinkedBlockingQueue<AmmoRequest>(200);
         this.responseQueue = new PriorityBlockingQueue<AmmoGatewayMessage>(200,
                 new AmmoGatewayMessage.PriorityOrder());
-        this.deserializeExecutor = ResponseExecutor.newInstance(this);
+        this.deserializeExecutor = ResponseExecutor.newInstance(this,
+                intPref(context, ICorePrefKeys.DISTRIBUTOR_INSERT_LANES,
+                        ICorePrefKeys.DEFAULT_DISTRIBUTOR_INSERT_LANES));
+        ProviderInsertBatcher.getInstance().configure(
+                intPref(context, ICorePrefKeys.DISTRIBUTOR_INSERT_BATCH_SIZE,
+                        ICorePrefKeys.DEFAULT_DISTRIBUTOR_INSERT_BATCH_SIZE),
+                intPref(context, ICorePrefKeys.DISTRIBUTOR_INSERT_LINGER,
+                        ICorePrefKeys.DEFAULT_DISTRIBUTOR_INSERT_LINGER));
         
         this.store = new DistributorDataStore(context);
         this.contractStore = ContractStore.newInstance(context);
@@ -173,9 +203,123 @@ public class DistributorThread extends Thread {
 
         this.channelAck = new LinkedBlockingQueue<ChannelAck>(200);
         this.ammoAdaptorCache = new CustomAdaptorCache(context);
+
+        final Runnable onRoom = new Runnable() {
+            @Override
+            public void run() {
+                signal();
+            }
+        };
+        this.inboundStage = new DistributorStage("inbound", INBOUND_LANES, STAGE_CAPACITY, onRoom);
+        this.dispatchStage = new DistributorStage("dispatch", DISPATCH_LANES, STAGE_CAPACITY, onRoom);
+        this.ackStage = new DistributorStage("ack", ACK_LANES, STAGE_CAPACITY, onRoom);
+        this.replayStage = new DistributorStage("replay", 1, 1, onRoom);
+
+        this.backlog = new BacklogDrain(
+                context.getSharedPreferences(BACKLOG_PREFS, Context.MODE_PRIVATE),
+                intPref(context, ICorePrefKeys.DISTRIBUTOR_BACKLOG_PAGE,
+                        ICorePrefKeys.DEFAULT_DISTRIBUTOR_BACKLOG_PAGE),
+                intPref(context, ICorePrefKeys.DISTRIBUTOR_BACKLOG_INTERVAL,
+                        ICorePrefKeys.DEFAULT_DISTRIBUTOR_BACKLOG_INTERVAL));
+
+        this.scheduler = new DistributorScheduler()
+                .add("ack", new DistributorScheduler.Source() {
+                    @Override
+                    public long headTime() {
+                        final ChannelAck ack = channelAck.peek();
+                        return (ack == null) ? 0 : ack.queued;
+                    }
+
+                    @Override
+                    public boolean isReady() {
+                        return isAckReady();
+                    }
+
+                    @Override
+                    public void dispatch() {
+                        dispatchAck();
+                    }
+                },
+                        intPref(context, ICorePrefKeys.DISTRIBUTOR_WEIGHT_ACK,
+                                ICorePrefKeys.DEFAULT_DISTRIBUTOR_WEIGHT_ACK),
+                        intPref(context, ICorePrefKeys.DISTRIBUTOR_MAX_AGE_ACK,
+                                ICorePrefKeys.DEFAULT_DISTRIBUTOR_MAX_AGE_ACK))
+                .add("response", new DistributorScheduler.Source() {
+                    @Override
+                    public long headTime() {
+                        final AmmoGatewayMessage agm = responseQueue.peek();
+                        return (agm == null) ? 0 : agm.buildTime;
+                    }
+
+                    @Override
+                    public boolean isReady() {
+                        return isResponseReady();
+                    }
+
+                    @Override
+                    public void dispatch() {
+                        dispatchResponse();
+                    }
+                },
+                        intPref(context, ICorePrefKeys.DISTRIBUTOR_WEIGHT_RESPONSE,
+                                ICorePrefKeys.DEFAULT_DISTRIBUTOR_WEIGHT_RESPONSE),
+                        intPref(context, ICorePrefKeys.DISTRIBUTOR_MAX_AGE_RESPONSE,
+                                ICorePrefKeys.DEFAULT_DISTRIBUTOR_MAX_AGE_RESPONSE))
+                .add("request", new DistributorScheduler.Source() {
+                    @Override
+                    public long headTime() {
+                        final AmmoRequest ar = requestQueue.peek();
+                        return (ar == null) ? 0 : ar.buildTime;
+                    }
+
+                    @Override
+                    public boolean isReady() {
+                        return isRequestReady();
+                    }
+
+                    @Override
+                    public void dispatch() {
+                        dispatchRequest();
+                    }
+                },
+                        intPref(context, ICorePrefKeys.DISTRIBUTOR_WEIGHT_REQUEST,
+                                ICorePrefKeys.DEFAULT_DISTRIBUTOR_WEIGHT_REQUEST),
+                        intPref(context, ICorePrefKeys.DISTRIBUTOR_MAX_AGE_REQUEST,
+                                ICorePrefKeys.DEFAULT_DISTRIBUTOR_MAX_AGE_REQUEST))
+                .add("backlog", new DistributorScheduler.Source() {
+                    @Override
+                    public long headTime() {
+                        return backlog.since();
+                    }
+
+                    @Override
+                    public boolean isReady() {
+                        return backlog.isDue(System.currentTimeMillis())
+                                && replayStage.hasRoom(null);
+                    }
+
+                    @Override
+                    public void dispatch() {
+                        dispatchBacklog();
+                    }
+                },
+                        intPref(context, ICorePrefKeys.DISTRIBUTOR_WEIGHT_BACKLOG,
+                                ICorePrefKeys.DEFAULT_DISTRIBUTOR_WEIGHT_BACKLOG),
+                        0);
         logger.debug("thread constructed");
     }
 
+    private static int intPref(final Context context, final String key, final int defValue) {
+        final String value = PreferenceManager.getDefaultSharedPreferences(context)
+                .getString(key, String.valueOf(defValue));
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException ex) {
+            logger.warn("invalid {} {}", key, value);
+            return defValue;
+        }
+    }
+
     private class NotifyMsgNumber implements Runnable {
 
         private DistributorThread parent = null;
@@ -375,6 +519,12 @@ public class DistributorThread extends Thread {
     }
 
     private final LinkedBlockingQueue<ChannelAck> channelAck;
+    private final Histogram channelAckDwell =
+            MetricsRegistry.getInstance().histogram("distributor.queue.ack.dwell");
+    private final MetricsRegistry.Counter channelAckBatches =
+            MetricsRegistry.getInstance().counter("distributor.ack.batches");
+    private final MetricsRegistry.Counter channelAckCollapsed =
+            MetricsRegistry.getInstance().counter("distributor.ack.collapsed");
 
     private class ChannelAck {
         public final Relations type;
@@ -387,6 +537,8 @@ public class DistributorThread extends Thread {
 
         public final String channel;
         public final DisposalState status;
+        /** when the ack was made, it is queued straight away */
+        public final long queued = System.currentTimeMillis();
 
         public ChannelAck(Relations type, long id, UUID uuid,
                 String topic, String auid, Notice notice,
@@ -449,74 +601,96 @@ public class DistributorThread extends Thread {
 
     /**
      * Once the channel is done with a request it generates a ChannelAck object.
+     * <p>
+     * The acks are applied a batch at a time, in a single transaction. Only
+     * the last ack in the batch for a request on a channel is kept, as it
+     * supersedes the earlier ones, and its notice is sent once the batch has
+     * been written.
      * 
-     * @param ack
+     * @param batch the acks in the order they were made
      */
-    private void doChannelAck(final Context context, final ChannelAck ack) {
-        logger.trace("channel ACK {}", ack);
-        final long numUpdated;
-        switch (ack.type) {
-            case POSTAL:
-                numUpdated = this.store.updatePostalByKey(ack.id, ack.channel, ack.status);
-                break;
-            case RETRIEVAL:
-                numUpdated = this.store.updateRetrievalByKey(ack.id, ack.channel, ack.status);
-                break;
-            case SUBSCRIBE:
-                numUpdated = this.store.updateSubscribeByKey(ack.id, ack.channel, ack.status);
-                break;
-            default:
-                logger.warn("invalid ack type {}", ack);
-                return;
+    private void doChannelAck(final Context context, final List<ChannelAck> batch) {
+        logger.trace("channel ACK batch {}", batch.size());
+        this.channelAckBatches.inc();
+        final Map<String, ChannelAck> latest = new LinkedHashMap<String, ChannelAck>(batch.size());
+        for (final ChannelAck ack : batch) {
+            final String key = new StringBuilder().append(ack.type).append(':')
+                    .append(ack.id).append(':').append(ack.channel).toString();
+            if (latest.remove(key) != null)
+                this.channelAckCollapsed.inc();
+            latest.put(key, ack);
         }
-        // generate broadcast intent for everyone who cares about this
-        if (ack.notice != null) {
-            final Notice.Item note = ack.notice.atSend;
-            final Notice.Via via = note.getVia();
-            if (via.isActive()) {
+        final List<DisposalUpdate> updates = new ArrayList<DisposalUpdate>(latest.size());
+        final List<ChannelAck> applied = new ArrayList<ChannelAck>(latest.size());
+        for (final ChannelAck ack : latest.values()) {
+            switch (ack.type) {
+                case POSTAL:
+                case RETRIEVAL:
+                case SUBSCRIBE:
+                    updates.add(new DisposalUpdate(ack.type, ack.id, ack.channel, ack.status));
+                    applied.add(ack);
+                    break;
+                default:
+                    logger.warn("invalid ack type {}", ack);
+            }
+        }
+        final int numUpdated = this.store.updateDisposalByKey(updates);
+        logger.debug("count {} of {}: acks {}",
+                new Object[] { numUpdated, batch.size(), updates.size() });
 
-                final Notice.IntentBuilder noteBuilder = Notice.getIntentBuilder(ack.notice)
-                        .topic(ack.topic)
-                        .auid(ack.auid)
-                        .channel(ack.channel);
+        for (final ChannelAck ack : applied) {
+            this.noticeChannelAck(context, ack);
+        }
+    }
 
-                if (ack.status != null)
-                    noteBuilder.status(ack.status.toString());
+    /**
+     * Generate broadcast intent for everyone who cares about this ack.
+     */
+    private void noticeChannelAck(final Context context, final ChannelAck ack) {
+        if (ack.notice == null)
+            return;
+        final Notice.Item note = ack.notice.atSend;
+        final Notice.Via via = note.getVia();
+        if (via.isActive()) {
 
-                final Intent noticed = noteBuilder.buildSent(context);
-                final int aggregate = via.v;
+            final Notice.IntentBuilder noteBuilder = Notice.getIntentBuilder(ack.notice)
+                    .topic(ack.topic)
+                    .auid(ack.auid)
+                    .channel(ack.channel);
 
-                PLogger.API_INTENT.debug(
-                        "ack note=[{}] intent=[{}]",
-                        note, noticed);
+            if (ack.status != null)
+                noteBuilder.status(ack.status.toString());
 
-                if (0 < (aggregate & Via.Type.ACTIVITY.v)) {
-                    try {
-                        noticed.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
-                        context.startActivity(noticed);
-                    } catch (ActivityNotFoundException ex) {
-                        logger.warn("no activity for intent=[{}]", noticed);
-                    }
-                }
-                if (0 < (aggregate & Via.Type.BROADCAST.v)) {
-                    context.sendBroadcast(noticed);
-                }
-                if (0 < (aggregate & Via.Type.STICKY_BROADCAST.v)) {
-                    context.sendStickyBroadcast(noticed);
-                }
-                if (0 < (aggregate & Via.Type.SERVICE.v)) {
-                    context.startService(noticed);
-                }
+            final Intent noticed = noteBuilder.buildSent(context);
+            final int aggregate = via.v;
 
-                if (PLogger.API_INTENT.isTraceEnabled()) {
-                    PLogger.API_INTENT.trace("extras=[{}]",
-                            PLogger.expandBundle(noticed.getExtras(), '\n'));
+            PLogger.API_INTENT.debug(
+                    "ack note=[{}] intent=[{}]",
+                    note, noticed);
+
+            if (0 < (aggregate & Via.Type.ACTIVITY.v)) {
+                try {
+                    noticed.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+                    context.startActivity(noticed);
+                } catch (ActivityNotFoundException ex) {
+                    logger.warn("no activity for intent=[{}]", noticed);
                 }
             }
-        }
-
-        logger.debug("count {}: intent {}", numUpdated, ack);
+            if (0 < (aggregate & Via.Type.BROADCAST.v)) {
+                context.sendBroadcast(noticed);
+            }
+            if (0 < (aggregate & Via.Type.STICKY_BROADCAST.v)) {
+                context.sendStickyBroadcast(noticed);
+            }
+            if (0 < (aggregate & Via.Type.SERVICE.v)) {
+                context.startService(noticed);
+            }
 
+            if (PLogger.API_INTENT.isTraceEnabled()) {
+                PLogger.API_INTENT.trace("extras=[{}]",
+                        PLogger.expandBundle(noticed.getExtras(), '\n'));
+            }
+        }
     }
 
     private void announceChannelActive(final Context context, final String name) {
@@ -535,6 +709,8 @@ public class DistributorThread extends Thread {
      * Contains client application requests
      */
     private final BlockingQueue<AmmoRequest> requestQueue;
+    private final Histogram requestDwell =
+            MetricsRegistry.getInstance().histogram("distributor.queue.request.dwell");
 
     public String distributeRequest(AmmoRequest request) {
         try {
@@ -559,11 +735,14 @@ public class DistributorThread extends Thread {
      * Contains gateway responses
      */
     private final PriorityBlockingQueue<AmmoGatewayMessage> responseQueue;
+    private final Histogram responseDwell =
+            MetricsRegistry.getInstance().histogram("distributor.queue.response.dwell");
 
     public boolean distributeResponse(AmmoGatewayMessage agm) {
         PLogger.QUEUE_RESP_ENTER.trace("\"action\":\"offer\" \"response\":\"{}\"", agm);
         if (!this.responseQueue.offer(agm, 1, TimeUnit.SECONDS)) {
             logger.error("could not process response {}", agm);
+            agm.releasePayload();
             this.signal();
             return false;
         }
@@ -581,23 +760,244 @@ public class DistributorThread extends Thread {
      * Check to see if there is any work for the thread to do. If there are no
      * network connections then nothing can be distributed, so no work. Either
      * incoming requests, responses, or a channel has been activated.
+     * <p>
+     * Work only counts if the stage it goes to has room for it; a full stage
+     * signals when it has room again.
      */
     private boolean isReady() {
-        if (this.channelDelta.get())
+        if (this.channelDelta.get() && this.replayStage.hasRoom(null))
             return true;
 
-        if (!this.channelAck.isEmpty())
-            return true;
-        if (!this.responseQueue.isEmpty())
-            return true;
-        if (!this.requestQueue.isEmpty())
+        return this.scheduler.isReady();
+    }
+
+    private boolean isAckReady() {
+        return !this.channelAck.isEmpty() && this.ackStage.hasRoom(null);
+    }
+
+    private boolean isResponseReady() {
+        final AmmoGatewayMessage agm = this.responseQueue.peek();
+        return agm != null && this.inboundStage.hasRoom(inboundKey(agm));
+    }
+
+    private boolean isRequestReady() {
+        final AmmoRequest ar = this.requestQueue.peek();
+        return ar != null && this.dispatchStage.hasRoom(dispatchKey(ar));
+    }
+
+    /**
+     * Hand the acks at the head of the queue to the ack stage.
+     */
+    private void dispatchAck() {
+        logger.trace("processing channel acks, remaining {}",
+                this.channelAck.size());
+        try {
+            final List<ChannelAck> batch = new ArrayList<ChannelAck>(ACK_BATCH_SIZE);
+            this.channelAck.drainTo(batch, ACK_BATCH_SIZE);
+            final long now = System.currentTimeMillis();
+            for (final ChannelAck ack : batch) {
+                this.channelAckDwell.record(now - ack.queued);
+                PLogger.QUEUE_ACK_EXIT.trace(PLogger.QUEUE_FORMAT,
+                        new Object[] {
+                                this.channelAck.size(), ack.uuid, 0, ack
+                        });
+            }
+
+            // the acks are applied together, not by topic
+            this.ackStage.submit(null, new Runnable() {
+                @Override
+                public void run() {
+                    doChannelAck(context, batch);
+                }
+            });
+        } catch (ClassCastException ex) {
+            logger.error("channel ack queue contains illegal item of class", ex);
+        }
+    }
+
+    /**
+     * Hand the response at the head of the queue to the inbound stage.
+     */
+    private void dispatchResponse() {
+        try {
+            final long currentTime = System.currentTimeMillis();
+            final AmmoGatewayMessage agm = this.responseQueue.take();
+            this.responseDwell.record(currentTime - agm.buildTime);
+            PLogger.QUEUE_RESP_EXIT.trace(PLogger.QUEUE_FORMAT,
+                            this.responseQueue.size(), agm.payload_checksum,
+                            agm.size, agm
+                    );
+            
+            logger.info(
+                    "processing response {}, recvd @{}, remaining {}",
+                            agm.payload_checksum, agm.buildTime,
+                            this.responseQueue.size()
+                    );
+            resLogger.info(PLogger.TEST_QUEUE_FORMAT,
+                    currentTime, 
+                    "response_queue",
+                    this.responseQueue.size(),
+                    currentTime - agm.buildTime
+            );
+            this.inboundStage.submit(inboundKey(agm), new Runnable() {
+                @Override
+                public void run() {
+                    doResponse(context, agm);
+                }
+            });
+        } catch (InterruptedException ex) {
+            logger.warn("taking a response was interrupted");
+            Thread.currentThread().interrupt();
+        } catch (ClassCastException ex) {
+            logger.error("response queue contains illegal item of class", ex);
+        }
+    }
+
+    /**
+     * Hand the request at the head of the queue to the dispatch stage.
+     * The request is only taken once the stage has it; the replayed rows
+     * also go to the dispatch lanes, so the lane may have filled since it
+     * was checked. A refused request stays at the head until the stage has
+     * room again.
+     */
+    private void dispatchRequest() {
+        try {
+            final long currentTime = System.currentTimeMillis();
+            final AmmoRequest ar = this.requestQueue.peek();
+            if (ar == null)
+                return;
+            if (!this.dispatchStage.submit(dispatchKey(ar), new Runnable() {
+                @Override
+                public void run() {
+                    doRequest(networkManager, ar);
+                }
+            })) {
+                return;
+            }
+            this.requestQueue.remove();
+            this.requestDwell.record(currentTime - ar.buildTime);
+            logger.info("processing request uuid {}, remaining {}", ar.uuid,
+                    this.requestQueue.size());
+            reqLogger.info(PLogger.TEST_QUEUE_FORMAT,
+                            currentTime, 
+                            "request_queue",
+                            this.requestQueue.size(),
+                            currentTime - ar.buildTime
+                    );
+            PLogger.QUEUE_REQ_EXIT.trace(PLogger.QUEUE_FORMAT,
+                            this.requestQueue.size(), ar.uuid, "n/a", ar
+                    );
+        } catch (ClassCastException ex) {
+            logger.error("request queue contains illegal item of class", ex);
+        }
+    }
+
+    /**
+     * Hand the next page of the backlog to the replay stage.
+     */
+    private void dispatchBacklog() {
+        final BacklogDrain.Checkpoint checkpoint = this.backlog.begin();
+        if (checkpoint == null)
+            return;
+        logger.debug("backlog page {}", checkpoint);
+        if (!this.replayStage.submit(null, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    switch (checkpoint.table) {
+                        case SUBSCRIBE:
+                            doSubscribeCache(networkManager, checkpoint);
+                            break;
+                        case RETRIEVAL:
+                            doRetrievalCache(networkManager, checkpoint);
+                            break;
+                        case POSTAL:
+                            doPostalCache(networkManager, checkpoint);
+                            break;
+                    }
+                } finally {
+                    backlog.end(checkpoint, System.currentTimeMillis());
+                    signal();
+                }
+            }
+        })) {
+            this.backlog.cancel(checkpoint);
+        }
+    }
+
+    /**
+     * The rows of a backlog page are dispatched in the dispatch lane of
+     * their topic, after the requests for the topic already there, so a
+     * replayed row is never dispatched alongside a new request for the same
+     * topic. The page ends once its rows have been dispatched.
+     */
+    private class ReplayedRows {
+        private final Semaphore done = new Semaphore(0);
+        private int given = 0;
+
+        /**
+         * Waits while the lane is full.
+         *
+         * @return false if interrupted, the rest of the page is left
+         */
+        boolean dispatch(String topic, final Runnable row) {
+            try {
+                dispatchStage.put(topic, new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            row.run();
+                        } finally {
+                            done.release();
+                        }
+                    }
+                });
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            ++this.given;
             return true;
-        return false;
+        }
+
+        void await() {
+            try {
+                this.done.acquire(this.given);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Responses are kept in the order they arrived on each channel.
+     */
+    private static String inboundKey(AmmoGatewayMessage agm) {
+        return (agm.channel == null) ? null : agm.channel.name;
+    }
+
+    /**
+     * Requests are kept in the order they were made for each topic.
+     */
+    private static String dispatchKey(AmmoRequest ar) {
+        return (ar.topic == null) ? null : ar.topic.asString();
     }
 
     /**
      * The following condition wait holds until there is some work for the
-     * distributor. The method tries to be fair processing the requests in
+     * distributor. The acks, responses and requests are served in proportion
+     * to their weights by the {@link DistributorScheduler}, so a flood on one
+     * does not starve the others. It only decides what is to be done next,
+     * the work itself is done by the stages:
+     * <dl>
+     * <dt>inbound</dt><dd>decoding and receiving gateway messages, by channel</dd>
+     * <dt>dispatch</dt><dd>storing, serializing and sending requests, by topic</dd>
+     * <dt>ack</dt><dd>persisting channel acknowledgements, one lane as the
+     * acks are applied in batches across topics</dd>
+     * <dt>replay</dt><dd>channel changes, reading the backlog and garbage
+     * collection; the backlog rows are dispatched by the dispatch stage</dd>
+     * </dl>
+     * so a large serialization holds up only the topics in its lane.
      */
     @Override
     public void run()
@@ -607,6 +1007,11 @@ public class DistributorThread extends Thread {
         logger.info("distributor thread start @prio: {}",
                 Process.getThreadPriority(Process.myTid()));
 
+        this.inboundStage.start();
+        this.dispatchStage.start();
+        this.ackStage.start();
+        this.replayStage.start();
+
         final AtomicLong sanitationSchedule = new AtomicLong(System.currentTimeMillis()
                 + (1 * 60 * 60 * 1000));
         // initial sanitation work happens after 1 hour (in milliseconds)
@@ -618,9 +1023,7 @@ public class DistributorThread extends Thread {
                 this.store.deactivateDisposalStateByChannel(name);
             }
 
-            this.doSubscribeCache(networkManager);
-            this.doRetrievalCache(networkManager);
-            this.doPostalCache(networkManager);
+            this.backlog.request(System.currentTimeMillis());
         }
 
         try {
@@ -628,7 +1031,7 @@ public class DistributorThread extends Thread {
                 // condition wait, is there something to process?
                 synchronized (this) {
                     while (!this.isReady()) {
-                        this.wait(BURP_TIME);
+                        this.wait(this.backlog.untilDue(System.currentTimeMillis(), BURP_TIME));
 
                         final long currentTime = System.currentTimeMillis();
                         if (sanitationSchedule.get() > currentTime) {
@@ -636,85 +1039,47 @@ public class DistributorThread extends Thread {
                         }
                         sanitationSchedule.getAndSet(currentTime + (10L * 60 * 1000));
                         // next alarm in 10 minutes, specified in milliseconds
-                        this.takeOutGarbage();
+                        if (!this.replayStage.submit(null, new Runnable() {
+                            @Override
+                            public void run() {
+                                takeOutGarbage();
+                            }
+                        })) {
+                            // still due, try again on the next wake up
+                            sanitationSchedule.set(currentTime);
+                        }
                     }
                 }
                 while (this.isReady()) {
 
                     final long currentTime = System.currentTimeMillis();
                     
-                    if (this.channelDelta.getAndSet(false)) {
+                    if (this.channelDelta.get() && this.replayStage.hasRoom(null)) {
                         logger.trace("channel change");
-                        this.doChannelChange(networkManager);
-                    }
-
-                    if (!this.channelAck.isEmpty()) {
-                        logger.trace("processing channel acks, remaining {}",
-                                this.channelAck.size());
-                        try {
-                            final ChannelAck ack = this.channelAck.take();
-                            PLogger.QUEUE_ACK_EXIT.trace(PLogger.QUEUE_FORMAT,
-                                    new Object[] {
-                                            this.channelAck.size(), ack.uuid, 0, ack
-                                    });
-
-                            this.doChannelAck(this.context, ack);
-                        } catch (ClassCastException ex) {
-                            logger.error("channel ack queue contains illegal item of class", ex);
-                        }
-                    }
-
-                    if (!this.responseQueue.isEmpty()) {
-                        try {
-                            final AmmoGatewayMessage agm = this.responseQueue.take();
-                            PLogger.QUEUE_RESP_EXIT.trace(PLogger.QUEUE_FORMAT,
-                                            this.responseQueue.size(), agm.payload_checksum,
-                                            agm.size, agm
-                                    );
-                            
-                            logger.info(
-                                    "processing response {}, recvd @{}, remaining {}",
-                                            agm.payload_checksum, agm.buildTime,
-                                            this.responseQueue.size()
-                                    );
-                            resLogger.info(PLogger.TEST_QUEUE_FORMAT,
-                                    currentTime, 
-                                    "response_queue",
-                                    this.responseQueue.size(),
-                                    currentTime - agm.buildTime
-                            );
-                            this.doResponse(this.context, agm);
-                        } catch (ClassCastException ex) {
-                            logger.error("response queue contains illegal item of class", ex);
+                        this.channelDelta.set(false);
+                        if (!this.replayStage.submit(null, new Runnable() {
+                            @Override
+                            public void run() {
+                                doChannelChange(networkManager);
+                            }
+                        })) {
+                            this.channelDelta.set(true);
                         }
                     }
 
-                    if (!this.requestQueue.isEmpty()) {
-                        try {
-                            final AmmoRequest ar = this.requestQueue.take();
-                            logger.info("processing request uuid {}, remaining {}", ar.uuid,
-                                    this.requestQueue.size());
-                            reqLogger.info(PLogger.TEST_QUEUE_FORMAT,
-                                            System.currentTimeMillis(), 
-                                            "request_queue",
-                                            this.requestQueue.size(),
-                                            currentTime - ar.buildTime
-                                    );
-                            PLogger.QUEUE_REQ_EXIT.trace(PLogger.QUEUE_FORMAT,
-                                            this.requestQueue.size(), ar.uuid, "n/a", ar
-                                    );
-
-                            this.doRequest(networkManager, ar);
-                        } catch (ClassCastException ex) {
-                            logger.error("request queue contains illegal item of class", ex);
-                        }
-                    }
+                    this.scheduler.round(currentTime);
                 }
                 logger.trace("work processed");
 
             }
         } catch (InterruptedException ex) {
             logger.warn("task interrupted", ex);
+        } finally {
+            this.inboundStage.stop();
+            this.dispatchStage.stop();
+            this.ackStage.stop();
+            this.replayStage.stop();
+            ProviderInsertBatcher.getInstance().stop();
         }
         return;
     }
@@ -823,11 +1188,9 @@ public class DistributorThread extends Thread {
             }
         }
 
-        // we could do a priming query to determine if there are any candidates
-
-        this.doPostalCache(that);
-        this.doRetrievalCache(that);
-        this.doSubscribeCache(that);
+        // the requests waiting for a channel are sent a page at a time
+        this.backlog.request(System.currentTimeMillis());
+        this.signal();
     }
 
     private void takeOutGarbage() {
@@ -857,6 +1220,7 @@ public class DistributorThread extends Thread {
             if (agm.isSerialChannel)
                 networkManager.receivedCorruptPacketOnSerialChannel();
 
+            agm.releasePayload();
             return false;
         }
 
@@ -864,10 +1228,13 @@ public class DistributorThread extends Thread {
 
         final AmmoMessages.MessageWrapper mw;
         try {
-            mw = AmmoMessages.MessageWrapper.parseFrom(agm.payload);
-        } catch (InvalidProtocolBufferException ex) {
+            mw = agm.parsePayload();
+        } catch (IOException ex) {
             logger.error("parsing gateway message", ex);
             return false;
+        } finally {
+            // the wrapper has its own copy of everything it needs
+            agm.releasePayload();
         }
         if (mw == null) {
             logger.error("mw was null!");
@@ -979,7 +1346,6 @@ public class DistributorThread extends Thread {
 
     @SuppressWarnings("unused")
     private boolean collectGarbage = true;
-    private RequestDeserializer.Builder requestDeserializerBuilder;
 
     // =========== POSTAL ====================
 
@@ -1046,6 +1412,7 @@ public class DistributorThread extends Thread {
                 final DistributorThread parent = DistributorThread.this;
                 
                 byte[] bytes = null;
+                Encoding encoding = null;
                 @Override
                 public byte[] getBytes() {
                     return this.bytes;
@@ -1053,12 +1420,14 @@ public class DistributorThread extends Thread {
              
                 @Override
                 public void run(Encoding encode) {
+                    // bound when prepared, unless a channel with another
+                    // encoding was ready by the time it was dispatched
+                    if (this.bytes != null && encode.equals(this.encoding))
+                        return;
+                    this.bytes = null;
+                    this.encoding = encode;
                     // TODO FPE handle payload with data types
                     if (serializer_.payload.whatContent() != Payload.Type.NONE) {
-                        if (this.bytes != null) {
-                            logger.warn("bytes already bound {}", this.bytes);
-                            return;
-                        }
                         this.bytes =
                                 RequestSerializer.serializeFromContentValues(
                                         serializer_.payload.getCV(),
@@ -1093,10 +1462,6 @@ public class DistributorThread extends Thread {
                                 parent.ammoAdaptorCache.serialize(tupleUri, encode);
                                 return;
                             }
-                            if (this.bytes != null) {
-                                logger.warn("bytes already bound {}", this.bytes);
-                                return;
-                            }
                             final ContentProviderContentItem item = new ContentProviderContentItem(
                                     tupleUri, 
                                     that_.getContext().getContentResolver(), 
@@ -1131,6 +1496,10 @@ public class DistributorThread extends Thread {
                 }
             });
 
+            // the payload is serialized before the store is locked, the
+            // dispatch only builds and queues the message
+            serializer.prepare(dispersal.nextEncoding(that));
+
             values.put(PostalTableSchema.DISPOSITION.cv(), DisposalTotalState.DISTRIBUTE.cv());
             // We synchronize on the store to avoid a race between dispatch and
             // queuing
@@ -1190,14 +1559,18 @@ public class DistributorThread extends Thread {
     /**
      * Check for requests whose delivery policy has not been fully satisfied and
      * for which there is, now, an available channel.
+     * <p>
+     * A page of them is taken, following the checkpoint.
      */
-    private void doPostalCache(final NetworkManager that) {
+    private void doPostalCache(final NetworkManager that,
+            final BacklogDrain.Checkpoint checkpoint) {
         logger.debug(MARK_POSTAL, "process table POSTAL");
 
         if (!that.isConnected())
             return;
 
-        final Cursor pending = this.store.queryPostalReady();
+        final Cursor pending = this.store.queryPostalReady(checkpoint.priority(),
+                checkpoint.id(), this.backlog.pageSize());
         if (pending == null) {
             logger.warn("no requests pending");
             return;
@@ -1205,9 +1578,12 @@ public class DistributorThread extends Thread {
 
         logger.info("pending postal requests=[{}]", pending.getCount());
         // Iterate over each row serializing its data and sending it.
+        final ReplayedRows rows = new ReplayedRows();
         for (boolean moreItems = pending.moveToFirst(); moreItems; moreItems = pending.moveToNext())
         {
             final int id = pending.getInt(pending.getColumnIndex(PostalTableSchema._ID.n));
+            checkpoint.advance(pending.getInt(pending.getColumnIndex(PostalTableSchema.PRIORITY.n)),
+                    id);
             final String auid = pending.getString(pending.getColumnIndex(PostalTableSchema.AUID.n));
             final String uuidString = pending.getString(pending
                     .getColumnIndex(PostalTableSchema.UUID.n));
@@ -1271,6 +1647,7 @@ public class DistributorThread extends Thread {
                 final String data_ = data;
                 
                 byte[] bytes = null;
+                Encoding encoding = null;
                 @Override
                 public byte[] getBytes() {
                     return this.bytes;
@@ -1278,12 +1655,14 @@ public class DistributorThread extends Thread {
 
                 @Override
                 public void run(Encoding encode) {
+                    // bound when prepared, unless a channel with another
+                    // encoding was ready by the time it was dispatched
+                    if (this.bytes != null && encode.equals(this.encoding))
+                        return;
+                    this.bytes = null;
+                    this.encoding = encode;
                     switch (serialType_) {
                         case DIRECT: {
-                            if (this.bytes != null) {
-                                logger.warn("bytes already bound {}", this.bytes);
-                                return;
-                            }
                             this.bytes = (data_.length() > 0) ? data_.getBytes() : null;
                             return;
                         }
@@ -1292,10 +1671,6 @@ public class DistributorThread extends Thread {
                         default:
                             try {
                                 if (payload != null && payload.isSet()) {
-                                    if (this.bytes != null) {
-                                        logger.warn("bytes already bound {}", this.bytes);
-                                        return;
-                                    }
                                     this.bytes = RequestSerializer.serializeFromContentValues(
                                             payload.getCV(), encode, topic, contractStore);
                                     return;
@@ -1320,16 +1695,21 @@ public class DistributorThread extends Thread {
                                         parent.ammoAdaptorCache.serialize(tupleUri, encode);
                                         return;
                                     }
-                                    if (this.bytes != null) {
-                                        logger.warn("bytes already bound {}", this.bytes);
+                                    final PostalPayloadCache payloads = parent.store()
+                                            .postalPayloads();
+                                    final String tuple = serializer_.provider.cv();
+                                    this.bytes = payloads.get(topic, tuple,
+                                            encodingType.name());
+                                    if (this.bytes != null)
                                         return;
-                                    }
                                     final ContentProviderContentItem item = new ContentProviderContentItem(
                                             tupleUri, 
                                             that_.getContext().getContentResolver(), 
                                             encode);
                                     this.bytes = serializer.serialize(item);
                                     item.close();
+                                    payloads.put(topic, tuple, encodingType.name(),
+                                            this.bytes);
                                     return;
                                 }
                             } catch (IOException e1) {
@@ -1354,64 +1734,72 @@ public class DistributorThread extends Thread {
                 }
             });
 
-            final DistributorPolicy.Topic policy = that.policy().matchPostal(topic);
-            final Dispersal dispersal = policy.makeRouteMap(channelFilter);
-            {
-                final Cursor channelCursor = this.store.queryDisposalByParent(
-                        Relations.POSTAL.nominal, id);
-                for (boolean moreChannels = channelCursor.moveToFirst(); moreChannels; moreChannels = channelCursor
-                        .moveToNext())
-                {
-                    final String channel = channelCursor.getString(channelCursor
-                            .getColumnIndex(DisposalTableSchema.CHANNEL.n));
-                    final short channelState = channelCursor.getShort(channelCursor
-                            .getColumnIndex(DisposalTableSchema.STATE.n));
-                    dispersal.put(channel, DisposalState.getInstanceById(channelState));
-                }
-                logger.trace("prior channel states {}", dispersal);
-                channelCursor.close();
-            }
-            // Dispatch the request.
-            try {
-                if (!that.isConnected()) {
-                    logger.debug("no channel on postal");
-                    continue;
-                }
-                synchronized (this.store) {
-                    final ContentValues values = new ContentValues();
-
-                    values.put(PostalTableSchema.DISPOSITION.cv(),
-                            DisposalTotalState.DISTRIBUTE.cv());
-                    long numUpdated = this.store.updatePostalByKey(id, values, null);
-                    logger.debug("updated {} postal items", numUpdated);
-
-                    final Dispersal dispatchResult =
-                            this.dispatchPostalRequest(that, notice,
-                                    uuid, topic,
-                                    dispersal, serializer,
-                                    new INetworkService.OnSendMessageHandler() {
-                                        final DistributorThread parent = DistributorThread.this;
-                                        final int id_ = id;
-                                        final UUID uuid_ = uuid;
-                                        final String auid_ = auid;
-                                        final String topic_ = topic;
-                                        final Notice notice_ = notice;
-
-                                        @Override
-                                        public boolean ack(String channel, DisposalState status) {
-                                            final ChannelAck chack = new ChannelAck(
-                                                    Relations.POSTAL, id_, uuid_,
-                                                    topic_, auid_, notice_,
-                                                    channel, status);
-                                            return parent.announceChannelAck(chack);
-                                        }
-                                    });
-                    this.store.updatePostalByKey(id, null, dispatchResult);
+            if (!rows.dispatch(topic, new Runnable() {
+                @Override
+                public void run() {
+                    final DistributorPolicy.Topic policy = that.policy().matchPostal(topic);
+                    final Dispersal dispersal = policy.makeRouteMap(channelFilter);
+                    {
+                        final Cursor channelCursor = store.queryDisposalByParent(
+                                Relations.POSTAL.nominal, id);
+                        for (boolean moreChannels = channelCursor.moveToFirst(); moreChannels; moreChannels = channelCursor
+                                .moveToNext())
+                        {
+                            final String channel = channelCursor.getString(channelCursor
+                                    .getColumnIndex(DisposalTableSchema.CHANNEL.n));
+                            final short channelState = channelCursor.getShort(channelCursor
+                                    .getColumnIndex(DisposalTableSchema.STATE.n));
+                            dispersal.put(channel, DisposalState.getInstanceById(channelState));
+                        }
+                        logger.trace("prior channel states {}", dispersal);
+                        channelCursor.close();
+                    }
+                    // Dispatch the request.
+                    try {
+                        if (!that.isConnected()) {
+                            logger.debug("no channel on postal");
+                            return;
+                        }
+                        serializer.prepare(dispersal.nextEncoding(that));
+                        synchronized (store) {
+                            final ContentValues values = new ContentValues();
+
+                            values.put(PostalTableSchema.DISPOSITION.cv(),
+                                    DisposalTotalState.DISTRIBUTE.cv());
+                            long numUpdated = store.updatePostalByKey(id, values, null);
+                            logger.debug("updated {} postal items", numUpdated);
+
+                            final Dispersal dispatchResult =
+                                    dispatchPostalRequest(that, notice,
+                                            uuid, topic,
+                                            dispersal, serializer,
+                                            new INetworkService.OnSendMessageHandler() {
+                                                final DistributorThread parent = DistributorThread.this;
+                                                final int id_ = id;
+                                                final UUID uuid_ = uuid;
+                                                final String auid_ = auid;
+                                                final String topic_ = topic;
+                                                final Notice notice_ = notice;
+
+                                                @Override
+                                                public boolean ack(String channel, DisposalState status) {
+                                                    final ChannelAck chack = new ChannelAck(
+                                                            Relations.POSTAL, id_, uuid_,
+                                                            topic_, auid_, notice_,
+                                                            channel, status);
+                                                    return parent.announceChannelAck(chack);
+                                                }
+                                            });
+                            store.updatePostalByKey(id, null, dispatchResult);
+                        }
+                    } catch (NullPointerException ex) {
+                        logger.warn("error posting message", ex);
+                    }
                 }
-            } catch (NullPointerException ex) {
-                logger.warn("error posting message", ex);
-            }
+            }))
+                break;
         }
+        rows.await();
         pending.close();
         logger.debug(MARK_POSTAL, "processed table POSTAL");
     }
@@ -1722,36 +2110,24 @@ public class DistributorThread extends Thread {
      * time stamps to determine if the item had be sent. Now a status indicator
      * is used. Garbage collect items which are expired.
      */
-    private void doRetrievalCache(NetworkManager that) {
+    private void doRetrievalCache(final NetworkManager that, BacklogDrain.Checkpoint checkpoint) {
         logger.debug(MARK_RETRIEVAL, "process table RETRIEVAL");
 
-        final Cursor pending = this.store.queryRetrievalReady();
+        final Cursor pending = this.store.queryRetrievalReady(checkpoint.priority(),
+                checkpoint.id(), this.backlog.pageSize());
         if (pending == null)
             return;
 
+        final ReplayedRows rows = new ReplayedRows();
         for (boolean areMoreItems = pending.moveToFirst(); areMoreItems; areMoreItems = pending
                 .moveToNext()) {
             // For each item in the cursor, ask the content provider to
             // serialize it, then pass it off to the NPS.
             final int id = pending.getInt(pending.getColumnIndex(RetrievalTableSchema._ID.n));
+            checkpoint.advance(
+                    pending.getInt(pending.getColumnIndex(RetrievalTableSchema.PRIORITY.n)), id);
             final String topic = pending.getString(pending
                     .getColumnIndex(RetrievalTableSchema.TOPIC.cv()));
-            final DistributorPolicy.Topic policy = that.policy().matchRetrieval(topic);
-            final Dispersal dispersal = policy.makeRouteMap(null);
-            {
-                final Cursor channelCursor = this.store.queryDisposalByParent(
-                        Relations.RETRIEVAL.nominal, id);
-                for (boolean moreChannels = channelCursor.moveToFirst(); moreChannels; moreChannels = channelCursor
-                        .moveToNext()) {
-                    final String channel = channelCursor.getString(channelCursor
-                            .getColumnIndex(DisposalTableSchema.CHANNEL.n));
-                    final short channelState = channelCursor.getShort(channelCursor
-                            .getColumnIndex(DisposalTableSchema.STATE.n));
-                    dispersal.put(channel, DisposalState.getInstanceById(channelState));
-                }
-                channelCursor.close();
-            }
-
             final UUID uuid = UUID.fromString(pending.getString(pending
                     .getColumnIndex(RetrievalTableSchema.UUID.cv())));
             final String auid = pending.getString(pending.getColumnIndex(RetrievalTableSchema.AUID
@@ -1762,43 +2138,66 @@ public class DistributorThread extends Thread {
             final int columnIx = pending.getColumnIndex(RetrievalTableSchema.LIMIT.n);
             final Integer limit = pending.isNull(columnIx) ? null : pending.getInt(columnIx);
 
-            try {
-                if (!that.isConnected()) {
-                    logger.debug("no channel on retrieval");
-                    continue;
-                }
-                synchronized (this.store) {
-                    final ContentValues values = new ContentValues();
-
-                    values.put(RetrievalTableSchema.DISPOSITION.cv(),
-                            DisposalTotalState.DISTRIBUTE.cv());
-                    @SuppressWarnings("unused")
-                    final long numUpdated = this.store.updateRetrievalByKey(id, values, null);
-
-                    final Dispersal dispatchResult = this.dispatchRetrievalRequest(that,
-                            uuid, topic, selection, limit, dispersal,
-                            new INetworkService.OnSendMessageHandler() {
-                                final DistributorThread parent = DistributorThread.this;
-                                final String auid_ = auid;
-                                final UUID uuid_ = uuid;
-                                final String topic_ = topic;
-                                final Notice notice_ = new Notice();
-
-                                @Override
-                                public boolean ack(String channel, DisposalState status) {
-                                    final ChannelAck chack = new ChannelAck(Relations.RETRIEVAL,
-                                            id, uuid_,
-                                            topic_, auid_, notice_,
-                                            channel, status);
-                                    return parent.announceChannelAck(chack);
-                                }
-                            });
-                    this.store.updateRetrievalByKey(id, null, dispatchResult);
+            if (!rows.dispatch(topic, new Runnable() {
+                @Override
+                public void run() {
+                    final DistributorPolicy.Topic policy = that.policy().matchRetrieval(topic);
+                    final Dispersal dispersal = policy.makeRouteMap(null);
+                    {
+                        final Cursor channelCursor = store.queryDisposalByParent(
+                                Relations.RETRIEVAL.nominal, id);
+                        for (boolean moreChannels = channelCursor.moveToFirst(); moreChannels; moreChannels = channelCursor
+                                .moveToNext()) {
+                            final String channel = channelCursor.getString(channelCursor
+                                    .getColumnIndex(DisposalTableSchema.CHANNEL.n));
+                            final short channelState = channelCursor.getShort(channelCursor
+                                    .getColumnIndex(DisposalTableSchema.STATE.n));
+                            dispersal.put(channel, DisposalState.getInstanceById(channelState));
+                        }
+                        channelCursor.close();
+                    }
+
+                    try {
+                        if (!that.isConnected()) {
+                            logger.debug("no channel on retrieval");
+                            return;
+                        }
+                        synchronized (store) {
+                            final ContentValues values = new ContentValues();
+
+                            values.put(RetrievalTableSchema.DISPOSITION.cv(),
+                                    DisposalTotalState.DISTRIBUTE.cv());
+                            @SuppressWarnings("unused")
+                            final long numUpdated = store.updateRetrievalByKey(id, values, null);
+
+                            final Dispersal dispatchResult = dispatchRetrievalRequest(that,
+                                    uuid, topic, selection, limit, dispersal,
+                                    new INetworkService.OnSendMessageHandler() {
+                                        final DistributorThread parent = DistributorThread.this;
+                                        final String auid_ = auid;
+                                        final UUID uuid_ = uuid;
+                                        final String topic_ = topic;
+                                        final Notice notice_ = new Notice();
+
+                                        @Override
+                                        public boolean ack(String channel, DisposalState status) {
+                                            final ChannelAck chack = new ChannelAck(Relations.RETRIEVAL,
+                                                    id, uuid_,
+                                                    topic_, auid_, notice_,
+                                                    channel, status);
+                                            return parent.announceChannelAck(chack);
+                                        }
+                                    });
+                            store.updateRetrievalByKey(id, null, dispatchResult);
+                        }
+                    } catch (NullPointerException ex) {
+                        logger.warn("sending to gateway failed", ex);
+                    }
                 }
-            } catch (NullPointerException ex) {
-                logger.warn("sending to gateway failed", ex);
-            }
+            }))
+                break;
         }
+        rows.await();
         pending.close();
     }
 
@@ -1901,10 +2300,12 @@ public class DistributorThread extends Thread {
         // update the actual provider
 
         final Encoding encoding = Encoding.getInstanceByName(resp.getEncoding());
-        this.requestDeserializerBuilder = RequestDeserializer.newBuilder(this, this.ammoAdaptorCache);
+        // the inbound stage has several lanes, each needs its own builder
+        final RequestDeserializer.Builder requestDeserializerBuilder =
+                RequestDeserializer.newBuilder(this, this.ammoAdaptorCache);
         
         final RequestDeserializer deserializeCommand = 
-                this.requestDeserializerBuilder.toProvider(priority, context, channel.name,
+                requestDeserializerBuilder.toProvider(priority, context, channel.name,
                 provider, encoding, resp.getData().toByteArray());
         this.deserializeExecutor.execute(deserializeCommand);
        
@@ -2025,18 +2426,22 @@ public class DistributorThread extends Thread {
      * expired.
      */
 
-    private void doSubscribeCache(NetworkManager that) {
+    private void doSubscribeCache(final NetworkManager that, BacklogDrain.Checkpoint checkpoint) {
         logger.debug(MARK_SUBSCRIBE, "process table SUBSCRIBE");
 
-        final Cursor pending = this.store.querySubscribeReady();
+        final Cursor pending = this.store.querySubscribeReady(checkpoint.priority(),
+                checkpoint.id(), this.backlog.pageSize());
         if (pending == null)
             return;
 
+        final ReplayedRows rows = new ReplayedRows();
         for (boolean areMoreItems = pending.moveToFirst(); areMoreItems; areMoreItems = pending
                 .moveToNext()) {
             // For each item in the cursor, ask the content provider to
             // serialize it, then pass it off to the NPS.
             final int id = pending.getInt(pending.getColumnIndex(SubscribeTableSchema._ID.n));
+            checkpoint.advance(
+                    pending.getInt(pending.getColumnIndex(SubscribeTableSchema.PRIORITY.n)), id);
             final String uuidString = pending.getString(pending
                     .getColumnIndex(PostalTableSchema.UUID.n));
             final UUID uuid = UUID.fromString(uuidString);
@@ -2053,60 +2458,67 @@ public class DistributorThread extends Thread {
                     id, topic, selection
             });
 
-            final DistributorPolicy.Topic policy = that.policy().matchSubscribe(topic);
-            final Dispersal dispersal = policy.makeRouteMap(null);
-            {
-                final Cursor channelCursor = this.store.queryDisposalByParent(
-                        Relations.SUBSCRIBE.nominal, id);
-                for (boolean moreChannels = channelCursor.moveToFirst(); moreChannels; moreChannels = channelCursor
-                        .moveToNext()) {
-                    final String channel = channelCursor.getString(channelCursor
-                            .getColumnIndex(DisposalTableSchema.CHANNEL.n));
-                    final short channelState = channelCursor.getShort(channelCursor
-                            .getColumnIndex(DisposalTableSchema.STATE.n));
-                    dispersal.put(channel, DisposalState.getInstanceById(channelState));
-                }
-                channelCursor.close();
-            }
+            if (!rows.dispatch(topic, new Runnable() {
+                @Override
+                public void run() {
+                    final DistributorPolicy.Topic policy = that.policy().matchSubscribe(topic);
+                    final Dispersal dispersal = policy.makeRouteMap(null);
+                    {
+                        final Cursor channelCursor = store.queryDisposalByParent(
+                                Relations.SUBSCRIBE.nominal, id);
+                        for (boolean moreChannels = channelCursor.moveToFirst(); moreChannels; moreChannels = channelCursor
+                                .moveToNext()) {
+                            final String channel = channelCursor.getString(channelCursor
+                                    .getColumnIndex(DisposalTableSchema.CHANNEL.n));
+                            final short channelState = channelCursor.getShort(channelCursor
+                                    .getColumnIndex(DisposalTableSchema.STATE.n));
+                            dispersal.put(channel, DisposalState.getInstanceById(channelState));
+                        }
+                        channelCursor.close();
+                    }
 
-            try {
-                if (!that.isConnected()) {
-                    logger.debug("no channel on subscribe");
-                    continue;
-                }
-                synchronized (this.store) {
-                    final ContentValues values = new ContentValues();
-
-                    values.put(SubscribeTableSchema.DISPOSITION.cv(),
-                            DisposalTotalState.DISTRIBUTE.cv());
-                    @SuppressWarnings("unused")
-                    long numUpdated = this.store.updateSubscribeByKey(id, values, null);
-
-                    final Dispersal dispatchResult = this.dispatchSubscribeRequest(that,
-                            topic, selection, dispersal,
-                            new INetworkService.OnSendMessageHandler() {
-                                final DistributorThread parent = DistributorThread.this;
-                                final int id_ = id;
-                                final UUID uuid_ = uuid;
-                                final String auid_ = auid;
-                                final String topic_ = topic;
-                                final Notice notice_ = new Notice();
-
-                                @Override
-                                public boolean ack(String channel, DisposalState status) {
-                                    final ChannelAck chack = new ChannelAck(Relations.SUBSCRIBE,
-                                            id_, uuid_,
-                                            topic_, auid_, notice_,
-                                            channel, status);
-                                    return parent.announceChannelAck(chack);
-                                }
-                            });
-                    this.store.updateSubscribeByKey(id, null, dispatchResult);
+                    try {
+                        if (!that.isConnected()) {
+                            logger.debug("no channel on subscribe");
+                            return;
+                        }
+                        synchronized (store) {
+                            final ContentValues values = new ContentValues();
+
+                            values.put(SubscribeTableSchema.DISPOSITION.cv(),
+                                    DisposalTotalState.DISTRIBUTE.cv());
+                            @SuppressWarnings("unused")
+                            long numUpdated = store.updateSubscribeByKey(id, values, null);
+
+                            final Dispersal dispatchResult = dispatchSubscribeRequest(that,
+                                    topic, selection, dispersal,
+                                    new INetworkService.OnSendMessageHandler() {
+                                        final DistributorThread parent = DistributorThread.this;
+                                        final int id_ = id;
+                                        final UUID uuid_ = uuid;
+                                        final String auid_ = auid;
+                                        final String topic_ = topic;
+                                        final Notice notice_ = new Notice();
+
+                                        @Override
+                                        public boolean ack(String channel, DisposalState status) {
+                                            final ChannelAck chack = new ChannelAck(Relations.SUBSCRIBE,
+                                                    id_, uuid_,
+                                                    topic_, auid_, notice_,
+                                                    channel, status);
+                                            return parent.announceChannelAck(chack);
+                                        }
+                                    });
+                            store.updateSubscribeByKey(id, null, dispatchResult);
+                        }
+                    } catch (NullPointerException ex) {
+                        logger.warn("sending to gateway failed", ex);
+                    }
                 }
-            } catch (NullPointerException ex) {
-                logger.warn("sending to gateway failed", ex);
-            }
+            }))
+                break;
         }
+        rows.await();
         pending.close();
     }
 
@@ -2210,18 +2622,11 @@ public class DistributorThread extends Thread {
         // final ContentResolver resolver = context.getContentResolver();
 
         final String topic = mime;
-        final Cursor cursor = this.store.querySubscribeByKey(new String[] {
-                SubscribeTableSchema.PROVIDER.n
-        }, topic, null);
-        if (cursor.getCount() < 1) {
+        final String uriString = this.store.querySubscribeProviderByTopic(topic);
+        if (uriString == null) {
             logger.warn("received a message for which there is no subscription {}", topic);
-            cursor.close();
             return false;
         }
-        cursor.moveToFirst();
-        final String uriString = cursor.getString(0); // only asked for one so
-        // it better be it.
-        cursor.close();
         final Uri provider = Uri.parse(uriString);
 
         // we were subscribed to this - does the sender need an ack (let's be
@@ -2268,10 +2673,11 @@ public class DistributorThread extends Thread {
         
         final Encoding encoding = Encoding.getInstanceByName(encode);
       
-       this.requestDeserializerBuilder = RequestDeserializer.newBuilder(this, this.ammoAdaptorCache);
+       final RequestDeserializer.Builder requestDeserializerBuilder =
+               RequestDeserializer.newBuilder(this, this.ammoAdaptorCache);
        
        final RequestDeserializer deserializeCommand = 
-               this.requestDeserializerBuilder.toProvider(priority, context, channel.name,
+               requestDeserializerBuilder.toProvider(priority, context, channel.name,
                provider, encoding, data.toByteArray());
        this.deserializeExecutor.execute(deserializeCommand);
      
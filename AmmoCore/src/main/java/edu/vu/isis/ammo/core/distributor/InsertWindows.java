@@ -0,0 +1,263 @@
+/* Copyright (c) 2010-2015 Vanderbilt University
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package edu.vu.isis.ammo.core.distributor;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.vu.isis.ammo.core.metrics.MetricsRegistry;
+
+/**
+ * The windows of rows waiting to be inserted into each provider, see
+ * ProviderInsertBatcher which inserts them into the content providers.
+ * <p>
+ * A window is inserted once it holds enough rows or once its first row has
+ * waited the linger time. A row with the same key as one already in the
+ * window is merged into it. The windows of one provider are inserted in the
+ * order they were taken; if a window cannot be inserted as a whole its rows
+ * are inserted one at a time, so one bad row does not lose the rest.
+ *
+ * @param <P> names the provider
+ * @param <R> a row
+ */
+class InsertWindows<P, R> {
+    private static final Logger logger = LoggerFactory.getLogger("dist.insert.batch");
+
+    /**
+     * Inserts the rows of a window.
+     */
+    interface Inserter<P, R> {
+        /**
+         * Insert all of the rows, or none of them.
+         *
+         * @throws Exception if none of the rows were inserted
+         */
+        void insertAll(P provider, List<R> rows) throws Exception;
+
+        /**
+         * @return false if the row was not inserted
+         */
+        boolean insert(P provider, R row) throws Exception;
+
+        /**
+         * Merge the later values into the row.
+         */
+        void merge(R row, R later);
+    }
+
+    private final Inserter<P, R> inserter;
+    private final ConcurrentHashMap<P, Window> windows = new ConcurrentHashMap<P, Window>();
+    /** null while stopped, the rows are then inserted as they arrive */
+    private volatile ScheduledExecutorService timer = null;
+    private final MetricsRegistry.Counter rowCount;
+    private final MetricsRegistry.Counter mergeCount;
+    private final MetricsRegistry.Counter insertCount;
+
+    private volatile int batchSize;
+    private volatile long linger;
+
+    InsertWindows(Inserter<P, R> inserter, int batchSize, long linger) {
+        this.inserter = inserter;
+        this.batchSize = batchSize;
+        this.linger = linger;
+        final MetricsRegistry metrics = MetricsRegistry.getInstance();
+        this.rowCount = metrics.counter("distributor.insert.rows");
+        this.mergeCount = metrics.counter("distributor.insert.merged");
+        this.insertCount = metrics.counter("distributor.insert.batches");
+    }
+
+    /**
+     * @param batchSize the most rows in a window, less than two inserts each row
+     *        as it arrives
+     * @param linger how long, in milliseconds, the first row of a window may wait
+     */
+    public void configure(int batchSize, long linger) {
+        this.batchSize = batchSize;
+        this.linger = Math.max(0, linger);
+        logger.info("insert batch size={} linger={}", batchSize, linger);
+        if (batchSize < 2)
+            this.flushAll();
+    }
+
+    public boolean isEnabled() {
+        return this.batchSize > 1;
+    }
+
+    /**
+     * Start the timer which inserts the windows which have lingered.
+     */
+    public synchronized void start() {
+        if (this.timer != null)
+            return;
+        this.timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                final Thread thread = new Thread(runnable, "InsertFlush");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Insert whatever is waiting and stop the timer; until started again
+     * the windows are inserted as soon as a row is added.
+     */
+    public void stop() {
+        final ScheduledExecutorService stopped;
+        synchronized (this) {
+            stopped = this.timer;
+            this.timer = null;
+        }
+        if (stopped != null)
+            stopped.shutdown();
+        this.flushAll();
+    }
+
+    /**
+     * Add a row to the provider's window.
+     *
+     * @param key rows with equal keys are merged, null if the row has no key
+     */
+    public void add(final P provider, final String key, final R row) {
+        this.rowCount.inc();
+        Window window = this.windows.get(provider);
+        if (window == null) {
+            final Window made = new Window(provider);
+            final Window prior = this.windows.putIfAbsent(provider, made);
+            window = (prior == null) ? made : prior;
+        }
+        final int size;
+        final boolean first;
+        synchronized (window) {
+            first = window.rows.isEmpty();
+            final R match = (key == null) ? null : window.byKey.get(key);
+            if (match != null) {
+                this.inserter.merge(match, row);
+                this.mergeCount.inc();
+            } else {
+                window.rows.add(row);
+                if (key != null)
+                    window.byKey.put(key, row);
+            }
+            size = window.rows.size();
+        }
+        if (size >= this.batchSize) {
+            window.flush();
+            return;
+        }
+        if (first && !this.schedule(window))
+            window.flush();
+    }
+
+    /**
+     * @return false if the timer is stopped
+     */
+    private boolean schedule(final Window window) {
+        final ScheduledExecutorService timer = this.timer;
+        if (timer == null)
+            return false;
+        try {
+            timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    window.flush();
+                }
+            }, this.linger, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (RejectedExecutionException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Insert whatever is waiting for the provider.
+     */
+    public void flush(final P provider) {
+        final Window window = this.windows.get(provider);
+        if (window != null)
+            window.flush();
+    }
+
+    public void flushAll() {
+        for (final Window window : this.windows.values()) {
+            window.flush();
+        }
+    }
+
+    private class Window {
+        final P provider;
+        List<R> rows = new ArrayList<R>();
+        final Map<String, R> byKey = new HashMap<String, R>();
+        /** held while inserting so the windows go in the order they were taken */
+        final Object inserting = new Object();
+
+        Window(P provider) {
+            this.provider = provider;
+        }
+
+        void flush() {
+            synchronized (this.inserting) {
+                final List<R> taken;
+                synchronized (this) {
+                    if (this.rows.isEmpty())
+                        return;
+                    taken = this.rows;
+                    this.rows = new ArrayList<R>();
+                    this.byKey.clear();
+                }
+                this.insert(taken);
+            }
+        }
+
+        private void insert(List<R> taken) {
+            insertCount.inc();
+            try {
+                inserter.insertAll(this.provider, taken);
+                logger.debug("inserted {} rows into {}", taken.size(), this.provider);
+                return;
+            } catch (Exception ex) {
+                logger.warn("batch insert failed into {}, inserting each row", this.provider, ex);
+            }
+            // none were inserted, so one bad row does not lose the rest
+            for (final R row : taken) {
+                try {
+                    if (!inserter.insert(this.provider, row))
+                        logger.warn("could not insert {} into {}", row, this.provider);
+                } catch (Exception ex) {
+                    logger.warn("could not insert {} into {}", new Object[] { row, this.provider, ex });
+                }
+            }
+        }
+    }
+}
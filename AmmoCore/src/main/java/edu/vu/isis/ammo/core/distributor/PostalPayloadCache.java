@@ -0,0 +1,288 @@
+/* Copyright (c) 2010-2015 Vanderbilt University
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package edu.vu.isis.ammo.core.distributor;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import android.content.ContentResolver;
+import android.database.ContentObserver;
+import android.net.Uri;
+import edu.vu.isis.ammo.core.metrics.MetricsRegistry;
+
+/**
+ * The serialized payloads of postal requests, kept on disk so a retry does
+ * not go back to the content provider.
+ * <p>
+ * A deferred postal is serialized from its tuple each time it is sent; for
+ * a tuple with large blobs that is a query and a read of every blob for
+ * each channel which comes back up. The bytes for each encoding are kept
+ * in a directory named for the topic and tuple, the same pair which
+ * identifies the postal in the postal table.
+ * <p>
+ * Only the retries use the cache. Most postals go out on their first
+ * send, so that send serializes the tuple directly and does not write a
+ * file or observe the tuple for a retry that may never come.
+ * <p>
+ * While a postal has bytes here the tuple is observed and any change to it
+ * drops them. A tuple is observed from the first miss, so a change made
+ * while it is being serialized also keeps the bytes from being put. The
+ * observers do not outlive the process so the cache is cleared when it is
+ * made.
+ */
+public class PostalPayloadCache {
+    private static final Logger logger = LoggerFactory.getLogger("dist.cache.postal");
+
+    private final File dir;
+    private final ContentResolver resolver;
+    /** the tuples being observed by key, no observer without a resolver, guarded by this */
+    private final Map<String, ContentObserver> observers = new HashMap<String, ContentObserver>();
+    private final MetricsRegistry.Counter hitCount;
+    private final MetricsRegistry.Counter missCount;
+
+    /**
+     * @param dir where the payloads are kept, anything already there is removed
+     * @param resolver used to observe the tuples, null if they are not observed
+     */
+    public PostalPayloadCache(File dir, ContentResolver resolver) {
+        this.dir = dir;
+        this.resolver = resolver;
+        final MetricsRegistry metrics = MetricsRegistry.getInstance();
+        this.hitCount = metrics.counter("distributor.payload.hits");
+        this.missCount = metrics.counter("distributor.payload.misses");
+        this.clear();
+    }
+
+    /**
+     * The name of the directory holding the payloads of the postal.
+     */
+    static String keyOf(String topic, String provider) {
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            digest.update(topic.getBytes("UTF-8"));
+            digest.update((byte) 0);
+            digest.update(provider.getBytes("UTF-8"));
+            final StringBuilder sb = new StringBuilder();
+            for (final byte octet : digest.digest()) {
+                sb.append(Character.forDigit((octet >> 4) & 0xf, 16))
+                        .append(Character.forDigit(octet & 0xf, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * @param provider the tuple, as held in the postal table
+     * @param encoding the name of the encoding
+     * @return the serialized tuple, null if it must be serialized
+     */
+    public byte[] get(String topic, String provider, String encoding) {
+        final String key = keyOf(topic, provider);
+        final File file = new File(new File(this.dir, key), encoding);
+        if (file.exists()) {
+            final byte[] bytes = this.read(file, topic, provider);
+            if (bytes != null) {
+                this.hitCount.inc();
+                return bytes;
+            }
+        }
+        this.missCount.inc();
+        this.observe(key, provider);
+        return null;
+    }
+
+    /**
+     * Keep the serialized tuple for the next retry. It is only kept if the
+     * tuple has not changed since it missed.
+     */
+    public void put(String topic, String provider, String encoding, byte[] bytes) {
+        if (bytes == null)
+            return;
+        final String key = keyOf(topic, provider);
+        synchronized (this) {
+            if (!this.observers.containsKey(key)) {
+                logger.debug("tuple changed while serializing {} {}", topic, provider);
+                return;
+            }
+            final File entry = new File(this.dir, key);
+            if (!entry.exists() && !entry.mkdirs()) {
+                logger.warn("cannot create payload directory {}", entry);
+                return;
+            }
+            final File file = new File(entry, encoding);
+            final File temp = new File(entry, encoding + ".tmp");
+            if (this.write(temp, topic, provider, bytes) && !temp.renameTo(file)) {
+                logger.warn("cannot rename payload {}", temp);
+                temp.delete();
+            }
+        }
+    }
+
+    /**
+     * Drop the payloads of the postal.
+     */
+    public void invalidate(String topic, String provider) {
+        this.invalidate(keyOf(topic, provider));
+    }
+
+    /**
+     * Drop the payloads of every postal not named.
+     *
+     * @param keys of the postals still wanted, as made by {@link #keyOf}
+     */
+    public synchronized void retain(Set<String> keys) {
+        final String[] names = this.dir.list();
+        if (names != null) {
+            for (final String name : names) {
+                if (!keys.contains(name))
+                    this.invalidate(name);
+            }
+        }
+        for (final String key : this.observers.keySet().toArray(new String[0])) {
+            if (!keys.contains(key))
+                this.invalidate(key);
+        }
+    }
+
+    public synchronized void clear() {
+        for (final String key : this.observers.keySet().toArray(new String[0])) {
+            this.invalidate(key);
+        }
+        final String[] names = this.dir.list();
+        if (names == null)
+            return;
+        for (final String name : names) {
+            delete(new File(this.dir, name));
+        }
+    }
+
+    private synchronized void invalidate(String key) {
+        final ContentObserver observer = this.observers.remove(key);
+        if (observer != null)
+            this.resolver.unregisterContentObserver(observer);
+        delete(new File(this.dir, key));
+    }
+
+    private synchronized void observe(final String key, String provider) {
+        if (this.observers.containsKey(key))
+            return;
+        if (this.resolver == null) {
+            // the key is still recorded, without an observer
+            this.observers.put(key, null);
+            return;
+        }
+        final ContentObserver observer = new ContentObserver(null) {
+            @Override
+            public void onChange(boolean selfChange) {
+                logger.trace("tuple changed, drop payloads {}", key);
+                PostalPayloadCache.this.invalidate(key);
+            }
+        };
+        this.observers.put(key, observer);
+        try {
+            this.resolver.registerContentObserver(Uri.parse(provider), false, observer);
+        } catch (SecurityException ex) {
+            logger.warn("cannot observe tuple {}", provider, ex);
+        }
+    }
+
+    private byte[] read(File file, String topic, String provider) {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (!topic.equals(in.readUTF()) || !provider.equals(in.readUTF())) {
+                logger.warn("payload does not belong to {} {}", topic, provider);
+                return null;
+            }
+            final byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            return bytes;
+        } catch (IOException ex) {
+            logger.warn("cannot read payload {}", file, ex);
+            file.delete();
+            return null;
+        } finally {
+            close(in);
+        }
+    }
+
+    private boolean write(File file, String topic, String provider, byte[] bytes) {
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            out.writeUTF(topic);
+            out.writeUTF(provider);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+            out.close();
+            out = null;
+            return true;
+        } catch (IOException ex) {
+            logger.warn("cannot write payload {}", file, ex);
+            file.delete();
+            return false;
+        } finally {
+            close(out);
+        }
+    }
+
+    private static void close(Closeable closeable) {
+        if (closeable == null)
+            return;
+        try {
+            closeable.close();
+        } catch (IOException ex) {
+            logger.trace("close", ex);
+        }
+    }
+
+    private static void delete(File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (final File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,144 @@
+/* Copyright (c) 2010-2015 Vanderbilt University
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package edu.vu.isis.ammo.core.distributor;
+
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.net.Uri;
+
+/**
+ * Gathers the rows received for each content provider and inserts them
+ * together as a single batch.
+ * <p>
+ * Each insert into a provider is an IPC and, in most providers, its own
+ * transaction; at the rates position reports arrive that is the largest
+ * cost of receiving them. A window is kept for each provider which is
+ * inserted once it holds enough rows or once its first row has waited the
+ * linger time. A row with the same key as one already in the window is
+ * merged into it, the later values winning, so only the latest is
+ * inserted.
+ * <p>
+ * A window is inserted with one bulk insert. A provider's bulk insert
+ * either inserts all of the rows or fails, so the rows of a failed window
+ * are then inserted one at a time. A batch of operations makes no such
+ * promise, the default applies them one by one and a failure leaves those
+ * before it in, which the retry would insert twice.
+ * <p>
+ * The rows of one provider are inserted in the order they were added.
+ * Anything which must be inserted straight away, such as a row with large
+ * blobs, should flush the provider's window first. The distributor stops
+ * the batcher when it stops, which inserts whatever is waiting.
+ */
+public class ProviderInsertBatcher {
+    private static final Logger logger = LoggerFactory.getLogger("dist.insert.batch");
+
+    public static final int DEFAULT_BATCH_SIZE = 32;
+    public static final long DEFAULT_LINGER = 50;
+
+    private static ProviderInsertBatcher instance = null;
+
+    public static synchronized ProviderInsertBatcher getInstance() {
+        if (instance == null)
+            instance = new ProviderInsertBatcher();
+        return instance;
+    }
+
+    /** the resolver of the rows last added, they all come from the application */
+    private volatile ContentResolver resolver = null;
+    private final InsertWindows<Uri, ContentValues> windows;
+
+    private ProviderInsertBatcher() {
+        this.windows = new InsertWindows<Uri, ContentValues>(
+                new InsertWindows.Inserter<Uri, ContentValues>() {
+                    @Override
+                    public void insertAll(Uri provider, List<ContentValues> rows)
+                            throws Exception {
+                        final int inserted = resolver.bulkInsert(provider,
+                                rows.toArray(new ContentValues[rows.size()]));
+                        if (inserted < rows.size())
+                            logger.warn("provider {} took {} of {} rows",
+                                    new Object[] { provider, inserted, rows.size() });
+                    }
+
+                    @Override
+                    public boolean insert(Uri provider, ContentValues row) {
+                        return resolver.insert(provider, row) != null;
+                    }
+
+                    @Override
+                    public void merge(ContentValues row, ContentValues later) {
+                        row.putAll(later);
+                    }
+                }, DEFAULT_BATCH_SIZE, DEFAULT_LINGER);
+    }
+
+    /**
+     * Start, or restart, the batcher.
+     *
+     * @param batchSize the most rows in a window, less than two inserts each row
+     *        as it arrives
+     * @param linger how long, in milliseconds, the first row of a window may wait
+     */
+    public void configure(int batchSize, long linger) {
+        this.windows.configure(batchSize, linger);
+        this.windows.start();
+    }
+
+    public boolean isEnabled() {
+        return this.windows.isEnabled();
+    }
+
+    /**
+     * Insert whatever is waiting and stop the timer.
+     */
+    public void stop() {
+        logger.info("stopping insert batcher");
+        this.windows.stop();
+    }
+
+    /**
+     * Add a row to the provider's window.
+     *
+     * @param key rows with equal keys are merged, null if the row has no key
+     */
+    public void add(final ContentResolver resolver, final Uri provider, final String key,
+            final ContentValues cv) {
+        this.resolver = resolver;
+        this.windows.add(provider, key, cv);
+    }
+
+    /**
+     * Insert whatever is waiting for the provider.
+     */
+    public void flush(final Uri provider) {
+        this.windows.flush(provider);
+    }
+
+    public void flushAll() {
+        this.windows.flushAll();
+    }
+}
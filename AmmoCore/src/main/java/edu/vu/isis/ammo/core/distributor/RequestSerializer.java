@@ -274,6 +274,16 @@ public class RequestSerializer {
 		return new RequestSerializer(provider, payload);
 	}
 
+	/**
+	 * Serialize the payload ahead of act(), which then only builds and sends
+	 * the message. The serialize actor keeps the bytes with their encoding,
+	 * act() with another encoding serializes them again.
+	 */
+	public void prepare(final Encoding encode) {
+		if (this.agm == null && encode != null)
+			this.serializeActor.run(encode);
+	}
+
 	/**
      * The primary function of the request serializer is to serialize and
      * deliver a request. This method fulfills that purpose.
@@ -469,6 +479,9 @@ public class RequestSerializer {
 
 	/**
 	 * @see serializeFromProvider with which this method is symmetric.
+	 * 
+	 * @return the inserted tuple, null if it was not inserted or is waiting
+	 *         to be inserted with others, see ProviderInsertBatcher
 	 */
 	public static Uri deserializeToProviderLocal(final ISerializer serializer,
 			final ContentResolver resolver, final String channelName,
@@ -482,56 +495,45 @@ public class RequestSerializer {
 		 * 2) parse the incoming data using the order of the names and their
 		 * types as a guide.
 		 */
-		// TODO: Move this someplace else? (Into ContentProviderContentItem?)
-		Cursor serialMetaCursor = null;
+		final SerialMetadataCache metadataCache = SerialMetadataCache.getInstance();
+		SerialMetadataCache.Metadata metadata;
 		try {
-            final Uri baseDataTypeUri = Uri.withAppendedPath(provider, "_data_type");
-
-            final Uri encodingSpecificUri = Uri.withAppendedPath(baseDataTypeUri, encoding.name());
-
-            try {
-                serialMetaCursor = resolver.query(encodingSpecificUri, null, null, null, null);
-            } catch (IllegalArgumentException ex) {
-                logger.warn("Data-type specific metadata doesn't exist...  falling back to old behavior");
-                //row didn't exist, move on to fallback behavior
-            }
+            metadata = metadataCache.forEncoding(resolver, provider, encoding);
 
-            if(serialMetaCursor == null) {
+            if(metadata == null) {
                 //Fallback logic to maintain backwards compatibility...  always fall back to the _data_type URI
                 //(intentionally different from ContentProviderContentItem fallback logic--  we only use this
                 //metadata for terse right now, and we don't (in an old-style provider) have enough information
                 //to do this for JSON)
 
-                serialMetaCursor = resolver.query(baseDataTypeUri, null, null, null, null);
+                metadata = metadataCache.forProvider(resolver, provider);
             }
 		} catch (IllegalArgumentException ex) {
 			logger.warn("unknown content provider", ex);
 			return null;
 		}
-		if (serialMetaCursor == null) {
+		if (metadata == null || metadata.isEmpty()) {
 			return null;
 		}
-		if (!serialMetaCursor.moveToFirst()) {
-			serialMetaCursor.close();
-			return null;
-		}
-		int columnCount = serialMetaCursor.getColumnCount();
-		if (columnCount < 1) {
 
-			serialMetaCursor.close();
-			return null;
-		}
+		final List<String> columnNames = metadata.getNames();
+		final List<FieldType> dataTypes = metadata.getTypes();
 
-		final List<String> columnNames = Arrays.asList(serialMetaCursor.getColumnNames());
-		final List<FieldType> dataTypes = new ArrayList<FieldType>(columnNames.size());
+		final DeserializedMessage msg = serializer.deserialize(data, columnNames, dataTypes);
 
-		for (final String key : columnNames) {
-			dataTypes.add(FieldType.fromCode(serialMetaCursor
-					.getInt(serialMetaCursor.getColumnIndex(key))));
+		final ProviderInsertBatcher batcher = ProviderInsertBatcher.getInstance();
+		if (batcher.isEnabled()) {
+			if (!hasLargeBlobs(msg)) {
+				batcher.add(resolver, provider, keyOf(msg.cv, columnNames, dataTypes),
+						receivedValues(channelName, msg));
+				// the tuple is not known until the window is inserted
+				return null;
+			}
+			// the large blobs are written to the inserted tuple, so it is
+			// inserted now, after those received before it
+			batcher.flush(provider);
 		}
 
-		final DeserializedMessage msg = serializer.deserialize(data, columnNames, dataTypes);
-
 		final Uri tupleUri;
 		try {
 			tupleUri = resolver.insert(provider, msg.cv); // TBD SKN --- THIS IS
@@ -627,6 +629,55 @@ public class RequestSerializer {
 		return tupleUri;
 	}
 
+	private static boolean hasLargeBlobs(final DeserializedMessage msg) {
+		for (final BlobData blobData : msg.blobs.values()) {
+			if (blobData.blobType != BlobTypeEnum.SMALL)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * The values of a message without large blobs, as a single insert. It is
+	 * the same as the two inserts, first the values and then the values with
+	 * the small blobs, which are made when the message is inserted straight
+	 * away.
+	 */
+	private static ContentValues receivedValues(final String channelName,
+			final DeserializedMessage msg) {
+		if (msg.blobs.isEmpty())
+			return msg.cv;
+		final ContentValues cv = new ContentValues(msg.cv);
+		cv.put(AmmoProviderSchema._RECEIVED_DATE, System.currentTimeMillis());
+		cv.put(AmmoProviderSchema._DISPOSITION, new StringBuilder()
+				.append(AmmoProviderSchema.Disposition.REMOTE.name())
+				.append('.').append(channelName).toString());
+		for (final Entry<String, BlobData> entry : msg.blobs.entrySet()) {
+			cv.put(entry.getKey(), entry.getValue().blob);
+		}
+		return cv;
+	}
+
+	/**
+	 * The values of the globally unique identifier fields, which name the
+	 * tuple; null if there are none.
+	 */
+	private static String keyOf(final ContentValues cv, final List<String> columnNames,
+			final List<FieldType> dataTypes) {
+		StringBuilder key = null;
+		for (int ix = 0; ix < columnNames.size(); ++ix) {
+			if (dataTypes.get(ix) != FieldType.GUID)
+				continue;
+			final String value = cv.getAsString(columnNames.get(ix));
+			if (value == null)
+				continue;
+			if (key == null)
+				key = new StringBuilder();
+			key.append(columnNames.get(ix)).append('=').append(value).append(';');
+		}
+		return (key == null) ? null : key.toString();
+	}
+
 	/**
 	 * A pair of functions which communicate with a Content Adaptor Service.
 	 * These Content Adaptor Services are created by the code generator.
@@ -26,7 +26,10 @@
 package edu.vu.isis.ammo.core.distributor;
 
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
 import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
@@ -38,70 +41,125 @@ import edu.vu.isis.ammo.core.PLogger;
 /**
  * An executor which places request responses into the appropriate place.
  * It does this by running RequestDeserializer runnable objects.
- *
+ * <p>
+ * The work is split into lanes by the provider it goes to, each lane with
+ * its own thread. The inserts into a provider stay in order, by priority
+ * and then as they arrived, while the inserts into other providers go on
+ * in the other lanes; a slow provider only holds up those which share its
+ * lane.
  */
-public class ResponseExecutor extends ThreadPoolExecutor {
+public class ResponseExecutor implements Executor {
     private static final Logger logger = LoggerFactory.getLogger("dist.resp.exec");
     private static final Logger tlogger = LoggerFactory.getLogger("test.queue.insert");
    
-    private static final int N_THREADS = 1;
+    public static final int DEFAULT_LANES = 2;
 
     public static ResponseExecutor newInstance(final DistributorThread parent) {
-        final RequestDeserializer.Prioritizer prioritizer = new RequestDeserializer.Prioritizer();
-        
-        final PriorityBlockingQueue<Runnable> responseQueue = 
-                new PriorityBlockingQueue<Runnable>(200, prioritizer);
-        
-        return new ResponseExecutor( parent, responseQueue );
+        return newInstance(parent, DEFAULT_LANES);
     }
-    
-    private ResponseExecutor(final DistributorThread parent, final BlockingQueue<Runnable> responseQueue) {
-        super(N_THREADS, N_THREADS,
-                0L, TimeUnit.MILLISECONDS, responseQueue);
-        
-        /** Saturation Policy */
-        this.setRejectedExecutionHandler( new ThreadPoolExecutor.CallerRunsPolicy() );
-        
-    }
-    
+
     /**
-     * Print the log message indicating the status of the command.
-     * 
-     * @parm runnable is the task which just completed.
-     * @parm throwable is the exception (null on success) thrown during the running of the runnable.
+     * @param lanes the number of threads inserting into providers
      */
-    @Override
-    protected void afterExecute(Runnable command, Throwable throwable) {
-        super.afterExecute(command, throwable);
-        if (throwable != null) {
-            logger.error("runnable failed", throwable);
-            return;
-        }
-        if (!(command instanceof RequestDeserializer)) {
-            logger.error("invalid runnable for response executor");
-            return;
+    public static ResponseExecutor newInstance(final DistributorThread parent, final int lanes) {
+        return new ResponseExecutor(parent, Math.max(1, lanes));
+    }
+
+    private final Lane[] lanes;
+    
+    private ResponseExecutor(final DistributorThread parent, final int laneCount) {
+        this.lanes = new Lane[laneCount];
+        for (int ix = 0; ix < laneCount; ++ix) {
+            final PriorityBlockingQueue<Runnable> responseQueue = 
+                    new PriorityBlockingQueue<Runnable>(200, new RequestDeserializer.Prioritizer());
+            this.lanes[ix] = new Lane(ix, responseQueue);
         }
-        final RequestDeserializer responseDeserializer = (RequestDeserializer)command;
-        final long currentTime = System.currentTimeMillis();
-        tlogger.info(PLogger.TEST_QUEUE_FORMAT, 
-                currentTime, 
-                "insert_queue", 
-                this.getQueue().size(),
-                currentTime - responseDeserializer.item.timestamp);
-       
+        logger.info("response executor with {} lanes", laneCount);
+    }
+
+    static int laneOf(final Object provider, final int laneCount) {
+        if (provider == null)
+            return 0;
+        return (provider.toString().hashCode() & 0x7fffffff) % laneCount;
     }
 
     @Override
     public void execute(Runnable command) {
-        //super(new StringBuilder("Serializer-").append(Thread.activeCount()).toString());
         if (!(command instanceof RequestDeserializer)) {
             logger.error("unexpected command <{}>", command);
             return;
         }
-        final RequestDeserializer responseDeserializer= (RequestDeserializer)command;
-        super.execute(responseDeserializer);
+        final RequestDeserializer responseDeserializer = (RequestDeserializer)command;
+        final int lane = laneOf(responseDeserializer.item.provider, this.lanes.length);
+        this.lanes[lane].execute(responseDeserializer);
+    }
+
+    /**
+     * The work waiting in all the lanes.
+     */
+    public int size() {
+        int size = 0;
+        for (final Lane lane : this.lanes) {
+            size += lane.getQueue().size();
+        }
+        return size;
+    }
+
+    public void shutdown() {
+        for (final Lane lane : this.lanes) {
+            lane.shutdown();
+        }
+    }
+
+    /**
+     * Nothing is run on the caller's thread, that would be the distributor.
+     * The lane queues are not bounded so this only happens once shut down.
+     */
+    private static final RejectedExecutionHandler DISCARD = new RejectedExecutionHandler() {
+        @Override
+        public void rejectedExecution(Runnable command, ThreadPoolExecutor executor) {
+            logger.warn("response executor is shut down, discarding <{}>", command);
+        }
+    };
+
+    private static class Lane extends ThreadPoolExecutor {
+        Lane(final int ordinal, final BlockingQueue<Runnable> responseQueue) {
+            super(1, 1, 0L, TimeUnit.MILLISECONDS, responseQueue, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    return new Thread(runnable, new StringBuilder("Deserialize-")
+                            .append(ordinal).toString());
+                }
+            }, DISCARD);
+            // start the thread now so work is only ever queued, never handed over
+            this.prestartCoreThread();
+        }
+
+        /**
+         * Print the log message indicating the status of the command.
+         * 
+         * @parm runnable is the task which just completed.
+         * @parm throwable is the exception (null on success) thrown during the running of the runnable.
+         */
+        @Override
+        protected void afterExecute(Runnable command, Throwable throwable) {
+            super.afterExecute(command, throwable);
+            if (throwable != null) {
+                logger.error("runnable failed", throwable);
+                return;
+            }
+            if (!(command instanceof RequestDeserializer)) {
+                logger.error("invalid runnable for response executor");
+                return;
+            }
+            final RequestDeserializer responseDeserializer = (RequestDeserializer)command;
+            final long currentTime = System.currentTimeMillis();
+            tlogger.info(PLogger.TEST_QUEUE_FORMAT, 
+                    currentTime, 
+                    "insert_queue", 
+                    this.getQueue().size(),
+                    currentTime - responseDeserializer.item.timestamp);
+        }
     }
-    
-    
 
 }
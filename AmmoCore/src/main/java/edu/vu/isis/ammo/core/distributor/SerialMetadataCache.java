@@ -0,0 +1,232 @@
+/* Copyright (c) 2010-2015 Vanderbilt University
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package edu.vu.isis.ammo.core.distributor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import edu.vu.isis.ammo.core.distributor.DistributorPolicy.Encoding;
+import edu.vu.isis.ammo.core.distributor.RequestSerializer.FieldType;
+import edu.vu.isis.ammo.core.metrics.MetricsRegistry;
+
+/**
+ * The serialization metadata of each content provider, the field names
+ * and types from its <code>_data_type</code> cursor, kept so they are
+ * not queried for every message sent or received.
+ * <p>
+ * The metadata is kept by provider and encoding. A tuple uri is kept
+ * under its provider, the metadata being the same for all tuples. The
+ * metadata only changes when the package which owns the provider is
+ * installed again or when a contract changes, which should drop the
+ * cached entries.
+ */
+public class SerialMetadataCache {
+    private static final Logger logger = LoggerFactory.getLogger("dist.serializer.meta");
+
+    private static final String DATA_TYPE = "_data_type";
+
+    /** held for a provider which has no metadata for the encoding */
+    private static final Metadata ABSENT = new Metadata(new String[0], new FieldType[0]);
+
+    private static SerialMetadataCache instance = null;
+
+    public static synchronized SerialMetadataCache getInstance() {
+        if (instance == null)
+            instance = new SerialMetadataCache();
+        return instance;
+    }
+
+    private final ConcurrentHashMap<String, Metadata> entries =
+            new ConcurrentHashMap<String, Metadata>();
+    private final MetricsRegistry.Counter hitCount;
+    private final MetricsRegistry.Counter missCount;
+
+    private SerialMetadataCache() {
+        final MetricsRegistry metrics = MetricsRegistry.getInstance();
+        this.hitCount = metrics.counter("distributor.metadata.hits");
+        this.missCount = metrics.counter("distributor.metadata.misses");
+    }
+
+    /**
+     * The field names, in serial order, and their types.
+     */
+    public static class Metadata {
+        private final List<String> names;
+        private final List<FieldType> types;
+
+        private Metadata(String[] names, FieldType[] types) {
+            this.names = Collections.unmodifiableList(Arrays.asList(names));
+            this.types = Collections.unmodifiableList(Arrays.asList(types));
+        }
+
+        /**
+         * The names of all the columns, including the local ones
+         * beginning with an underscore.
+         */
+        public List<String> getNames() {
+            return this.names;
+        }
+
+        public List<FieldType> getTypes() {
+            return this.types;
+        }
+
+        /**
+         * The provider gave a cursor with no fields.
+         */
+        public boolean isEmpty() {
+            return this.names.isEmpty();
+        }
+
+        @Override
+        public String toString() {
+            return this.names.toString();
+        }
+    }
+
+    /**
+     * The metadata from <code>&lt;uri&gt;/_data_type/&lt;encoding&gt;</code>.
+     * 
+     * @param uri of the provider or of one of its tuples
+     * @return null if the provider has no metadata for the encoding
+     */
+    public Metadata forEncoding(ContentResolver resolver, Uri uri, Encoding encoding) {
+        final String key = new StringBuilder(providerOf(uri)).append('#')
+                .append(encoding.name()).toString();
+        final Metadata cached = this.entries.get(key);
+        if (cached != null) {
+            this.hitCount.inc();
+            return (cached == ABSENT) ? null : cached;
+        }
+        this.missCount.inc();
+        final Uri metaUri = Uri.withAppendedPath(Uri.withAppendedPath(uri, DATA_TYPE),
+                encoding.name());
+        Metadata loaded;
+        try {
+            loaded = load(resolver, metaUri);
+        } catch (IllegalArgumentException ex) {
+            logger.debug("no {} metadata for {}", encoding.name(), uri);
+            loaded = null;
+        }
+        this.entries.put(key, (loaded == null) ? ABSENT : loaded);
+        return loaded;
+    }
+
+    /**
+     * The metadata from <code>&lt;uri&gt;/_data_type</code>, used by the
+     * older providers which do not give it by encoding.
+     * 
+     * @param uri of the provider or of one of its tuples
+     * @return null if the provider has no metadata
+     * @throws IllegalArgumentException if the provider is not known, this
+     *         is not kept
+     */
+    public Metadata forProvider(ContentResolver resolver, Uri uri) {
+        final String key = providerOf(uri);
+        final Metadata cached = this.entries.get(key);
+        if (cached != null) {
+            this.hitCount.inc();
+            return (cached == ABSENT) ? null : cached;
+        }
+        this.missCount.inc();
+        final Metadata loaded = load(resolver, Uri.withAppendedPath(uri, DATA_TYPE));
+        this.entries.put(key, (loaded == null) ? ABSENT : loaded);
+        return loaded;
+    }
+
+    private static Metadata load(ContentResolver resolver, Uri metaUri) {
+        final Cursor cursor = resolver.query(metaUri, null, null, null, null);
+        if (cursor == null)
+            return null;
+        try {
+            if (!cursor.moveToFirst() || cursor.getColumnCount() < 1)
+                return new Metadata(new String[0], new FieldType[0]);
+            final String[] names = cursor.getColumnNames();
+            final FieldType[] types = new FieldType[names.length];
+            for (int ix = 0; ix < names.length; ++ix) {
+                types[ix] = FieldType.fromCode(cursor.getInt(cursor.getColumnIndex(names[ix])));
+            }
+            logger.trace("metadata {} {}", metaUri, names);
+            return new Metadata(names, types);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Drop the metadata of the providers with the authority.
+     */
+    public void invalidate(String authority) {
+        final String prefix = new StringBuilder(ContentResolver.SCHEME_CONTENT)
+                .append("://").append(authority).toString();
+        final List<String> dropped = new ArrayList<String>();
+        for (final Iterator<String> it = this.entries.keySet().iterator(); it.hasNext();) {
+            final String key = it.next();
+            if (!key.startsWith(prefix))
+                continue;
+            if (key.length() > prefix.length()) {
+                final char next = key.charAt(prefix.length());
+                if (next != '/' && next != '#')
+                    continue;
+            }
+            it.remove();
+            dropped.add(key);
+        }
+        logger.info("invalidated metadata for {} {}", authority, dropped);
+    }
+
+    /**
+     * Drop all the metadata.
+     */
+    public void invalidateAll() {
+        this.entries.clear();
+        logger.info("invalidated all metadata");
+    }
+
+    /**
+     * The provider of a tuple uri, the uri without the tuple id.
+     */
+    static String providerOf(Uri uri) {
+        final String full = uri.toString();
+        final String segment = uri.getLastPathSegment();
+        if (segment == null || segment.length() < 1)
+            return full;
+        for (int ix = 0; ix < segment.length(); ++ix) {
+            if (!Character.isDigit(segment.charAt(ix)))
+                return full;
+        }
+        if (!full.endsWith(segment) || full.length() <= segment.length())
+            return full;
+        return full.substring(0, full.length() - segment.length() - 1);
+    }
+}
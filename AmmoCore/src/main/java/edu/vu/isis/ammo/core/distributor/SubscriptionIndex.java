@@ -0,0 +1,119 @@
+/* Copyright (c) 2010-2015 Vanderbilt University
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package edu.vu.isis.ammo.core.distributor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The content providers subscribed to each topic, kept in memory so
+ * received messages can be routed without a query.
+ * <p>
+ * The topics match exactly, as they do in the subscribe table. The
+ * providers of a topic are kept in the order they subscribed, the first
+ * being the one which receives the messages. Subscriptions change rarely
+ * and are looked up for every message, so every change makes a new map
+ * and lookups take no lock.
+ */
+public class SubscriptionIndex {
+
+    private volatile Map<String, List<String>> byTopic =
+            Collections.<String, List<String>> emptyMap();
+
+    /**
+     * @return the provider which receives the topic, null if none is subscribed
+     */
+    public String providerOf(String topic) {
+        final List<String> providers = this.byTopic.get(topic);
+        return (providers == null) ? null : providers.get(0);
+    }
+
+    public List<String> providersOf(String topic) {
+        final List<String> providers = this.byTopic.get(topic);
+        return (providers == null) ? Collections.<String> emptyList() : providers;
+    }
+
+    public int size() {
+        return this.byTopic.size();
+    }
+
+    public synchronized void add(String topic, String provider) {
+        final List<String> providers = this.byTopic.get(topic);
+        if (providers != null && providers.contains(provider))
+            return;
+        final Map<String, List<String>> next = new HashMap<String, List<String>>(this.byTopic);
+        final List<String> updated = (providers == null)
+                ? new ArrayList<String>(1) : new ArrayList<String>(providers);
+        updated.add(provider);
+        next.put(topic, Collections.unmodifiableList(updated));
+        this.byTopic = Collections.unmodifiableMap(next);
+    }
+
+    public synchronized void remove(String topic, String provider) {
+        final List<String> providers = this.byTopic.get(topic);
+        if (providers == null || !providers.contains(provider))
+            return;
+        final Map<String, List<String>> next = new HashMap<String, List<String>>(this.byTopic);
+        if (providers.size() < 2) {
+            next.remove(topic);
+        } else {
+            final List<String> updated = new ArrayList<String>(providers);
+            updated.remove(provider);
+            next.put(topic, Collections.unmodifiableList(updated));
+        }
+        this.byTopic = Collections.unmodifiableMap(next);
+    }
+
+    /**
+     * Replace the whole index.
+     *
+     * @param subscriptions pairs of topic and provider in the order they subscribed
+     */
+    public synchronized void replace(List<String[]> subscriptions) {
+        final Map<String, List<String>> next = new HashMap<String, List<String>>();
+        for (final String[] pair : subscriptions) {
+            List<String> providers = next.get(pair[0]);
+            if (providers == null) {
+                providers = new ArrayList<String>(1);
+                next.put(pair[0], providers);
+            }
+            if (!providers.contains(pair[1]))
+                providers.add(pair[1]);
+        }
+        for (final Map.Entry<String, List<String>> entry : next.entrySet()) {
+            entry.setValue(Collections.unmodifiableList(entry.getValue()));
+        }
+        this.byTopic = Collections.unmodifiableMap(next);
+    }
+
+    public synchronized void clear() {
+        this.byTopic = Collections.<String, List<String>> emptyMap();
+    }
+
+    @Override
+    public String toString() {
+        return this.byTopic.toString();
+    }
+}
@@ -24,6 +24,7 @@ package edu.vu.isis.ammo.core.distributor.serializer;
 
 import java.io.IOException;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
@@ -38,6 +39,7 @@ import android.net.Uri;
 
 import edu.vu.isis.ammo.core.distributor.DistributorPolicy.Encoding;
 import edu.vu.isis.ammo.core.distributor.NonConformingAmmoContentProvider;
+import edu.vu.isis.ammo.core.distributor.SerialMetadataCache;
 import edu.vu.isis.ammo.core.distributor.TupleNotFoundException;
 import edu.vu.isis.ammo.core.distributor.RequestSerializer.FieldType;
 
@@ -58,36 +60,24 @@ public class ContentProviderContentItem implements IContentItem {
         this.tupleUri = tupleUri;
         
         //Preload the list of keys and their types
+        final SerialMetadataCache metadataCache = SerialMetadataCache.getInstance();
+        SerialMetadataCache.Metadata metadata = null;
         Cursor serialMetaCursor = null;
         Cursor blobMetaCursor = null;
         
         this.fieldMap = null;
         serialOrder = null;
         
-        boolean jsonFallbackMode = false;
-        
         try {
             try {
-                final Uri baseDataTypeUri = Uri.withAppendedPath(tupleUri, "_data_type");
-                
-                final Uri encodingSpecificUri = Uri.withAppendedPath(baseDataTypeUri, encoding.name());
-                
-                try {
-                    serialMetaCursor = resolver.query(encodingSpecificUri, null, null, null, null);
-                } catch (IllegalArgumentException ex) {
-                    logger.warn("Data-type specific metadata doesn't exist...  falling back to old behavior");
-                    //row didn't exist, move on to fallback behavior
-                }
+                metadata = metadataCache.forEncoding(resolver, tupleUri, encoding);
                 blobMetaCursor = null; //only used by JSON serialization as a fallback
                 
-                if(serialMetaCursor == null) {
+                if(metadata == null) {
                     //Fallback logic to maintain backwards compatibility...  if terse, we fall back to
                     //the _data_type URI; if json, we use the old heuristics (pull names of columns
                     //containing strings from /_serial; pull names of blobs from /_blob)
                     switch(encoding.getType()) {
-                        case TERSE:
-                            serialMetaCursor = resolver.query(baseDataTypeUri, null, null, null, null);
-                            break;
                         case JSON:
                             final Uri serialUri = Uri.withAppendedPath(tupleUri, encoding.getPayloadSuffix());
                             serialMetaCursor = resolver.query(serialUri, null, null, null, null);
@@ -96,12 +86,10 @@ public class ContentProviderContentItem implements IContentItem {
                             //doesn't have any blobs
                             final Uri blobUri = Uri.withAppendedPath(tupleUri, "_blob");
                             blobMetaCursor = resolver.query(blobUri, null, null, null, null);
-                            
-                            jsonFallbackMode = true;
                             break;
                         default:
-                            //Custom encoding (for now) falls back to the same way terse does it
-                            serialMetaCursor = resolver.query(baseDataTypeUri, null, null, null, null);
+                            //Terse and custom encodings (for now) fall back to the _data_type URI
+                            metadata = metadataCache.forProvider(resolver, tupleUri);
                             break;
                     }
                     
@@ -110,41 +98,56 @@ public class ContentProviderContentItem implements IContentItem {
                 logger.warn("unknown content provider ", ex);
                 return;
             }
-            if (serialMetaCursor == null) {
-                throw new NonConformingAmmoContentProvider("while getting metadata from provider",
-                        tupleUri);
-            }
-
-            if (!serialMetaCursor.moveToFirst()) {
-                //TODO: log a warning or throw an exception here
-                return;
-            }
-            final int columnCount = serialMetaCursor.getColumnCount();
-            if (columnCount < 1) {
-                //TODO: log a warning or throw an exception here
-                return;
-            }
+            if (metadata != null) {
+                if (metadata.isEmpty()) {
+                    //TODO: log a warning or throw an exception here
+                    return;
+                }
+                final List<String> names = metadata.getNames();
+                final List<FieldType> types = metadata.getTypes();
+                fieldMap = new HashMap<String, FieldType>(names.size());
+                serialOrder = new String[names.size()];
+                int ix = 0;
+                for (int jx = 0; jx < names.size(); ++jx) {
+                    final String key = names.get(jx);
+                    if (key.startsWith("_")) {
+                        continue; // don't send any local fields
+                    }
+                    fieldMap.put(key, types.get(jx));
+                    serialOrder[ix] = key;
+                    ix++;
+                }
+            } else {
+                if (serialMetaCursor == null) {
+                    throw new NonConformingAmmoContentProvider("while getting metadata from provider",
+                            tupleUri);
+                }
 
-            fieldMap = new HashMap<String, FieldType>(columnCount);
-            serialOrder = new String[columnCount];
-            int ix = 0;
-            for (final String key : serialMetaCursor.getColumnNames()) {
-                if (key.startsWith("_")) {
-                    continue; // don't send any local fields
+                if (!serialMetaCursor.moveToFirst()) {
+                    //TODO: log a warning or throw an exception here
+                    return;
                 }
-                int columnIndex = serialMetaCursor.getColumnIndex(key);
-                final int value = serialMetaCursor.getInt(columnIndex);
-                if(jsonFallbackMode == false) {
-                    fieldMap.put(key, FieldType.fromCode(value));
-                } else {
-                    //If blobMetaCursor is non-null, we're in fallback mode for JSON encoding...
+                final int columnCount = serialMetaCursor.getColumnCount();
+                if (columnCount < 1) {
+                    //TODO: log a warning or throw an exception here
+                    return;
+                }
+
+                fieldMap = new HashMap<String, FieldType>(columnCount);
+                serialOrder = new String[columnCount];
+                int ix = 0;
+                for (final String key : serialMetaCursor.getColumnNames()) {
+                    if (key.startsWith("_")) {
+                        continue; // don't send any local fields
+                    }
+                    //We're in fallback mode for JSON encoding...
                     //treat all fields from this cursor as string-typed (since we don't have access
                     //to that metadata)
                     logger.warn("Putting key {} of type TEXT", key);
                     fieldMap.put(key,  FieldType.TEXT);
+                    serialOrder[ix] = key;
+                    ix++;
                 }
-                serialOrder[ix] = key;
-                ix++;
             }
             
             //If blobMetaCursor is non-null, we're in fallback mode for JSON encoding 
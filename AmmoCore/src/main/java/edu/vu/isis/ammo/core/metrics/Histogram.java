@@ -0,0 +1,122 @@
+/* Copyright (c) 2010-2015 Vanderbilt University
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package edu.vu.isis.ammo.core.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts latencies, in milliseconds, into fixed buckets.
+ * <p>
+ * The bucket bounds go 1, 2, 5, 10, 20, 50 ... up to 500 seconds with one
+ * more bucket for anything longer. Recording a value allocates nothing and
+ * takes no lock, so it may be done on every message. A percentile is the
+ * upper bound of the bucket it falls in, no more than the largest value
+ * recorded; it is within a factor of two and a half of the true value.
+ */
+public class Histogram {
+    /** the inclusive upper bound of each bucket but the last */
+    private static final long[] BOUNDS = new long[] {
+            1, 2, 5, 10, 20, 50, 100, 200, 500,
+            1000, 2000, 5000, 10000, 20000, 50000,
+            100000, 200000, 500000,
+    };
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BOUNDS.length + 1);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    static int bucketOf(long value) {
+        int lo = 0;
+        int hi = BOUNDS.length;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (BOUNDS[mid] < value)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * @param value in milliseconds, negative values count as zero
+     */
+    public void record(long value) {
+        final long v = Math.max(0, value);
+        this.buckets.incrementAndGet(bucketOf(v));
+        this.count.incrementAndGet();
+        this.sum.addAndGet(v);
+        for (long prior = this.max.get(); v > prior; prior = this.max.get()) {
+            if (this.max.compareAndSet(prior, v))
+                break;
+        }
+    }
+
+    public long count() {
+        return this.count.get();
+    }
+
+    public long max() {
+        return this.max.get();
+    }
+
+    public long mean() {
+        final long count = this.count.get();
+        return (count < 1) ? 0 : this.sum.get() / count;
+    }
+
+    /**
+     * @param fraction of the values at or below the one returned, 0.5 for the median
+     * @return the estimate or zero if nothing was recorded
+     */
+    public long percentile(double fraction) {
+        final long[] counts = new long[BOUNDS.length + 1];
+        long total = 0;
+        for (int ix = 0; ix < counts.length; ++ix) {
+            counts[ix] = this.buckets.get(ix);
+            total += counts[ix];
+        }
+        if (total < 1)
+            return 0;
+        final long rank = Math.max(1, (long) Math.ceil(fraction * total));
+        final long max = this.max.get();
+        long seen = 0;
+        for (int ix = 0; ix < BOUNDS.length; ++ix) {
+            seen += counts[ix];
+            if (seen >= rank)
+                return Math.min(BOUNDS[ix], max);
+        }
+        return max;
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder()
+                .append("n=").append(this.count())
+                .append(" p50=").append(this.percentile(0.50))
+                .append(" p99=").append(this.percentile(0.99))
+                .append(" max=").append(this.max())
+                .toString();
+    }
+}
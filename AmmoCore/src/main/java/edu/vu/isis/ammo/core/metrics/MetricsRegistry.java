@@ -0,0 +1,280 @@
+/* Copyright (c) 2010-2015 Vanderbilt University
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package edu.vu.isis.ammo.core.metrics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The counters, gauges and latency histograms of the whole service.
+ * <p>
+ * Metrics are named with dotted paths, e.g. "channel.gateway.send.latency",
+ * and made on first use; asking again for the same name returns the same
+ * metric so it may be looked up once and kept. Updating a metric takes no
+ * lock.
+ * <p>
+ * A single timer thread samples every so often: it works out the rate of
+ * each counter over the interval and runs the registered samplers, which
+ * is where periodic work such as the channel byte rates is done.
+ */
+public class MetricsRegistry {
+    private static final Logger logger = LoggerFactory.getLogger("metrics");
+
+    public static final long DEFAULT_SAMPLE_INTERVAL = 10 * 1000;
+
+    public static final String COUNTER = "counter";
+    public static final String GAUGE = "gauge";
+    public static final String HISTOGRAM = "histogram";
+
+    /**
+     * Run on the sampling thread once each interval.
+     */
+    public interface Sampler {
+        /**
+         * @param elapsedMillis since the previous sample, never less than one
+         */
+        void sample(long elapsedMillis);
+    }
+
+    public static class Counter {
+        private final AtomicLong value = new AtomicLong();
+        private long last = 0;
+        private volatile long rate = 0;
+
+        public void inc() {
+            this.value.incrementAndGet();
+        }
+
+        public void add(long delta) {
+            this.value.addAndGet(delta);
+        }
+
+        public long get() {
+            return this.value.get();
+        }
+
+        /**
+         * Per second over the last sample interval.
+         */
+        public long rate() {
+            return this.rate;
+        }
+
+        void sample(long elapsedMillis) {
+            final long value = this.value.get();
+            this.rate = Math.max(0, value - this.last) * 1000 / elapsedMillis;
+            this.last = value;
+        }
+    }
+
+    public static class Gauge {
+        private volatile long value = 0;
+
+        public void set(long value) {
+            this.value = value;
+        }
+
+        public long get() {
+            return this.value;
+        }
+    }
+
+    /**
+     * One metric at the time of the snapshot. For a counter the value is its
+     * rate per second, for a histogram it is the mean.
+     */
+    public static class Snapshot {
+        public final String name;
+        public final String kind;
+        public final long count;
+        public final long value;
+        public final long p50;
+        public final long p90;
+        public final long p99;
+        public final long max;
+
+        Snapshot(String name, String kind, long count, long value,
+                long p50, long p90, long p99, long max) {
+            this.name = name;
+            this.kind = kind;
+            this.count = count;
+            this.value = value;
+            this.p50 = p50;
+            this.p90 = p90;
+            this.p99 = p99;
+            this.max = max;
+        }
+
+        @Override
+        public String toString() {
+            return new StringBuilder()
+                    .append(this.name).append(' ').append(this.kind)
+                    .append(" count=").append(this.count)
+                    .append(" value=").append(this.value)
+                    .append(" p50=").append(this.p50)
+                    .append(" p99=").append(this.p99)
+                    .append(" max=").append(this.max)
+                    .toString();
+        }
+    }
+
+    private static final Comparator<Snapshot> BY_NAME = new Comparator<Snapshot>() {
+        @Override
+        public int compare(Snapshot lhs, Snapshot rhs) {
+            return lhs.name.compareTo(rhs.name);
+        }
+    };
+
+    private static MetricsRegistry instance = null;
+
+    public static synchronized MetricsRegistry getInstance() {
+        if (instance == null)
+            instance = new MetricsRegistry(DEFAULT_SAMPLE_INTERVAL);
+        return instance;
+    }
+
+    private final ConcurrentHashMap<String, Counter> counters = new ConcurrentHashMap<String, Counter>();
+    private final ConcurrentHashMap<String, Gauge> gauges = new ConcurrentHashMap<String, Gauge>();
+    private final ConcurrentHashMap<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+    private final List<Sampler> samplers = new CopyOnWriteArrayList<Sampler>();
+
+    private Timer timer = null;
+    private long lastSample;
+
+    /**
+     * @param sampleInterval in milliseconds, zero to sample only when asked
+     */
+    MetricsRegistry(long sampleInterval) {
+        this.lastSample = System.currentTimeMillis();
+        this.setSampleInterval(sampleInterval);
+    }
+
+    /**
+     * Restart the sampling thread with a new interval.
+     *
+     * @param sampleInterval in milliseconds, zero stops sampling
+     */
+    public synchronized void setSampleInterval(long sampleInterval) {
+        if (this.timer != null)
+            this.timer.cancel();
+        this.timer = null;
+        if (sampleInterval < 1)
+            return;
+        this.timer = new Timer("metrics", true);
+        this.timer.scheduleAtFixedRate(new TimerTask() {
+            @Override
+            public void run() {
+                MetricsRegistry.this.sample(System.currentTimeMillis());
+            }
+        }, sampleInterval, sampleInterval);
+        logger.info("sample interval={}", sampleInterval);
+    }
+
+    public Counter counter(String name) {
+        final Counter counter = this.counters.get(name);
+        if (counter != null)
+            return counter;
+        final Counter made = new Counter();
+        final Counter prior = this.counters.putIfAbsent(name, made);
+        return (prior == null) ? made : prior;
+    }
+
+    public Gauge gauge(String name) {
+        final Gauge gauge = this.gauges.get(name);
+        if (gauge != null)
+            return gauge;
+        final Gauge made = new Gauge();
+        final Gauge prior = this.gauges.putIfAbsent(name, made);
+        return (prior == null) ? made : prior;
+    }
+
+    public Histogram histogram(String name) {
+        final Histogram histogram = this.histograms.get(name);
+        if (histogram != null)
+            return histogram;
+        final Histogram made = new Histogram();
+        final Histogram prior = this.histograms.putIfAbsent(name, made);
+        return (prior == null) ? made : prior;
+    }
+
+    public void addSampler(Sampler sampler) {
+        this.samplers.add(sampler);
+    }
+
+    public void removeSampler(Sampler sampler) {
+        this.samplers.remove(sampler);
+    }
+
+    /**
+     * Take a sample now, normally done by the sampling thread.
+     */
+    public synchronized void sample(long now) {
+        final long elapsed = Math.max(1, now - this.lastSample);
+        this.lastSample = now;
+        for (final Counter counter : this.counters.values())
+            counter.sample(elapsed);
+        for (final Sampler sampler : this.samplers) {
+            try {
+                sampler.sample(elapsed);
+            } catch (RuntimeException ex) {
+                logger.error("sampler {} failed", sampler, ex);
+            }
+        }
+    }
+
+    /**
+     * Every metric, ordered by name.
+     */
+    public List<Snapshot> snapshot() {
+        final List<Snapshot> snapshot = new ArrayList<Snapshot>(
+                this.counters.size() + this.gauges.size() + this.histograms.size());
+        for (final Map.Entry<String, Counter> entry : this.counters.entrySet()) {
+            final Counter counter = entry.getValue();
+            snapshot.add(new Snapshot(entry.getKey(), COUNTER,
+                    counter.get(), counter.rate(), 0, 0, 0, 0));
+        }
+        for (final Map.Entry<String, Gauge> entry : this.gauges.entrySet()) {
+            final long value = entry.getValue().get();
+            snapshot.add(new Snapshot(entry.getKey(), GAUGE, 1, value, 0, 0, 0, 0));
+        }
+        for (final Map.Entry<String, Histogram> entry : this.histograms.entrySet()) {
+            final Histogram histogram = entry.getValue();
+            snapshot.add(new Snapshot(entry.getKey(), HISTOGRAM,
+                    histogram.count(), histogram.mean(),
+                    histogram.percentile(0.50), histogram.percentile(0.90),
+                    histogram.percentile(0.99), histogram.max()));
+        }
+        Collections.sort(snapshot, BY_NAME);
+        return snapshot;
+    }
+}
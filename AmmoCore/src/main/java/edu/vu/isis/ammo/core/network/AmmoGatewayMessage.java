@@ -23,16 +23,22 @@
 package edu.vu.isis.ammo.core.network;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.List;
 import java.util.UUID;
 import java.util.zip.CRC32;
 
+import com.google.protobuf.CodedInputStream;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import edu.vu.isis.ammo.core.distributor.DistributorDataStore.DisposalState;
 import edu.vu.isis.ammo.core.pb.AmmoMessages;
 
 /**
@@ -60,7 +66,8 @@ import edu.vu.isis.ammo.core.pb.AmmoMessages;
  * <p>
  * The priority, also appears in the payload and is copied from there.
  * <p>
- * The reserved bytes, for future use.
+ * The reserved bytes, for future use; except the second which holds flags,
+ * see FLAG_COMPRESSED and FLAG_ACCEPTS_COMPRESSION.
  * <p>
  * The payload checksum, the CRC32 checksum of the payload, and only the paylod.
  * The header checksum, the CRC32 checksum of the header, not including the payload nor itself.
@@ -74,6 +81,54 @@ public class AmmoGatewayMessage implements Comparable<Object> {
     };
     public static final byte VERSION_1_FULL = (byte) 0xfe;
     public static final byte VERSION_1_TERSE = (byte) 0x01;
+    /**
+     * A full header whose payload is a sequence of small messages,
+     * see newBatch(). Only peers expecting batches should be sent them.
+     */
+    public static final byte VERSION_1_BATCH = (byte) 0xfd;
+    /**
+     * A full header whose payload is a piece of a larger message,
+     * see ChunkSplitter. Only peers accepting chunks should be sent them.
+     */
+    public static final byte VERSION_1_CHUNK = (byte) 0xfc;
+    /**
+     * A full header whose payload reports the progress of a chunked
+     * transfer, see ChunkAssembler.
+     */
+    public static final byte VERSION_1_CHUNK_ACK = (byte) 0xfb;
+    /**
+     * A full header whose payload grants, presents or acknowledges a
+     * session resumption token, see SessionResumption.
+     */
+    public static final byte VERSION_1_RESUME = (byte) 0xfa;
+
+    /**
+     * The payload is deflated, see PayloadCompressor.
+     * Flags are only carried by the full header.
+     */
+    public static final byte FLAG_COMPRESSED = (byte) 0x01;
+    /**
+     * The sender will accept compressed payloads.
+     */
+    public static final byte FLAG_ACCEPTS_COMPRESSION = (byte) 0x02;
+    /**
+     * The sender will accept chunked transfers.
+     */
+    public static final byte FLAG_ACCEPTS_CHUNKS = (byte) 0x04;
+    /**
+     * The message is a heartbeat which the receiver should answer with a
+     * heartbeat of its own, see RttEstimator.
+     */
+    public static final byte FLAG_HEARTBEAT = (byte) 0x08;
+    /**
+     * The message is the heartbeat answering one flagged FLAG_HEARTBEAT,
+     * its round trip is timed.
+     */
+    public static final byte FLAG_HEARTBEAT_REPLY = (byte) 0x20;
+    /**
+     * The sender will accept a session resumption token.
+     */
+    public static final byte FLAG_ACCEPTS_RESUME = (byte) 0x10;
 
     @SuppressWarnings("unused")
     private static final long INT_MASK = 0x0FFFFFFFFL; //
@@ -121,11 +176,29 @@ public class AmmoGatewayMessage implements Comparable<Object> {
     // These are equal because the terse form doesn't use a header checksum.
     public static final int HEADER_LENGTH_TERSE = HEADER_DATA_LENGTH;
 
+    /**
+     * Each message in a batch is preceded by a short record header.
+     * The batch payload is big endian regardless of the channel.
+     */
+    public static final int BATCH_RECORD_LENGTH =
+            4 // message size
+            + 1 // priority byte
+            + 4; // payload checksum
+
     public int size;
     public final byte priority;
     public final byte version;
+    public final byte flags;
     public CheckSum payload_checksum;
+    /** the checksum computed by the receiver, NO_CHECKSUM if it was not */
+    private final long computed_checksum;
+    private static final long NO_CHECKSUM = -1L;
+    /**
+     * When the payload is borrowed from the buffer pool the array may be
+     * longer than the payload; only the first size bytes are valid.
+     */
     public byte[] payload;
+    private BufferPool.Slab slab;
     public final INetworkService.OnSendMessageHandler handler;
 
     public final boolean isMulticast;
@@ -136,6 +209,29 @@ public class AmmoGatewayMessage implements Comparable<Object> {
 
     public boolean isHeartbeat () {return isHeartbeat;}
 
+    public boolean isBatch() { return this.version == VERSION_1_BATCH; }
+
+    public boolean isChunk() { return this.version == VERSION_1_CHUNK; }
+
+    public boolean isChunkAck() { return this.version == VERSION_1_CHUNK_ACK; }
+
+    public boolean isResume() { return this.version == VERSION_1_RESUME; }
+
+    /**
+     * The versions which use the full header.
+     */
+    static private boolean isFullVersion(byte version) {
+        return version == VERSION_1_FULL
+                || version == VERSION_1_BATCH
+                || version == VERSION_1_CHUNK
+                || version == VERSION_1_CHUNK_ACK
+                || version == VERSION_1_RESUME;
+    }
+
+    public boolean hasFlag(byte flag) { return (this.flags & flag) != 0; }
+
+    public boolean isCompressed() { return this.hasFlag(FLAG_COMPRESSED); }
+
     public final long buildTime;
     public long gpsOffset;
 
@@ -289,6 +385,133 @@ public class AmmoGatewayMessage implements Comparable<Object> {
         return sb.append("}").toString();
     }
 
+    /**
+     * Parse the payload as a message wrapper.
+     * Only the first size bytes of the payload array are used.
+     */
+    public AmmoMessages.MessageWrapper parsePayload() throws IOException {
+        return AmmoMessages.MessageWrapper.parseFrom(
+                CodedInputStream.newInstance(this.payload, 0, this.size));
+    }
+
+    /**
+     * Give the payload back to the buffer pool, if it was borrowed from
+     * there. This is to be called by whoever consumes the message once
+     * the payload is no longer needed; after that the payload is gone.
+     * Releasing a message which was not pooled, or was already released,
+     * does nothing.
+     */
+    public void releasePayload() {
+        final BufferPool.Slab released;
+        synchronized (this) {
+            released = this.slab;
+            if (released == null)
+                return;
+            this.slab = null;
+            this.payload = null;
+        }
+        released.release();
+    }
+
+    /**
+     * Pack several small messages into the payload of a single message.
+     * <p>
+     * Each message is written as its size, priority and payload checksum
+     * followed by its payload. The batch takes the highest priority of its
+     * messages, and its handler passes acknowledgments on to the handler of
+     * each message.
+     */
+    static public AmmoGatewayMessage newBatch(List<AmmoGatewayMessage> messages) {
+        int total_length = 0;
+        byte priority = Byte.MIN_VALUE;
+        for (final AmmoGatewayMessage msg : messages) {
+            total_length += BATCH_RECORD_LENGTH + msg.size;
+            if (msg.priority > priority)
+                priority = msg.priority;
+        }
+        final ByteBuffer body = ByteBuffer.allocate(total_length);
+        body.order(ByteOrder.BIG_ENDIAN);
+        for (final AmmoGatewayMessage msg : messages) {
+            body.putInt(msg.size);
+            body.put(msg.priority);
+            body.putInt((int) msg.payload_checksum.asLong());
+            body.put(msg.payload, 0, msg.size);
+        }
+        final byte[] payload = body.array();
+        return AmmoGatewayMessage.newBuilder()
+                .size(payload.length)
+                .payload(payload)
+                .checksum(CheckSum.newInstance(payload).asLong())
+                .priority(priority)
+                .version(VERSION_1_BATCH)
+                .handler(new BatchHandler(messages))
+                .build();
+    }
+
+    /**
+     * Unpack the messages from a batch received by the channel.
+     * The batch checksum covers the whole payload so it is checked here;
+     * each unpacked message carries the checksum it was sent with, which is
+     * taken as computed.
+     * 
+     * @return the messages or null if the batch is corrupt
+     */
+    public List<AmmoGatewayMessage> unpackBatch() {
+        if (!this.isBatch() || !this.hasValidChecksum())
+            return null;
+        final ByteBuffer body = ByteBuffer.wrap(this.payload, 0, this.size);
+        body.order(ByteOrder.BIG_ENDIAN);
+        final List<AmmoGatewayMessage> messages = new ArrayList<AmmoGatewayMessage>();
+        try {
+            while (body.hasRemaining()) {
+                final int msgSize = body.getInt();
+                final byte msgPriority = body.get();
+                final long msgChecksum = 0x0FFFFFFFFL & body.getInt();
+                if (msgSize < 0 || msgSize > body.remaining()) {
+                    logger.warn("batch record size {} exceeds batch", msgSize);
+                    return null;
+                }
+                final byte[] msgPayload = new byte[msgSize];
+                body.get(msgPayload);
+                messages.add(AmmoGatewayMessage.newBuilder()
+                        .size(msgSize)
+                        .payload(msgPayload)
+                        .checksum(msgChecksum)
+                        .computedChecksum(msgChecksum)
+                        .priority(msgPriority)
+                        .version(VERSION_1_FULL)
+                        .channel(this.channel)
+                        .build());
+            }
+        } catch (BufferUnderflowException ex) {
+            logger.warn("truncated batch record", ex);
+            return null;
+        }
+        return messages;
+    }
+
+    /**
+     * Passes the acknowledgment of a batch on to each of its messages.
+     */
+    static private class BatchHandler implements INetworkService.OnSendMessageHandler {
+        private final List<AmmoGatewayMessage> messages;
+
+        BatchHandler(List<AmmoGatewayMessage> messages) {
+            this.messages = messages;
+        }
+
+        @Override
+        public boolean ack(String channel, DisposalState status) {
+            boolean result = true;
+            for (final AmmoGatewayMessage msg : this.messages) {
+                if (msg.handler == null)
+                    continue;
+                result &= msg.handler.ack(channel, status);
+            }
+            return result;
+        }
+    }
+
     static public class Builder {
         // the size is the intended size, the actual size is that of the payload
         private int size;
@@ -350,6 +573,22 @@ public class AmmoGatewayMessage implements Comparable<Object> {
             return this;
         }
 
+        private byte flags;
+
+        public byte flags() {
+            return this.flags;
+        }
+
+        public Builder flags(byte val) {
+            this.flags = val;
+            return this;
+        }
+
+        public Builder flags(int val) {
+            this.flags = (byte) val;
+            return this;
+        }
+
         private long checksum;
 
         public long checksum() {
@@ -448,6 +687,29 @@ public class AmmoGatewayMessage implements Comparable<Object> {
             // if (this.size != val.length)
             // throw new IllegalArgumentException("payload size incorrect");
             this.payload_serialized = val;
+            this.slab = null;
+            return this;
+        }
+
+        private BufferPool.Slab slab;
+
+        private long computed_checksum = NO_CHECKSUM;
+
+        /**
+         * The receiver computed the CRC32 of the payload as it was read.
+         */
+        public Builder computedChecksum(long val) {
+            this.computed_checksum = val;
+            return this;
+        }
+
+        /**
+         * The payload is in a slab borrowed from the buffer pool.
+         * The message takes over the reference held by the caller.
+         */
+        public Builder payload(BufferPool.Slab val) {
+            this.payload_serialized = val.array;
+            this.slab = val;
             return this;
         }
 
@@ -477,8 +739,6 @@ public class AmmoGatewayMessage implements Comparable<Object> {
         }
 
         public AmmoGatewayMessage build() {
-            if (this.size != this.payload_serialized.length)
-                throw new IllegalArgumentException("payload size incorrect");
             return new AmmoGatewayMessage(this, this.payload_serialized);
         }
 
@@ -502,12 +762,15 @@ public class AmmoGatewayMessage implements Comparable<Object> {
 
     private AmmoGatewayMessage(Builder builder, byte[] payload) {
         this.size = builder.size;
-        if (this.size != payload.length)
+        if (builder.slab == null ? this.size != payload.length : this.size > payload.length)
             throw new IllegalArgumentException("payload size incorrect");
         this.priority = builder.priority;
         this.version = builder.version;
+        this.flags = builder.flags;
         this.payload_checksum = new CheckSum(builder.checksum);
         this.payload = payload;
+        this.slab = builder.slab;
+        this.computed_checksum = builder.computed_checksum;
         this.handler = builder.handler;
 
         this.isMulticast = builder.isMulticast;
@@ -550,6 +813,23 @@ public class AmmoGatewayMessage implements Comparable<Object> {
         return new AmmoGatewayMessage.Builder();
     }
 
+    /**
+     * A heartbeat for the gateway.
+     *
+     * @param sequence the number of the heartbeat, usually the time it is sent
+     */
+    public static AmmoGatewayMessage.Builder newHeartbeat(long sequence) {
+        final AmmoMessages.MessageWrapper.Builder mw = AmmoMessages.MessageWrapper.newBuilder();
+        mw.setType(AmmoMessages.MessageWrapper.MessageType.HEARTBEAT);
+        mw.setMessagePriority(PriorityLevel.FLASH.v);
+        mw.setHeartbeat(AmmoMessages.Heartbeat.newBuilder().setSequenceNumber(sequence));
+
+        return AmmoGatewayMessage.newBuilder(mw, null)
+                .priority(PriorityLevel.FLASH.b())
+                .isGateway(true)
+                .isHeartbeat(true);
+    }
+
     public static AmmoGatewayMessage.Builder newBuilder(int size, long checksum, byte priority,
             byte version, INetworkService.OnSendMessageHandler handler) {
         return new AmmoGatewayMessage.Builder()
@@ -599,17 +879,44 @@ public class AmmoGatewayMessage implements Comparable<Object> {
         ByteBuffer buf = ByteBuffer.allocate(total_length);
         buf.order(endian);
 
+        putHeaderFull_V1(buf, VERSION_1_FULL, (byte) 0, size, checksum, priority);
+
+        // payload
+        buf.put(payload);
+        if (logger.isDebugEnabled()) {
+
+            if (payload.length > 450) {
+                // ByteBuffer tmp = ByteBuffer.wrap(payload, 0, 450);
+                logger.debug("  payload length={} ", payload.length);
+            }
+            else
+                logger.debug("   payload={}", payload);
+        }
+
+        buf.flip();
+        return buf;
+    }
+
+    /**
+     * Place the full header at the current position of the buffer.
+     * The buffer must be backed by an array.
+     */
+    static private void putHeaderFull_V1(ByteBuffer buf, byte version, byte flags, int size,
+            CheckSum checksum, byte priority)
+    {
+        final int start = buf.position();
+
         buf.put(MAGIC[2]);
         buf.put(MAGIC[1]);
         buf.put(MAGIC[0]);
-        buf.put(VERSION_1_FULL);
+        buf.put(version);
 
         buf.putInt(size);
         logger.debug("   size={}", size);
 
         buf.put(priority);
-        /** three bytes reserved for future use */
-        buf.put((byte) 0x0).put((byte) 0x0).put((byte) 0x0);
+        /** the error, the flags and a byte reserved for future use */
+        buf.put((byte) 0x0).put(flags).put((byte) 0x0);
 
         logger.debug("   payload_checksum={}", checksum);
         buf.put(checksum.asByteArray(), 0, 4);
@@ -617,23 +924,8 @@ public class AmmoGatewayMessage implements Comparable<Object> {
         // checksum of header
         int pos = buf.position();
         byte[] base = buf.array();
-        final CheckSum crc32 = CheckSum.newInstance(base, 0, pos);
+        final CheckSum crc32 = CheckSum.newInstance(base, buf.arrayOffset() + start, pos - start);
         buf.put(crc32.asByteArray());
-
-        // payload
-        buf.put(payload);
-        if (logger.isDebugEnabled()) {
-
-            if (payload.length > 450) {
-                // ByteBuffer tmp = ByteBuffer.wrap(payload, 0, 450);
-                logger.debug("  payload length={} ", payload.length);
-            }
-            else
-                logger.debug("   payload={}", payload);
-        }
-
-        buf.flip();
-        return buf;
     }
 
     /**
@@ -651,6 +943,23 @@ public class AmmoGatewayMessage implements Comparable<Object> {
         ByteBuffer buf = ByteBuffer.allocate(total_length);
         buf.order(endian);
 
+        putHeaderTerse_V1(buf, phone_id, size, checksum);
+
+        // payload
+        buf.put(payload);
+        logger.debug("   payload={}", payload);
+        buf.flip();
+        return buf;
+    }
+
+    /**
+     * Place the terse header at the current position of the buffer.
+     * The buffer must be backed by an array.
+     */
+    private void putHeaderTerse_V1(ByteBuffer buf, byte phone_id, int size, CheckSum checksum)
+    {
+        final int start = buf.position();
+
         buf.put(MAGIC[2]);
         buf.put(MAGIC[1]);
         buf.put(MAGIC[0]);
@@ -694,21 +1003,182 @@ public class AmmoGatewayMessage implements Comparable<Object> {
         // Put two-byte header checksum here. The checksum covers the
         // magic sequence and everything up to and including the six
         // zero bytes just written.
-        CheckSum crc32 = CheckSum.newInstance(buf.array(), 0, HEADER_LENGTH_TERSE - 2);
+        CheckSum crc32 = CheckSum.newInstance(buf.array(), buf.arrayOffset() + start, HEADER_LENGTH_TERSE - 2);
         byte[] headerChecksum = crc32.asByteArray();
         buf.put(headerChecksum[0]);
         buf.put(headerChecksum[1]);
+    }
 
-        // payload
-        buf.put(payload);
-        logger.debug("   payload={}", payload);
-        buf.flip();
-        return buf;
+    /**
+     * Allocate a buffer large enough to hold any header.
+     * Senders should keep one and pass it to serializeHeader()
+     * for every message rather than allocating a buffer per message.
+     */
+    static public ByteBuffer newHeaderBuffer() {
+        return ByteBuffer.allocate(HEADER_LENGTH);
+    }
+
+    /**
+     * Serialize only the header into the supplied buffer.
+     * The payload is not copied, it is sent separately, see payloadBuffer().
+     * Together they make up the message, e.g. for a gathering write.
+     * <p>
+     * The byte buffer returned is the one supplied, already flip()ped.
+     * 
+     * @param header a reusable buffer, at least HEADER_LENGTH, backed by an array
+     * @return the header buffer or null if the version is not valid
+     */
+    public ByteBuffer serializeHeader(ByteBuffer header, ByteOrder endian, byte version, byte phone_id) {
+        return this.serializeHeader(header, endian, version, phone_id, (byte) 0);
+    }
+
+    /**
+     * As serializeHeader() with flags about the channel, e.g.
+     * FLAG_ACCEPTS_COMPRESSION, added to those of the message.
+     * The terse header has no room for flags.
+     */
+    public ByteBuffer serializeHeader(ByteBuffer header, ByteOrder endian, byte version, byte phone_id,
+            byte flags) {
+        header.clear();
+        header.order(endian);
+        if (version == VERSION_1_FULL) {
+            // batches and chunks are always framed as such
+            putHeaderFull_V1(header, isFullVersion(this.version) ? this.version : VERSION_1_FULL,
+                    (byte) (this.flags | flags), this.size, this.payload_checksum, this.priority);
+
+        } else if (version == VERSION_1_TERSE) {
+            putHeaderTerse_V1(header, phone_id, this.size, this.payload_checksum);
+
+        } else {
+            logger.error("invalid version supplied {}", version);
+            return null;
+        }
+        header.flip();
+        return header;
+    }
+
+    /**
+     * The payload wrapped as a buffer; the payload is not copied.
+     */
+    public ByteBuffer payloadBuffer() {
+        return ByteBuffer.wrap(this.payload, 0, this.size);
+    }
+
+    /**
+     * Serialize the whole message into the supplied buffer.
+     * This is for transports, like datagrams, which need the message in one
+     * array. If the frame is too small for the message a larger one is
+     * allocated, the caller should keep the returned buffer for reuse.
+     * <p>
+     * The byte buffer returned is already flip()ped.
+     * 
+     * @param frame a reusable buffer backed by an array, may be null
+     * @return the frame or null if the version is not valid
+     */
+    public ByteBuffer serialize(ByteBuffer frame, ByteOrder endian, byte version, byte phone_id) {
+        return this.serialize(frame, endian, version, phone_id, (byte) 0);
+    }
+
+    /**
+     * As serialize() with flags about the channel, see serializeHeader().
+     */
+    public ByteBuffer serialize(ByteBuffer frame, ByteOrder endian, byte version, byte phone_id,
+            byte flags) {
+        final int total_length = HEADER_LENGTH + this.size;
+        if (frame == null || frame.capacity() < total_length) {
+            frame = ByteBuffer.allocate(total_length);
+        }
+        if (this.serializeHeader(frame, endian, version, phone_id, flags) == null) {
+            return null;
+        }
+        final int header_length = frame.limit();
+        frame.limit(frame.capacity());
+        frame.position(header_length);
+        frame.put(this.payload, 0, this.size);
+        frame.flip();
+        return frame;
+    }
+
+    /**
+     * Write the message to the stream without building a buffer of the whole
+     * message. Small messages are assembled in the frame buffer and written
+     * with one call. Larger payloads are written directly after the header;
+     * avoiding a copy is then worth the second write.
+     * 
+     * @param frame a reusable buffer, at least HEADER_LENGTH, backed by an array
+     * @return the number of bytes written
+     * @throws IOException
+     */
+    public int writeTo(OutputStream os, ByteBuffer frame, ByteOrder endian, byte version, byte phone_id)
+            throws IOException
+    {
+        return this.writeTo(os, frame, endian, version, phone_id, (byte) 0);
+    }
+
+    /**
+     * As writeTo() with flags about the channel, see serializeHeader().
+     */
+    public int writeTo(OutputStream os, ByteBuffer frame, ByteOrder endian, byte version, byte phone_id,
+            byte flags) throws IOException
+    {
+        if (this.serializeHeader(frame, endian, version, phone_id, flags) == null) {
+            throw new IOException("invalid version supplied " + version);
+        }
+        final int header_length = frame.limit();
+        if (frame.capacity() - header_length >= this.size) {
+            frame.limit(frame.capacity());
+            frame.position(header_length);
+            frame.put(this.payload, 0, this.size);
+            frame.flip();
+            os.write(frame.array(), frame.arrayOffset(), frame.remaining());
+        } else {
+            os.write(frame.array(), frame.arrayOffset(), header_length);
+            os.write(this.payload, 0, this.size);
+        }
+        return header_length + this.size;
+    }
+
+    /**
+     * The header checksums are computed with a per thread CRC32, reset for
+     * each use, so that parsing a header allocates nothing.
+     */
+    private static final ThreadLocal<CRC32> headerCrc = new ThreadLocal<CRC32>() {
+        @Override
+        protected CRC32 initialValue() {
+            return new CRC32();
+        }
+    };
+
+    /**
+     * The CRC32 of a region of the buffer's backing array.
+     * The position of the buffer is not changed.
+     */
+    static private long checksumOf(ByteBuffer drain, int start, int length) {
+        final CRC32 crc32 = headerCrc.get();
+        crc32.reset();
+        crc32.update(drain.array(), start, length);
+        return crc32.getValue();
+    }
+
+    /**
+     * Read a checksum as written by CheckSum.asByteArray(), least significant
+     * byte first, regardless of the byte order of the buffer. Only the first
+     * count bytes are present, the rest are taken to be zero.
+     */
+    static private long getCheckSum(ByteBuffer drain, int count) {
+        long value = 0;
+        for (int ix = 0; ix < count; ++ix) {
+            value |= (BYTE_MASK_LONG & drain.get()) << (8 * ix);
+        }
+        return value;
     }
 
     /**
      * Must leave the position of drain pointing at the first byte which might
      * be the first byte in a header.
+     * <p>
+     * The header checksum is verified in place, the drain must be backed by
+     * an array.
      * 
      * @param drain
      * @return
@@ -731,30 +1201,28 @@ public class AmmoGatewayMessage implements Comparable<Object> {
                     continue;
 
                 byte version = drain.get();
-                if (version == VERSION_1_FULL) {
+                if (isFullVersion(version)) {
                     int size = drain.getInt();
 
                     int priority = drain.get() & BYTE_MASK;
-                    logger.debug("   priority={}", priority);
-
                     int error = drain.get() & BYTE_MASK;
-                    logger.debug("   error={}", error);
+                    int flags = drain.get() & BYTE_MASK;
 
-                    // reserved bytes
-                    drain.getShort();
+                    // reserved byte
+                    drain.get();
 
-                    byte[] checkBytes = new byte[4];
+                    long payload_checksum = getCheckSum(drain, 4);
+                    long header_checksum = getCheckSum(drain, 4);
 
-                    drain.get(checkBytes, 0, 4);
-                    logger.debug("   payload check={}", checkBytes);
-                    long payload_checksum = new CheckSum(checkBytes).asLong();
-
-                    drain.get(checkBytes, 0, 4);
-                    logger.debug("   header check={}", checkBytes);
-                    long header_checksum = new CheckSum(checkBytes).asLong();
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("   priority={} error={} flags={}",
+                                new Object[]{priority, error, flags});
+                        logger.debug("   payload check={} header check={}",
+                                Long.toHexString(payload_checksum),
+                                Long.toHexString(header_checksum));
+                    }
 
-                    final CheckSum crc32 = CheckSum.newInstance(drain.array(), start, HEADER_DATA_LENGTH);
-                    if (header_checksum != crc32.asLong())
+                    if (header_checksum != checksumOf(drain, start, HEADER_DATA_LENGTH))
                         continue;
 
                     return AmmoGatewayMessage.newBuilder()
@@ -762,26 +1230,19 @@ public class AmmoGatewayMessage implements Comparable<Object> {
                             .checksum(payload_checksum)
                             .priority(priority)
                             .version(version)
-                            .error(error);
+                            .error(error)
+                            .flags(flags);
                 } else if ((version & 0xC0) == 0x40) {
                     byte phone_id = (byte) (version & 0x3F);
 
                     int size = drain.getShort();
 
-                    byte[] checkPayloadBytes = new byte[4];
-                    checkPayloadBytes[0] = drain.get();
-                    checkPayloadBytes[1] = drain.get();
-                    checkPayloadBytes[2] = 0;
-                    checkPayloadBytes[3] = 0;
-                    // drain.get( checkBytes, 0, 2 );
-                    CheckSum csum = new CheckSum(checkPayloadBytes);
-                    long payload_checksum = csum.asLong();
-                    logger.debug("   payload check={}, asLong={}", checkPayloadBytes, Long.toHexString(payload_checksum));
+                    // only two bytes of the payload checksum are sent
+                    long payload_checksum = getCheckSum(drain, 2);
 
                     // UID
                     int uid = drain.getInt();
                     int hyperperiod = (uid >>> 16);
-                    logger.trace( "deserialized hyperperiod={}", hyperperiod );
                     @SuppressWarnings("unused")
 					int slotID = (uid >>> 8) & 0xFF;
                     int indexInSlot = uid  & 0xFF;
@@ -789,15 +1250,15 @@ public class AmmoGatewayMessage implements Comparable<Object> {
                     // Packet type
                     byte next = drain.get();
                     int packetType = next; // & 0x03;  // Is is wise to mask here?
-                    logger.error( "packetType={}", packetType );
 
                     // <reserved> (1 byte)
                     byte hopCount = drain.get();
-                    logger.error( "hopCount={}", hopCount );
 
-                    // Discard six bytes of zero
-                    // drain.getInt();
-                    // drain.getShort();
+                    if (logger.isTraceEnabled()) {
+                        logger.trace("   payload check={}", Long.toHexString(payload_checksum));
+                        logger.trace("deserialized hyperperiod={} packetType={} hopCount={}",
+                                new Object[] { hyperperiod, packetType, hopCount });
+                    }
 
                     /**
                      * Hack for CACI test. It's inefficient to have this happen
@@ -805,11 +1266,11 @@ public class AmmoGatewayMessage implements Comparable<Object> {
                      * magic sequence out of this function, since it should be
                      * channel-specific.
                      */
-                    CheckSum terseHeaderCrc32 = CheckSum.newInstance(drain.array(), start, HEADER_DATA_LENGTH_TERSE - 2);
-                    byte[] computedChecksum = terseHeaderCrc32.asByteArray();
+                    long header_checksum = getCheckSum(drain, 2);
 
                     // Return null if the header checksum fails.
-                    if (drain.get() != computedChecksum[0] || drain.get() != computedChecksum[1]) {
+                    if (header_checksum != (0xFFFFL
+                            & checksumOf(drain, start, HEADER_DATA_LENGTH_TERSE - 2))) {
                         logger.warn("Corrupt terse header; packet discarded.");
                         return null;
                     }
@@ -978,38 +1439,31 @@ public class AmmoGatewayMessage implements Comparable<Object> {
     /**
      * Verify the checksum. Normal messages examine four byte checksums; terse
      * messages only examine two bytes.
+     * <p>
+     * If the receiver computed the checksum of the payload as it was read,
+     * see Builder.computedChecksum(), that value is used rather than making
+     * another pass over the payload.
      * 
      * @return
      */
     public boolean hasValidChecksum() {
-        final CheckSum crc32 = CheckSum.newInstance(payload);
+        final long computed = (this.computed_checksum == NO_CHECKSUM)
+                ? CheckSum.newInstance(payload, 0, size).asLong()
+                : this.computed_checksum;
+        final long expected = this.payload_checksum.asLong();
 
-        if (version == VERSION_1_FULL) {
-            if (! crc32.equals(this.payload_checksum)) {
+        if (isFullVersion(version)) {
+            if (computed != expected) {
                 logger.warn("you have received a bad message, the checksums [{}:{}] did not match",
-                        crc32.toHexString(),
-                        this.payload_checksum.toHexString());
+                        Long.toHexString(computed), Long.toHexString(expected));
                 return false;
             }
 
         } else if ((version & 0xC0) == 0x40) {
             // Only use the relevant two bytes of the four byte checksum.
-
-            logger.debug("CRC32 of payload={}", crc32.toHexString());
-            logger.debug("payload_checksum={}", this.payload_checksum.toHexString());
-
-            byte[] computed = crc32.asByteArray();
-            byte[] fromHeader = this.payload_checksum.asByteArray();
-
-            logger.debug("computed={}, fromHeader={}", computed, fromHeader);
-
-            logger.debug("computed[2]={}, fromHeader[1]={}", computed[2], fromHeader[1]);
-            logger.debug("computed[3]={}, fromHeader[0]={}", computed[3], fromHeader[0]);
-
-            if (computed[0] != fromHeader[0] || computed[1] != fromHeader[1]) {
+            if ((computed & 0xFFFFL) != (expected & 0xFFFFL)) {
                 logger.warn("you have received a bad message, the checksums [{}:{}] did not match",
-                        crc32.toHexString(),
-                        this.payload_checksum.toHexString());
+                        Long.toHexString(computed), Long.toHexString(expected));
                 return false;
             }
         } else {
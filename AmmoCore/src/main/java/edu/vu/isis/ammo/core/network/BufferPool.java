@@ -0,0 +1,195 @@
+/* Copyright (c) 2010-2015 Vanderbilt University
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package edu.vu.isis.ammo.core.network;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A bounded pool of byte arrays used by the channel receivers for message
+ * payloads.
+ * <p>
+ * The arrays are grouped into size classes, each a power of two. A request is
+ * served from the smallest class which will hold it, so the array is usually
+ * larger than the payload; the payload size is carried separately. Requests
+ * larger than the largest class are allocated and never pooled.
+ * <p>
+ * Each class keeps at most a fixed number of bytes of free slabs, anything
+ * released beyond that is left for the garbage collector. A slab which is
+ * never released is simply collected, the pool only loses the chance to reuse
+ * it.
+ */
+public class BufferPool {
+    private static final Logger logger = LoggerFactory.getLogger("net.pool");
+
+    /** the smallest size class, 512 bytes */
+    public static final int MIN_SHIFT = 9;
+    /** the largest size class, 64k bytes */
+    public static final int MAX_SHIFT = 16;
+    /** the most free bytes held by any one size class */
+    public static final int CLASS_BUDGET = 0x40000;
+
+    private static final BufferPool instance = new BufferPool(MIN_SHIFT, MAX_SHIFT, CLASS_BUDGET);
+
+    /**
+     * The pool shared by all the channel receivers.
+     */
+    public static BufferPool getInstance() {
+        return instance;
+    }
+
+    /**
+     * A reference counted array borrowed from the pool. The count starts at
+     * one when the slab is acquired. When the last reference is released the
+     * slab goes back to the pool and its array must no longer be used.
+     */
+    public static final class Slab {
+        public final byte[] array;
+        private final BufferPool pool;
+        private final int sizeClass;
+        private final AtomicInteger refs = new AtomicInteger(0);
+
+        private Slab(BufferPool pool, int sizeClass, int length) {
+            this.array = new byte[length];
+            this.pool = pool;
+            this.sizeClass = sizeClass;
+        }
+
+        private Slab borrowed() {
+            this.refs.set(1);
+            return this;
+        }
+
+        public Slab retain() {
+            this.refs.incrementAndGet();
+            return this;
+        }
+
+        public void release() {
+            final int count = this.refs.decrementAndGet();
+            if (count > 0)
+                return;
+            if (count < 0) {
+                logger.error("slab released too many times {}", this);
+                return;
+            }
+            if (this.pool != null)
+                this.pool.recycle(this);
+        }
+
+        public int refCount() {
+            return this.refs.get();
+        }
+
+        @Override
+        public String toString() {
+            return new StringBuilder("slab[").append(this.array.length)
+                    .append("] refs=").append(this.refs.get()).toString();
+        }
+    }
+
+    private final int minShift;
+    private final int maxShift;
+    private final ConcurrentLinkedQueue<Slab>[] free;
+    private final AtomicInteger[] freeCount;
+    private final int[] freeLimit;
+
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+
+    @SuppressWarnings("unchecked")
+    public BufferPool(int minShift, int maxShift, int classBudget) {
+        if (minShift > maxShift)
+            throw new IllegalArgumentException("size classes are inverted");
+        this.minShift = minShift;
+        this.maxShift = maxShift;
+        final int classes = maxShift - minShift + 1;
+        this.free = new ConcurrentLinkedQueue[classes];
+        this.freeCount = new AtomicInteger[classes];
+        this.freeLimit = new int[classes];
+        for (int ix = 0; ix < classes; ++ix) {
+            this.free[ix] = new ConcurrentLinkedQueue<Slab>();
+            this.freeCount[ix] = new AtomicInteger(0);
+            this.freeLimit[ix] = Math.max(1, classBudget >> (minShift + ix));
+        }
+    }
+
+    /**
+     * Borrow a slab whose array holds at least size bytes. The caller holds
+     * the only reference.
+     */
+    public Slab acquire(int size) {
+        final int sizeClass = this.sizeClassOf(size);
+        if (sizeClass < 0) {
+            this.misses.incrementAndGet();
+            return new Slab(null, -1, size).borrowed();
+        }
+        final Slab slab = this.free[sizeClass].poll();
+        if (slab == null) {
+            this.misses.incrementAndGet();
+            return new Slab(this, sizeClass, 1 << (this.minShift + sizeClass)).borrowed();
+        }
+        this.freeCount[sizeClass].decrementAndGet();
+        this.hits.incrementAndGet();
+        return slab.borrowed();
+    }
+
+    private void recycle(Slab slab) {
+        final int sizeClass = slab.sizeClass;
+        if (this.freeCount[sizeClass].incrementAndGet() > this.freeLimit[sizeClass]) {
+            this.freeCount[sizeClass].decrementAndGet();
+            return;
+        }
+        this.free[sizeClass].offer(slab);
+    }
+
+    /**
+     * The index of the smallest class holding size bytes, or -1 if it is too
+     * large to be pooled.
+     */
+    private int sizeClassOf(int size) {
+        if (size > (1 << this.maxShift))
+            return -1;
+        int shift = this.minShift;
+        while ((1 << shift) < size)
+            ++shift;
+        return shift - this.minShift;
+    }
+
+    public int freeSlabs() {
+        int total = 0;
+        for (AtomicInteger count : this.freeCount)
+            total += count.get();
+        return total;
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder("pool hits=").append(this.hits.get())
+                .append(" misses=").append(this.misses.get())
+                .append(" free=").append(this.freeSlabs()).toString();
+    }
+}
@@ -0,0 +1,296 @@
+/* Copyright (c) 2010-2015 Vanderbilt University
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package edu.vu.isis.ammo.core.network;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reassembles chunked transfers, see ChunkSplitter.
+ * <p>
+ * The data of each transfer is appended to a spill file named for the
+ * transfer id, so only one chunk at a time is held in memory while the
+ * transfer is in progress. A chunk is taken only if it continues the file;
+ * a file left by an earlier connection is continued, which is how a transfer
+ * resumes. When the file is complete its checksum is verified against the
+ * transfer id and the message is delivered.
+ * <p>
+ * The assembler tells the sender how far it has got: periodically, when a
+ * chunk does not continue the file, and when the transfer is complete. A
+ * file which fails its checksum is removed and the sender told to start over.
+ * Spill files not touched for a day are removed when the assembler is
+ * configured.
+ */
+public class ChunkAssembler {
+    private static final Logger logger = LoggerFactory.getLogger("net.chunk.assemble");
+
+    /** how often, in bytes received, the progress is reported */
+    public static final int PROGRESS_INTERVAL = 0x40000;
+    /** spill files older than this are abandoned */
+    public static final long SPILL_LIFESPAN = 24L * 60 * 60 * 1000;
+
+    private static final String SPILL_SUFFIX = ".part";
+
+    /**
+     * Where the acknowledgments go.
+     */
+    public interface Acknowledger {
+        void sendAck(AmmoGatewayMessage ack);
+    }
+
+    private final Acknowledger acknowledger;
+    private volatile File spillDir = null;
+    private volatile int maxTransferSize = 0;
+
+    /** the transfers in progress on this connection */
+    private final Map<Long, Spill> spills = new HashMap<Long, Spill>();
+
+    private static class Spill {
+        final File file;
+        final FileOutputStream out;
+        int length;
+        int reported;
+        boolean resyncSent = false;
+
+        Spill(File file) throws IOException {
+            this.file = file;
+            this.length = (int) file.length();
+            this.reported = this.length;
+            this.out = new FileOutputStream(file, true);
+        }
+
+        void close() {
+            try {
+                this.out.close();
+            } catch (IOException ex) {
+                logger.warn("could not close spill file {}", this.file);
+            }
+        }
+    }
+
+    public ChunkAssembler(Acknowledger acknowledger) {
+        this.acknowledger = acknowledger;
+    }
+
+    /**
+     * @param spillDir where partial transfers are kept, null disables
+     * @param maxTransferSize the largest message which will be reassembled
+     */
+    public void configure(File spillDir, int maxTransferSize) {
+        this.maxTransferSize = maxTransferSize;
+        if (spillDir != null && !spillDir.exists() && !spillDir.mkdirs()) {
+            logger.error("cannot create spill directory {}", spillDir);
+            spillDir = null;
+        }
+        this.spillDir = spillDir;
+        logger.info("spill dir={} max transfer={}", spillDir, maxTransferSize);
+        this.purge(System.currentTimeMillis() - SPILL_LIFESPAN);
+    }
+
+    public boolean isEnabled() {
+        return this.spillDir != null;
+    }
+
+    /**
+     * The flags to add to every header sent on the channel.
+     */
+    public byte advertise() {
+        return this.isEnabled() ? AmmoGatewayMessage.FLAG_ACCEPTS_CHUNKS : 0;
+    }
+
+    /**
+     * Remove spill files not modified since the cutoff.
+     */
+    public void purge(long cutoff) {
+        final File dir = this.spillDir;
+        if (dir == null)
+            return;
+        final File[] files = dir.listFiles();
+        if (files == null)
+            return;
+        for (final File file : files) {
+            if (!file.getName().endsWith(SPILL_SUFFIX))
+                continue;
+            if (file.lastModified() >= cutoff)
+                continue;
+            if (!file.delete())
+                logger.warn("could not remove stale spill file {}", file);
+        }
+    }
+
+    /**
+     * Append the chunk to its transfer.
+     * The caller still owns, and should release, the chunk.
+     *
+     * @return the reassembled message when the transfer is complete,
+     *         otherwise null
+     */
+    public synchronized AmmoGatewayMessage accept(AmmoGatewayMessage chunk) {
+        final File dir = this.spillDir;
+        if (dir == null) {
+            logger.warn("chunk received but no spill directory");
+            return null;
+        }
+        if (chunk.size < ChunkSplitter.CHUNK_HEADER_LENGTH || !chunk.hasValidChecksum())
+            return null;
+
+        final ByteBuffer body = ByteBuffer.wrap(chunk.payload, 0, chunk.size);
+        body.order(ByteOrder.BIG_ENDIAN);
+        final long id = body.getLong();
+        final int offset = body.getInt();
+        final int total = (int) (0x0FFFFFFFFL & id);
+        final int length = body.remaining();
+        if (total > this.maxTransferSize || offset < 0 || offset + length > total) {
+            logger.warn("rejecting transfer {} of {} bytes", Long.toHexString(id), total);
+            return null;
+        }
+
+        Spill spill = this.spills.get(id);
+        try {
+            if (spill == null) {
+                spill = new Spill(new File(dir, Long.toHexString(id) + SPILL_SUFFIX));
+                this.spills.put(id, spill);
+            }
+            if (spill.length > total) {
+                logger.warn("spill file of transfer {} is too long", Long.toHexString(id));
+                this.abandon(id);
+                return null;
+            }
+            if (offset != spill.length) {
+                if (!spill.resyncSent) {
+                    spill.resyncSent = true;
+                    this.ack(id, spill.length, ChunkSplitter.ACK_RESYNC, chunk.channel);
+                }
+                return null;
+            }
+            spill.out.write(chunk.payload, ChunkSplitter.CHUNK_HEADER_LENGTH, length);
+            spill.length += length;
+            spill.resyncSent = false;
+        } catch (IOException ex) {
+            logger.error("could not spill chunk of transfer {}", Long.toHexString(id), ex);
+            this.abandon(id);
+            return null;
+        }
+
+        if (spill.length < total) {
+            if (spill.length - spill.reported >= PROGRESS_INTERVAL) {
+                spill.reported = spill.length;
+                this.ack(id, spill.length, ChunkSplitter.ACK_PROGRESS, chunk.channel);
+            }
+            return null;
+        }
+        spill.close();
+        this.spills.remove(id);
+        final AmmoGatewayMessage msg = this.load(id, spill.file, total, chunk);
+        if (!spill.file.delete())
+            logger.warn("could not remove spill file {}", spill.file);
+        if (msg != null)
+            this.ack(id, total, ChunkSplitter.ACK_COMPLETE, chunk.channel);
+        else
+            // the spill is gone, the sender starts the transfer over
+            this.ack(id, 0, ChunkSplitter.ACK_RESYNC, chunk.channel);
+        return msg;
+    }
+
+    /**
+     * Read the completed spill file, verifying its checksum.
+     */
+    private AmmoGatewayMessage load(long id, File file, int total, AmmoGatewayMessage chunk) {
+        final BufferPool.Slab slab = BufferPool.getInstance().acquire(total);
+        final CRC32 crc = new CRC32();
+        InputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            int offset = 0;
+            while (offset < total) {
+                final int count = in.read(slab.array, offset, total - offset);
+                if (count < 0)
+                    throw new IOException("spill file truncated");
+                crc.update(slab.array, offset, count);
+                offset += count;
+            }
+        } catch (IOException ex) {
+            logger.error("could not read spill file {}", file, ex);
+            slab.release();
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ex) {
+                    logger.warn("could not close spill file {}", file);
+                }
+            }
+        }
+        final long checksum = id >>> 32;
+        if (crc.getValue() != checksum) {
+            logger.warn("transfer {} reassembled with a bad checksum", Long.toHexString(id));
+            slab.release();
+            return null;
+        }
+        logger.info("transfer {} complete, {} bytes", Long.toHexString(id), total);
+        return AmmoGatewayMessage.newBuilder()
+                .size(total)
+                .payload(slab)
+                .checksum(checksum)
+                .computedChecksum(checksum)
+                .priority(chunk.priority)
+                .version(AmmoGatewayMessage.VERSION_1_FULL)
+                .flags(chunk.flags)
+                .channel(chunk.channel)
+                .build();
+    }
+
+    private void abandon(long id) {
+        final Spill spill = this.spills.remove(id);
+        if (spill == null)
+            return;
+        spill.close();
+        if (!spill.file.delete())
+            logger.warn("could not remove spill file {}", spill.file);
+    }
+
+    private void ack(long id, int offset, byte kind, NetChannel channel) {
+        this.acknowledger.sendAck(ChunkSplitter.newAck(id, offset, kind, channel));
+    }
+
+    /**
+     * The connection was lost. The spill files are kept so the transfers
+     * can resume on the next connection.
+     */
+    public synchronized void reset() {
+        for (final Spill spill : this.spills.values())
+            spill.close();
+        this.spills.clear();
+    }
+}
@@ -0,0 +1,312 @@
+/* Copyright (c) 2010-2015 Vanderbilt University
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package edu.vu.isis.ammo.core.network;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends large messages as a sequence of chunks.
+ * <p>
+ * Each chunk payload is the transfer id, eight bytes, the offset of the data
+ * in the message payload, four bytes, followed by the data; big endian.
+ * The transfer id is the checksum of the whole payload and its size, so a
+ * message sent again after a reconnect has the same id and the receiver can
+ * check the reassembled payload.
+ * <p>
+ * The receiver reports how much it holds, see ChunkAssembler. That progress
+ * is remembered for recent transfers so that when the distributor sends the
+ * message again the transfer resumes where it left off rather than starting
+ * over. A resync from the receiver moves the transfer to the offset it gives.
+ * <p>
+ * Only one transfer is sent at a time; the sender should send other messages
+ * between chunks. The chunks carry no handler. A transfer is kept once its
+ * last chunk is sent, until the receiver reports it complete; the message
+ * is then returned so its handler can be told it was sent. A transfer not
+ * reported complete in time is sent again from the last progress reported.
+ */
+public class ChunkSplitter {
+    private static final Logger logger = LoggerFactory.getLogger("net.chunk.split");
+
+    /** the chunk header, the transfer id and the offset */
+    public static final int CHUNK_HEADER_LENGTH = 8 + 4;
+    /** the acknowledgment, the transfer id, the offset and the kind */
+    public static final int ACK_LENGTH = 8 + 4 + 1;
+
+    public static final byte ACK_PROGRESS = 0;
+    public static final byte ACK_RESYNC = 1;
+    public static final byte ACK_COMPLETE = 2;
+
+    /** how many transfers have their progress remembered */
+    private static final int PROGRESS_LIMIT = 32;
+    /** how long a transfer waits to be reported complete before it is resent */
+    public static final long DEFAULT_COMPLETE_TIMEOUT = 30 * 1000;
+
+    private final long completeTimeout;
+
+    private volatile int chunkSize = 0;
+    private volatile boolean peerAccepts = false;
+
+    private final LinkedList<Transfer> transfers = new LinkedList<Transfer>();
+    private final Map<Long, Integer> progress = new LinkedHashMap<Long, Integer>() {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Integer> eldest) {
+            return this.size() > PROGRESS_LIMIT;
+        }
+    };
+
+    /**
+     * A message being sent in chunks.
+     */
+    private static class Transfer {
+        final AmmoGatewayMessage msg;
+        final long id;
+        int offset;
+        /** when the last chunk was sent, zero while chunks remain */
+        long finished = 0;
+
+        Transfer(AmmoGatewayMessage msg, long id, int offset) {
+            this.msg = msg;
+            this.id = id;
+            this.offset = offset;
+        }
+    }
+
+    public ChunkSplitter() {
+        this(DEFAULT_COMPLETE_TIMEOUT);
+    }
+
+    /**
+     * @param completeTimeout how long a transfer waits to be reported
+     *        complete before it is sent again
+     */
+    ChunkSplitter(long completeTimeout) {
+        this.completeTimeout = completeTimeout;
+    }
+
+    /**
+     * @param chunkSize the most data in each chunk, zero disables chunking
+     */
+    public void configure(int chunkSize) {
+        this.chunkSize = Math.max(0, chunkSize);
+        logger.info("chunk size={}", this.chunkSize);
+    }
+
+    /**
+     * Note whether the peer accepts chunks from the message which completed
+     * the handshake.
+     */
+    public void negotiate(AmmoGatewayMessage reply) {
+        this.peerAccepts = reply.hasFlag(AmmoGatewayMessage.FLAG_ACCEPTS_CHUNKS);
+        logger.debug("peer accepts chunks {}", this.peerAccepts);
+    }
+
+    /**
+     * Should the message be sent in chunks.
+     */
+    public boolean shouldSplit(AmmoGatewayMessage msg) {
+        final int chunkSize = this.chunkSize;
+        return chunkSize > 0 && this.peerAccepts
+                && msg.size > chunkSize && !msg.isChunk() && !msg.isChunkAck();
+    }
+
+    /**
+     * Is there a chunk to send.
+     */
+    public synchronized boolean isSending() {
+        return this.current(System.currentTimeMillis()) != null;
+    }
+
+    /**
+     * Are there transfers not yet reported complete; the sender should not
+     * wait long for other messages while there are.
+     */
+    public synchronized boolean isWaiting() {
+        return !this.transfers.isEmpty();
+    }
+
+    /**
+     * The transfer with chunks to send, those not reported complete in time
+     * go again from the last progress reported.
+     */
+    private Transfer current(long now) {
+        for (final Transfer transfer : this.transfers) {
+            if (transfer.finished != 0 && now - transfer.finished >= this.completeTimeout) {
+                final Integer acked = this.progress.get(transfer.id);
+                transfer.offset = (acked == null) ? 0
+                        : Math.max(0, Math.min(acked, transfer.msg.size - 1));
+                transfer.finished = 0;
+                logger.info("transfer {} not complete, resending from {}",
+                        Long.toHexString(transfer.id), transfer.offset);
+            }
+            if (transfer.finished == 0)
+                return transfer;
+        }
+        return null;
+    }
+
+    /**
+     * The id of the transfer of the message.
+     */
+    static public long transferId(AmmoGatewayMessage msg) {
+        final long checksum = AmmoGatewayMessage.CheckSum.newInstance(msg.payload, 0, msg.size).asLong();
+        return (checksum << 32) | (0x0FFFFFFFFL & msg.size);
+    }
+
+    /**
+     * Queue the message to be sent in chunks, resuming a transfer of the
+     * same message if the receiver reported progress on it.
+     */
+    public synchronized void start(AmmoGatewayMessage msg) {
+        final long id = transferId(msg);
+        final Integer acked = this.progress.get(id);
+        final int offset = (acked == null) ? 0 : Math.min(acked, msg.size);
+        if (offset > 0)
+            logger.info("resuming transfer {} at {} of {}",
+                    new Object[] { Long.toHexString(id), offset, msg.size });
+        this.transfers.add(new Transfer(msg, id, offset));
+    }
+
+    /**
+     * The next chunk of the current transfer.
+     *
+     * @return the chunk or null if there are no chunks to send
+     */
+    public synchronized AmmoGatewayMessage nextChunk() {
+        final long now = System.currentTimeMillis();
+        final Transfer transfer = this.current(now);
+        if (transfer == null)
+            return null;
+        final AmmoGatewayMessage msg = transfer.msg;
+        final int length = Math.min(Math.max(1, this.chunkSize), msg.size - transfer.offset);
+        final boolean last = (transfer.offset + length >= msg.size);
+
+        final ByteBuffer body = ByteBuffer.allocate(CHUNK_HEADER_LENGTH + length);
+        body.order(ByteOrder.BIG_ENDIAN);
+        body.putLong(transfer.id);
+        body.putInt(transfer.offset);
+        body.put(msg.payload, transfer.offset, length);
+        final byte[] payload = body.array();
+
+        transfer.offset += length;
+        if (last)
+            transfer.finished = now;
+
+        return AmmoGatewayMessage.newBuilder()
+                .size(payload.length)
+                .payload(payload)
+                .checksum(AmmoGatewayMessage.CheckSum.newInstance(payload).asLong())
+                .priority(msg.priority)
+                .version(AmmoGatewayMessage.VERSION_1_CHUNK)
+                .flags(msg.flags)
+                .channel(msg.channel)
+                .build();
+    }
+
+    /**
+     * The receiver reported on a transfer.
+     *
+     * @return the message of the transfer if it is complete, otherwise null
+     */
+    public synchronized AmmoGatewayMessage onAck(AmmoGatewayMessage ack) {
+        if (ack.size < ACK_LENGTH) {
+            logger.warn("short chunk ack {}", ack);
+            return null;
+        }
+        final ByteBuffer body = ByteBuffer.wrap(ack.payload, 0, ack.size);
+        body.order(ByteOrder.BIG_ENDIAN);
+        final long id = body.getLong();
+        final int offset = body.getInt();
+        final byte kind = body.get();
+
+        switch (kind) {
+            case ACK_COMPLETE:
+                this.progress.remove(id);
+                for (final Iterator<Transfer> it = this.transfers.iterator(); it.hasNext();) {
+                    final Transfer transfer = it.next();
+                    if (transfer.id != id)
+                        continue;
+                    it.remove();
+                    return transfer.msg;
+                }
+                return null;
+            case ACK_RESYNC:
+                for (final Transfer transfer : this.transfers) {
+                    if (transfer.id != id)
+                        continue;
+                    logger.info("transfer {} resync from {} to {}",
+                            new Object[] { Long.toHexString(id), transfer.offset, offset });
+                    transfer.offset = Math.max(0, Math.min(offset, transfer.msg.size - 1));
+                    transfer.finished = 0;
+                }
+                this.progress.put(id, offset);
+                return null;
+            case ACK_PROGRESS:
+            default:
+                this.progress.put(id, offset);
+                return null;
+        }
+    }
+
+    /**
+     * The channel was reset. The transfers not yet reported complete are
+     * returned so they can be acknowledged with the queue; their progress
+     * is kept.
+     */
+    public synchronized List<AmmoGatewayMessage> reset() {
+        this.peerAccepts = false;
+        final List<AmmoGatewayMessage> abandoned = new ArrayList<AmmoGatewayMessage>();
+        for (final Transfer transfer : this.transfers)
+            abandoned.add(transfer.msg);
+        this.transfers.clear();
+        return abandoned;
+    }
+
+    /**
+     * Build the acknowledgment sent by a receiver.
+     */
+    static public AmmoGatewayMessage newAck(long id, int offset, byte kind, NetChannel channel) {
+        final ByteBuffer body = ByteBuffer.allocate(ACK_LENGTH);
+        body.order(ByteOrder.BIG_ENDIAN);
+        body.putLong(id).putInt(offset).put(kind);
+        final byte[] payload = body.array();
+        return AmmoGatewayMessage.newBuilder()
+                .size(payload.length)
+                .payload(payload)
+                .checksum(AmmoGatewayMessage.CheckSum.newInstance(payload).asLong())
+                .priority(AmmoGatewayMessage.PriorityLevel.CTRL.b())
+                .version(AmmoGatewayMessage.VERSION_1_CHUNK_ACK)
+                .channel(channel)
+                .build();
+    }
+}
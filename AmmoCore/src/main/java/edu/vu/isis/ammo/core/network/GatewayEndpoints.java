@@ -0,0 +1,199 @@
+/* Copyright (c) 2010-2015 Vanderbilt University
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package edu.vu.isis.ammo.core.network;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The gateways a client may connect to, ranked by how quickly they have
+ * recently accepted a connection.
+ * <p>
+ * The endpoints are given as a comma separated list of host names, each
+ * with an optional port, "host:port" or "[address]:port" for IPv6 literals;
+ * the default port is used where none is given.
+ * <p>
+ * An endpoint never connected to comes first, in the order given, so each
+ * is measured. The others are ordered by consecutive failures and then by
+ * their smoothed connect time. The measurements are kept for endpoints
+ * which remain in the list when it changes.
+ */
+public class GatewayEndpoints {
+    private static final Logger logger = LoggerFactory.getLogger("net.endpoints");
+
+    /** the weight of the newest connect time in the smoothed time */
+    private static final double GAIN = 0.25;
+
+    public static class Endpoint {
+        public final String host;
+        public final int port;
+        /** the order given, ties keep it */
+        private final int position;
+        /** the smoothed connect time, negative if never connected */
+        private double latency = -1.0;
+        private int failures = 0;
+
+        Endpoint(String host, int port, int position) {
+            this.host = host;
+            this.port = port;
+            this.position = position;
+        }
+
+        public long latency() {
+            return (long) this.latency;
+        }
+
+        public int failures() {
+            return this.failures;
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder sb = new StringBuilder();
+            if (this.host.indexOf(':') < 0)
+                sb.append(this.host);
+            else
+                sb.append('[').append(this.host).append(']');
+            return sb.append(':').append(this.port).toString();
+        }
+    }
+
+    private static final Comparator<Endpoint> RANK = new Comparator<Endpoint>() {
+        @Override
+        public int compare(Endpoint lhs, Endpoint rhs) {
+            final boolean lhsNew = lhs.latency < 0;
+            final boolean rhsNew = rhs.latency < 0;
+            if (lhsNew != rhsNew)
+                return lhsNew ? -1 : 1;
+            if (!lhsNew) {
+                if (lhs.failures != rhs.failures)
+                    return (lhs.failures < rhs.failures) ? -1 : 1;
+                if (lhs.latency != rhs.latency)
+                    return (lhs.latency < rhs.latency) ? -1 : 1;
+            }
+            return lhs.position - rhs.position;
+        }
+    };
+
+    private final List<Endpoint> endpoints = new ArrayList<Endpoint>();
+
+    /**
+     * Replace the list, keeping what is known of endpoints still in it.
+     *
+     * @param hosts the comma separated endpoints
+     * @param defaultPort the port of those without one
+     */
+    public synchronized void configure(String hosts, int defaultPort) {
+        final List<Endpoint> previous = new ArrayList<Endpoint>(this.endpoints);
+        this.endpoints.clear();
+        if (hosts == null)
+            return;
+        for (final String item : hosts.split(",")) {
+            final Endpoint parsed = parse(item.trim(), defaultPort, this.endpoints.size());
+            if (parsed == null)
+                continue;
+            for (final Endpoint known : previous) {
+                if (known.host.equalsIgnoreCase(parsed.host) && known.port == parsed.port) {
+                    parsed.latency = known.latency;
+                    parsed.failures = known.failures;
+                }
+            }
+            this.endpoints.add(parsed);
+        }
+        logger.info("gateway endpoints {}", this.endpoints);
+    }
+
+    static Endpoint parse(String item, int defaultPort, int position) {
+        if (item.length() < 1)
+            return null;
+        String host = item;
+        int port = defaultPort;
+        final int colon = item.lastIndexOf(':');
+        if (item.startsWith("[")) {
+            final int close = item.indexOf(']');
+            if (close < 0)
+                return null;
+            host = item.substring(1, close);
+            if (colon > close)
+                port = parsePort(item.substring(colon + 1), defaultPort);
+        } else if (colon >= 0 && colon == item.indexOf(':')) {
+            // a single colon separates the port, more make an IPv6 address
+            host = item.substring(0, colon);
+            port = parsePort(item.substring(colon + 1), defaultPort);
+        }
+        if (host.length() < 1)
+            return null;
+        return new Endpoint(host, port, position);
+    }
+
+    private static int parsePort(String value, int defaultPort) {
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException ex) {
+            logger.warn("bad port {}", value);
+            return defaultPort;
+        }
+    }
+
+    /**
+     * The endpoints in the order they should be tried.
+     */
+    public synchronized List<Endpoint> ranked() {
+        final List<Endpoint> ranked = new ArrayList<Endpoint>(this.endpoints);
+        Collections.sort(ranked, RANK);
+        return ranked;
+    }
+
+    /**
+     * A connection to the endpoint completed, whether or not it was used.
+     */
+    public synchronized void connected(Endpoint endpoint, long millis) {
+        final double sample = Math.max(0, millis);
+        endpoint.latency = (endpoint.latency < 0) ? sample
+                : (1.0 - GAIN) * endpoint.latency + GAIN * sample;
+        endpoint.failures = 0;
+    }
+
+    /**
+     * A connection to the endpoint failed.
+     */
+    public synchronized void failed(Endpoint endpoint, long millis) {
+        // a failure is still a measurement, the endpoint is not new
+        if (endpoint.latency < 0)
+            endpoint.latency = Math.max(0, millis);
+        endpoint.failures++;
+    }
+
+    public synchronized int size() {
+        return this.endpoints.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return this.endpoints.toString();
+    }
+}
@@ -76,6 +76,14 @@ public interface IChannelManager
 
     void authorizationSucceeded( NetChannel channel, AmmoGatewayMessage agm );
 
+    /**
+     * The channel picked up its session after a reconnect
+     * without authenticating again, see SessionResumption.
+     *
+     * @param channel
+     */
+    void sessionResumed( NetChannel channel );
+
     // FIXME: this is a temporary hack to get authentication working again,
     // until Nilabja's new code is implemented.  Remove this afterward, and
     // make the AmmoService's method private again (if it doesn't go away).
@@ -364,6 +364,7 @@ public class JournalChannel extends NetChannel {
                         / Byte.SIZE);
                 // ByteOrder order = buf.order();
                 buf.order(parent.endian);
+                final ByteBuffer header = AmmoGatewayMessage.newHeaderBuffer();
 
                 while (true) {
                     synchronized (JournalChannel.isConnected) {
@@ -378,8 +379,7 @@ public class JournalChannel extends NetChannel {
                         }
                     }
                     AmmoGatewayMessage msg = queue.take();
-                    dos.write(msg.serialize(endian, AmmoGatewayMessage.VERSION_1_FULL, (byte) 0)
-                            .array());
+                    msg.writeTo(dos, header, endian, AmmoGatewayMessage.VERSION_1_FULL, (byte) 0);
                 }
             } catch (SocketException ex) {
                 ex.printStackTrace();
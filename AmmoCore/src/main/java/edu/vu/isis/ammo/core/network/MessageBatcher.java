@@ -0,0 +1,147 @@
+/* Copyright (c) 2010-2015 Vanderbilt University
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package edu.vu.isis.ammo.core.network;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Coalesces small outbound messages into batch frames.
+ * <p>
+ * A sender thread hands each message it takes to coalesce(). If the message
+ * is small more small messages are gathered from the source until the batch
+ * is full or the linger time has passed. A message which does not fit is held
+ * and returned by the next call to takePending(); when the channel is reset
+ * that message must be taken and acknowledged along with the queue.
+ * <p>
+ * Batching is disabled until a batch size is configured; the peer must be
+ * able to unpack batches.
+ */
+public class MessageBatcher {
+    private static final Logger logger = LoggerFactory.getLogger("net.batcher");
+
+    /** messages larger than this are always sent on their own */
+    public static final int SMALL_MESSAGE_SIZE = 1024;
+
+    /**
+     * Where the batcher gets more messages.
+     */
+    public interface Source {
+        /**
+         * Wait no longer than the timeout for a message.
+         *
+         * @return the message or null if none arrived
+         */
+        AmmoGatewayMessage poll(long timeoutMillis) throws InterruptedException;
+    }
+
+    private volatile int maxBatchSize = 0;
+    private volatile long linger = 0;
+    private AmmoGatewayMessage pending = null;
+
+    /**
+     * @param maxBatchSize the largest batch payload, zero disables batching
+     * @param lingerMillis how long to wait for more small messages
+     */
+    public void configure(int maxBatchSize, long lingerMillis) {
+        this.maxBatchSize = Math.max(0, maxBatchSize);
+        this.linger = Math.max(0, lingerMillis);
+        logger.info("batch size={} linger={}", this.maxBatchSize, this.linger);
+    }
+
+    public boolean isEnabled() {
+        return this.maxBatchSize > 0;
+    }
+
+    private int recordSize(AmmoGatewayMessage msg) {
+        return AmmoGatewayMessage.BATCH_RECORD_LENGTH + msg.size;
+    }
+
+    private boolean isBatchable(AmmoGatewayMessage msg, int maxBatchSize) {
+        // heartbeats are sent on their own so their round trip is timed
+        return !msg.isBatch() && !msg.isChunk() && !msg.isChunkAck() && !msg.isResume()
+                && !msg.isHeartbeat()
+                && msg.size <= SMALL_MESSAGE_SIZE
+                && this.recordSize(msg) <= maxBatchSize;
+    }
+
+    /**
+     * The message which did not fit in the last batch, if any.
+     */
+    public synchronized AmmoGatewayMessage takePending() {
+        final AmmoGatewayMessage msg = this.pending;
+        this.pending = null;
+        return msg;
+    }
+
+    private synchronized void putPending(AmmoGatewayMessage msg) {
+        this.pending = msg;
+    }
+
+    /**
+     * Gather small messages to go with the first one.
+     *
+     * If interrupted, what has been gathered is returned and the interrupt
+     * is left pending so that none of the gathered messages is lost.
+     *
+     * @return the first message if nothing was gathered, otherwise a batch
+     */
+    public AmmoGatewayMessage coalesce(AmmoGatewayMessage first, Source source)
+    {
+        final int maxBatchSize = this.maxBatchSize;
+        if (maxBatchSize < 1 || !this.isBatchable(first, maxBatchSize))
+            return first;
+
+        final List<AmmoGatewayMessage> batch = new ArrayList<AmmoGatewayMessage>();
+        batch.add(first);
+        int total = this.recordSize(first);
+        final long deadline = System.currentTimeMillis() + this.linger;
+
+        while (total < maxBatchSize) {
+            final long remaining = deadline - System.currentTimeMillis();
+            final AmmoGatewayMessage msg;
+            try {
+                msg = source.poll(Math.max(0, remaining));
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            if (msg == null)
+                break;
+            if (!this.isBatchable(msg, maxBatchSize)
+                    || total + this.recordSize(msg) > maxBatchSize) {
+                this.putPending(msg);
+                break;
+            }
+            batch.add(msg);
+            total += this.recordSize(msg);
+        }
+        if (batch.size() < 2)
+            return first;
+
+        logger.debug("coalesced {} messages into {} bytes", batch.size(), total);
+        return AmmoGatewayMessage.newBatch(batch);
+    }
+}
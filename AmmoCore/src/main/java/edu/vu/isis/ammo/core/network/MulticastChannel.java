@@ -38,8 +38,6 @@ import java.util.Collections;
 import java.util.Enumeration;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.TimeUnit;
@@ -47,6 +45,7 @@ import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -122,6 +121,10 @@ public class MulticastChannel extends NetChannel
     private AtomicInteger mMulticastTTL;
 
     private SenderQueue mSenderQueue;
+    /** small messages may share a datagram, off by default */
+    private final MessageBatcher mBatcher = new MessageBatcher();
+    /** payloads may be compressed, off until the policy enables it */
+    private final PayloadCompressor mCompressor = new PayloadCompressor();
 
     private final AtomicBoolean mIsAuthorized;
 
@@ -152,29 +155,9 @@ public class MulticastChannel extends NetChannel
         // The thread is start()ed the first time the network disables and
         // reenables it.
         this.connectorThread = new ConnectorThread(this);
-
-        // Set up timer to trigger once per minute.
-        TimerTask updateBps = new UpdateBpsTask();
-        mUpdateBpsTimer.scheduleAtFixedRate( updateBps, 0, BPS_STATS_UPDATE_INTERVAL * 1000 );
     }
 
 
-    private Timer mUpdateBpsTimer = new Timer();
-
-    class UpdateBpsTask extends TimerTask {
-        public void run() {
-            logger.trace( "UpdateBpsTask fired" );
-
-            // Update the BPS stats for the sending and receiving.
-            mBpsSent = (mBytesSent - mLastBytesSent) / BPS_STATS_UPDATE_INTERVAL;
-            mLastBytesSent = mBytesSent;
-
-            mBpsRead = (mBytesRead - mLastBytesRead) / BPS_STATS_UPDATE_INTERVAL;
-            mLastBytesRead = mBytesRead;
-        }
-    };
-
-
     public static MulticastChannel getInstance(String name, IChannelManager iChannelManager)
     {
         logger.trace("Thread <{}> MulticastChannel::getInstance()",
@@ -278,6 +261,31 @@ public class MulticastChannel extends NetChannel
         this.mMulticastTTL.set(ttl);
     }
 
+    /**
+     * Send small messages together in one datagram.
+     * 
+     * @param maxBatchSize the largest batch in bytes, zero disables batching
+     * @param lingerMillis how long to wait for more messages to batch
+     */
+    public void setBatching(int maxBatchSize, long lingerMillis) {
+        logger.trace("Thread <{}>::setBatching {}", Thread.currentThread().getId(), maxBatchSize);
+        mBatcher.configure(maxBatchSize, lingerMillis);
+    }
+
+    /**
+     * Compress large payloads.
+     * There is no handshake with the group, enabling compression means every
+     * member is expected to accept it.
+     * 
+     * @param enabled whether the channel policy allows compression
+     * @param threshold the smallest payload worth compressing
+     */
+    public void setCompression(boolean enabled, int threshold) {
+        logger.trace("Thread <{}>::setCompression {}", Thread.currentThread().getId(), enabled);
+        mCompressor.configure(enabled, threshold);
+        mCompressor.assumeNegotiated();
+    }
+
     public String toString() {
         return "socket: host[" + this.mMulticastAddress + "] port[" + this.mMulticastPort + "]";
     }
@@ -383,6 +391,36 @@ public class MulticastChannel extends NetChannel
     {
         logger.debug("deliverMessage() {} ", agm);
 
+        if (agm.isCompressed())
+        {
+            final AmmoGatewayMessage inflated = mCompressor.decompress(agm, MAX_MESSAGE_SIZE);
+            agm.releasePayload();
+            if (inflated == null)
+            {
+                logger.warn("discarding corrupt compressed message {}", agm);
+                return false;
+            }
+            final boolean result = deliverMessage(inflated);
+            if (!result)
+                inflated.releasePayload();
+            return result;
+        }
+
+        if (agm.isBatch())
+        {
+            final List<AmmoGatewayMessage> batch = agm.unpackBatch();
+            agm.releasePayload();
+            if (batch == null)
+            {
+                logger.warn("discarding corrupt batch {}", agm);
+                return false;
+            }
+            boolean result = true;
+            for (final AmmoGatewayMessage msg : batch)
+                result &= deliverMessage(msg);
+            return result;
+        }
+
         boolean result;
         if (mIsAuthorized.get())
         {
@@ -986,7 +1024,7 @@ public class MulticastChannel extends NetChannel
 
     // /////////////////////////////////////////////////////////////////////////
     //
-    class SenderQueue
+    class SenderQueue implements MessageBatcher.Source
     {
         public SenderQueue(MulticastChannel iChannel)
         {
@@ -1063,13 +1101,25 @@ public class MulticastChannel extends NetChannel
             return mAuthQueue.remove();
         }
 
+        /**
+         * Used to gather more messages for a batch once authorized.
+         */
+        @Override
+        public AmmoGatewayMessage poll(long timeoutMillis) throws InterruptedException
+        {
+            return mDistQueue.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+
         // Somehow synchronize this here.
         public synchronized void reset()
         {
             logger.warn("reset()ing the SenderQueue");
             // Tell the distributor that we couldn't send these
             // packets.
-            AmmoGatewayMessage msg = mDistQueue.poll();
+            AmmoGatewayMessage msg = mBatcher.takePending();
+            if (msg != null && msg.handler != null)
+                mChannel.ackToHandler(msg.handler, DisposalState.REJECTED);
+            msg = mDistQueue.poll();
             while (msg != null)
             {
                 if (msg.handler != null)
@@ -1119,7 +1169,12 @@ public class MulticastChannel extends NetChannel
                 try
                 {
                     setSenderState(INetChannel.TAKING);
-                    msg = mQueue.take(); // The main blocking call
+                    // a message left over from the last batch goes first
+                    msg = mBatcher.takePending();
+                    if (msg == null)
+                        msg = mQueue.take(); // The main blocking call
+                    if (mChannel.getIsAuthorized())
+                        msg = mCompressor.compress(mBatcher.coalesce(msg, mQueue));
 
                     // logger.debug(
                     // "Took a message from the send queue size{}, msgsize{}",
@@ -1140,8 +1195,10 @@ public class MulticastChannel extends NetChannel
 
                 try
                 {
-                    ByteBuffer buf = msg.serialize(endian, AmmoGatewayMessage.VERSION_1_FULL,
-                            (byte) 0);
+                    // the datagram must be contiguous, reuse the frame rather than allocate
+                    mFrame = msg.serialize(mFrame, endian, AmmoGatewayMessage.VERSION_1_FULL,
+                            (byte) 0, mCompressor.advertise());
+                    final ByteBuffer buf = mFrame;
                     setSenderState(INetChannel.SENDING);
 
                     DatagramPacket packet =
@@ -1164,6 +1221,7 @@ public class MulticastChannel extends NetChannel
                     // update send messages ...
                     mMessagesSent.incrementAndGet();
                     mBytesSent += packet.getLength();
+                    recordSent(msg, System.currentTimeMillis());
 
                     logger.info("Send packet to Network: size({})", packet.getLength());
 
@@ -1209,6 +1267,7 @@ public class MulticastChannel extends NetChannel
         private MulticastChannel mChannel;
         private SenderQueue mQueue;
         private MulticastSocket mSocket;
+        private ByteBuffer mFrame = null;
         private final Logger logger = LoggerFactory.getLogger("net.mcast.sender");
     }
 
@@ -1242,6 +1301,8 @@ public class MulticastChannel extends NetChannel
             List<InetAddress> addresses = getLocalIpAddresses();
 
             byte[] raw = new byte[100000]; // FIXME: What is max datagram size?
+            // the payload checksum is computed while the payload is hot
+            final CRC32 payloadCrc = new CRC32();
             while (getReceiverState() != INetChannel.INTERRUPTED)
             {
                 try
@@ -1278,20 +1339,33 @@ public class MulticastChannel extends NetChannel
                         continue;
                     }
 
-                    // extract the payload
-                    byte[] payload = new byte[agmb.size()];
-                    buf.get(payload, 0, buf.remaining());
+                    if (buf.remaining() != agmb.size())
+                    {
+                        logger.error("Datagram payload {} does not match header size {}, discarded",
+                                buf.remaining(), agmb.size());
+                        continue;
+                    }
+
+                    // extract the payload into a slab from the pool,
+                    // the consumer of the message gives it back
+                    final BufferPool.Slab slab = BufferPool.getInstance().acquire(agmb.size());
+                    buf.get(slab.array, 0, agmb.size());
+                    payloadCrc.reset();
+                    payloadCrc.update(slab.array, 0, agmb.size());
 
                     AmmoGatewayMessage agm = agmb
-                            .payload(payload)
+                            .payload(slab)
+                            .computedChecksum(payloadCrc.getValue())
                             .channel(this.mDestination)
                             .build();
                     setReceiverState(INetChannel.DELIVER);
-                    mDestination.deliverMessage(agm);
-                    logger.trace("received a message {}", payload.length);
+                    if (!mDestination.deliverMessage(agm))
+                        agm.releasePayload();
+                    logger.trace("received a message {}", agm.size);
                     
                     // update received count ....
                     mMessagesReceived.incrementAndGet();
+                    recordRead();
                 } catch (ClosedChannelException ex)
                 {
                     logger.info("receiver threw ClosedChannelException");
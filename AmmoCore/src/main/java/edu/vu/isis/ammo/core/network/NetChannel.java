@@ -21,6 +21,9 @@
 
 package edu.vu.isis.ammo.core.network;
 
+import edu.vu.isis.ammo.core.metrics.Histogram;
+import edu.vu.isis.ammo.core.metrics.MetricsRegistry;
+
 public abstract class NetChannel implements INetChannel {
 
 	protected static final boolean HEARTBEAT_ENABLED = true;
@@ -92,6 +95,32 @@ public abstract class NetChannel implements INetChannel {
 
 	protected NetChannel(String name) {
 		this.name = name;
+
+		final MetricsRegistry metrics = MetricsRegistry.getInstance();
+		final String prefix = "channel." + name + ".";
+		mMessagesSentCount = metrics.counter(prefix + "messages.sent");
+		mMessagesReadCount = metrics.counter(prefix + "messages.read");
+		mSendLatency = metrics.histogram(prefix + "send.latency");
+		mQueueDwell = metrics.histogram(prefix + "queue.dwell");
+		mBytesSentGauge = metrics.gauge(prefix + "bytes.sent");
+		mBytesReadGauge = metrics.gauge(prefix + "bytes.read");
+		mBpsSentGauge = metrics.gauge(prefix + "bps.sent");
+		mBpsReadGauge = metrics.gauge(prefix + "bps.read");
+		mSampler = new MetricsRegistry.Sampler() {
+			@Override
+			public void sample(long elapsedMillis) {
+				updateBps(elapsedMillis);
+			}
+		};
+		metrics.addSampler(mSampler);
+	}
+
+	/**
+	 * Stop the shared metrics sampler calling this channel, for a channel
+	 * which is being closed for good.
+	 */
+	protected void stopSampling() {
+		MetricsRegistry.getInstance().removeSampler(mSampler);
 	}
 
 	@Override
@@ -120,10 +149,54 @@ public abstract class NetChannel implements INetChannel {
     protected volatile long mLastBytesSent = 0;
     protected volatile long mLastBytesRead = 0;
 
-    protected static final int BPS_STATS_UPDATE_INTERVAL = 60; // seconds
     protected volatile long mBpsSent = 0;
     protected volatile long mBpsRead = 0;
 
+    /** shared with the metrics registry, see the constructor for the names */
+    protected final MetricsRegistry.Counter mMessagesSentCount;
+    protected final MetricsRegistry.Counter mMessagesReadCount;
+    /** from building the message to writing it */
+    protected final Histogram mSendLatency;
+    /** from queueing the message to taking it for sending */
+    protected final Histogram mQueueDwell;
+    private final MetricsRegistry.Gauge mBytesSentGauge;
+    private final MetricsRegistry.Gauge mBytesReadGauge;
+    private final MetricsRegistry.Gauge mBpsSentGauge;
+    private final MetricsRegistry.Gauge mBpsReadGauge;
+    private final MetricsRegistry.Sampler mSampler;
+
+    /**
+     * Work out the byte rates, the shared metrics sampler calls this.
+     */
+    protected void updateBps(long elapsedMillis) {
+        final long sent = mBytesSent;
+        final long read = mBytesRead;
+        mBpsSent = Math.max(0, sent - mLastBytesSent) * 1000 / elapsedMillis;
+        mLastBytesSent = sent;
+        mBpsRead = Math.max(0, read - mLastBytesRead) * 1000 / elapsedMillis;
+        mLastBytesRead = read;
+
+        mBytesSentGauge.set(sent);
+        mBytesReadGauge.set(read);
+        mBpsSentGauge.set(mBpsSent);
+        mBpsReadGauge.set(mBpsRead);
+    }
+
+    /**
+     * Count a message written to the link.
+     */
+    protected void recordSent(AmmoGatewayMessage msg, long now) {
+        mMessagesSentCount.inc();
+        mSendLatency.record(now - msg.buildTime);
+    }
+
+    /**
+     * Count a message read from the link.
+     */
+    protected void recordRead() {
+        mMessagesReadCount.inc();
+    }
+
 
 	@Override
     public String getSendBitStats() {
@@ -0,0 +1,198 @@
+/* Copyright (c) 2010-2015 Vanderbilt University
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package edu.vu.isis.ammo.core.network;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * One thread which drives the connect, accept, read and write readiness of
+ * every non-blocking socket channel.
+ * <p>
+ * All channel i/o happens on this thread. Other threads hand work to it with
+ * invoke(), which queues the task and wakes the selector. Handlers must never
+ * block; they are also ticked periodically so they can handle timeouts,
+ * reconnection and heartbeats without a thread of their own.
+ */
+public class NioSelectorThread extends Thread {
+    private static final Logger logger = LoggerFactory.getLogger("net.channel.nio.selector");
+
+    /** the longest the selector sleeps before ticking the handlers */
+    public static final long TICK_INTERVAL = 1000; // milliseconds
+
+    /**
+     * The callbacks used by the selector thread. Both are only ever called on
+     * the selector thread.
+     */
+    public interface Handler {
+        /**
+         * The key registered for this handler has some ready operation.
+         */
+        void onSelect(SelectionKey key) throws IOException;
+
+        /**
+         * Called at least once per TICK_INTERVAL.
+         */
+        void onTick(long now);
+    }
+
+    private static NioSelectorThread instance = null;
+
+    /**
+     * The selector thread is shared by all the channels which use it. It is
+     * started lazily the first time it is requested.
+     */
+    public static synchronized NioSelectorThread getInstance() {
+        if (instance == null || !instance.isAlive()) {
+            try {
+                instance = new NioSelectorThread();
+            } catch (IOException ex) {
+                logger.error("could not open selector", ex);
+                return null;
+            }
+            instance.start();
+        }
+        return instance;
+    }
+
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<Runnable> pending = new ConcurrentLinkedQueue<Runnable>();
+    private final List<Handler> handlers = new CopyOnWriteArrayList<Handler>();
+
+    private NioSelectorThread() throws IOException {
+        super("Nio-Selector");
+        this.setDaemon(true);
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Add a handler which is to be ticked.
+     */
+    public void attach(Handler handler) {
+        if (!this.handlers.contains(handler))
+            this.handlers.add(handler);
+        this.selector.wakeup();
+    }
+
+    public void detach(Handler handler) {
+        this.handlers.remove(handler);
+    }
+
+    /**
+     * Run the task on the selector thread. If called from the selector thread
+     * it runs immediately.
+     */
+    public void invoke(Runnable task) {
+        if (Thread.currentThread() == this) {
+            task.run();
+            return;
+        }
+        this.pending.offer(task);
+        this.selector.wakeup();
+    }
+
+    /**
+     * Only valid on the selector thread, i.e. from a handler or an invoked
+     * task.
+     */
+    public SelectionKey register(SelectableChannel channel, int ops, Handler handler)
+            throws ClosedChannelException {
+        return channel.register(this.selector, ops, handler);
+    }
+
+    /**
+     * Add the operations to the interest set of the key, the key may be used
+     * from any thread.
+     */
+    public void addInterest(final SelectionKey key, final int ops) {
+        this.invoke(new Runnable() {
+            @Override
+            public void run() {
+                if (!key.isValid())
+                    return;
+                key.interestOps(key.interestOps() | ops);
+            }
+        });
+    }
+
+    @Override
+    public void run() {
+        logger.info("Thread <{}>::run()", Thread.currentThread().getId());
+        long nextTick = 0;
+        while (!this.isInterrupted()) {
+            try {
+                this.selector.select(TICK_INTERVAL);
+
+                for (Runnable task = this.pending.poll(); task != null; task = this.pending.poll()) {
+                    try {
+                        task.run();
+                    } catch (Exception ex) {
+                        logger.error("selector task failed", ex);
+                    }
+                }
+
+                final Iterator<SelectionKey> it = this.selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    final SelectionKey key = it.next();
+                    it.remove();
+                    final Handler handler = (Handler) key.attachment();
+                    if (handler == null)
+                        continue;
+                    try {
+                        handler.onSelect(key);
+                    } catch (CancelledKeyException ex) {
+                        logger.debug("key cancelled while selected {}", handler);
+                    } catch (Exception ex) {
+                        logger.warn("selection handler threw exception {}", handler, ex);
+                        key.cancel();
+                    }
+                }
+
+                final long now = System.currentTimeMillis();
+                if (now < nextTick)
+                    continue;
+                nextTick = now + TICK_INTERVAL;
+                for (Handler handler : this.handlers) {
+                    try {
+                        handler.onTick(now);
+                    } catch (Exception ex) {
+                        logger.error("tick handler threw exception {}", handler, ex);
+                    }
+                }
+            } catch (IOException ex) {
+                logger.error("selector failed", ex);
+            }
+        }
+        logger.info("Thread <{}>::run() exiting", Thread.currentThread().getId());
+    }
+}
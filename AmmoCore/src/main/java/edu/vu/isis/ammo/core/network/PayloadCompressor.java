@@ -0,0 +1,199 @@
+/* Copyright (c) 2010-2015 Vanderbilt University
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package edu.vu.isis.ammo.core.network;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Deflates message payloads for a channel.
+ * <p>
+ * Compression is used only when the policy enables it for the channel and the
+ * peer has said it accepts compressed payloads. Each header sent carries
+ * FLAG_ACCEPTS_COMPRESSION when compression is enabled; the flag on the reply
+ * to the authentication request settles whether the peer accepts it. The
+ * agreement lasts until the channel is reset.
+ * <p>
+ * A compressed payload is the length of the original payload, four bytes big
+ * endian, followed by the zlib stream. The payload checksum is that of the
+ * compressed payload, so a receiver checks it before inflating.
+ * <p>
+ * compress() is called only by the sender and decompress() only by the
+ * receiver, each keeps its own codec.
+ */
+public class PayloadCompressor {
+    private static final Logger logger = LoggerFactory.getLogger("net.compressor");
+
+    /** the default size below which payloads are not worth compressing */
+    public static final int DEFAULT_THRESHOLD = 256;
+
+    private static final int LENGTH_PREFIX = 4;
+
+    private volatile boolean enabled = false;
+    private volatile int threshold = DEFAULT_THRESHOLD;
+    private volatile boolean peerAccepts = false;
+
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private final Inflater inflater = new Inflater();
+
+    /**
+     * @param enabled whether the channel policy allows compression
+     * @param threshold payloads smaller than this are sent as they are
+     */
+    public void configure(boolean enabled, int threshold) {
+        this.enabled = enabled;
+        this.threshold = Math.max(0, threshold);
+        logger.info("compression enabled={} threshold={}", enabled, this.threshold);
+    }
+
+    /**
+     * The flags to add to every header sent on the channel.
+     */
+    public byte advertise() {
+        return this.enabled ? AmmoGatewayMessage.FLAG_ACCEPTS_COMPRESSION : 0;
+    }
+
+    /**
+     * Note whether the peer accepts compressed payloads from the message
+     * which completed the handshake.
+     */
+    public void negotiate(AmmoGatewayMessage reply) {
+        this.peerAccepts = reply.hasFlag(AmmoGatewayMessage.FLAG_ACCEPTS_COMPRESSION);
+        logger.debug("peer accepts compression {}", this.peerAccepts);
+    }
+
+    /**
+     * For channels without a handshake the policy alone decides.
+     */
+    public void assumeNegotiated() {
+        this.peerAccepts = true;
+    }
+
+    /**
+     * The channel was reset, the next handshake decides again.
+     */
+    public void reset() {
+        this.peerAccepts = false;
+    }
+
+    public boolean isActive() {
+        return this.enabled && this.peerAccepts;
+    }
+
+    /**
+     * Deflate the payload of the message if that is allowed and worthwhile.
+     * The compressed message keeps the handler of the original.
+     *
+     * @return the compressed message, or the original
+     */
+    public AmmoGatewayMessage compress(AmmoGatewayMessage msg) {
+        if (!this.isActive() || msg.isCompressed() || msg.size < this.threshold)
+            return msg;
+
+        final byte[] out = new byte[msg.size];
+        out[0] = (byte) (msg.size >>> 24);
+        out[1] = (byte) (msg.size >>> 16);
+        out[2] = (byte) (msg.size >>> 8);
+        out[3] = (byte) msg.size;
+
+        this.deflater.reset();
+        this.deflater.setInput(msg.payload, 0, msg.size);
+        this.deflater.finish();
+        final int length = LENGTH_PREFIX
+                + this.deflater.deflate(out, LENGTH_PREFIX, out.length - LENGTH_PREFIX);
+        if (!this.deflater.finished() || length >= msg.size) {
+            logger.trace("payload of {} bytes does not compress", msg.size);
+            return msg;
+        }
+        final byte[] payload = new byte[length];
+        System.arraycopy(out, 0, payload, 0, length);
+        if (logger.isDebugEnabled()) {
+            logger.debug("compressed {} bytes to {}", msg.size, length);
+        }
+        return AmmoGatewayMessage.newBuilder()
+                .size(length)
+                .payload(payload)
+                .checksum(AmmoGatewayMessage.CheckSum.newInstance(payload).asLong())
+                .priority(msg.priority)
+                .version(msg.version)
+                .flags(msg.flags | AmmoGatewayMessage.FLAG_COMPRESSED)
+                .handler(msg.handler)
+                .isGateway(msg.isGateway)
+                .isHeartbeat(msg.isHeartbeat)
+                .channel(msg.channel)
+                .build();
+    }
+
+    /**
+     * Inflate the payload of a compressed message into a pooled slab.
+     * The caller still owns, and should release, the compressed message.
+     *
+     * @param maxSize the largest payload the channel will take
+     * @return the message as it was before compression or null if the
+     *         payload is corrupt or too large
+     */
+    public AmmoGatewayMessage decompress(AmmoGatewayMessage msg, int maxSize) {
+        if (!msg.isCompressed())
+            return msg;
+        if (!msg.hasValidChecksum() || msg.size < LENGTH_PREFIX)
+            return null;
+
+        final byte[] in = msg.payload;
+        final int length = ((in[0] & 0xff) << 24) | ((in[1] & 0xff) << 16)
+                | ((in[2] & 0xff) << 8) | (in[3] & 0xff);
+        if (length < 0 || length > maxSize) {
+            logger.warn("compressed payload claims {} bytes", length);
+            return null;
+        }
+        final BufferPool.Slab slab = BufferPool.getInstance().acquire(length);
+        try {
+            this.inflater.reset();
+            this.inflater.setInput(in, LENGTH_PREFIX, msg.size - LENGTH_PREFIX);
+            final int inflated = this.inflater.inflate(slab.array, 0, length);
+            if (inflated != length || !this.inflater.finished()) {
+                logger.warn("compressed payload inflated to {} not {} bytes", inflated, length);
+                slab.release();
+                return null;
+            }
+        } catch (DataFormatException ex) {
+            logger.warn("corrupt compressed payload", ex);
+            slab.release();
+            return null;
+        }
+        // the checksum was verified over the compressed payload
+        final long checksum = msg.payload_checksum.asLong();
+        return AmmoGatewayMessage.newBuilder()
+                .size(length)
+                .payload(slab)
+                .checksum(checksum)
+                .computedChecksum(checksum)
+                .priority(msg.priority)
+                .version(msg.version)
+                .flags(msg.flags & ~AmmoGatewayMessage.FLAG_COMPRESSED)
+                .channel(msg.channel)
+                .build();
+    }
+}
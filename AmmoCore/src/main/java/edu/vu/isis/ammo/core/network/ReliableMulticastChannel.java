@@ -41,8 +41,6 @@ import java.util.Collections;
 import java.util.Enumeration;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.TimeUnit;
@@ -182,32 +180,14 @@ public class ReliableMulticastChannel extends NetChannel {
         // reenables it.
         this.connectorThread = new ConnectorThread(this);
 
-        // Set up timer to trigger once per minute.
-        TimerTask updateBps = new UpdateBpsTask();
-        mUpdateBpsTimer.scheduleAtFixedRate( updateBps, 0, BPS_STATS_UPDATE_INTERVAL * 1000 );
-        
         System.setProperty("java.net.preferIPv4Stack" , "true");
     }
 
 
-    private Timer mUpdateBpsTimer = new Timer();
-
     private int mFragDelay = 0;
     
     private int mMaxMessageSize = 0x100000;
 
-    class UpdateBpsTask extends TimerTask {
-        public void run() {
-            logger.trace( "UpdateBpsTask fired" );
-
-            // Update the BPS stats for the sending and receiving.
-            mBpsSent = (mBytesSent - mLastBytesSent) / BPS_STATS_UPDATE_INTERVAL;
-            mLastBytesSent = mBytesSent;
-
-            mBpsRead = (mBytesRead - mLastBytesRead) / BPS_STATS_UPDATE_INTERVAL;
-            mLastBytesRead = mBytesRead;
-        }
-    };
 
 
     @Override
@@ -1226,7 +1206,9 @@ public class ReliableMulticastChannel extends NetChannel {
                 }
                 
                 try {
-                    ByteBuffer buf = msg.serialize(endian,
+                    // a fresh frame each time, the channel keeps the array
+                    // of a sent message until it is known to be delivered
+                    ByteBuffer buf = msg.serialize(null, endian,
                             AmmoGatewayMessage.VERSION_1_FULL, (byte) 0);
                     setSenderState(INetChannel.SENDING);
 
@@ -1249,6 +1231,7 @@ public class ReliableMulticastChannel extends NetChannel {
 
                     mMessagesSent.incrementAndGet();
                     mBytesSent += packet.getLength();
+                    recordSent(msg, System.currentTimeMillis());
 
                     logger.info("Send packet to Network, size ({})",
                             packet.getLength());
@@ -1392,6 +1375,7 @@ public class ReliableMulticastChannel extends NetChannel {
                             payload.length);
 
                     mMessagesReceived.incrementAndGet(); // got another msg
+                    recordRead();
                 } catch (ClosedChannelException ex) {
                     logger.warn("receiver threw ClosedChannelException", ex);
                     setReceiverState(INetChannel.INTERRUPTED);
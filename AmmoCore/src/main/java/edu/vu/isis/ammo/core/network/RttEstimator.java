@@ -0,0 +1,234 @@
+/* Copyright (c) 2010-2015 Vanderbilt University
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package edu.vu.isis.ammo.core.network;
+
+/**
+ * Estimates the round trip time of a link and from it decides when to send
+ * heartbeats and when the peer should be taken for dead.
+ * <p>
+ * The smoothed round trip time and its variation are kept as in RFC 6298;
+ * the retransmission timeout there, srtt + 4 * rttvar, is the unit for the
+ * rest. A heartbeat is due when nothing has been heard from the peer for a
+ * few timeouts, so heartbeats are not sent while data is arriving. After a
+ * heartbeat is sent the peer has a couple of timeouts to say something
+ * before the link is expired; that time does not run while the sender is
+ * blocked writing, as a heartbeat may wait behind a large upload.
+ * <p>
+ * Samples come only from real answers: the reply to a heartbeat, flagged
+ * FLAG_HEARTBEAT_REPLY, and the peer's reports of the data it received,
+ * see {@link #sample(long)}. Anything else heard shows the peer is alive
+ * but is not taken as an answer, it may have been sent before the
+ * heartbeat arrived.
+ * <p>
+ * Before any sample is taken the timeout is INITIAL_RTO. The heartbeat
+ * interval and expiry time are kept within configured bounds.
+ */
+public class RttEstimator {
+    public static final long INITIAL_RTO = 3000;
+    public static final long DEFAULT_MIN_INTERVAL = 2 * 1000;
+    public static final long DEFAULT_MAX_INTERVAL = 10 * 1000;
+    public static final long DEFAULT_MIN_TIMEOUT = 2 * 1000;
+    public static final long DEFAULT_MAX_TIMEOUT = 30 * 1000;
+
+    /** how many timeouts of silence before a heartbeat */
+    private static final int IDLE_FACTOR = 4;
+    /** how many timeouts a heartbeat may go unanswered */
+    private static final int EXPIRY_FACTOR = 2;
+    /** the least variation used in the timeout */
+    private static final long GRANULARITY = 10;
+
+    private long minInterval = DEFAULT_MIN_INTERVAL;
+    private long maxInterval = DEFAULT_MAX_INTERVAL;
+    private long minTimeout = DEFAULT_MIN_TIMEOUT;
+    private long maxTimeout = DEFAULT_MAX_TIMEOUT;
+
+    private double srtt = 0.0;
+    private double rttvar = 0.0;
+    private int samples = 0;
+
+    /** when the heartbeat not yet replied to was sent, zero if none */
+    private long probeSent = 0;
+    /** when a heartbeat was last queued */
+    private long probeQueued = 0;
+    private long lastHeard = 0;
+    /** the sender is blocked writing */
+    private boolean writing = false;
+    /** when the sender last finished writing */
+    private long written = 0;
+
+    /**
+     * @param minInterval the shortest time between heartbeats
+     * @param maxInterval the longest time between heartbeats
+     * @param maxTimeout the longest an unanswered heartbeat is waited on
+     */
+    public synchronized void configure(long minInterval, long maxInterval, long maxTimeout) {
+        this.maxInterval = Math.max(1, maxInterval);
+        this.minInterval = Math.max(1, Math.min(minInterval, this.maxInterval));
+        this.maxTimeout = Math.max(1, maxTimeout);
+        this.minTimeout = Math.min(DEFAULT_MIN_TIMEOUT, this.maxTimeout);
+    }
+
+    /**
+     * A new connection, nothing is outstanding. The estimate is kept as
+     * the path is likely the same.
+     */
+    public synchronized void restart(long now) {
+        this.probeSent = 0;
+        this.probeQueued = 0;
+        this.lastHeard = now;
+        this.writing = false;
+        this.written = 0;
+    }
+
+    /**
+     * Record a round trip time.
+     */
+    public synchronized void sample(long rtt) {
+        final double r = Math.max(0, rtt);
+        if (this.samples < 1) {
+            this.srtt = r;
+            this.rttvar = r / 2;
+        } else {
+            this.rttvar = 0.75 * this.rttvar + 0.25 * Math.abs(this.srtt - r);
+            this.srtt = 0.875 * this.srtt + 0.125 * r;
+        }
+        this.samples++;
+    }
+
+    /**
+     * A heartbeat is about to be written to the peer.
+     */
+    public synchronized void sentHeartbeat(long now) {
+        this.probeSent = now;
+    }
+
+    /**
+     * The peer replied to the heartbeat.
+     */
+    public synchronized void answered(long now) {
+        if (this.probeSent != 0)
+            this.sample(now - this.probeSent);
+        this.probeSent = 0;
+    }
+
+    /**
+     * Something was read from the peer.
+     */
+    public synchronized void heard(long now) {
+        this.lastHeard = now;
+    }
+
+    /**
+     * The sender started or finished writing.
+     */
+    public synchronized void writing(boolean writing, long now) {
+        this.writing = writing;
+        if (!writing)
+            this.written = now;
+    }
+
+    /**
+     * A heartbeat was sent and nothing has been heard since.
+     */
+    private boolean isWaiting() {
+        return this.probeSent != 0 && this.lastHeard - this.probeSent < 0;
+    }
+
+    /**
+     * Should a heartbeat be sent, if so it is taken to have been queued.
+     */
+    public synchronized boolean heartbeatDue(long now) {
+        if (this.isWaiting())
+            return false;
+        if (now - Math.max(this.lastHeard, this.probeQueued) < this.interval())
+            return false;
+        this.probeQueued = now;
+        return true;
+    }
+
+    /**
+     * Has nothing been heard for too long since a heartbeat was sent, not
+     * counting the time spent writing since.
+     */
+    public synchronized boolean hasExpired(long now) {
+        return this.isWaiting() && !this.writing
+                && now - Math.max(this.probeSent, this.written) > this.timeout();
+    }
+
+    /**
+     * How long until a heartbeat may be due or the outstanding one expires.
+     * While a heartbeat is outstanding its answer may come at any time, the
+     * next one could then be due an interval later.
+     */
+    public synchronized long untilNextCheck(long now) {
+        if (this.isWaiting())
+            return Math.max(0, Math.min(this.interval(),
+                    Math.max(this.probeSent, this.written) + this.timeout() - now + 1));
+        return Math.max(0, Math.max(this.lastHeard, this.probeQueued) + this.interval() - now);
+    }
+
+    public synchronized long rto() {
+        if (this.samples < 1)
+            return INITIAL_RTO;
+        return (long) (this.srtt + Math.max(GRANULARITY, 4 * this.rttvar));
+    }
+
+    /**
+     * The time without hearing from the peer before a heartbeat is sent.
+     */
+    public synchronized long interval() {
+        return clamp(IDLE_FACTOR * this.rto(), this.minInterval, this.maxInterval);
+    }
+
+    /**
+     * The time a heartbeat has to be answered.
+     */
+    public synchronized long timeout() {
+        return clamp(EXPIRY_FACTOR * this.rto(), this.minTimeout, this.maxTimeout);
+    }
+
+    public synchronized long srtt() {
+        return (long) this.srtt;
+    }
+
+    public synchronized long rttvar() {
+        return (long) this.rttvar;
+    }
+
+    public synchronized int samples() {
+        return this.samples;
+    }
+
+    private static long clamp(long value, long min, long max) {
+        return Math.max(min, Math.min(max, value));
+    }
+
+    @Override
+    public synchronized String toString() {
+        return new StringBuilder()
+                .append("rtt=").append(this.srtt())
+                .append(" var=").append(this.rttvar())
+                .append(" interval=").append(this.interval())
+                .append(" timeout=").append(this.timeout())
+                .toString();
+    }
+}
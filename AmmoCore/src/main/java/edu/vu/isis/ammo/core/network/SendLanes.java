@@ -0,0 +1,283 @@
+/* Copyright (c) 2010-2015 Vanderbilt University
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package edu.vu.isis.ammo.core.network;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.vu.isis.ammo.core.metrics.Histogram;
+import edu.vu.isis.ammo.core.network.AmmoGatewayMessage.PriorityLevel;
+
+/**
+ * The messages waiting to be sent on a channel, one bounded lane per
+ * priority band.
+ * <p>
+ * Each lane is a ring buffer of fixed capacity. Offering a message never
+ * blocks; when the lane for its priority is full the message is refused
+ * and the caller can tell the distributor the channel is busy. Messages are
+ * taken from the highest priority lane first and in the order offered
+ * within a lane.
+ * <p>
+ * The lanes are busy when they hold at least the high water mark or when
+ * any one of them is full, this is what the channel reports so the
+ * distributor can pass over it. The distributor does not say which
+ * priority it will send, so a full lane makes them all busy; otherwise
+ * traffic of a single priority would be refused while they were not.
+ * <p>
+ * How long each message waited in its lane may be recorded in a histogram.
+ */
+public class SendLanes {
+    private static final Logger logger = LoggerFactory.getLogger("net.lanes");
+
+    public static final int DEFAULT_CAPACITY = 20;
+
+    /** the lowest priority of each lane, highest lane first */
+    private static final int[] FLOORS = new int[] {
+            PriorityLevel.CTRL.v,
+            PriorityLevel.FLASH.v,
+            PriorityLevel.URGENT.v,
+            PriorityLevel.IMPORTANT.v,
+            PriorityLevel.NORMAL.v,
+            Byte.MIN_VALUE,
+    };
+
+    private static class Lane {
+        AmmoGatewayMessage[] ring;
+        /** when each message was offered */
+        long[] offered;
+        int head = 0;
+        int count = 0;
+        int capacity;
+
+        Lane(int capacity) {
+            this.capacity = capacity;
+            this.ring = new AmmoGatewayMessage[capacity];
+            this.offered = new long[capacity];
+        }
+
+        boolean offer(AmmoGatewayMessage msg, long now) {
+            if (this.count >= this.capacity)
+                return false;
+            final int tail = (this.head + this.count) % this.ring.length;
+            this.ring[tail] = msg;
+            this.offered[tail] = now;
+            this.count++;
+            return true;
+        }
+
+        /**
+         * When the next message to be polled was offered.
+         */
+        long headOffered() {
+            return this.offered[this.head];
+        }
+
+        AmmoGatewayMessage poll() {
+            if (this.count < 1)
+                return null;
+            final AmmoGatewayMessage msg = this.ring[this.head];
+            this.ring[this.head] = null;
+            this.head = (this.head + 1) % this.ring.length;
+            this.count--;
+            return msg;
+        }
+
+        /**
+         * Messages already held are kept even if there are more of
+         * them than the new capacity.
+         */
+        void resize(int capacity) {
+            final AmmoGatewayMessage[] ring = new AmmoGatewayMessage[Math.max(capacity, this.count)];
+            final long[] offered = new long[ring.length];
+            for (int ix = 0; ix < this.count; ix++) {
+                ring[ix] = this.ring[(this.head + ix) % this.ring.length];
+                offered[ix] = this.offered[(this.head + ix) % this.ring.length];
+            }
+            this.ring = ring;
+            this.offered = offered;
+            this.head = 0;
+            this.capacity = capacity;
+        }
+    }
+
+    private final Lane[] lanes = new Lane[FLOORS.length];
+    private int size = 0;
+    private int highWater;
+    private int refused = 0;
+    /** a take() is to return without a message */
+    private boolean woken = false;
+    private Histogram dwell = null;
+
+    public SendLanes() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public SendLanes(int capacity) {
+        for (int ix = 0; ix < this.lanes.length; ix++)
+            this.lanes[ix] = new Lane(Math.max(1, capacity));
+        this.highWater = Math.max(1, capacity);
+    }
+
+    /**
+     * @param capacity the most messages each lane holds
+     * @param highWater how many messages, over all lanes, make them busy
+     */
+    public synchronized void configure(int capacity, int highWater) {
+        final int laneCapacity = Math.max(1, capacity);
+        for (final Lane lane : this.lanes)
+            lane.resize(laneCapacity);
+        this.highWater = Math.max(1, highWater);
+        logger.info("lane capacity={} high water={}", laneCapacity, this.highWater);
+    }
+
+    /**
+     * @param dwell records how long each message waited, may be null
+     */
+    public synchronized void setDwell(Histogram dwell) {
+        this.dwell = dwell;
+    }
+
+    static int laneOf(byte priority) {
+        for (int ix = 0; ix < FLOORS.length - 1; ix++) {
+            if (priority >= FLOORS[ix])
+                return ix;
+        }
+        return FLOORS.length - 1;
+    }
+
+    /**
+     * Add the message to the lane for its priority without waiting.
+     *
+     * @return false if that lane is full
+     */
+    public synchronized boolean offer(AmmoGatewayMessage msg) {
+        if (!this.lanes[laneOf(msg.priority)].offer(msg, System.currentTimeMillis())) {
+            this.refused++;
+            return false;
+        }
+        this.size++;
+        this.notifyAll();
+        return true;
+    }
+
+    /**
+     * The next message, if there is one, without waiting.
+     */
+    public synchronized AmmoGatewayMessage poll() {
+        for (final Lane lane : this.lanes) {
+            if (lane.count < 1)
+                continue;
+            final long offered = lane.headOffered();
+            final AmmoGatewayMessage msg = lane.poll();
+            this.size--;
+            if (this.dwell != null)
+                this.dwell.record(System.currentTimeMillis() - offered);
+            return msg;
+        }
+        return null;
+    }
+
+    /**
+     * Wait up to the timeout for the next message.
+     *
+     * @return the message or null if none arrived in time
+     */
+    public synchronized AmmoGatewayMessage poll(long timeoutMillis) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + timeoutMillis;
+        long remaining = timeoutMillis;
+        while (this.size < 1 && remaining > 0) {
+            this.wait(remaining);
+            remaining = deadline - System.currentTimeMillis();
+        }
+        return this.poll();
+    }
+
+    /**
+     * Wait for the next message.
+     *
+     * @return the message or null if woken, see {@link #wake()}
+     */
+    public synchronized AmmoGatewayMessage take() throws InterruptedException {
+        while (this.size < 1 && !this.woken)
+            this.wait();
+        this.woken = false;
+        return this.poll();
+    }
+
+    /**
+     * Have the take() now waiting, or the next one, return even if there is
+     * no message; for when there is something to send from elsewhere.
+     */
+    public synchronized void wake() {
+        this.woken = true;
+        this.notifyAll();
+    }
+
+    /**
+     * Remove every message, highest priority first.
+     */
+    public synchronized List<AmmoGatewayMessage> drain() {
+        final List<AmmoGatewayMessage> drained = new ArrayList<AmmoGatewayMessage>(this.size);
+        // these were not sent, their wait is not recorded
+        for (final Lane lane : this.lanes) {
+            for (AmmoGatewayMessage msg = lane.poll(); msg != null; msg = lane.poll())
+                drained.add(msg);
+        }
+        this.size = 0;
+        return drained;
+    }
+
+    public synchronized int size() {
+        return this.size;
+    }
+
+    public synchronized boolean isBusy() {
+        if (this.size >= this.highWater)
+            return true;
+        for (final Lane lane : this.lanes) {
+            if (lane.count >= lane.capacity)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * How many messages have been refused since the lanes were made.
+     */
+    public synchronized int refused() {
+        return this.refused;
+    }
+
+    @Override
+    public synchronized String toString() {
+        final StringBuilder sb = new StringBuilder("lanes[");
+        for (int ix = 0; ix < this.lanes.length; ix++) {
+            if (ix > 0)
+                sb.append(' ');
+            sb.append(this.lanes[ix].count).append('/').append(this.lanes[ix].capacity);
+        }
+        return sb.append("] refused=").append(this.refused).toString();
+    }
+}
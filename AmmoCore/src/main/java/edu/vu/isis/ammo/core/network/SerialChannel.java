@@ -33,8 +33,6 @@ import java.util.Date;
 import java.util.GregorianCalendar;
 import java.util.List;
 import java.util.LinkedList;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.TimeZone;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
@@ -93,27 +91,10 @@ public class SerialChannel extends NetChannel
 
         // The channel is created in the disabled state, so it will
         // not have a Connector thread.
-
-        // Set up timer to trigger once per minute.
-        TimerTask updateBps = new UpdateBpsTask();
-        mUpdateBpsTimer.scheduleAtFixedRate( updateBps, 0, BPS_STATS_UPDATE_INTERVAL * 1000 );
     }
 
-    private Timer mUpdateBpsTimer = new Timer();
     private int mMaxMessageSize = 0x100000;
 
-    class UpdateBpsTask extends TimerTask {
-        public void run() {
-            logger.trace( "UpdateBpsTask fired" );
-
-            // Update the BPS stats for the sending and receiving.
-            mBpsSent = (mBytesSent - mLastBytesSent) / BPS_STATS_UPDATE_INTERVAL;
-            mLastBytesSent = mBytesSent;
-
-            mBpsRead = (mBytesRead - mLastBytesRead) / BPS_STATS_UPDATE_INTERVAL;
-            mLastBytesRead = mBytesRead;
-        }
-    };
 
 
     /**
@@ -1279,6 +1260,8 @@ public class SerialChannel extends NetChannel
             logger.trace( "hyperperiod={}, msg.mHyperperiod={}", hyperperiod, msg.mHyperperiod );
             msg.mSlotID = slotIndex;
             msg.mIndexInSlot = indexInSlot;
+            // the port writes whole arrays, so the frame is made to measure
+            // rather than reused
             ByteBuffer buf = msg.serialize( endian,
                                             AmmoGatewayMessage.VERSION_1_TERSE,
                                             (byte) slotIndex );
@@ -1299,6 +1282,7 @@ public class SerialChannel extends NetChannel
                 }
                 mMessagesSent.getAndIncrement();
                 mBytesSent += buf.array().length;
+                recordSent( msg, System.currentTimeMillis() );
 
                 logger.debug( "sent message size={}, checksum={}, data:{}",
                               new Object[] { msg.size,
@@ -1560,6 +1544,7 @@ public class SerialChannel extends NetChannel
                         // End logging stuff
 
                         mMessagesReceived.getAndIncrement();
+                        recordRead();
                         logger.debug( "received message size={}, checksum={}, data:{}",
                                       new Object[] {
                                           agm.size,
@@ -0,0 +1,424 @@
+/* Copyright (c) 2010-2015 Vanderbilt University
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package edu.vu.isis.ammo.core.network;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Lets a channel which lost its connection pick up the session it had
+ * without authenticating again.
+ * <p>
+ * A peer which sees FLAG_ACCEPTS_RESUME grants a token, along with a lease,
+ * once it has authorized the channel. From then on both sides count the
+ * frames they send and receive, all but heartbeats and these control
+ * messages, and the receiver reports its count now and then. Every frame
+ * sent but not yet reported is kept, those sent before the token arrives
+ * too unless more than the replay limit are sent first.
+ * <p>
+ * When the connection is lost the lease starts. A connection made before it
+ * ends presents the token, the count received and the count of the first
+ * frame kept, and waits. The peer accepts, with its own count, or refuses.
+ * Once accepted the frames the peer already has are dropped and the rest
+ * are sent again before anything else. A refusal means authenticating on a
+ * new connection, the kept frames are then sent again as new ones. Once the
+ * lease is over, or more frames than the replay limit are kept, the session
+ * is forfeit.
+ * <p>
+ * A frame whose write failed is held: it is acknowledged as sent once the
+ * peer reports it or it is written again.
+ * <p>
+ * The peer reports as soon as it receives the frame which brings its count
+ * to a multiple of the reporting interval, so the time from writing that
+ * frame to its report is a round trip, see takeReportedSentAt().
+ * <p>
+ * Each control message payload is the token, eight bytes, the kind, one
+ * byte, and two values, four bytes each; big endian.
+ */
+public class SessionResumption {
+    private static final Logger logger = LoggerFactory.getLogger("net.session");
+
+    public static final long DEFAULT_LEASE = 60 * 1000;
+    public static final int DEFAULT_REPLAY_LIMIT = 64;
+
+    /** the control message, the token, the kind and two values */
+    public static final int CONTROL_LENGTH = 8 + 1 + 4 + 4;
+
+    /** the token and the lease in milliseconds */
+    public static final byte GRANT = 0;
+    /** the token, the count received and the count of the first frame sent again */
+    public static final byte REQUEST = 1;
+    /** the token and the count received */
+    public static final byte ACCEPT = 2;
+    /** the token */
+    public static final byte REFUSE = 3;
+    /** the token and the count received */
+    public static final byte ACK = 4;
+
+    /** how many frames are received between reports */
+    private static final int ACK_EVERY = 16;
+
+    private long leaseMillis = DEFAULT_LEASE;
+    private int replayLimit = DEFAULT_REPLAY_LIMIT;
+
+    /** the granted token, zero if none */
+    private long token = 0;
+    private long lease = 0;
+    /** when the lease ends, zero while connected */
+    private long expires = 0;
+
+    /** the count of frames sent */
+    private int sent = 0;
+    /** the count of frames the peer reported */
+    private int confirmed = 0;
+    /** the last frame sent which is not kept */
+    private int lost = 0;
+    /** the count of frames received */
+    private int received = 0;
+    /** the frames sent and not yet reported, the last is frame number sent */
+    private final LinkedList<AmmoGatewayMessage> unconfirmed = new LinkedList<AmmoGatewayMessage>();
+    /** the request was sent, waiting for the peer to accept */
+    private boolean resuming = false;
+    /** the frames not acknowledged because their write failed */
+    private final IdentityHashMap<AmmoGatewayMessage, Boolean> held = new IdentityHashMap<AmmoGatewayMessage, Boolean>();
+    /** the held frames the peer has reported */
+    private final List<AmmoGatewayMessage> reported = new ArrayList<AmmoGatewayMessage>();
+    /** the last frame sent which the peer reports on receipt, and when */
+    private int timedFrame = 0;
+    private long timedAt = 0;
+    /** when the frame the peer last reported was sent, zero if not timed */
+    private long reportedSentAt = 0;
+
+    /**
+     * @param leaseMillis how long after losing the connection the session
+     *        may be resumed, zero disables resumption
+     * @param replayLimit the most frames which may be sent again on
+     *        resuming, with more kept the session is forfeit
+     */
+    public synchronized void configure(long leaseMillis, int replayLimit) {
+        this.leaseMillis = Math.max(0, leaseMillis);
+        this.replayLimit = Math.max(1, replayLimit);
+        logger.info("lease={} replay limit={}", this.leaseMillis, this.replayLimit);
+    }
+
+    /**
+     * The flag advertised in the header of every message.
+     */
+    public synchronized byte advertise() {
+        return (this.leaseMillis > 0) ? AmmoGatewayMessage.FLAG_ACCEPTS_RESUME : 0;
+    }
+
+    /**
+     * Does the frame count toward the session.
+     */
+    static public boolean counts(AmmoGatewayMessage msg) {
+        return !msg.isResume() && !msg.hasFlag(AmmoGatewayMessage.FLAG_HEARTBEAT);
+    }
+
+    /**
+     * A new session, the channel was authorized.
+     * Anything still kept should have been taken with forfeit(); the held
+     * frames stay held until they are written again.
+     */
+    public synchronized void start() {
+        this.token = 0;
+        this.lease = 0;
+        this.expires = 0;
+        this.sent = 0;
+        this.confirmed = 0;
+        this.lost = 0;
+        this.received = 0;
+        this.resuming = false;
+        this.unconfirmed.clear();
+        this.reported.clear();
+        this.timedFrame = 0;
+        this.reportedSentAt = 0;
+    }
+
+    /**
+     * The frame was written to the peer.
+     *
+     * @param now when it was written
+     * @return true if it is kept to be sent again
+     */
+    public synchronized boolean sent(AmmoGatewayMessage msg, long now) {
+        if (!counts(msg))
+            return false;
+        this.sent++;
+        if (this.sent % ACK_EVERY == 0) {
+            this.timedFrame = this.sent;
+            this.timedAt = now;
+        }
+        if (this.token == 0
+                && (this.leaseMillis < 1 || this.lost != 0 || this.unconfirmed.size() >= this.replayLimit)) {
+            // no token came in time, nothing will be reported so nothing is kept
+            this.unconfirmed.clear();
+            this.lost = this.sent;
+            return false;
+        }
+        this.unconfirmed.add(msg);
+        return true;
+    }
+
+    /**
+     * The write of a kept frame failed, it is acknowledged once the peer
+     * reports it, see takeReported(), or once it is written again.
+     */
+    public synchronized void hold(AmmoGatewayMessage msg) {
+        this.held.put(msg, Boolean.TRUE);
+    }
+
+    /**
+     * The frame was written again.
+     *
+     * @return true if it was held, it is still to be acknowledged
+     */
+    public synchronized boolean release(AmmoGatewayMessage msg) {
+        return this.held.remove(msg) != null;
+    }
+
+    /**
+     * The held frames the peer reported since the last call, still to be
+     * acknowledged.
+     */
+    public synchronized List<AmmoGatewayMessage> takeReported() {
+        final List<AmmoGatewayMessage> taken = new ArrayList<AmmoGatewayMessage>(this.reported);
+        this.reported.clear();
+        return taken;
+    }
+
+    /**
+     * When the frame the peer last reported was written, if that report
+     * answered it; taken once.
+     *
+     * @return the time or zero if the report answered no timed frame
+     */
+    public synchronized long takeReportedSentAt() {
+        final long sentAt = this.reportedSentAt;
+        this.reportedSentAt = 0;
+        return sentAt;
+    }
+
+    /**
+     * The frame was read from the peer.
+     *
+     * @return true if the count should be reported
+     */
+    public synchronized boolean received(AmmoGatewayMessage msg) {
+        if (!counts(msg))
+            return false;
+        this.received++;
+        return this.token != 0 && this.received % ACK_EVERY == 0;
+    }
+
+    /**
+     * Act on a control message from the peer.
+     *
+     * @return the kind of the message or -1 if it was not for this session
+     */
+    public synchronized int onControl(AmmoGatewayMessage msg) {
+        if (msg.size < CONTROL_LENGTH) {
+            logger.warn("short session control {}", msg);
+            return -1;
+        }
+        final ByteBuffer body = ByteBuffer.wrap(msg.payload, 0, msg.size);
+        body.order(ByteOrder.BIG_ENDIAN);
+        final long token = body.getLong();
+        final byte kind = body.get();
+        final int first = body.getInt();
+        @SuppressWarnings("unused")
+        final int second = body.getInt();
+
+        if (kind == GRANT) {
+            if (this.leaseMillis < 1 || token == 0)
+                return -1;
+            this.token = token;
+            this.lease = Math.min(this.leaseMillis, Math.max(0, first));
+            logger.info("granted session {} lease={}", Long.toHexString(token), this.lease);
+            return kind;
+        }
+        if (token != this.token || token == 0)
+            return -1;
+        switch (kind) {
+            case ACCEPT:
+                if (!this.resuming)
+                    return -1;
+                this.confirm(first);
+                return kind;
+            case ACK:
+                if (this.timedFrame != 0 && first == this.timedFrame) {
+                    this.reportedSentAt = this.timedAt;
+                    this.timedFrame = 0;
+                }
+                this.confirm(first);
+                return kind;
+            case REFUSE:
+                logger.info("session {} refused", Long.toHexString(token));
+                return kind;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * Drop the frames the peer has reported.
+     */
+    private void confirm(int count) {
+        if (count - this.confirmed <= 0)
+            return;
+        this.confirmed = count;
+        while (!this.unconfirmed.isEmpty() && this.firstKept() - count <= 0) {
+            final AmmoGatewayMessage msg = this.unconfirmed.removeFirst();
+            if (this.held.remove(msg) != null)
+                this.reported.add(msg);
+        }
+    }
+
+    private int firstKept() {
+        return this.sent - this.unconfirmed.size() + 1;
+    }
+
+    /**
+     * The connection was lost, the lease starts.
+     *
+     * @return true if the session may be resumed
+     */
+    public synchronized boolean suspend(long now) {
+        if (this.token != 0 && this.expires == 0)
+            this.expires = now + this.lease;
+        return this.canResume(now);
+    }
+
+    /**
+     * Is the lease still running, every frame not reported still kept and
+     * no more kept than the replay limit.
+     */
+    public synchronized boolean canResume(long now) {
+        return this.token != 0 && this.expires != 0
+                && now - this.expires < 0
+                && this.confirmed - this.lost >= 0
+                && this.unconfirmed.size() <= this.replayLimit;
+    }
+
+    /**
+     * Present the token on a new connection; nothing else is sent until
+     * the peer accepts.
+     */
+    public synchronized AmmoGatewayMessage newRequest(NetChannel channel) {
+        this.resuming = true;
+        return newControl(REQUEST, this.token, this.received, this.firstKept(), channel);
+    }
+
+    /**
+     * The peer accepted, the kept frames it does not have are to be sent
+     * before any other; they will be counted again as they are sent.
+     */
+    public synchronized List<AmmoGatewayMessage> resume() {
+        final int first = this.firstKept();
+        final List<AmmoGatewayMessage> replay = new ArrayList<AmmoGatewayMessage>(this.unconfirmed);
+        logger.info("resuming session {} from {} with {} frames",
+                new Object[] { Long.toHexString(this.token), first, replay.size() });
+        this.unconfirmed.clear();
+        this.sent = first - 1;
+        this.expires = 0;
+        this.resuming = false;
+        return replay;
+    }
+
+    /**
+     * The lease ran out before a connection was made.
+     */
+    public synchronized boolean hasExpired(long now) {
+        return this.token != 0 && this.expires != 0 && !this.canResume(now);
+    }
+
+    /**
+     * The session is over. Every frame not reported is returned so it can
+     * be sent again once the channel is authorized. Without a token the peer
+     * reports nothing, so only the frames whose write failed are returned;
+     * the rest were taken as sent and sending them again on every lost
+     * connection would never end.
+     */
+    public synchronized List<AmmoGatewayMessage> forfeit() {
+        if (this.token != 0)
+            logger.info("forfeit session {}", Long.toHexString(this.token));
+        final List<AmmoGatewayMessage> carried = new ArrayList<AmmoGatewayMessage>();
+        for (final AmmoGatewayMessage msg : this.unconfirmed) {
+            if (this.token != 0 || this.held.containsKey(msg))
+                carried.add(msg);
+        }
+        this.start();
+        return carried;
+    }
+
+    /**
+     * Report the count received to the peer.
+     */
+    public synchronized AmmoGatewayMessage newAck(NetChannel channel) {
+        return newControl(ACK, this.token, this.received, 0, channel);
+    }
+
+    public synchronized boolean isGranted() {
+        return this.token != 0;
+    }
+
+    public synchronized int unconfirmed() {
+        return this.unconfirmed.size();
+    }
+
+    /**
+     * Build a control message, used by either side.
+     */
+    static public AmmoGatewayMessage newControl(byte kind, long token, int first, int second,
+            NetChannel channel) {
+        final ByteBuffer body = ByteBuffer.allocate(CONTROL_LENGTH);
+        body.order(ByteOrder.BIG_ENDIAN);
+        body.putLong(token).put(kind).putInt(first).putInt(second);
+        final byte[] payload = body.array();
+        return AmmoGatewayMessage.newBuilder()
+                .size(payload.length)
+                .payload(payload)
+                .checksum(AmmoGatewayMessage.CheckSum.newInstance(payload).asLong())
+                .priority(AmmoGatewayMessage.PriorityLevel.CTRL.b())
+                .version(AmmoGatewayMessage.VERSION_1_RESUME)
+                .channel(channel)
+                .build();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return new StringBuilder()
+                .append("session=").append(Long.toHexString(this.token))
+                .append(" sent=").append(this.sent)
+                .append(" confirmed=").append(this.confirmed)
+                .append(" received=").append(this.received)
+                .append(" kept=").append(this.unconfirmed.size())
+                .toString();
+    }
+}
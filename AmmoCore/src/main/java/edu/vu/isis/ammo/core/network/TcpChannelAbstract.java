@@ -21,8 +21,10 @@
 
 package edu.vu.isis.ammo.core.network;
 
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.File;
 import java.net.InetAddress;
 import java.net.NetworkInterface;
 import java.net.Socket;
@@ -30,24 +32,21 @@ import java.net.SocketException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
 import java.util.Enumeration;
+import java.util.Iterator;
 import java.util.LinkedList;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.PriorityBlockingQueue;
-import java.util.concurrent.TimeUnit;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import android.content.Context;
 import edu.vu.isis.ammo.core.distributor.DistributorDataStore.DisposalState;
-import edu.vu.isis.ammo.core.pb.AmmoMessages;
 
 /**
  * Two long running threads and one short. The long threads are for sending and
@@ -63,6 +62,8 @@ abstract public class TcpChannelAbstract extends NetChannel {
 	 */
 	protected final Logger logger;
 
+	/** the connector checks on heartbeats no more often than this */
+	protected static final long HEARTBEAT_CHECK_MIN = 100;
 	protected static final int BURP_TIME = 5 * 1000; // 5 seconds expressed in
 														// milliseconds
 
@@ -86,6 +87,16 @@ abstract public class TcpChannelAbstract extends NetChannel {
 	private static final int TCP_RECV_BUFF_SIZE = 0x15554; 
 	/** arbitrary max size */
 	private static final int MAX_MESSAGE_SIZE = 0x100000; 
+	/** the largest message reassembled from chunks */
+	private static final int MAX_TRANSFER_SIZE = 0x4000000;
+	/** messages up to this size are sent with a single write */
+	private static final int SEND_FRAME_SIZE = 0x2000;
+	/** the sender writes through a buffer of this size, flushed once per drain */
+	private static final int SEND_BUFFER_SIZE = 0x10000;
+	/** by default the sender drains up to this many bytes before a flush */
+	public static final int DEFAULT_FLUSH_BUDGET = 0x10000;
+	/** how long the sender waits for messages while a transfer is unconfirmed */
+	private static final long CHUNK_WAIT = 1000;
 	
 	/** default timeout is 45 seconds */
 	private int DEFAULT_WATCHDOG_TIMOUT = 45;
@@ -95,6 +106,25 @@ abstract public class TcpChannelAbstract extends NetChannel {
 	protected int socketTimeout = 30 * 1000;
 
 	private int mMaxMessageSize = MAX_MESSAGE_SIZE;
+	/** small messages may be sent together, off by default */
+	private final MessageBatcher mBatcher = new MessageBatcher();
+	/** payloads may be compressed, off until the policy enables it */
+	private final PayloadCompressor mCompressor = new PayloadCompressor();
+	/** large messages may be sent in chunks, off until configured */
+	private final ChunkSplitter mSplitter = new ChunkSplitter();
+	/** a lost session may be picked up again if the gateway granted a token */
+	private final SessionResumption mSession = new SessionResumption();
+	/** how many bytes the sender writes before flushing */
+	private volatile int mFlushBudget = DEFAULT_FLUSH_BUDGET;
+	/** how long the sender waits for more messages before flushing */
+	private volatile long mFlushLinger = 0;
+	private final ChunkAssembler mAssembler = new ChunkAssembler(
+			new ChunkAssembler.Acknowledger() {
+				@Override
+				public void sendAck(AmmoGatewayMessage ack) {
+					mSenderQueue.putFromDistributor(ack);
+				}
+			});
 	
 	private ByteOrder endian = ByteOrder.LITTLE_ENDIAN;
 	private final Object syncObj;
@@ -127,23 +157,6 @@ abstract public class TcpChannelAbstract extends NetChannel {
 	public final IChannelManager mChannelManager;
 	private final AtomicReference<ISecurityObject> mSecurityObject = new AtomicReference<ISecurityObject>();
 
-	private Timer mUpdateBpsTimer = new Timer();
-
-	protected final TimerTask mUpdateBpsTask = new TimerTask() {
-		public void run() {
-			logger.trace("UpdateBpsTask fired");
-
-			// Update the BPS stats for the sending and receiving.
-			mBpsSent = (mBytesSent - mLastBytesSent)
-					/ BPS_STATS_UPDATE_INTERVAL;
-			mLastBytesSent = mBytesSent;
-
-			mBpsRead = (mBytesRead - mLastBytesRead)
-					/ BPS_STATS_UPDATE_INTERVAL;
-			mLastBytesRead = mBytesRead;
-		}
-	};
-
 	protected abstract ConnectorThread newConnectorThread(
 			final TcpChannelAbstract parent);
 
@@ -167,12 +180,10 @@ abstract public class TcpChannelAbstract extends NetChannel {
 
 		this.flatLineTime = DEFAULT_WATCHDOG_TIMOUT * 1000; // seconds into
 															// milliseconds
+		mRtt.configure(RttEstimator.DEFAULT_MIN_INTERVAL,
+				RttEstimator.DEFAULT_MAX_INTERVAL, this.flatLineTime);
 
 		mSenderQueue = new SenderQueue(this);
-
-		// Set up timer to trigger once per minute.
-		mUpdateBpsTimer.scheduleAtFixedRate(mUpdateBpsTask, 0,
-				BPS_STATS_UPDATE_INTERVAL * 1000);
 	}
 
 	@Override
@@ -180,6 +191,8 @@ abstract public class TcpChannelAbstract extends NetChannel {
 		StringBuilder countsString = new StringBuilder();
 		countsString.append("S:").append(mMessagesSent.get()).append(" ");
 		countsString.append("R:").append(mMessagesReceived.get());
+		if (mRtt.samples() > 0)
+			countsString.append(" RTT:").append(mRtt.srtt());
 		return countsString.toString();
 	}
 
@@ -218,8 +231,19 @@ abstract public class TcpChannelAbstract extends NetChannel {
 		}
 	}
 
+	/**
+	 * Disable the channel for good: the connector thread is stopped, which
+	 * closes the connection, and the channel's metrics are no longer
+	 * sampled. The channel is not meant to be used again.
+	 */
 	public boolean close() {
-		return false;
+		logger.trace("Thread <{}>::close", Thread.currentThread().getId());
+		synchronized (this.syncObj) {
+			this.disable();
+			this.connectorThread.interrupt();
+		}
+		this.stopSampling();
+		return true;
 	}
 
 	public boolean setSocketTimeout(int value) {
@@ -230,6 +254,83 @@ abstract public class TcpChannelAbstract extends NetChannel {
 		return true;
 	}
 
+	/**
+	 * Send small messages together in batch frames.
+	 * 
+	 * @param maxBatchSize the largest batch in bytes, zero disables batching
+	 * @param lingerMillis how long to wait for more messages to batch
+	 */
+	public void setBatching(int maxBatchSize, long lingerMillis) {
+		logger.trace("Thread <{}>::setBatching {}", Thread.currentThread().getId(), maxBatchSize);
+		mBatcher.configure(maxBatchSize, lingerMillis);
+	}
+
+	/**
+	 * Compress large payloads once the gateway has agreed to it.
+	 * 
+	 * @param enabled whether the channel policy allows compression
+	 * @param threshold the smallest payload worth compressing
+	 */
+	public void setCompression(boolean enabled, int threshold) {
+		logger.trace("Thread <{}>::setCompression {}", Thread.currentThread().getId(), enabled);
+		mCompressor.configure(enabled, threshold);
+	}
+
+	/**
+	 * Send messages larger than the chunk size in chunks, once the gateway
+	 * has agreed to it, and take chunked messages from the gateway.
+	 * 
+	 * @param chunkSize the most data in a chunk, zero disables sending chunks
+	 * @param spillDir where partial transfers are kept, null disables
+	 *        receiving chunks
+	 */
+	public void setChunking(int chunkSize, File spillDir) {
+		logger.trace("Thread <{}>::setChunking {}", Thread.currentThread().getId(), chunkSize);
+		mSplitter.configure(chunkSize);
+		mAssembler.configure(spillDir, MAX_TRANSFER_SIZE);
+	}
+
+	/**
+	 * Bound the lanes of the send queue, one per priority band.
+	 * 
+	 * @param capacity the most messages waiting in each lane
+	 * @param highWater how many waiting messages make the channel busy
+	 */
+	public void setSendLanes(int capacity, int highWater) {
+		logger.trace("Thread <{}>::setSendLanes {}", Thread.currentThread().getId(), capacity);
+		mSenderQueue.configure(capacity, highWater);
+	}
+
+	/**
+	 * Pick up the gateway session after a reconnect without authenticating
+	 * again, once the gateway has granted a token.
+	 * 
+	 * @param leaseMillis how long after losing the connection the session
+	 *        may be resumed, zero disables resumption
+	 * @param replayLimit the most messages not reported by the gateway
+	 *        which may be sent again on resuming, with more the session is
+	 *        given up
+	 */
+	public void setSessionLease(long leaseMillis, int replayLimit) {
+		logger.trace("Thread <{}>::setSessionLease {}", Thread.currentThread().getId(), leaseMillis);
+		mSession.configure(leaseMillis, replayLimit);
+	}
+
+	/**
+	 * The sender writes the messages waiting in the queue together and
+	 * flushes once, then acknowledges them all.
+	 * 
+	 * @param flushBudget the most bytes written before a flush, zero or
+	 *        less writes and flushes each message on its own
+	 * @param lingerMillis how long to wait for more messages before a flush
+	 */
+	public void setWriteCoalescing(int flushBudget, long lingerMillis) {
+		logger.trace("Thread <{}>::setWriteCoalescing {} {}", new Object[] {
+				Thread.currentThread().getId(), flushBudget, lingerMillis });
+		mFlushBudget = flushBudget;
+		mFlushLinger = Math.max(0, lingerMillis);
+	}
+
 	 public boolean setMaxMsgSize (int size) {
 	    logger.trace("Thread <{}>::setMaxMsgSize {}", Thread.currentThread().getId(), size);
 	    if (mMaxMessageSize  == (size * 0x100000)) return false;
@@ -317,6 +418,9 @@ abstract public class TcpChannelAbstract extends NetChannel {
 	}
 
 	public void authorizationSucceeded(AmmoGatewayMessage agm) {
+		mCompressor.negotiate(agm);
+		mSplitter.negotiate(agm);
+		mSession.start();
 		setIsAuthorized(true);
 		mSenderQueue.markAsAuthorized();
 
@@ -339,6 +443,62 @@ abstract public class TcpChannelAbstract extends NetChannel {
 	private boolean deliverMessage(AmmoGatewayMessage agm) {
 		logger.debug("In deliverMessage() {} ", agm);
 
+		if (agm.hasFlag(AmmoGatewayMessage.FLAG_HEARTBEAT))
+			answerHeartbeat();
+		if (agm.hasFlag(AmmoGatewayMessage.FLAG_HEARTBEAT_REPLY))
+			mRtt.answered(System.currentTimeMillis());
+
+		if (agm.isChunkAck()) {
+			final AmmoGatewayMessage complete = mSplitter.onAck(agm);
+			agm.releasePayload();
+			if (complete != null && complete.handler != null)
+				ackToHandler(complete.handler, DisposalState.SENT);
+			return true;
+		}
+
+		if (agm.isResume()) {
+			onSessionControl(agm);
+			agm.releasePayload();
+			return true;
+		}
+
+		if (agm.isChunk()) {
+			final AmmoGatewayMessage whole = mAssembler.accept(agm);
+			agm.releasePayload();
+			if (whole == null)
+				return true;
+			final boolean result = deliverMessage(whole);
+			if (!result)
+				whole.releasePayload();
+			return result;
+		}
+
+		if (agm.isCompressed()) {
+			final AmmoGatewayMessage inflated = mCompressor.decompress(agm, mMaxMessageSize);
+			agm.releasePayload();
+			if (inflated == null) {
+				logger.warn("discarding corrupt compressed message {}", agm);
+				return false;
+			}
+			final boolean result = deliverMessage(inflated);
+			if (!result)
+				inflated.releasePayload();
+			return result;
+		}
+
+		if (agm.isBatch()) {
+			final List<AmmoGatewayMessage> batch = agm.unpackBatch();
+			agm.releasePayload();
+			if (batch == null) {
+				logger.warn("discarding corrupt batch {}", agm);
+				return false;
+			}
+			boolean result = true;
+			for (final AmmoGatewayMessage msg : batch)
+				result &= deliverMessage(msg);
+			return result;
+		}
+
 		final boolean result;
 		if (mIsAuthorized.get()) {
 			logger.trace(" delivering to channel manager");
@@ -369,78 +529,132 @@ abstract public class TcpChannelAbstract extends NetChannel {
 		return mChannelManager.isAnyLinkUp();
 	}
 
-	private final AtomicLong mTimeOfLastGoodRead = new AtomicLong(0);
-
-	private final AtomicLong mTimeOfLastGoodSend = new AtomicLong(0);
+	/**
+	 * the round trip time to the peer, from which the heartbeat spacing and
+	 * the flat line time are taken
+	 */
+	private final RttEstimator mRtt = new RttEstimator();
 
 	// This should be called each time we successfully read data from the
 	// socket.
 	private void resetTimeoutWatchdog() {
-		// logger.debug( "Resetting watchdog timer" );
-		mTimeOfLastGoodRead.set(System.currentTimeMillis());
-		// update the time of last good send ...
-		mTimeOfLastGoodSend.set(0);
+		mRtt.heard(System.currentTimeMillis());
 	}
 
-	// Returns true if we have gone more than flatLineTime without reading
-	// any data from the socket.
+	// Returns true if a heartbeat has gone unanswered for longer than the
+	// round trip time allows.
 	protected boolean hasWatchdogExpired() {
-		logger.trace("Check for connection expiry {}",
-				mTimeOfLastGoodSend.get());
+		final boolean expired = mRtt.hasExpired(System.currentTimeMillis());
+		if (expired)
+			logger.warn("heartbeat unanswered {}", mRtt);
+		return expired;
+	}
 
-		if (mTimeOfLastGoodSend.get() == 0)
-			return false;
-		if ((System.currentTimeMillis() - mTimeOfLastGoodSend.get()) > flatLineTime)
-			return true;
-		else
-			return false;
-		// return (System.currentTimeMillis() - mTimeOfLastGoodRead.get()) >
-		// flatLineTime;
+	/**
+	 * How long the connector may wait before it should check again for
+	 * heartbeats, never more than the burp time.
+	 */
+	protected long heartbeatWait() {
+		return Math.max(HEARTBEAT_CHECK_MIN,
+				Math.min(BURP_TIME, mRtt.untilNextCheck(System.currentTimeMillis())));
 	}
 
-	// Heartbeat-related members.
-	private final long mHeartbeatInterval = 10 * 1000; // ms
-	private final AtomicLong mNextHeartbeatTime = new AtomicLong(0);
+	/**
+	 * The heartbeat is sent only when nothing has been heard from the peer
+	 * for a while, so not while data is arriving. How long depends on the
+	 * round trip time.
+	 * 
+	 * @param minInterval the shortest time without news before a heartbeat
+	 * @param maxInterval the longest
+	 */
+	public void setHeartbeat(long minInterval, long maxInterval) {
+		logger.trace("Thread <{}>::setHeartbeat {} {}", new Object[] {
+				Thread.currentThread().getId(), minInterval, maxInterval });
+		mRtt.configure(minInterval, maxInterval, flatLineTime);
+	}
 
-	// Send a heartbeat packet to the gateway if enough time has elapsed.
-	// Note: the way this currently works, the heartbeat can only be sent
-	// in intervals that are multiples of the burp time. This may change
-	// later if I can eliminate some of the wait()s.
-	protected void sendHeartbeatIfNeeded() {
-		// logger.warn( "In sendHeartbeatIfNeeded()." );
+	public RttEstimator getRoundTrip() {
+		return mRtt;
+	}
 
+	// Send a heartbeat packet to the gateway if nothing has been heard from
+	// it for a while.
+	protected void sendHeartbeatIfNeeded() {
 		long nowInMillis = System.currentTimeMillis();
-		if (nowInMillis < mNextHeartbeatTime.get())
+		if (!mRtt.heartbeatDue(nowInMillis))
 			return;
 
-		// check DistQueue, if some thing is already there to be sent,
-		// no need for a heartbeat
-		if (mSenderQueue.sizeOfDistQ() > 0)
-			return;
-
-		// Send the heartbeat here.
-		logger.warn("Sending a heartbeat. t={}", nowInMillis);
+		logger.debug("Sending a heartbeat. t={} {}", nowInMillis, mRtt);
+		this.sendRequest(AmmoGatewayMessage.newHeartbeat(nowInMillis)
+				.flags(AmmoGatewayMessage.FLAG_HEARTBEAT)
+				.build());
+	}
 
-		// Create a heartbeat message and call the method to send it.
-		final AmmoMessages.MessageWrapper.Builder mw = AmmoMessages.MessageWrapper
-				.newBuilder();
-		mw.setType(AmmoMessages.MessageWrapper.MessageType.HEARTBEAT);
-		mw.setMessagePriority(AmmoGatewayMessage.PriorityLevel.FLASH.v);
+	/**
+	 * The gateway granted, accepted or refused a session, or reported what
+	 * it received. The accepted session is negotiated as an authorization
+	 * is and the channel is authorized; a refused one is given up and the
+	 * channel authenticates on a new connection.
+	 */
+	private void onSessionControl(AmmoGatewayMessage agm) {
+		switch (mSession.onControl(agm)) {
+		case SessionResumption.ACCEPT:
+			mCompressor.negotiate(agm);
+			mSplitter.negotiate(agm);
+			ackReported();
+			mSenderQueue.accept();
+			mChannelManager.sessionResumed(this);
+			break;
+		case SessionResumption.ACK:
+			// the report answers a frame sent, time the round trip
+			final long sentAt = mSession.takeReportedSentAt();
+			if (sentAt != 0)
+				mRtt.sample(System.currentTimeMillis() - sentAt);
+			ackReported();
+			break;
+		case SessionResumption.REFUSE:
+			mSenderQueue.forfeit();
+			reset();
+			break;
+		default:
+		}
+	}
 
-		final AmmoMessages.Heartbeat.Builder message = AmmoMessages.Heartbeat
-				.newBuilder();
-		message.setSequenceNumber(nowInMillis); // Just for testing
+	/**
+	 * The messages whose write failed which the gateway has now reported.
+	 */
+	private void ackReported() {
+		for (final AmmoGatewayMessage reported : mSession.takeReported()) {
+			if (reported.handler != null)
+				ackToHandler(reported.handler, DisposalState.SENT);
+		}
+	}
 
-		mw.setHeartbeat(message);
+	/**
+	 * Called by the connector while there is no connection, once the lease
+	 * of the session runs out the distributor is told what is still queued.
+	 */
+	protected void expireSession() {
+		mSenderQueue.expire();
+	}
 
-		final AmmoGatewayMessage.Builder agmb = AmmoGatewayMessage.newBuilder(
-				mw, null);
-		agmb.isGateway(true);
-		agmb.isHeartbeat(true);
-		this.sendRequest(agmb.build());
+	/**
+	 * Count the message toward the session, reporting the count to the
+	 * gateway now and then.
+	 */
+	private void countReceived(AmmoGatewayMessage agm) {
+		if (getIsAuthorized() && mSession.received(agm))
+			mSenderQueue.putFromDistributor(mSession.newAck(this));
+	}
 
-		mNextHeartbeatTime.set(nowInMillis + mHeartbeatInterval);
-		// logger.warn( "Next heartbeat={}", mNextHeartbeatTime );
+	/**
+	 * The peer asked for an answer to its heartbeat, the answer is flagged
+	 * so the peer may time it.
+	 */
+	private void answerHeartbeat() {
+		this.sendRequest(AmmoGatewayMessage.newHeartbeat(System.currentTimeMillis())
+				.flags(AmmoGatewayMessage.FLAG_HEARTBEAT_REPLY)
+				.build());
 	}
 
 	// ===========================================================
@@ -469,7 +683,12 @@ abstract public class TcpChannelAbstract extends NetChannel {
 		// Called by the sender and receiver when they have an exception on the
 		// Socket. We only want to call reset() once, so we use an
 		// AtomicBoolean to keep track of whether we need to call it.
+		// The threads of a connection already closed may only now notice,
+		// with a quick reconnect they must not reset the new connection.
 		public void socketOperationFailed() {
+			final Thread current = Thread.currentThread();
+			if (current != parent.mSender && current != parent.mReceiver)
+				return;
 			if (mIsConnected.compareAndSet(true, false))
 				state.reset();
 		}
@@ -535,6 +754,19 @@ abstract public class TcpChannelAbstract extends NetChannel {
 				return true;
 			}
 
+			/**
+			 * As setUnlessDisabled() unless the connection failed since the
+			 * attempt began, e.g. the gateway refused the session while it
+			 * was being made; the state is then left stale.
+			 * 
+			 * @return false if disabled or failed; true otherwise
+			 */
+			public synchronized boolean setUnlessFailed(int state, long attempt) {
+				if (attempt != this.attempt)
+					return false;
+				return this.setUnlessDisabled(state);
+			}
+
 			public synchronized int get() {
 				return this.value;
 			}
@@ -615,13 +847,19 @@ abstract public class TcpChannelAbstract extends NetChannel {
 			mBpsSent = 0;
 			mBpsRead = 0;
 
+			// A session still under lease is picked up straight away, the
+			// channel is authorized once the gateway accepts the token.
+			final boolean resumed = parent.mSenderQueue.resume();
+
 			// Create the security object. This must be done before
 			// the ReceiverThread is created in case we receive a
 			// message before the SecurityObject is ready to have it
-			// delivered.
+			// delivered. A resumed session has none, until the gateway
+			// answers the token nothing else is expected.
 			if (parent.getSecurityObject() != null)
 				logger.error("Tried to create SecurityObject when we already had one.");
-			parent.setSecurityObject(new TcpSecurityObject(parent));
+			if (!resumed)
+				parent.setSecurityObject(new TcpSecurityObject(parent));
 
 			// Create the sending thread.
 			if (parent.mSender != null)
@@ -636,6 +874,9 @@ abstract public class TcpChannelAbstract extends NetChannel {
 			parent.mReceiver = new ReceiverThread(this, parent, parent.mSocket);
 			parent.mReceiver.start();
 
+			if (resumed)
+				return true;
+
 			// FIXME: don't pass in the result of buildAuthenticationRequest().
 			// This is
 			// just a temporary hack.
@@ -671,6 +912,7 @@ abstract public class TcpChannelAbstract extends NetChannel {
 			}
 
 			mSenderQueue.reset();
+			mRtt.restart(System.currentTimeMillis());
 
 			if (parent.mSocket != null) {
 				logger.debug("Closing socket...");
@@ -719,28 +961,27 @@ abstract public class TcpChannelAbstract extends NetChannel {
 	/**
 	 * Send the messages
 	 */
-	class SenderQueue {
+	class SenderQueue implements MessageBatcher.Source {
 		public SenderQueue(TcpChannelAbstract iChannel) {
 			mChannel = iChannel;
 
 			setIsAuthorized(false);
-			// mDistQueue = new LinkedBlockingQueue<AmmoGatewayMessage>( 20 );
-			mDistQueue = new PriorityBlockingQueue<AmmoGatewayMessage>(20);
+			mDistQueue = new SendLanes();
+			mDistQueue.setDwell(mQueueDwell);
 			mAuthQueue = new LinkedList<AmmoGatewayMessage>();
+			mReplayQueue = new LinkedList<AmmoGatewayMessage>();
 		}
 
-		// In the new design, aren't we supposed to let the
-		// AmmoService know if the outgoing queue is full or not?
+		/**
+		 * The distributor is never made to wait, if the lane for the
+		 * priority of the message is full the channel is busy.
+		 */
 		public DisposalState putFromDistributor(AmmoGatewayMessage iMessage) {
 			logger.trace("putFromDistributor()");
-			try {
-				if (!mDistQueue.offer(iMessage, 1, TimeUnit.SECONDS)) {
-					logger.warn("channel not taking messages {}",
-							DisposalState.BUSY);
-					return DisposalState.BUSY;
-				}
-			} catch (InterruptedException e) {
-				return DisposalState.BAD;
+			if (!mDistQueue.offer(iMessage)) {
+				logger.warn("channel not taking messages {} {}",
+						DisposalState.BUSY, mDistQueue);
+				return DisposalState.BUSY;
 			}
 			return DisposalState.QUEUED;
 		}
@@ -773,44 +1014,156 @@ abstract public class TcpChannelAbstract extends NetChannel {
 		 * distribution request. If not yet authorized then return the first
 		 * item in the authentication queue, removing that item from its queue.
 		 * 
-		 * @return
+		 * The wait on the lanes is made outside the lock of the queue so the
+		 * security object is not held up.
+		 * 
+		 * @return the message, or null if there are messages to send again
 		 * @throws InterruptedException
 		 */
-		public synchronized AmmoGatewayMessage take()
-				throws InterruptedException {
+		public AmmoGatewayMessage take() throws InterruptedException {
 			logger.trace("taking from SenderQueue");
-			while (!mChannel.getIsAuthorized() && mAuthQueue.size() < 1) {
-				logger.trace("wait()ing in SenderQueue");
-				wait();
-			}
-			if (mChannel.getIsAuthorized()) {
-				return mDistQueue.take();
+			synchronized (this) {
+				while (!mChannel.getIsAuthorized() && mAuthQueue.size() < 1) {
+					logger.trace("wait()ing in SenderQueue");
+					wait();
+				}
+				if (!mChannel.getIsAuthorized()) {
+					// must be the mAuthQueue.size() > 0
+					return mAuthQueue.remove();
+				}
+				if (!mReplayQueue.isEmpty())
+					return null;
 			}
-			// must be the mAuthQueue.size() > 0
-			return mAuthQueue.remove();
+			return mDistQueue.take();
+		}
+
+		/**
+		 * The messages sent again for the session go before all others,
+		 * once authorized, and are sent as they are.
+		 */
+		public synchronized AmmoGatewayMessage pollReplay() {
+			if (!mChannel.getIsAuthorized())
+				return null;
+			return mReplayQueue.poll();
 		}
 
-		// Somehow synchronize this here.
+		/**
+		 * Used to gather more messages for a batch once authorized.
+		 */
+		@Override
+		public AmmoGatewayMessage poll(long timeoutMillis)
+				throws InterruptedException {
+			return mDistQueue.poll(timeoutMillis);
+		}
+
+		/**
+		 * The connection was lost. While the session may be resumed the
+		 * queued messages are kept for the next connection; otherwise the
+		 * distributor is told they could not be sent.
+		 */
 		public synchronized void reset() {
 			logger.trace("reset()ing the SenderQueue");
-			// Tell the distributor that we couldn't send these
-			// packets.
-			AmmoGatewayMessage msg = mDistQueue.poll();
-			while (msg != null) {
-				if (msg.handler != null)
-					mChannel.ackToHandler(msg.handler, DisposalState.PENDING);
-				msg = mDistQueue.poll();
+			if (mSession.suspend(System.currentTimeMillis())) {
+				logger.info("keeping {} for {}", mDistQueue, mSession);
+			} else {
+				forfeit();
+			}
+
+			// the progress of the transfers is kept so they can resume
+			for (final AmmoGatewayMessage transfer : mSplitter.reset()) {
+				if (transfer.handler != null)
+					mChannel.ackToHandler(transfer.handler, DisposalState.PENDING);
+			}
+			mAssembler.reset();
+
+			// a request not yet sent is for the lost connection
+			for (final Iterator<AmmoGatewayMessage> it = mAuthQueue.iterator(); it.hasNext();) {
+				if (it.next().isResume())
+					it.remove();
 			}
 
 			setIsAuthorized(false);
+			mCompressor.reset();
+		}
+
+		/**
+		 * Give up the session. The distributor is told the queued messages
+		 * could not be sent; those sent but not reported by the gateway are
+		 * sent again once the channel is authorized.
+		 */
+		public synchronized void forfeit() {
+			AmmoGatewayMessage msg = mBatcher.takePending();
+			if (msg != null && msg.handler != null)
+				mChannel.ackToHandler(msg.handler, DisposalState.PENDING);
+			for (final AmmoGatewayMessage queued : mDistQueue.drain()) {
+				if (queued.handler != null)
+					mChannel.ackToHandler(queued.handler, DisposalState.PENDING);
+			}
+			requeue(mSession.forfeit());
+		}
+
+		/**
+		 * Give up the session if its lease ran out while disconnected.
+		 */
+		public synchronized void expire() {
+			if (mSession.hasExpired(System.currentTimeMillis()))
+				forfeit();
+		}
+
+		/**
+		 * Present the token of a session still under lease, it is sent
+		 * while the channel is not authorized. A session which can no
+		 * longer be resumed is given up.
+		 * 
+		 * @return false if there is no session to resume
+		 */
+		public synchronized boolean resume() {
+			if (!mSession.canResume(System.currentTimeMillis())) {
+				if (mSession.isGranted())
+					forfeit();
+				return false;
+			}
+			mAuthQueue.offer(mSession.newRequest(mChannel));
+			notifyAll();
+			return true;
+		}
+
+		/**
+		 * The gateway accepted the session, the messages it does not have
+		 * are sent again ahead of the rest and the channel is authorized.
+		 */
+		public synchronized void accept() {
+			requeue(mSession.resume());
+			setIsAuthorized(true);
+			notifyAll();
+		}
+
+		/**
+		 * Put the messages ahead of those still waiting to be sent again,
+		 * which were sent after them. A sender waiting on the lanes is woken
+		 * to send them.
+		 */
+		private void requeue(List<AmmoGatewayMessage> replay) {
+			mReplayQueue.addAll(0, replay);
+			if (!replay.isEmpty())
+				mDistQueue.wake();
 		}
 
 		public int sizeOfDistQ() {
 			return mDistQueue.size();
 		}
 
-		private BlockingQueue<AmmoGatewayMessage> mDistQueue;
+		public boolean isBusy() {
+			return mDistQueue.isBusy();
+		}
+
+		public void configure(int capacity, int highWater) {
+			mDistQueue.configure(capacity, highWater);
+		}
+
+		private final SendLanes mDistQueue;
 		private LinkedList<AmmoGatewayMessage> mAuthQueue;
+		private final LinkedList<AmmoGatewayMessage> mReplayQueue;
 		private TcpChannelAbstract mChannel;
 	}
 
@@ -825,6 +1178,7 @@ abstract public class TcpChannelAbstract extends NetChannel {
 			mChannel = iChannel;
 			mQueue = iQueue;
 			mSocket = iSocket;
+			mOut = new BufferedOutputStream(mDataOutputStream, SEND_BUFFER_SIZE);
 			// create the logger
 			logger = LoggerFactory.getLogger("net.channel.tcp.sender."
 					+ channelName);
@@ -832,18 +1186,25 @@ abstract public class TcpChannelAbstract extends NetChannel {
 
 		/**
 		 * Block on reading from the queue until we get a message to send.
-		 * Then send it on the socket channel. Upon getting a socket error,
-		 *  notify our parent and go into an error state.
+		 * Then send it, along with whatever else is waiting, up to the flush
+		 * budget, and flush once. The messages are acknowledged together
+		 * after the flush. Upon getting a socket error, notify our parent
+		 * and go into an error state.
 		 */
 		@Override
 		public void run() {
 			logger.trace("Thread <{}>::run()", Thread.currentThread().getId());
 
+			final List<AmmoGatewayMessage> written = new ArrayList<AmmoGatewayMessage>();
 			while (mState != INetChannel.INTERRUPTED && !isInterrupted()) {
 				AmmoGatewayMessage msg = null;
 				try {
 					setSenderState(INetChannel.TAKING);
-					msg = mQueue.take(); // The main blocking call
+					msg = next(-1); // The main blocking call
+					// the transfer was dropped by a reset, or there are
+					// messages to send again
+					if (msg == null)
+						continue;
 					logger.debug("Took a message from the send queue");
 				} catch (InterruptedException ex) {
 					logger.debug("interrupted taking messages from send queue",
@@ -852,47 +1213,163 @@ abstract public class TcpChannelAbstract extends NetChannel {
 					break;
 				}
 
+				setSenderState(INetChannel.SENDING);
+				written.clear();
+				mResent.clear();
+				boolean interrupted = false;
+				AmmoGatewayMessage writing = null;
+				int bytesToSend = 0;
+				// a peer is not given up while the write is blocked
+				mRtt.writing(true, System.currentTimeMillis());
 				try {
-				    if (msg.size  > TcpChannelAbstract.this.mMaxMessageSize) {
-			            logger.info("Large Message, Rejecting: Message Size [" + msg.size + "]");
-			            if ( msg.handler != null )
-			                mChannel.ackToHandler( msg.handler, DisposalState.BAD);            
-			            continue;
-			        }
-					
-					ByteBuffer buf = msg.serialize(endian,
-							AmmoGatewayMessage.VERSION_1_FULL, (byte) 0);
-					setSenderState(INetChannel.SENDING);
-					int bytesToSend = buf.remaining();
-					mDataOutputStream.write(buf.array(), 0, bytesToSend);
+					final long deadline = System.currentTimeMillis() + mFlushLinger;
+					while (msg != null) {
+						if (msg.size > TcpChannelAbstract.this.mMaxMessageSize) {
+							logger.info("Large Message, Rejecting: Message Size [" + msg.size + "]");
+							if (msg.handler != null)
+								mChannel.ackToHandler(msg.handler, DisposalState.BAD);
+						} else {
+							writing = msg;
+							// before it is written, the answer may be read
+							// before the write returns
+							if (msg.hasFlag(AmmoGatewayMessage.FLAG_HEARTBEAT))
+								mRtt.sentHeartbeat(System.currentTimeMillis());
+							bytesToSend += msg.writeTo(mOut, mFrame,
+									endian, AmmoGatewayMessage.VERSION_1_FULL, (byte) 0,
+									(byte) (mCompressor.advertise() | mAssembler.advertise()
+											| mSession.advertise()));
+							written.add(msg);
+							writing = null;
+						}
+						// only authorized channels have more to send
+						if (bytesToSend >= mFlushBudget || !mChannel.getIsAuthorized())
+							break;
+						try {
+							msg = next(Math.max(0, deadline - System.currentTimeMillis()));
+						} catch (InterruptedException ex) {
+							interrupted = true;
+							break;
+						}
+					}
+					mOut.flush();
 					mBytesSent += bytesToSend;
 
-					logger.info("Send packet to Network, size ({})",
-							bytesToSend);
-
-					// set time of heartbeat sent
-					if (msg.isHeartbeat()) {
-						if (mTimeOfLastGoodSend.get() == 0)
-							mTimeOfLastGoodSend.set(System.currentTimeMillis());
+					logger.info("Send {} packets to Network, size ({})",
+							written.size(), bytesToSend);
+				} catch (Exception ex) {
+					logger.warn("sender threw exception", ex);
+					final long failedAt = System.currentTimeMillis();
+					mRtt.writing(false, failedAt);
+					// the gateway may have some of these, the session keeps
+					// them to send again and they are acknowledged once the
+					// gateway has them
+					if (writing != null)
+						written.add(writing);
+					for (final AmmoGatewayMessage failed : written) {
+						final boolean kept = countSent(failed, failedAt);
+						if (failed.handler == null)
+							continue;
+						if (kept) {
+							if (!wasResent(failed))
+								mSession.hold(failed);
+						} else if (mSession.release(failed) || !wasResent(failed)) {
+							mChannel.ackToHandler(failed.handler, DisposalState.REJECTED);
+						}
 					}
+					setSenderState(INetChannel.INTERRUPTED);
+					mParent.socketOperationFailed();
+					continue;
+				}
+
+				final long flushed = System.currentTimeMillis();
+				mRtt.writing(false, flushed);
+				for (final AmmoGatewayMessage sent : written) {
+					countSent(sent, flushed);
 
 					// update status count
 					mMessagesSent.incrementAndGet();
+					recordSent(sent, flushed);
 
-					// legitimately sent to gateway.
-					if (msg.handler != null)
-						mChannel.ackToHandler(msg.handler, DisposalState.SENT);
-				} catch (Exception ex) {
-					logger.warn("sender threw exception", ex);
-					if (msg.handler != null)
-						mChannel.ackToHandler(msg.handler,
-								DisposalState.REJECTED);
+					// legitimately sent to gateway, those sent again were
+					// acknowledged the first time unless their write failed
+					final boolean held = mSession.release(sent);
+					if (sent.handler != null && (held || !wasResent(sent)))
+						mChannel.ackToHandler(sent.handler, DisposalState.SENT);
+				}
+				if (interrupted) {
+					logger.debug("interrupted draining the send queue");
 					setSenderState(INetChannel.INTERRUPTED);
-					mParent.socketOperationFailed();
+					break;
 				}
 			}
 		}
 
+		private boolean wasResent(AmmoGatewayMessage msg) {
+			for (final AmmoGatewayMessage resent : mResent) {
+				if (resent == msg)
+					return true;
+			}
+			return false;
+		}
+
+		/**
+		 * Count the message toward the session, the messages of the
+		 * security object come before it.
+		 * 
+		 * @return true if the session keeps it to be sent again
+		 */
+		private boolean countSent(AmmoGatewayMessage msg, long now) {
+			if (msg.handler instanceof ISecurityObject)
+				return false;
+			return mSession.sent(msg, now);
+		}
+
+		/**
+		 * The next message to send: the messages sent again for a resumed
+		 * session, a message left over from the last batch,
+		 * then the chunks of a transfer in between other messages, then the
+		 * queue. Messages taken from the queue are batched, compressed or
+		 * split as the channel allows.
+		 * 
+		 * @param waitMillis how long to wait for the queue, negative waits
+		 *        until a message arrives
+		 * @return the message or null if none arrived in time, the transfer
+		 *         was dropped by a reset or is waiting to be reported
+		 *         complete, or there are messages to send again
+		 */
+		private AmmoGatewayMessage next(long waitMillis) throws InterruptedException {
+			// the messages sent again for the session go as they are
+			final AmmoGatewayMessage replay = mQueue.pollReplay();
+			if (replay != null) {
+				mResent.add(replay);
+				return replay;
+			}
+
+			// a message left over from the last batch goes first
+			AmmoGatewayMessage msg = mBatcher.takePending();
+			if (msg == null && mSplitter.isSending()) {
+				// other messages go between the chunks of a transfer
+				msg = mQueue.poll(0);
+				if (msg == null)
+					msg = mSplitter.nextChunk();
+			}
+			if (msg == null) {
+				// a transfer waiting to be reported complete may be resent
+				final long wait = (waitMillis < 0 && mSplitter.isWaiting()) ? CHUNK_WAIT : waitMillis;
+				msg = (wait < 0) ? mQueue.take() : mQueue.poll(wait);
+			}
+			if (msg == null)
+				return null;
+			if (mChannel.getIsAuthorized() && !msg.isChunk()) {
+				msg = mCompressor.compress(mBatcher.coalesce(msg, mQueue));
+				if (mSplitter.shouldSplit(msg)) {
+					mSplitter.start(msg);
+					msg = mSplitter.nextChunk();
+				}
+			}
+			return msg;
+		}
+
 		private void setSenderState(int iState) {
 			synchronized (this) {
 				mState = iState;
@@ -908,6 +1385,12 @@ abstract public class TcpChannelAbstract extends NetChannel {
 		private ConnectorThread mParent;
 		private TcpChannelAbstract mChannel;
 		private SenderQueue mQueue;
+		/** small messages are framed here, larger ones are written header then payload */
+		private final ByteBuffer mFrame = ByteBuffer.allocate(SEND_FRAME_SIZE);
+		/** the messages of this drain which were sent again for the session */
+		private final List<AmmoGatewayMessage> mResent = new ArrayList<AmmoGatewayMessage>();
+		/** the socket stream, flushed once per drain of the queue */
+		private final BufferedOutputStream mOut;
 		@SuppressWarnings("unused")
 		private Socket mSocket;
 		private Logger logger = null;
@@ -940,6 +1423,8 @@ abstract public class TcpChannelAbstract extends NetChannel {
 			ByteBuffer bbuf = ByteBuffer.allocate(TCP_RECV_BUFF_SIZE);
 			bbuf.order(endian); // mParent.endian
 			byte[] bbufArray = bbuf.array();
+			// the payload checksum is computed as the payload is read
+			final CRC32 payloadCrc = new CRC32();
 
 			threadWhile: 
 				while (mState != INetChannel.INTERRUPTED
@@ -1025,14 +1510,18 @@ abstract public class TcpChannelAbstract extends NetChannel {
 							}
 							continue;
 						}
-						// extract the payload
-						byte[] payload = new byte[agmb.size()];
+						// extract the payload into a slab from the pool,
+						// the consumer of the message gives it back
+						final BufferPool.Slab slab = BufferPool.getInstance().acquire(agmb.size());
+						final byte[] payload = slab.array;
 						int size = agmb.size();
 						int offset = 0;
+						payloadCrc.reset();
 						while (true) {
 							if (bbuf.remaining() < size) {
 								int rem = bbuf.remaining();
 								bbuf.get(payload, offset, rem);
+								payloadCrc.update(payload, offset, rem);
 								offset += rem;
 								size -= rem;
 								bbuf.clear();
@@ -1061,8 +1550,10 @@ abstract public class TcpChannelAbstract extends NetChannel {
 								continue;
 							}
 							bbuf.get(payload, offset, size);
+							payloadCrc.update(payload, offset, size);
 
-							AmmoGatewayMessage agm = agmb.payload(payload)
+							AmmoGatewayMessage agm = agmb.payload(slab)
+									.computedChecksum(payloadCrc.getValue())
 									.channel(this.mDestination).build();
 							logger.info(
 									"Received a packet from gateway size({}) @{}, csum {}",
@@ -1070,11 +1561,14 @@ abstract public class TcpChannelAbstract extends NetChannel {
 											agm.payload_checksum });
 
 							setReceiverState(INetChannel.DELIVER);
-							mDestination.deliverMessage(agm);
+							mDestination.countReceived(agm);
+							if (!mDestination.deliverMessage(agm))
+								agm.releasePayload();
 
 							// received a valid message, update status count
 							// ....
 							mMessagesReceived.incrementAndGet();
+							recordRead();
 							break;
 						}
 					}
@@ -1142,9 +1636,13 @@ abstract public class TcpChannelAbstract extends NetChannel {
 		return null;
 	}
 
+	/**
+	 * The channel is busy when its send lanes are past their high water
+	 * mark, the distributor then passes over it.
+	 */
 	@Override
 	public boolean isBusy() {
-		return false;
+		return mSenderQueue.isBusy();
 	}
 
 	@Override
@@ -33,6 +33,7 @@ import java.net.SocketException;
 import java.net.UnknownHostException;
 import java.nio.channels.AsynchronousCloseException;
 import java.nio.channels.ClosedChannelException;
+import java.util.List;
 
 import org.slf4j.LoggerFactory;
 import org.slf4j.Logger;
@@ -54,6 +55,11 @@ public class TcpChannelClient extends TcpChannelAbstract {
 	// a class based logger to be used by static methods ...
 	private static final Logger classlogger = LoggerFactory.getLogger("net.server");
 
+	private static final String DEFAULT_CLIENT_HOST = "192.168.1.100";
+	private static final int DEFAULT_CLIENT_PORT = 33289;
+	/** by default the next endpoint is tried this long after the last */
+	public static final long DEFAULT_CONNECT_STAGGER = 250;
+
 	// ===========================================================
 	// Factory
 	// ===========================================================
@@ -71,6 +77,9 @@ public class TcpChannelClient extends TcpChannelAbstract {
 
 	private String gatewayHost = null;
 	private int gatewayPort = -1;
+	/** the host may name several gateways, the fastest is used */
+	private final GatewayEndpoints endpoints = new GatewayEndpoints();
+	private volatile long connectStagger = DEFAULT_CONNECT_STAGGER;
 
 	private TcpChannelClient(String name, IChannelManager iChannelManager) {
 		super(name, iChannelManager, "client");
@@ -85,6 +94,16 @@ public class TcpChannelClient extends TcpChannelAbstract {
 		return true;
 	}
 
+	/**
+	 * When the host names several gateways, connects to each are started
+	 * this long apart, fastest first, until one completes.
+	 */
+	public void setConnectStagger(long stagger) {
+		logger.trace("Thread <{}>::setConnectStagger {}", Thread
+				.currentThread().getId(), stagger);
+		this.connectStagger = Math.max(0, stagger);
+	}
+
 	public void setFlatLineTime(long flatLineTime) {
 		// this.flatLineTime = flatLineTime; // currently broken
 	}
@@ -94,6 +113,8 @@ public class TcpChannelClient extends TcpChannelAbstract {
 	 * indicating it was not changed.
 	 * 
 	 * @param host
+	 *            the gateway host, or a comma separated list of them each
+	 *            with an optional port, see GatewayEndpoints
 	 * @return
 	 */
 	public boolean setHost(String host) {
@@ -104,6 +125,7 @@ public class TcpChannelClient extends TcpChannelAbstract {
 			return false;
 		}
 		this.gatewayHost = host;
+		this.refreshEndpoints();
 		this.reset();
 		return true;
 	}
@@ -123,10 +145,17 @@ public class TcpChannelClient extends TcpChannelAbstract {
 			return false;
 		}
 		this.gatewayPort = port;
+		this.refreshEndpoints();
 		this.reset();
 		return true;
 	}
 
+	private void refreshEndpoints() {
+		this.endpoints.configure(
+				(this.gatewayHost != null) ? this.gatewayHost : DEFAULT_CLIENT_HOST,
+				(this.gatewayPort > 10) ? this.gatewayPort : DEFAULT_CLIENT_PORT);
+	}
+
 	@Override
 	public String toString() {
 		return new StringBuilder().append("channel ").append(super.toString())
@@ -155,9 +184,6 @@ public class TcpChannelClient extends TcpChannelAbstract {
 	 */
 	private class ConnectorThread extends TcpChannelAbstract.ConnectorThread {
 
-		private final String DEFAULT_CLIENT_HOST = "192.168.1.100";
-		private final int DEFAULT_CLIENT_PORT = 33289;
-
 		private final TcpChannelClient realParent;
 
 		private ConnectorThread(TcpChannelClient parent) {
@@ -202,6 +228,7 @@ public class TcpChannelClient extends TcpChannelAbstract {
 								// Wait for a link interface.
 								while (this.state.isDisabled()) {
 									logger.trace("Looping in Disabled");
+									parent.expireSession();
 									this.state.wait(BURP_TIME);
 								}
 							}
@@ -223,6 +250,7 @@ public class TcpChannelClient extends TcpChannelAbstract {
 							synchronized (this.state) {
 								while (!parent.isAnyLinkUp()
 										&& !this.state.isDisabled()) {
+									parent.expireSession();
 									this.state.wait(BURP_TIME); // wait for a
 																// link
 																// interface
@@ -241,13 +269,17 @@ public class TcpChannelClient extends TcpChannelAbstract {
 						// broadcast receiver
 						break;
 
-					case NetChannel.DISCONNECTED:
+					case NetChannel.DISCONNECTED: {
 						this.parent.statusChange();
+						// the new connection may fail before it is marked
+						// connected, e.g. a refused session
+						final long attempt = this.getAttempt();
 						if (!this.connect()) {
 							this.state.setUnlessDisabled(NetChannel.CONNECTING);
 						} else {
-							this.state.setUnlessDisabled(NetChannel.CONNECTED);
+							this.state.setUnlessFailed(NetChannel.CONNECTED, attempt);
 						}
+					}
 						break;
 
 					case NetChannel.CONNECTING: // keep trying
@@ -282,7 +314,7 @@ public class TcpChannelClient extends TcpChannelAbstract {
 
 									// wait for somebody to change the
 									// connection status
-									this.state.wait(BURP_TIME);
+									this.state.wait(parent.heartbeatWait());
 
 									if (HEARTBEAT_ENABLED
 											&& parent.hasWatchdogExpired()) {
@@ -324,45 +356,44 @@ public class TcpChannelClient extends TcpChannelAbstract {
 				this.state.setUnlessDisabled(NetChannel.EXCEPTION);
 				logger.error("channel exception", ex);
 			}
-			try {
-				if (this.parent.mSocket == null) {
-					logger.error("channel closing without active socket}");
-					return;
-				}
-				this.parent.mSocket.close();
-			} catch (IOException ex) {
-				logger.error("channel closing without proper socket", ex);
-			}
+			if (this.parent.mSocket == null)
+				logger.error("channel closing without active socket}");
+			// stops the sender and receiver as well as closing the socket
+			this.disconnect();
 			logger.error("channel closing");
 		}
 
+		/**
+		 * Connect to the first gateway endpoint to accept, see race().
+		 */
 		private boolean connect() {
 			logger.trace("Thread <{}>ConnectorThread::connect", Thread
 					.currentThread().getId());
 
-			// Resolve the hostname to an IP address.
-			String host = (realParent.gatewayHost != null) ? realParent.gatewayHost
-					: DEFAULT_CLIENT_HOST;
-			int port = (realParent.gatewayPort > 10) ? realParent.gatewayPort
-					: DEFAULT_CLIENT_PORT;
-			InetAddress ipaddr = null;
+			// a session whose lease ran out is not worth presenting
+			parent.expireSession();
+
+			if (realParent.endpoints.size() < 1)
+				realParent.refreshEndpoints();
+
+			final long startConnectionMark = System.currentTimeMillis();
+			final Attempt winner;
 			try {
-				ipaddr = InetAddress.getByName(host);
-			} catch (UnknownHostException e) {
-				logger.warn("could not resolve host name");
+				winner = this.race(realParent.endpoints.ranked());
+			} catch (InterruptedException ex) {
+				logger.trace("connect interrupted");
+				Thread.currentThread().interrupt();
+				return false;
+			}
+			if (winner == null) {
+				logger.info("no gateway accepted a connection {}", realParent.endpoints);
 				return false;
 			}
 
-			// Create the Socket
-			final InetSocketAddress sockAddr = new InetSocketAddress(ipaddr,
-					port);
 			try {
 				if (parent.mSocket != null)
 					logger.error("Tried to create mSocket when we already had one.");
-
-				final long startConnectionMark = System.currentTimeMillis();
-				parent.mSocket = new Socket();
-				parent.mSocket.connect(sockAddr, parent.connectTimeout);
+				parent.mSocket = winner.socket;
 
 				parent.mSocket.setSoTimeout(parent.socketTimeout);
 				final long finishConnectionMark = System.currentTimeMillis();
@@ -374,37 +405,163 @@ public class TcpChannelClient extends TcpChannelAbstract {
 				parent.mDataOutputStream = new DataOutputStream(
 						parent.mSocket.getOutputStream());
 
-			} catch (AsynchronousCloseException ex) {
-				logger.warn("connection async close failure to {}:{} ", ipaddr,
-						port, ex);
-				parent.mSocket = null;
-				return false;
-			} catch (ClosedChannelException ex) {
-				logger.info("connection closed channel failure to {}:{} ",
-						ipaddr, port, ex);
-				parent.mSocket = null;
-				return false;
-			} catch (ConnectException ex) {
-				logger.info("connection failed to {}:{}", ipaddr, port, ex);
-				parent.mSocket = null;
-				return false;
-			} catch (SocketException ex) {
-				logger.warn("connection timeout={} sec, socket {}:{}",
-						parent.connectTimeout / 1000, ipaddr, port, ex);
-				parent.mSocket = null;
-				return false;
-			} catch (Exception ex) {
-				logger.warn("connection failed to {}:{}", ipaddr, port, ex);
+			} catch (IOException ex) {
+				logger.warn("connection failed to {}", winner.endpoint, ex);
+				try {
+					winner.socket.close();
+				} catch (IOException e) {
+					logger.debug("could not close failed socket", e);
+				}
 				parent.mSocket = null;
 				return false;
 			}
 
-			logger.info("connection established to {}:{}", ipaddr, port);
+			logger.info("connection established to {}", winner.endpoint);
 
 			makeThreads();
 
 			return true;
 		}
+
+		/**
+		 * Start a connect to each endpoint, best ranked first, the next
+		 * starting after the stagger or as soon as all those started have
+		 * failed. The first to connect is kept; the others are closed as
+		 * they connect, their times still count toward the ranking.
+		 * 
+		 * @return the first attempt to connect or null if none did in time
+		 */
+		private Attempt race(List<GatewayEndpoints.Endpoint> ranked)
+				throws InterruptedException {
+			final Race race = new Race(realParent.endpoints);
+			synchronized (race) {
+				try {
+					for (final GatewayEndpoints.Endpoint endpoint : ranked) {
+						if (race.winner != null)
+							break;
+						new Attempt(endpoint, race, parent.connectTimeout).start();
+						race.started++;
+
+						final long deadline = System.currentTimeMillis()
+								+ realParent.connectStagger;
+						for (long remaining = realParent.connectStagger; remaining > 0
+								&& race.isRunning(); remaining = deadline
+								- System.currentTimeMillis()) {
+							race.wait(remaining);
+						}
+					}
+					final long deadline = System.currentTimeMillis()
+							+ parent.connectTimeout;
+					for (long remaining = parent.connectTimeout; remaining > 0
+							&& race.isRunning(); remaining = deadline
+							- System.currentTimeMillis()) {
+						race.wait(remaining);
+					}
+					return race.winner;
+				} finally {
+					race.over = true;
+				}
+			}
+		}
+	}
+
+	/**
+	 * The connects to the gateway endpoints for one connection.
+	 */
+	private static class Race {
+		final GatewayEndpoints endpoints;
+		Attempt winner = null;
+		int started = 0;
+		int failed = 0;
+		/** no longer waited on, later connects are closed */
+		boolean over = false;
+
+		Race(GatewayEndpoints endpoints) {
+			this.endpoints = endpoints;
+		}
+
+		/**
+		 * Nothing has connected and some attempt may yet.
+		 */
+		boolean isRunning() {
+			return this.winner == null && this.failed < this.started;
+		}
+
+		/**
+		 * @return true if the attempt won and its socket is kept
+		 */
+		synchronized boolean connected(Attempt attempt, long millis) {
+			this.endpoints.connected(attempt.endpoint, millis);
+			this.notifyAll();
+			if (this.winner != null || this.over)
+				return false;
+			this.winner = attempt;
+			return true;
+		}
+
+		synchronized void failed(Attempt attempt, long millis) {
+			this.endpoints.failed(attempt.endpoint, millis);
+			this.failed++;
+			this.notifyAll();
+		}
+	}
+
+	/**
+	 * A connect to one endpoint, on its own thread so several may be
+	 * under way at once.
+	 */
+	private static class Attempt extends Thread {
+		final GatewayEndpoints.Endpoint endpoint;
+		private final Race race;
+		private final int timeout;
+		Socket socket = null;
+
+		Attempt(GatewayEndpoints.Endpoint endpoint, Race race, int timeout) {
+			super(new StringBuilder("Tcp-Attempt-").append(endpoint).toString());
+			this.endpoint = endpoint;
+			this.race = race;
+			this.timeout = timeout;
+		}
+
+		@Override
+		public void run() {
+			final long start = System.currentTimeMillis();
+			InetAddress ipaddr = null;
+			Socket socket = null;
+			boolean kept = false;
+			try {
+				// Resolve the hostname to an IP address.
+				ipaddr = InetAddress.getByName(this.endpoint.host);
+				socket = new Socket();
+				socket.connect(new InetSocketAddress(ipaddr, this.endpoint.port), this.timeout);
+				this.socket = socket;
+				kept = this.race.connected(this, System.currentTimeMillis() - start);
+				return;
+			} catch (UnknownHostException ex) {
+				classlogger.warn("could not resolve host name {}", this.endpoint.host);
+			} catch (AsynchronousCloseException ex) {
+				classlogger.warn("connection async close failure to {} ", this.endpoint, ex);
+			} catch (ClosedChannelException ex) {
+				classlogger.info("connection closed channel failure to {} ", this.endpoint, ex);
+			} catch (ConnectException ex) {
+				classlogger.info("connection failed to {}", this.endpoint, ex);
+			} catch (SocketException ex) {
+				classlogger.warn("connection timeout={} sec, socket {}",
+						this.timeout / 1000, this.endpoint, ex);
+			} catch (Exception ex) {
+				classlogger.warn("connection failed to {}", this.endpoint, ex);
+			} finally {
+				// a socket which failed or lost the race is not wanted
+				if (!kept && socket != null) {
+					try {
+						socket.close();
+					} catch (IOException ex) {
+						classlogger.debug("could not close spare socket", ex);
+					}
+				}
+			}
+			this.race.failed(this, System.currentTimeMillis() - start);
+		}
 	}
 
 	@Override
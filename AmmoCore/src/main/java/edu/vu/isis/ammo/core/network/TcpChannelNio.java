@@ -0,0 +1,1140 @@
+/* Copyright (c) 2010-2015 Vanderbilt University
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package edu.vu.isis.ammo.core.network;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import android.content.Context;
+import edu.vu.isis.ammo.core.PLogger;
+import edu.vu.isis.ammo.core.distributor.DistributorDataStore.DisposalState;
+
+/**
+ * A gateway channel which uses a non-blocking socket channel rather than the
+ * connector, sender and receiver threads of the TcpChannelAbstract.
+ * <p>
+ * Every TcpChannelNio is driven by the shared NioSelectorThread, so more
+ * gateway links cost no more threads. The framing is the same
+ * AmmoGatewayMessage framing and the sending follows the same rules as the
+ * TcpChannelAbstract.SenderQueue: nothing from the distributor is sent until
+ * the security object has authorized the channel, or the gateway has
+ * accepted the session being resumed. The channel shares the pieces of the
+ * threaded channel: the send lanes, the batcher, the compressor, the session
+ * and the round trip estimate.
+ * <p>
+ * The selector thread never waits for more messages, so a write or a batch
+ * takes only what is already queued. Messages are not sent in chunks, those
+ * larger than the maximum message size are refused.
+ * <p>
+ * Everything prefixed with "on" is only run on the selector thread.
+ * <p>
+ * NetworkManager uses this channel for the gateway when
+ * ICorePrefKeys.GATEWAY_SELECTOR is set.
+ */
+public class TcpChannelNio extends NetChannel implements NioSelectorThread.Handler {
+
+    private static final Logger classlogger = LoggerFactory.getLogger("net.channel.tcp.nio");
+
+    /** the maximum receive buffer size, see the TcpChannelAbstract */
+    private static final int TCP_RECV_BUFF_SIZE = 0x15554;
+    /** arbitrary max size */
+    private static final int MAX_MESSAGE_SIZE = 0x100000;
+    /** the most messages written with one gathering write */
+    private static final int MAX_FLIGHT = 64;
+
+    private static final String DEFAULT_CLIENT_HOST = "192.168.1.100";
+    private static final int DEFAULT_CLIENT_PORT = 33289;
+
+    // ===========================================================
+    // Factory
+    // ===========================================================
+
+    /**
+     * A channel which connects to a gateway.
+     */
+    public static TcpChannelNio getInstance(String name, IChannelManager iChannelManager) {
+        classlogger.trace("Thread <{}>::getInstance", Thread.currentThread().getId());
+        return new TcpChannelNio(name, iChannelManager);
+    }
+
+    // ===========================================================
+    // Members
+    // ===========================================================
+
+    private final Logger logger;
+    private final NioSelectorThread selector;
+
+    public final IChannelManager mChannelManager;
+    private final AtomicReference<ISecurityObject> mSecurityObject = new AtomicReference<ISecurityObject>();
+    private final AtomicBoolean mIsAuthorized = new AtomicBoolean(false);
+
+    private volatile String host = null;
+    private volatile int port = -1;
+    private InetSocketAddress address = null;
+    private String addressHost = null;
+
+    private volatile int connectTimeout = 30 * 1000;
+    private volatile int socketTimeout = 30 * 1000;
+    private volatile long flatLineTime = 45 * 1000;
+    private volatile int mMaxMessageSize = MAX_MESSAGE_SIZE;
+    /** how many bytes are written at most with one gathering write */
+    private volatile int mFlushBudget = TcpChannelAbstract.DEFAULT_FLUSH_BUDGET;
+
+    private ByteOrder endian = ByteOrder.LITTLE_ENDIAN;
+
+    private volatile boolean shouldBeEnabled = true;
+
+    /** the connection state, it is only changed on the selector thread */
+    private volatile int mState = NetChannel.STALE;
+    private volatile int mSenderState = INetChannel.PENDING;
+    private volatile int mReceiverState = INetChannel.PENDING;
+
+    private SocketChannel mSocketChannel = null;
+    private volatile SelectionKey mKey = null;
+
+    private long mNextConnectTime = 0;
+    private long mConnectDeadline = 0;
+
+    /** small messages may be sent together, off by default */
+    private final MessageBatcher mBatcher = new MessageBatcher();
+    /** payloads may be compressed, off until the policy enables it */
+    private final PayloadCompressor mCompressor = new PayloadCompressor();
+    /** a lost session may be picked up again if the gateway granted a token */
+    private final SessionResumption mSession = new SessionResumption();
+    /**
+     * the round trip time to the gateway, from which the heartbeat spacing
+     * and the flat line time are taken
+     */
+    private final RttEstimator mRtt = new RttEstimator();
+
+    // the send side
+    private final SendLanes mDistQueue = new SendLanes();
+    private final LinkedList<AmmoGatewayMessage> mAuthQueue = new LinkedList<AmmoGatewayMessage>();
+    /** the messages sent again for a resumed session, selector thread only */
+    private final LinkedList<AmmoGatewayMessage> mReplayQueue = new LinkedList<AmmoGatewayMessage>();
+    /** the batcher gathers only what is already queued */
+    private final MessageBatcher.Source mQueued = new MessageBatcher.Source() {
+        @Override
+        public AmmoGatewayMessage poll(long timeoutMillis) {
+            return mDistQueue.poll();
+        }
+    };
+    /** the messages being written, the header and payload of each in mFlightBufs */
+    private final List<AmmoGatewayMessage> mFlight = new ArrayList<AmmoGatewayMessage>();
+    private final ByteBuffer[] mFlightBufs = new ByteBuffer[2 * MAX_FLIGHT];
+    private final ByteBuffer[] mHeaders = new ByteBuffer[MAX_FLIGHT];
+    /** the messages of the flight which were sent again for the session */
+    private final List<AmmoGatewayMessage> mResent = new ArrayList<AmmoGatewayMessage>();
+
+    // the receive side
+    private final ByteBuffer mInBuf;
+    private AmmoGatewayMessage.Builder mInBuilder = null;
+    private BufferPool.Slab mInPayload = null;
+    private int mInOffset = 0;
+    private int mInDiscard = 0;
+    private final CRC32 mInCrc = new CRC32();
+
+    // status counts for gui
+    private final AtomicInteger mMessagesSent = new AtomicInteger();
+    private final AtomicInteger mMessagesReceived = new AtomicInteger();
+
+    private long mTimeOfLastGoodRead = 0;
+
+    private TcpChannelNio(String name, IChannelManager iChannelManager) {
+        super(name);
+        this.logger = LoggerFactory.getLogger("net.channel.tcp.nio." + name);
+        logger.trace("Thread <{}>TcpChannelNio::<constructor>", Thread.currentThread().getId());
+        this.mChannelManager = iChannelManager;
+
+        this.mInBuf = ByteBuffer.allocate(TCP_RECV_BUFF_SIZE);
+        this.mInBuf.order(endian);
+        for (int ix = 0; ix < this.mHeaders.length; ix++)
+            this.mHeaders[ix] = ByteBuffer.allocate(AmmoGatewayMessage.HEADER_LENGTH);
+        this.mDistQueue.setDwell(mQueueDwell);
+        this.mRtt.configure(RttEstimator.DEFAULT_MIN_INTERVAL,
+                RttEstimator.DEFAULT_MAX_INTERVAL, this.flatLineTime);
+
+        this.selector = NioSelectorThread.getInstance();
+        this.selector.attach(this);
+    }
+
+    // ===========================================================
+    // Configuration
+    // ===========================================================
+
+    public boolean setHost(String host) {
+        logger.trace("Thread <{}>::setHost {}", Thread.currentThread().getId(), host);
+        if (this.host != null && this.host.equals(host))
+            return false;
+        this.host = host;
+        this.reset();
+        return true;
+    }
+
+    public boolean setPort(int port) {
+        logger.trace("Thread <{}>::setPort {}", Thread.currentThread().getId(), port);
+        if (this.port == port)
+            return false;
+        this.port = port;
+        this.reset();
+        return true;
+    }
+
+    public boolean setConnectTimeout(int value) {
+        logger.trace("Thread <{}>::setConnectTimeout {}", Thread.currentThread().getId(), value);
+        this.connectTimeout = value;
+        return true;
+    }
+
+    public boolean setSocketTimeout(int value) {
+        logger.trace("Thread <{}>::setSocketTimeout {}", Thread.currentThread().getId(), value);
+        this.socketTimeout = value;
+        this.reset();
+        return true;
+    }
+
+    public void setFlatLineTime(long flatLineTime) {
+        // this.flatLineTime = flatLineTime; // currently broken, see TcpChannelClient
+    }
+
+    public boolean setMaxMsgSize(int size) {
+        logger.trace("Thread <{}>::setMaxMsgSize {}", Thread.currentThread().getId(), size);
+        if (mMaxMessageSize == (size * 0x100000))
+            return false;
+        this.mMaxMessageSize = size * 0x100000;
+        this.reset();
+        return true;
+    }
+
+    /**
+     * Send small messages together in batch frames, from those already
+     * queued.
+     *
+     * @param maxBatchSize the largest batch in bytes, zero disables batching
+     */
+    public void setBatching(int maxBatchSize) {
+        logger.trace("Thread <{}>::setBatching {}", Thread.currentThread().getId(), maxBatchSize);
+        mBatcher.configure(maxBatchSize, 0);
+    }
+
+    /**
+     * Compress large payloads once the gateway has agreed to it.
+     *
+     * @param enabled whether the channel policy allows compression
+     * @param threshold the smallest payload worth compressing
+     */
+    public void setCompression(boolean enabled, int threshold) {
+        logger.trace("Thread <{}>::setCompression {}", Thread.currentThread().getId(), enabled);
+        mCompressor.configure(enabled, threshold);
+    }
+
+    /**
+     * @param flushBudget the most bytes written at once, zero or less writes
+     *        each message on its own
+     */
+    public void setFlushBudget(int flushBudget) {
+        logger.trace("Thread <{}>::setFlushBudget {}", Thread.currentThread().getId(), flushBudget);
+        mFlushBudget = flushBudget;
+    }
+
+    /**
+     * Bound the lanes of the send queue, one per priority band.
+     *
+     * @param capacity the most messages waiting in each lane
+     * @param highWater how many waiting messages make the channel busy
+     */
+    public void setSendLanes(int capacity, int highWater) {
+        logger.trace("Thread <{}>::setSendLanes {}", Thread.currentThread().getId(), capacity);
+        mDistQueue.configure(capacity, highWater);
+    }
+
+    /**
+     * @param minInterval the shortest time without news before a heartbeat
+     * @param maxInterval the longest
+     */
+    public void setHeartbeat(long minInterval, long maxInterval) {
+        logger.trace("Thread <{}>::setHeartbeat {} {}", new Object[] {
+                Thread.currentThread().getId(), minInterval, maxInterval });
+        mRtt.configure(minInterval, maxInterval, flatLineTime);
+    }
+
+    /**
+     * Pick up the gateway session after a reconnect without authenticating
+     * again, see TcpChannelAbstract.setSessionLease().
+     */
+    public void setSessionLease(long leaseMillis, int replayLimit) {
+        logger.trace("Thread <{}>::setSessionLease {}", Thread.currentThread().getId(), leaseMillis);
+        mSession.configure(leaseMillis, replayLimit);
+    }
+
+    // ===========================================================
+    // INetChannel
+    // ===========================================================
+
+    @Override
+    public boolean isConnected() {
+        return this.mState == NetChannel.CONNECTED;
+    }
+
+    @Override
+    public void enable() {
+        logger.trace("Thread <{}>::enable", Thread.currentThread().getId());
+        if (this.shouldBeEnabled)
+            return;
+        this.shouldBeEnabled = true;
+        this.selector.invoke(new Runnable() {
+            @Override
+            public void run() {
+                onClose();
+                setState(NetChannel.LINK_WAIT);
+            }
+        });
+    }
+
+    @Override
+    public void disable() {
+        logger.trace("Thread <{}>::disable", Thread.currentThread().getId());
+        if (!this.shouldBeEnabled)
+            return;
+        this.shouldBeEnabled = false;
+        this.selector.invoke(new Runnable() {
+            @Override
+            public void run() {
+                onClose();
+                setState(NetChannel.DISABLED);
+            }
+        });
+    }
+
+    /**
+     * Disable the channel for good: the connection is closed, the selector
+     * thread no longer ticks it and its metrics are no longer sampled. The
+     * channel is not meant to be used again.
+     */
+    public boolean close() {
+        logger.trace("Thread <{}>::close", Thread.currentThread().getId());
+        this.disable();
+        this.selector.detach(this);
+        this.stopSampling();
+        return true;
+    }
+
+    /**
+     * forces a reconnection.
+     */
+    @Override
+    public void reset() {
+        logger.trace("Thread <{}>::reset", Thread.currentThread().getId());
+        this.selector.invoke(new Runnable() {
+            @Override
+            public void run() {
+                onClose();
+                if (shouldBeEnabled)
+                    setState(NetChannel.LINK_WAIT);
+            }
+        });
+    }
+
+    @Override
+    public void linkUp(String name) {
+        logger.debug("link up {}", name);
+        this.mNextConnectTime = 0;
+    }
+
+    @Override
+    public void linkDown(String name) {
+        this.reset();
+    }
+
+    /**
+     * The channel is busy when its send lanes are past their high water
+     * mark, the distributor then passes over it.
+     */
+    @Override
+    public boolean isBusy() {
+        return mDistQueue.isBusy();
+    }
+
+    @Override
+    public boolean isAuthenticatingChannel() {
+        return true;
+    }
+
+    @Override
+    public void init(Context context) {
+    }
+
+    @Override
+    public String getSendReceiveStats() {
+        StringBuilder countsString = new StringBuilder();
+        countsString.append("S:").append(mMessagesSent.get()).append(" ");
+        countsString.append("R:").append(mMessagesReceived.get());
+        if (mRtt.samples() > 0)
+            countsString.append(" RTT:").append(mRtt.srtt());
+        return countsString.toString();
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder().append("channel ").append(super.toString())
+                .append("socket: host[").append(this.host).append("] ")
+                .append("port[").append(this.port).append("]")
+                .toString();
+    }
+
+    @Override
+    public void toLog(String context) {
+        PLogger.SET_PANTHR_GW.debug(" {}:{} timeout={} sec", new Object[] {
+                host, port, flatLineTime });
+    }
+
+    // ===========================================================
+    // Send queue
+    // ===========================================================
+
+    /**
+     * The distributor is never made to wait, if the lane for the priority
+     * of the message is full the channel is busy.
+     */
+    @Override
+    public DisposalState sendRequest(AmmoGatewayMessage agm) {
+        logger.trace("putFromDistributor()");
+        if (!mDistQueue.offer(agm)) {
+            logger.warn("channel not taking messages {} {}", DisposalState.BUSY, mDistQueue);
+            return DisposalState.BUSY;
+        }
+        if (mIsAuthorized.get())
+            this.wantWrite();
+        return DisposalState.QUEUED;
+    }
+
+    public void putFromSecurityObject(AmmoGatewayMessage agm) {
+        logger.trace("putFromSecurityObject()");
+        synchronized (mAuthQueue) {
+            mAuthQueue.offer(agm);
+        }
+    }
+
+    public void finishedPuttingFromSecurityObject() {
+        logger.trace("finishedPuttingFromSecurityObject()");
+        this.wantWrite();
+    }
+
+    /**
+     * Until the channel is authorized only the authentication queue is
+     * drained. Then the messages sent again for the session go first, as
+     * they are, then a message left over from the last batch, then the
+     * lanes; those are batched and compressed as the channel allows.
+     */
+    private AmmoGatewayMessage nextOutbound() {
+        if (!mIsAuthorized.get()) {
+            synchronized (mAuthQueue) {
+                return mAuthQueue.poll();
+            }
+        }
+        final AmmoGatewayMessage replay = mReplayQueue.poll();
+        if (replay != null) {
+            mResent.add(replay);
+            return replay;
+        }
+        AmmoGatewayMessage msg = mBatcher.takePending();
+        if (msg == null)
+            msg = mDistQueue.poll();
+        if (msg == null)
+            return null;
+        return mCompressor.compress(mBatcher.coalesce(msg, mQueued));
+    }
+
+    private void wantWrite() {
+        final SelectionKey key = this.mKey;
+        if (key == null)
+            return;
+        this.selector.addInterest(key, SelectionKey.OP_WRITE);
+    }
+
+    /**
+     * Put the messages ahead of those still waiting to be sent again,
+     * which were sent after them.
+     */
+    private void onRequeue(List<AmmoGatewayMessage> replay) {
+        mReplayQueue.addAll(0, replay);
+    }
+
+    /**
+     * Give up the session. The distributor is told the queued messages
+     * could not be sent; those sent but not reported by the gateway are
+     * sent again once the channel is authorized.
+     */
+    private void onForfeit() {
+        final AmmoGatewayMessage msg = mBatcher.takePending();
+        if (msg != null && msg.handler != null)
+            ackToHandler(msg.handler, DisposalState.PENDING);
+        for (final AmmoGatewayMessage queued : mDistQueue.drain()) {
+            if (queued.handler != null)
+                ackToHandler(queued.handler, DisposalState.PENDING);
+        }
+        onRequeue(mSession.forfeit());
+    }
+
+    /**
+     * Present the token of a session still under lease instead of
+     * authenticating. A session which can no longer be resumed is given up.
+     *
+     * @return false if there is no session to resume
+     */
+    private boolean onResume() {
+        if (!mSession.canResume(System.currentTimeMillis())) {
+            if (mSession.isGranted())
+                onForfeit();
+            return false;
+        }
+        synchronized (mAuthQueue) {
+            mAuthQueue.offer(mSession.newRequest(this));
+        }
+        return true;
+    }
+
+    // ===========================================================
+    // Security things
+    // ===========================================================
+
+    public boolean getIsAuthorized() {
+        return mIsAuthorized.get();
+    }
+
+    public void authorizationSucceeded(AmmoGatewayMessage agm) {
+        logger.trace("Marking channel as authorized");
+        mCompressor.negotiate(agm);
+        mSession.start();
+        mIsAuthorized.set(true);
+        this.wantWrite();
+
+        // Tell the AmmoService that we're authorized and have it
+        // notify the apps.
+        mChannelManager.authorizationSucceeded(this, agm);
+    }
+
+    public void authorizationFailed() {
+        reset();
+    }
+
+    /**
+     * As TcpChannelAbstract.deliverMessage(), less the chunks which this
+     * channel does not advertise.
+     */
+    private boolean deliverMessage(AmmoGatewayMessage agm) {
+        logger.debug("In deliverMessage() {} ", agm);
+
+        if (agm.hasFlag(AmmoGatewayMessage.FLAG_HEARTBEAT))
+            answerHeartbeat();
+        if (agm.hasFlag(AmmoGatewayMessage.FLAG_HEARTBEAT_REPLY))
+            mRtt.answered(System.currentTimeMillis());
+
+        if (agm.isResume()) {
+            onSessionControl(agm);
+            agm.releasePayload();
+            return true;
+        }
+
+        if (agm.isChunk() || agm.isChunkAck()) {
+            logger.warn("discarding chunk, chunks are not taken {}", agm);
+            return false;
+        }
+
+        if (agm.isCompressed()) {
+            final AmmoGatewayMessage inflated = mCompressor.decompress(agm, mMaxMessageSize);
+            agm.releasePayload();
+            if (inflated == null) {
+                logger.warn("discarding corrupt compressed message {}", agm);
+                return false;
+            }
+            final boolean result = deliverMessage(inflated);
+            if (!result)
+                inflated.releasePayload();
+            return result;
+        }
+
+        if (agm.isBatch()) {
+            final List<AmmoGatewayMessage> batch = agm.unpackBatch();
+            agm.releasePayload();
+            if (batch == null) {
+                logger.warn("discarding corrupt batch {}", agm);
+                return false;
+            }
+            boolean result = true;
+            for (final AmmoGatewayMessage msg : batch)
+                result &= deliverMessage(msg);
+            return result;
+        }
+
+        if (mIsAuthorized.get()) {
+            logger.trace(" delivering to channel manager");
+            return mChannelManager.deliver(agm);
+        }
+        logger.trace(" delivering to security object");
+        final ISecurityObject so = mSecurityObject.get();
+        if (so == null) {
+            logger.warn("security object not set");
+            return false;
+        }
+        return so.deliverMessage(agm);
+    }
+
+    /**
+     * The gateway granted, accepted or refused a session, or reported what
+     * it received, see TcpChannelAbstract.onSessionControl().
+     */
+    private void onSessionControl(AmmoGatewayMessage agm) {
+        switch (mSession.onControl(agm)) {
+            case SessionResumption.ACCEPT:
+                mCompressor.negotiate(agm);
+                ackReported();
+                onRequeue(mSession.resume());
+                mIsAuthorized.set(true);
+                this.wantWrite();
+                mChannelManager.sessionResumed(this);
+                break;
+            case SessionResumption.ACK:
+                // the report answers a frame sent, time the round trip
+                final long sentAt = mSession.takeReportedSentAt();
+                if (sentAt != 0)
+                    mRtt.sample(System.currentTimeMillis() - sentAt);
+                ackReported();
+                break;
+            case SessionResumption.REFUSE:
+                onForfeit();
+                onFailure(System.currentTimeMillis());
+                break;
+            default:
+        }
+    }
+
+    /**
+     * The messages whose write failed which the gateway has now reported.
+     */
+    private void ackReported() {
+        for (final AmmoGatewayMessage reported : mSession.takeReported()) {
+            if (reported.handler != null)
+                ackToHandler(reported.handler, DisposalState.SENT);
+        }
+    }
+
+    /**
+     * Count the message toward the session, reporting the count to the
+     * gateway now and then.
+     */
+    private void countReceived(AmmoGatewayMessage agm) {
+        if (mIsAuthorized.get() && mSession.received(agm))
+            this.sendRequest(mSession.newAck(this));
+    }
+
+    /**
+     * The gateway asked for an answer to its heartbeat, the answer is
+     * flagged so the gateway may time it.
+     */
+    private void answerHeartbeat() {
+        this.sendRequest(AmmoGatewayMessage.newHeartbeat(System.currentTimeMillis())
+                .flags(AmmoGatewayMessage.FLAG_HEARTBEAT_REPLY)
+                .build());
+    }
+
+    private boolean ackToHandler(INetworkService.OnSendMessageHandler handler,
+            DisposalState status) {
+        return handler.ack(this.name, status);
+    }
+
+    // ===========================================================
+    // Selector thread
+    // ===========================================================
+
+    private void setState(int state) {
+        if (this.mState == state)
+            return;
+        logger.trace("state {} -> {}", NetChannel.showState(this.mState),
+                NetChannel.showState(state));
+        this.mState = state;
+        this.statusChange();
+    }
+
+    private void setSenderState(int state) {
+        if (this.mSenderState == state)
+            return;
+        this.mSenderState = state;
+        this.statusChange();
+    }
+
+    private void setReceiverState(int state) {
+        if (this.mReceiverState == state)
+            return;
+        this.mReceiverState = state;
+        this.statusChange();
+    }
+
+    private void statusChange() {
+        final int connState = this.mState;
+        final int senderState = this.mSenderState;
+        final int receiverState = this.mReceiverState;
+        try {
+            mChannelManager.statusChange(this, this.lastConnState, connState,
+                    this.lastSenderState, senderState, this.lastReceiverState,
+                    receiverState);
+        } catch (Exception ex) {
+            logger.error("Exception thrown in statusChange()", ex);
+        }
+        this.lastConnState = connState;
+        this.lastSenderState = senderState;
+        this.lastReceiverState = receiverState;
+    }
+
+    /**
+     * The connection state machine is advanced by the ticks.
+     */
+    @Override
+    public void onTick(long now) {
+        if (!this.shouldBeEnabled) {
+            setState(NetChannel.DISABLED);
+            return;
+        }
+        switch (this.mState) {
+            case NetChannel.DISABLED:
+            case NetChannel.STALE:
+                setState(NetChannel.LINK_WAIT);
+                break;
+
+            case NetChannel.LINK_WAIT:
+                onExpireSession(now);
+                if (mChannelManager.isAnyLinkUp())
+                    setState(NetChannel.DISCONNECTED);
+                break;
+
+            case NetChannel.DISCONNECTED:
+                onExpireSession(now);
+                if (now < mNextConnectTime)
+                    break;
+                onConnect(now);
+                break;
+
+            case NetChannel.CONNECTING:
+                if (now > mConnectDeadline) {
+                    logger.info("connection timeout={} sec, socket {}",
+                            this.connectTimeout / 1000, this.address);
+                    onFailure(now);
+                }
+                break;
+
+            case NetChannel.CONNECTED:
+                if (!HEARTBEAT_ENABLED)
+                    break;
+                if (mRtt.hasExpired(now)) {
+                    logger.warn("heartbeat unanswered {}", mRtt);
+                    onFailure(now);
+                    break;
+                }
+                if ((now - mTimeOfLastGoodRead) > socketTimeout) {
+                    logger.warn("no data for {} ms, dropping connection", now - mTimeOfLastGoodRead);
+                    onFailure(now);
+                    break;
+                }
+                if (mRtt.heartbeatDue(now)) {
+                    logger.debug("Sending a heartbeat. t={} {}", now, mRtt);
+                    this.sendRequest(AmmoGatewayMessage.newHeartbeat(now)
+                            .flags(AmmoGatewayMessage.FLAG_HEARTBEAT)
+                            .build());
+                }
+                break;
+
+            default:
+        }
+    }
+
+    /**
+     * Once the lease of the session runs out while there is no connection
+     * the distributor is told what is still queued.
+     */
+    private void onExpireSession(long now) {
+        if (mSession.hasExpired(now))
+            onForfeit();
+    }
+
+    @Override
+    public void onSelect(SelectionKey key) throws IOException {
+        try {
+            if (key.isConnectable()) {
+                if (mSocketChannel.finishConnect()) {
+                    key.interestOps(SelectionKey.OP_READ);
+                    onConnected();
+                }
+                return;
+            }
+            if (key.isReadable()) {
+                onRead();
+            }
+            if (key.isValid() && key.isWritable()) {
+                onWrite(key);
+            }
+        } catch (IOException ex) {
+            logger.warn("socket operation failed", ex);
+            onFailure(System.currentTimeMillis());
+        }
+    }
+
+    private void onConnect(long now) {
+        final String host = (this.host != null) ? this.host : DEFAULT_CLIENT_HOST;
+        final int port = (this.port > 10) ? this.port : DEFAULT_CLIENT_PORT;
+        try {
+            // The gateway is normally named by address so this does not block.
+            if (this.address == null || this.address.isUnresolved()
+                    || !host.equals(this.addressHost)
+                    || this.address.getPort() != port) {
+                this.address = new InetSocketAddress(host, port);
+                this.addressHost = host;
+            }
+            if (this.address.isUnresolved()) {
+                logger.warn("could not resolve host name {}", host);
+                mNextConnectTime = now + NetChannel.CONNECTION_RETRY_DELAY;
+                return;
+            }
+            mSocketChannel = SocketChannel.open();
+            mSocketChannel.configureBlocking(false);
+            mSocketChannel.socket().setTcpNoDelay(true);
+            setState(NetChannel.CONNECTING);
+            mConnectDeadline = now + this.connectTimeout;
+            if (mSocketChannel.connect(this.address)) {
+                mKey = selector.register(mSocketChannel, SelectionKey.OP_READ, this);
+                onConnected();
+            } else {
+                mKey = selector.register(mSocketChannel, SelectionKey.OP_CONNECT, this);
+            }
+        } catch (IOException ex) {
+            logger.info("connection failed to {}", this.address, ex);
+            onFailure(now);
+        }
+    }
+
+    /**
+     * A session still under lease is picked up straight away, the channel is
+     * authorized once the gateway accepts the token. Otherwise the security
+     * object authenticates.
+     */
+    private void onConnected() {
+        logger.info("connection established to {}", mSocketChannel.socket().getRemoteSocketAddress());
+        final long now = System.currentTimeMillis();
+        mBytesSent = 0;
+        mBytesRead = 0;
+        mLastBytesSent = 0;
+        mLastBytesRead = 0;
+        mBpsSent = 0;
+        mBpsRead = 0;
+        mTimeOfLastGoodRead = now;
+        mRtt.restart(now);
+        mInBuf.clear();
+
+        mIsAuthorized.set(false);
+        setState(NetChannel.CONNECTED);
+        setSenderState(INetChannel.TAKING);
+        setReceiverState(INetChannel.START);
+
+        if (onResume()) {
+            this.wantWrite();
+            return;
+        }
+        final ISecurityObject so = new TcpNioSecurityObject(this);
+        mSecurityObject.set(so);
+        so.authorize(mChannelManager.buildAuthenticationRequest());
+    }
+
+    /**
+     * A lost connection is tried again straight away, as the connector
+     * thread does; a failed attempt is retried after a delay.
+     */
+    private void onFailure(long now) {
+        final boolean wasConnected = (this.mState == NetChannel.CONNECTED);
+        onClose();
+        if (!this.shouldBeEnabled)
+            return;
+        setState(NetChannel.DISCONNECTED);
+        if (wasConnected) {
+            onConnect(now);
+        } else {
+            mNextConnectTime = now + NetChannel.CONNECTION_RETRY_DELAY;
+        }
+    }
+
+    /**
+     * Close the socket. While the session may be resumed the queued
+     * messages are kept for the next connection; otherwise the distributor
+     * is told they could not be sent.
+     */
+    private void onClose() {
+        if (mKey != null) {
+            mKey.cancel();
+            mKey = null;
+        }
+        if (mSocketChannel == null)
+            return;
+        try {
+            mSocketChannel.close();
+        } catch (IOException ex) {
+            logger.error("Failed to close socket", ex);
+        }
+        mSocketChannel = null;
+
+        final long now = System.currentTimeMillis();
+        onFlightFailed(now);
+        if (mSession.suspend(now)) {
+            logger.info("keeping {} for {}", mDistQueue, mSession);
+        } else {
+            onForfeit();
+        }
+        synchronized (mAuthQueue) {
+            mAuthQueue.clear();
+        }
+        if (mInPayload != null)
+            mInPayload.release();
+        mInBuilder = null;
+        mInPayload = null;
+        mInDiscard = 0;
+
+        mIsAuthorized.set(false);
+        mSecurityObject.set(null);
+        mCompressor.reset();
+        mRtt.restart(now);
+        setSenderState(INetChannel.PENDING);
+        setReceiverState(INetChannel.PENDING);
+    }
+
+    private boolean wasResent(AmmoGatewayMessage msg) {
+        for (final AmmoGatewayMessage resent : mResent) {
+            if (resent == msg)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Count the message toward the session, the messages of the security
+     * object come before it.
+     *
+     * @return true if the session keeps it to be sent again
+     */
+    private boolean countSent(AmmoGatewayMessage msg, long now) {
+        if (msg.handler instanceof ISecurityObject)
+            return false;
+        return mSession.sent(msg, now);
+    }
+
+    /**
+     * Take the messages waiting, up to the flush budget, and lay out their
+     * headers and payloads for one gathering write.
+     *
+     * @return the number of buffers, zero if there was nothing to send
+     */
+    private int onFillFlight(long now) {
+        final int budget = mFlushBudget;
+        final byte advertise = (byte) (mCompressor.advertise() | mSession.advertise());
+        int bytes = 0;
+        while (mFlight.size() < MAX_FLIGHT) {
+            final AmmoGatewayMessage msg = nextOutbound();
+            if (msg == null)
+                break;
+            if (msg.size > mMaxMessageSize) {
+                logger.info("Large Message, Rejecting: Message Size [{}]", msg.size);
+                if (msg.handler != null)
+                    ackToHandler(msg.handler, DisposalState.BAD);
+                continue;
+            }
+            // before it is written, the answer may be read before the
+            // write completes
+            if (msg.hasFlag(AmmoGatewayMessage.FLAG_HEARTBEAT))
+                mRtt.sentHeartbeat(now);
+            final int ix = mFlight.size();
+            final ByteBuffer header = msg.serializeHeader(mHeaders[ix], endian,
+                    AmmoGatewayMessage.VERSION_1_FULL, (byte) 0, advertise);
+            mFlightBufs[2 * ix] = header;
+            mFlightBufs[2 * ix + 1] = msg.payloadBuffer();
+            mFlight.add(msg);
+            bytes += header.remaining() + msg.size;
+            // only authorized channels have more to send
+            if (bytes >= budget || !mIsAuthorized.get())
+                break;
+        }
+        return 2 * mFlight.size();
+    }
+
+    /**
+     * The whole flight was written, the messages are acknowledged together.
+     */
+    private void onFlightSent(long now) {
+        for (final AmmoGatewayMessage sent : mFlight) {
+            countSent(sent, now);
+            mMessagesSent.incrementAndGet();
+            recordSent(sent, now);
+
+            // those sent again were acknowledged the first time unless
+            // their write failed
+            final boolean held = mSession.release(sent);
+            if (sent.handler != null && (held || !wasResent(sent)))
+                ackToHandler(sent.handler, DisposalState.SENT);
+        }
+        logger.info("Send {} packets to Network", mFlight.size());
+        mFlight.clear();
+        mResent.clear();
+        mRtt.writing(false, now);
+    }
+
+    /**
+     * The connection was lost part way through the flight. The gateway may
+     * have some of these, the session keeps them to send again and they are
+     * acknowledged once the gateway has them.
+     */
+    private void onFlightFailed(long now) {
+        if (mFlight.isEmpty())
+            return;
+        for (final AmmoGatewayMessage failed : mFlight) {
+            final boolean kept = countSent(failed, now);
+            if (failed.handler == null)
+                continue;
+            if (kept) {
+                if (!wasResent(failed))
+                    mSession.hold(failed);
+            } else if (mSession.release(failed) || !wasResent(failed)) {
+                ackToHandler(failed.handler, DisposalState.REJECTED);
+            }
+        }
+        mFlight.clear();
+        mResent.clear();
+        mRtt.writing(false, now);
+    }
+
+    /**
+     * Write as much as the socket will take. When there is nothing left to
+     * send stop asking for write readiness. While a flight is only partly
+     * written the gateway is not given up for not answering.
+     */
+    private void onWrite(SelectionKey key) throws IOException {
+        while (true) {
+            final long now = System.currentTimeMillis();
+            if (mFlight.isEmpty()) {
+                if (onFillFlight(now) < 1) {
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                    setSenderState(INetChannel.TAKING);
+                    return;
+                }
+                mRtt.writing(true, now);
+                setSenderState(INetChannel.SENDING);
+            }
+            final int count = 2 * mFlight.size();
+            mBytesSent += mSocketChannel.write(mFlightBufs, 0, count);
+            if (mFlightBufs[count - 1].hasRemaining())
+                return; // wait for the socket to drain
+            onFlightSent(System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Read what is available and deliver each complete message. A message
+     * may span many reads so the partially received payload is kept between
+     * calls.
+     */
+    private void onRead() throws IOException {
+        final SocketChannel socket = mSocketChannel;
+        final int bytesRead = socket.read(mInBuf);
+        if (bytesRead < 0) {
+            throw new IOException("end of stream");
+        }
+        if (bytesRead == 0)
+            return;
+
+        final long now = System.currentTimeMillis();
+        mTimeOfLastGoodRead = now;
+        mRtt.heard(now);
+        mBytesRead += bytesRead;
+
+        mInBuf.flip();
+        while (mInBuf.hasRemaining()) {
+            if (mInDiscard > 0) {
+                final int skip = Math.min(mInDiscard, mInBuf.remaining());
+                mInBuf.position(mInBuf.position() + skip);
+                mInDiscard -= skip;
+                continue;
+            }
+            if (mInBuilder == null) {
+                final AmmoGatewayMessage.Builder agmb = AmmoGatewayMessage.extractHeader(mInBuf);
+                if (agmb == null)
+                    break; // a partial header remains
+                if (agmb.size() < 1) {
+                    logger.warn("discarding empty message error {}", agmb.error());
+                    continue;
+                }
+                if (agmb.size() > mMaxMessageSize) {
+                    logger.warn("discarding message of size {} with checksum {}",
+                            agmb.size(), Long.toHexString(agmb.checksum()));
+                    mInDiscard = agmb.size();
+                    continue;
+                }
+                // the consumer of the message gives the slab back
+                mInBuilder = agmb;
+                mInPayload = BufferPool.getInstance().acquire(agmb.size());
+                mInOffset = 0;
+                mInCrc.reset();
+            }
+            final int count = Math.min(mInBuilder.size() - mInOffset, mInBuf.remaining());
+            mInBuf.get(mInPayload.array, mInOffset, count);
+            mInCrc.update(mInPayload.array, mInOffset, count);
+            mInOffset += count;
+            if (mInOffset < mInBuilder.size())
+                break;
+
+            final AmmoGatewayMessage agm = mInBuilder.payload(mInPayload)
+                    .computedChecksum(mInCrc.getValue())
+                    .channel(this).build();
+            mInBuilder = null;
+            mInPayload = null;
+            logger.info("Received a packet from gateway size({}) @{}, csum {}",
+                    new Object[] { agm.size, agm.buildTime, agm.payload_checksum });
+            setReceiverState(INetChannel.DELIVER);
+            countReceived(agm);
+            if (!deliverMessage(agm))
+                agm.releasePayload();
+            mMessagesReceived.incrementAndGet();
+            recordRead();
+            if (mSocketChannel != socket)
+                return; // the gateway refused the session
+        }
+        mInBuf.compact();
+        setReceiverState(INetChannel.START);
+    }
+}
@@ -21,10 +21,22 @@
 
 package edu.vu.isis.ammo.core.network;
 
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
 
 import javax.net.ServerSocketFactory;
 
@@ -33,12 +45,22 @@ import org.slf4j.LoggerFactory;
 
 import edu.vu.isis.ammo.INetPrefKeys;
 import edu.vu.isis.ammo.core.PLogger;
+import edu.vu.isis.ammo.core.distributor.DistributorDataStore.DisposalState;
+import edu.vu.isis.ammo.core.pb.AmmoMessages;
 
 /**
- * Two long running threads and one short. The long threads are for sending and
- * receiving messages. The short thread is to connect the socket. The sent
- * messages are placed into a queue if the socket is connected.
- * 
+ * A server channel which serves many clients at once, e.g. so one handset can
+ * act as a hub for the others nearby.
+ * <p>
+ * The connector thread accepts clients. Each client has its own socket, send
+ * lanes and authorization state, along with a thread to send and one to
+ * receive. The sender of each client writes what is waiting together and
+ * flushes once, as the channel to the gateway does. Messages from all the clients are delivered to the channel
+ * manager as coming from this channel. Messages sent on the channel go to
+ * every authorized client, or to a single client when it is named.
+ * <p>
+ * The channel is connected while it has at least one client, and busy
+ * while the lanes of any authorized client are.
  */
 public class TcpChannelServer extends TcpChannelAbstract {
 
@@ -50,6 +72,13 @@ public class TcpChannelServer extends TcpChannelAbstract {
 	private static final Logger classlogger = LoggerFactory
 			.getLogger("net.server");
 
+	/** how often the connector looks up from accepting clients, in ms */
+	private static final int ACCEPT_POLL = 1000;
+	private static final int RECV_BUFF_SIZE = 0x15554;
+	private static final int SEND_FRAME_SIZE = 0x2000;
+	private static final int SEND_BUFFER_SIZE = 0x10000;
+	private static final int DEFAULT_MAX_MESSAGE_SIZE = 0x100000;
+
 	// ===========================================================
 	// Factory
 	// ===========================================================
@@ -68,8 +97,33 @@ public class TcpChannelServer extends TcpChannelAbstract {
 	private String serverHost = null;
 	private int serverPort = -1;
 
-	// Heartbeat-related members.
-	private final long mHeartbeatInterval = 10 * 1000; // ms
+	// Heartbeat-related members, each client keeps its own round trip time.
+	private volatile long heartbeatMinInterval = RttEstimator.DEFAULT_MIN_INTERVAL;
+	private volatile long heartbeatMaxInterval = RttEstimator.DEFAULT_MAX_INTERVAL;
+
+	private final ByteOrder endian = ByteOrder.LITTLE_ENDIAN;
+
+	/** the settings each client starts with */
+	private volatile int maxMessageSize = DEFAULT_MAX_MESSAGE_SIZE;
+	private volatile boolean compressEnabled = false;
+	private volatile int compressThreshold = PayloadCompressor.DEFAULT_THRESHOLD;
+	private volatile int batchSize = 0;
+	private volatile long batchLinger = 0;
+	private volatile int flushBudget = DEFAULT_FLUSH_BUDGET;
+	private volatile long flushLinger = 0;
+	private volatile int laneCapacity = SendLanes.DEFAULT_CAPACITY;
+	private volatile int laneHighWater = SendLanes.DEFAULT_CAPACITY;
+
+	/** the clients being served */
+	private final List<Client> clients = new CopyOnWriteArrayList<Client>();
+	private final AtomicInteger clientSeq = new AtomicInteger(0);
+
+	// status counts for gui
+	private final AtomicInteger mMessagesSent = new AtomicInteger();
+	private final AtomicInteger mMessagesReceived = new AtomicInteger();
+	/** every client thread adds to these, see updateBps */
+	private final AtomicLong mBytesSentTotal = new AtomicLong();
+	private final AtomicLong mBytesReadTotal = new AtomicLong();
 	
 	/**
 	 * Construct a server the bulk of whose implementation is handled by the parent.
@@ -93,11 +147,241 @@ public class TcpChannelServer extends TcpChannelAbstract {
 		return true;
 	}
 
+	@Override
+	public boolean setMaxMsgSize(int size) {
+		this.maxMessageSize = size * 0x100000;
+		return super.setMaxMsgSize(size);
+	}
+
+	@Override
+	public void setCompression(boolean enabled, int threshold) {
+		this.compressEnabled = enabled;
+		this.compressThreshold = threshold;
+		super.setCompression(enabled, threshold);
+		for (final Client client : this.clients)
+			client.compressor.configure(enabled, threshold);
+	}
+
+	/**
+	 * Batches are sent to the clients once enabled here, the clients must
+	 * be able to unpack them.
+	 */
+	@Override
+	public void setBatching(int maxBatchSize, long lingerMillis) {
+		this.batchSize = maxBatchSize;
+		this.batchLinger = lingerMillis;
+		super.setBatching(maxBatchSize, lingerMillis);
+		for (final Client client : this.clients)
+			client.batcher.configure(maxBatchSize, lingerMillis);
+	}
+
+	@Override
+	public void setSendLanes(int capacity, int highWater) {
+		this.laneCapacity = capacity;
+		this.laneHighWater = highWater;
+		super.setSendLanes(capacity, highWater);
+		for (final Client client : this.clients)
+			client.lanes.configure(capacity, highWater);
+	}
+
+	@Override
+	public void setWriteCoalescing(int flushBudget, long lingerMillis) {
+		this.flushBudget = flushBudget;
+		this.flushLinger = Math.max(0, lingerMillis);
+		super.setWriteCoalescing(flushBudget, lingerMillis);
+	}
+
+	@Override
+	public void setHeartbeat(long minInterval, long maxInterval) {
+		this.heartbeatMinInterval = minInterval;
+		this.heartbeatMaxInterval = maxInterval;
+		super.setHeartbeat(minInterval, maxInterval);
+		for (final Client client : this.clients)
+			client.rtt.configure(minInterval, maxInterval, flatLineTime);
+	}
+
 	@Override
 	public String toString() {
 		return new StringBuilder().append("channel ").append(super.toString())
 				.append("socket: host[").append(this.serverHost).append("] ")
-				.append("port[").append(this.serverPort).append("]").toString();
+				.append("port[").append(this.serverPort).append("] ")
+				.append("clients[").append(this.clients.size()).append("]").toString();
+	}
+
+	@Override
+	public String getSendReceiveStats() {
+		StringBuilder countsString = new StringBuilder();
+		countsString.append("S:").append(mMessagesSent.get()).append(" ");
+		countsString.append("R:").append(mMessagesReceived.get()).append(" ");
+		countsString.append("C:").append(this.clients.size());
+		return countsString.toString();
+	}
+
+	/**
+	 * The clients count into atomics, the shared byte counts are only
+	 * written here.
+	 */
+	@Override
+	protected void updateBps(long elapsedMillis) {
+		mBytesSent = mBytesSentTotal.get();
+		mBytesRead = mBytesReadTotal.get();
+		super.updateBps(elapsedMillis);
+	}
+
+	/**
+	 * The channel is authorized while any of its clients is.
+	 */
+	@Override
+	public boolean getIsAuthorized() {
+		for (final Client client : this.clients) {
+			if (client.isAuthorized())
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * The channel is busy while any authorized client is, a message sent
+	 * on the channel goes to all of them.
+	 */
+	@Override
+	public boolean isBusy() {
+		for (final Client client : this.clients) {
+			if (client.isAuthorized() && client.isBusy())
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * The names of the clients being served, as used with sendRequest().
+	public List<String> getClientNames() {
+		final List<String> names = new ArrayList<String>(this.clients.size());
+		for (final Client client : this.clients)
+			names.add(client.name);
+		return names;
+	}
+
+	/**
+	 * Send the message to every authorized client.
+	 * When there are several clients the handler is told once, after every
+	 * client has dealt with the message, and hears it was sent if any client
+	 * sent it.
+	 */
+	@Override
+	public DisposalState sendRequest(AmmoGatewayMessage agm) {
+		final List<Client> targets = new ArrayList<Client>(this.clients.size());
+		for (final Client client : this.clients) {
+			if (client.isAuthorized())
+				targets.add(client);
+		}
+		if (targets.size() < 1) {
+			logger.warn("no client to send to");
+			return DisposalState.REJECTED;
+		}
+		if (targets.size() == 1)
+			return targets.get(0).put(agm);
+
+		final FanOutHandler fanOut = (agm.handler == null) ? null
+				: new FanOutHandler(agm.handler, targets.size());
+		final AmmoGatewayMessage copy = (fanOut == null) ? agm : withHandler(agm, fanOut);
+		// the refusals only go to the handler when some client took the
+		// message, otherwise the returned state is the only report
+		final List<DisposalState> refused = new ArrayList<DisposalState>(targets.size());
+		for (final Client client : targets) {
+			final DisposalState state = client.put(copy);
+			if (state != DisposalState.QUEUED)
+				refused.add(state);
+		}
+		if (refused.size() < targets.size()) {
+			if (fanOut != null) {
+				for (final DisposalState state : refused)
+					fanOut.ack(this.name, state);
+			}
+			return DisposalState.QUEUED;
+		}
+		DisposalState result = refused.get(0);
+		for (final DisposalState state : refused) {
+			if (FanOutHandler.rank(state) > FanOutHandler.rank(result))
+				result = state;
+		}
+		return result;
+	}
+
+	/**
+	 * Send the message to the named client only.
+	 * 
+	 * @param clientName as given by getClientNames()
+	 */
+	public DisposalState sendRequest(AmmoGatewayMessage agm, String clientName) {
+		for (final Client client : this.clients) {
+			if (!client.name.equals(clientName))
+				continue;
+			if (!client.isAuthorized())
+				return DisposalState.REJECTED;
+			return client.put(agm);
+		}
+		logger.warn("no client named {}", clientName);
+		return DisposalState.REJECTED;
+	}
+
+	private static AmmoGatewayMessage withHandler(AmmoGatewayMessage msg,
+			INetworkService.OnSendMessageHandler handler) {
+		return AmmoGatewayMessage.newBuilder()
+				.size(msg.size)
+				.payload(msg.payload)
+				.checksum(msg.payload_checksum.asLong())
+				.priority(msg.priority)
+				.version(msg.version)
+				.flags(msg.flags)
+				.handler(handler)
+				.isGateway(msg.isGateway)
+				.isHeartbeat(msg.isHeartbeat)
+				.channel(msg.channel)
+				.build();
+	}
+
+	/**
+	 * Tells the handler of a message sent to several clients once all of
+	 * them have acknowledged it.
+	 */
+	static private class FanOutHandler implements INetworkService.OnSendMessageHandler {
+		private final INetworkService.OnSendMessageHandler handler;
+		private final AtomicInteger remaining;
+		private DisposalState best = null;
+
+		FanOutHandler(INetworkService.OnSendMessageHandler handler, int count) {
+			this.handler = handler;
+			this.remaining = new AtomicInteger(count);
+		}
+
+		@Override
+		public boolean ack(String channel, DisposalState status) {
+			final DisposalState result;
+			synchronized (this) {
+				if (this.best == null || rank(status) > rank(this.best))
+					this.best = status;
+				result = this.best;
+			}
+			if (this.remaining.decrementAndGet() != 0)
+				return true;
+			return this.handler.ack(channel, result);
+		}
+
+		static int rank(DisposalState status) {
+			switch (status) {
+				case SENT:
+					return 4;
+				case PENDING:
+					return 3;
+				case BUSY:
+					return 2;
+				case REJECTED:
+					return 1;
+				default:
+					return 0;
+			}
+		}
 	}
 
 	@Override
@@ -140,6 +424,10 @@ public class TcpChannelServer extends TcpChannelAbstract {
 		 * need to reconnect unless. 1) the connection has been lost 2) the
 		 * connection has been marked stale 3) the connection is enabled. 4) an
 		 * explicit reconnection was requested
+		 * <p>
+		 * While the server socket is open the thread accepts clients, looking
+		 * up every so often to send heartbeats, drop clients which have gone
+		 * and notice the channel being disabled or reset.
 		 * 
 		 * @return
 		 */
@@ -165,7 +453,9 @@ public class TcpChannelServer extends TcpChannelAbstract {
 							state.wait(BURP_TIME);
 							logger.trace("burp {}", state);
 						} catch (InterruptedException ex) {
-							logger.trace("interrupting channel wait.");
+							// only close() interrupts a disabled channel
+							logger.info("channel closed");
+							return;
 						}
 					}
 				}
@@ -179,52 +469,47 @@ public class TcpChannelServer extends TcpChannelAbstract {
 					// open the server socket
 					server = ServerSocketFactory.getDefault()
 							.createServerSocket(port);
+					server.setSoTimeout(ACCEPT_POLL);
 					logger.info("Opened server socket {}",
 							server.getLocalSocketAddress());
+					state.setUnlessDisabled(NetChannel.WAIT_CONNECT);
+					statusChange();
 
-					// got a socket, wait for a client connection
+					// got a socket, wait for client connections
 					while (server != null && !server.isClosed()) {
-						Socket client = null;
-						try {
-							state.setUnlessDisabled(NetChannel.WAIT_CONNECT);
-							logger.info("Awaiting client connection...");
-							client = server.accept();
-							state.setUnlessDisabled(NetChannel.CONNECTING);
+						final int s = state.get();
+						if (s == DISABLED || s == STALE) {
+							logger.info("dropped connections {}", s);
+							disconnect();
+							break;
+						}
+						serveClients();
 
+						Socket socket = null;
+						try {
+							logger.trace("Awaiting client connection...");
+							socket = server.accept();
+						} catch (SocketTimeoutException ex) {
+							continue;
+						}
+						try {
 							logger.info("Received client connection, send GTG...");
-							client.getOutputStream().write(1);
+							socket.getOutputStream().write(1);
 
 							logger.info("Prepare socket and threads");
-							initSocket(client);
-
-							// I think we're good
-							state.setUnlessDisabled(NetChannel.CONNECTED);
-
-							// while the socket is good, send a heartbeat
-							while (!client.isClosed()) {
-								int s = state.get();
-								if (s == DISABLED || s == STALE) {
-									logger.info("dropped connection {}", s);
-									disconnect();
-								} else {
-									sendHeartbeatIfNeeded();
-									synchronized (state) {
-										state.wait(mHeartbeatInterval);
-									}
-								}
-							}
-
+							final Client client = new Client(socket);
+							realParent.clients.add(client);
+							client.start();
 						} catch (Exception e) {
 							logger.error(
 									"Failed to handle client connection on {}",
 									port, e);
-							state.setUnlessDisabled(NetChannel.DISCONNECTED);
-							if (client != null)
-								try {
-									client.close();
-								} catch (Exception ignored) {
-								}
+							try {
+								socket.close();
+							} catch (Exception ignored) {
+							}
 						}
+						serveClients();
 					}
 
 				} catch (Exception e) {
@@ -235,55 +520,61 @@ public class TcpChannelServer extends TcpChannelAbstract {
 							server.close();
 						} catch (Exception ignored) {
 						}
+					server = null;
+					try {
+						Thread.sleep(BURP_TIME);
+					} catch (InterruptedException ex) {
+						logger.trace("interrupting server retry wait.");
+						// seen again once the channel is disabled
+						Thread.currentThread().interrupt();
+					}
 				}
 			}
 
 		}
 
-		private void initSocket(Socket socket) throws Exception {
-			logger.trace("Thread <{}>ConnectorThread::connect", Thread
-					.currentThread().getId());
-
-			if (parent.mSocket != null) {
-				logger.error("Tried to create mSocket when we already had one.");
-				parent.mSocket.close();
+		/**
+		 * Drop clients which have gone, send heartbeats to the rest and set
+		 * the channel state to suit.
+		 */
+		private void serveClients() {
+			final long now = System.currentTimeMillis();
+			for (final Client client : realParent.clients) {
+				if (client.isClosed()) {
+					realParent.clients.remove(client);
+					logger.info("client {} gone", client.name);
+					continue;
+				}
+				if (client.hasExpired(now)) {
+					logger.warn("client {} not answering {}", client.name, client.rtt);
+					client.close();
+					realParent.clients.remove(client);
+					continue;
+				}
+				client.sendHeartbeatIfNeeded(now);
 			}
-
-			final long startConnectionMark = System.currentTimeMillis();
-			parent.mSocket = socket;
-
-			parent.mSocket.setSoTimeout(parent.socketTimeout);
-			final long finishConnectionMark = System.currentTimeMillis();
-			logger.info("connection time to establish={} ms",
-					finishConnectionMark - startConnectionMark);
-
-			parent.mDataInputStream = new DataInputStream(
-					parent.mSocket.getInputStream());
-			parent.mDataOutputStream = new DataOutputStream(
-					parent.mSocket.getOutputStream());
-
-			parent.mSocket.setSoTimeout(parent.socketTimeout);
-			logger.info("connection time to establish={} ms",
-					finishConnectionMark - startConnectionMark);
-
-			parent.mDataInputStream = new DataInputStream(
-					parent.mSocket.getInputStream());
-			parent.mDataOutputStream = new DataOutputStream(
-					parent.mSocket.getOutputStream());
-
-			logger.info("connection established to {}",
-					socket.getLocalSocketAddress());
-
-			makeThreads();
+			final int goal = realParent.clients.isEmpty()
+					? NetChannel.WAIT_CONNECT : NetChannel.CONNECTED;
+			synchronized (state) {
+				final int s = state.get();
+				if (s == goal || s == DISABLED || s == STALE)
+					return;
+				state.set(goal);
+			}
+			statusChange();
 		}
 
 		/**
-		 * Close the server socket.
+		 * Close the clients and the server socket.
 		 */
 		@Override
 		protected boolean disconnect() {
 			super.disconnect();
 
+			for (final Client client : realParent.clients)
+				client.close();
+			realParent.clients.clear();
+
 			if (server != null) {
 				logger.debug("Closing socket...");
 				try {
@@ -298,6 +589,420 @@ public class TcpChannelServer extends TcpChannelAbstract {
 
 	}
 
+	/**
+	 * A connected client with its own lanes, authorization and threads.
+	 * <p>
+	 * Until the client is authorized only the messages of its security
+	 * object are sent to it. The first message received from the client is
+	 * taken as its authorization.
+	 */
+	private class Client implements ISecurityObject, INetworkService.OnSendMessageHandler,
+			MessageBatcher.Source {
+		final String name;
+		final PayloadCompressor compressor = new PayloadCompressor();
+		final RttEstimator rtt = new RttEstimator();
+		final SendLanes lanes = new SendLanes();
+		final MessageBatcher batcher = new MessageBatcher();
+
+		private final Logger logger;
+		private final Socket socket;
+		private final DataInputStream in;
+		private final BufferedOutputStream out;
+		private final LinkedList<AmmoGatewayMessage> authQueue =
+				new LinkedList<AmmoGatewayMessage>();
+		private volatile boolean authorized = false;
+		private volatile boolean closed = false;
+		private volatile boolean answersHeartbeats = false;
+
+		private final Thread sender;
+		private final Thread receiver;
+
+		Client(Socket socket) throws IOException {
+			final int seq = clientSeq.incrementAndGet();
+			this.name = new StringBuilder().append(seq).append('@')
+					.append(socket.getRemoteSocketAddress()).toString();
+			this.logger = LoggerFactory.getLogger("net.channel.tcp.server.client."
+					+ TcpChannelServer.this.name);
+			this.socket = socket;
+			this.socket.setSoTimeout(socketTimeout);
+			this.in = new DataInputStream(socket.getInputStream());
+			this.out = new BufferedOutputStream(
+					new DataOutputStream(socket.getOutputStream()), SEND_BUFFER_SIZE);
+			this.compressor.configure(compressEnabled, compressThreshold);
+			this.lanes.configure(laneCapacity, laneHighWater);
+			this.batcher.configure(batchSize, batchLinger);
+			this.rtt.configure(heartbeatMinInterval, heartbeatMaxInterval, flatLineTime);
+			this.rtt.restart(System.currentTimeMillis());
+
+			this.sender = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					Client.this.send();
+				}
+			}, "Tcp-Server-Sender-" + seq);
+			this.receiver = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					Client.this.receive();
+				}
+			}, "Tcp-Server-Receiver-" + seq);
+		}
+
+		void start() {
+			this.sender.start();
+			this.receiver.start();
+			this.authorize(mChannelManager.buildAuthenticationRequest());
+			logger.info("client {} connected", this.name);
+		}
+
+		boolean isAuthorized() {
+			return this.authorized;
+		}
+
+		boolean isClosed() {
+			return this.closed;
+		}
+
+		boolean isBusy() {
+			return this.lanes.isBusy();
+		}
+
+		/**
+		 * The client is never made to wait, if the lane for the priority of
+		 * the message is full the client is busy.
+		 */
+		DisposalState put(AmmoGatewayMessage agm) {
+			if (this.closed)
+				return DisposalState.REJECTED;
+			if (!this.lanes.offer(agm)) {
+				logger.warn("client {} not taking messages {}", this.name, this.lanes);
+				return DisposalState.BUSY;
+			}
+			return DisposalState.QUEUED;
+		}
+
+		// ===========================================================
+		// Security
+		// ===========================================================
+
+		@Override
+		public void authorize(AmmoMessages.MessageWrapper.Builder mwb) {
+			final AmmoGatewayMessage.Builder agmb = AmmoGatewayMessage.newBuilder(mwb, this);
+			agmb.isGateway(true);
+			synchronized (this.authQueue) {
+				this.authQueue.offer(agmb.build());
+				this.authQueue.notifyAll();
+			}
+		}
+
+		@Override
+		public boolean deliverMessage(AmmoGatewayMessage agm) {
+			// there is no security yet, any message from the client will do
+			this.compressor.negotiate(agm);
+			synchronized (this.authQueue) {
+				this.authorized = true;
+				this.authQueue.notifyAll();
+			}
+			logger.info("client {} authorized", this.name);
+			mChannelManager.authorizationSucceeded(TcpChannelServer.this, agm);
+			return true;
+		}
+
+		@Override
+		public boolean ack(String channel, DisposalState status) {
+			return true;
+		}
+
+		// ===========================================================
+		// Sending
+		// ===========================================================
+
+		/**
+		 * The messages of the security object go first, the lanes are only
+		 * taken from once the client is authorized.
+		 * 
+		 * @return the message, or null if the lanes were woken
+		 */
+		private AmmoGatewayMessage take() throws InterruptedException {
+			synchronized (this.authQueue) {
+				while (!this.authorized && this.authQueue.isEmpty())
+					this.authQueue.wait();
+				if (!this.authQueue.isEmpty())
+					return this.authQueue.remove();
+			}
+			return this.lanes.take();
+		}
+
+		/**
+		 * Used to gather more messages for a batch or a flush once
+		 * authorized.
+		 */
+		@Override
+		public AmmoGatewayMessage poll(long timeoutMillis) throws InterruptedException {
+			if (!this.authorized)
+				return null;
+			return this.lanes.poll(timeoutMillis);
+		}
+
+		/**
+		 * The next message to send, batched and compressed once authorized.
+		 * 
+		 * @param waitMillis how long to wait, negative waits until a message
+		 *        arrives
+		 */
+		private AmmoGatewayMessage next(long waitMillis) throws InterruptedException {
+			AmmoGatewayMessage msg = this.batcher.takePending();
+			if (msg == null)
+				msg = (waitMillis < 0) ? this.take() : this.poll(waitMillis);
+			if (msg == null || !this.authorized)
+				return msg;
+			return this.compressor.compress(this.batcher.coalesce(msg, this));
+		}
+
+		/**
+		 * Write the messages waiting together, flushing once the budget is
+		 * spent or nothing more arrives within the linger, then acknowledge
+		 * them all.
+		 */
+		private void send() {
+			final ByteBuffer frame = ByteBuffer.allocate(SEND_FRAME_SIZE);
+			final List<AmmoGatewayMessage> written = new ArrayList<AmmoGatewayMessage>();
+			while (!this.closed) {
+				AmmoGatewayMessage msg;
+				try {
+					msg = this.next(-1);
+				} catch (InterruptedException ex) {
+					logger.debug("client {} sender interrupted", this.name);
+					break;
+				}
+				if (msg == null)
+					continue;
+
+				written.clear();
+				boolean interrupted = false;
+				AmmoGatewayMessage writing = null;
+				int bytesToSend = 0;
+				// the client is not given up while the write is blocked
+				this.rtt.writing(true, System.currentTimeMillis());
+				try {
+					final long deadline = System.currentTimeMillis() + flushLinger;
+					while (msg != null) {
+						if (msg.size > maxMessageSize) {
+							logger.info("Large Message, Rejecting: Message Size [{}]", msg.size);
+							if (msg.handler != null)
+								msg.handler.ack(TcpChannelServer.this.name, DisposalState.BAD);
+						} else {
+							writing = msg;
+							// before it is written, the answer may be read
+							// before the write returns
+							if (msg.hasFlag(AmmoGatewayMessage.FLAG_HEARTBEAT))
+								this.rtt.sentHeartbeat(System.currentTimeMillis());
+							bytesToSend += msg.writeTo(this.out, frame, endian,
+									AmmoGatewayMessage.VERSION_1_FULL, (byte) 0,
+									this.compressor.advertise());
+							written.add(msg);
+							writing = null;
+						}
+						if (bytesToSend >= flushBudget || !this.authorized)
+							break;
+						try {
+							msg = this.next(Math.max(0, deadline - System.currentTimeMillis()));
+						} catch (InterruptedException ex) {
+							interrupted = true;
+							break;
+						}
+					}
+					this.out.flush();
+				} catch (IOException ex) {
+					logger.warn("client {} sender threw exception", this.name, ex);
+					this.rtt.writing(false, System.currentTimeMillis());
+					if (writing != null)
+						written.add(writing);
+					for (final AmmoGatewayMessage failed : written) {
+						if (failed.handler != null)
+							failed.handler.ack(TcpChannelServer.this.name, DisposalState.REJECTED);
+					}
+					this.close();
+					break;
+				}
+
+				final long flushed = System.currentTimeMillis();
+				this.rtt.writing(false, flushed);
+				mBytesSentTotal.addAndGet(bytesToSend);
+				for (final AmmoGatewayMessage sent : written) {
+					mMessagesSent.incrementAndGet();
+					recordSent(sent, flushed);
+					if (sent.handler != null)
+						sent.handler.ack(TcpChannelServer.this.name, DisposalState.SENT);
+				}
+				if (interrupted) {
+					logger.debug("client {} sender interrupted", this.name);
+					break;
+				}
+			}
+		}
+
+		/**
+		 * A heartbeat is sent when nothing has been heard from the client
+		 * for a while.
+		 */
+		void sendHeartbeatIfNeeded(long now) {
+			if (!this.authorized || !this.rtt.heartbeatDue(now))
+				return;
+			this.put(AmmoGatewayMessage.newHeartbeat(now)
+					.flags(AmmoGatewayMessage.FLAG_HEARTBEAT).build());
+		}
+
+		/**
+		 * A client is only dropped for not answering once it has asked for
+		 * answers itself, older clients do neither.
+		 */
+		boolean hasExpired(long now) {
+			return this.answersHeartbeats && this.rtt.hasExpired(now);
+		}
+
+		// ===========================================================
+		// Receiving
+		// ===========================================================
+
+		private void receive() {
+			final ByteBuffer bbuf = ByteBuffer.allocate(RECV_BUFF_SIZE);
+			bbuf.order(endian);
+			final byte[] bbufArray = bbuf.array();
+			final CRC32 payloadCrc = new CRC32();
+			try {
+				while (!this.closed) {
+					final int position = bbuf.position();
+					final int bytesRead = this.in.read(bbufArray, position, bbuf.remaining());
+					if (bytesRead < 0) {
+						logger.info("client {} closed the connection", this.name);
+						break;
+					}
+					bbuf.position(position + bytesRead);
+					mBytesReadTotal.addAndGet(bytesRead);
+					this.rtt.heard(System.currentTimeMillis());
+
+					bbuf.flip();
+					for (AmmoGatewayMessage.Builder agmb = AmmoGatewayMessage
+							.extractHeader(bbuf); agmb != null; agmb = AmmoGatewayMessage
+							.extractHeader(bbuf)) {
+						final int size = agmb.size();
+						if (size < 1) {
+							logger.warn("discarding empty message error {}", agmb.error());
+							continue;
+						}
+						final int buffered = Math.min(bbuf.remaining(), size);
+						if (size > maxMessageSize) {
+							logger.warn("discarding message of size {}", size);
+							bbuf.position(bbuf.position() + buffered);
+							this.discard(size - buffered);
+							continue;
+						}
+						final BufferPool.Slab slab = BufferPool.getInstance().acquire(size);
+						bbuf.get(slab.array, 0, buffered);
+						this.in.readFully(slab.array, buffered, size - buffered);
+						payloadCrc.reset();
+						payloadCrc.update(slab.array, 0, size);
+
+						final AmmoGatewayMessage agm = agmb.payload(slab)
+								.computedChecksum(payloadCrc.getValue())
+								.channel(TcpChannelServer.this).build();
+						mMessagesReceived.incrementAndGet();
+						recordRead();
+						if (!this.deliver(agm))
+							agm.releasePayload();
+					}
+					bbuf.compact();
+				}
+			} catch (SocketTimeoutException ex) {
+				logger.info("client {} silent too long", this.name);
+			} catch (IOException ex) {
+				if (!this.closed)
+					logger.warn("client {} receiver threw exception", this.name, ex);
+			}
+			this.close();
+		}
+
+		private void discard(int count) throws IOException {
+			while (count > 0) {
+				final int skipped = this.in.skipBytes(count);
+				if (skipped < 1) {
+					this.in.readByte();
+					count--;
+					continue;
+				}
+				count -= skipped;
+			}
+		}
+
+		private boolean deliver(AmmoGatewayMessage agm) {
+			if (agm.hasFlag(AmmoGatewayMessage.FLAG_HEARTBEAT)) {
+				this.answersHeartbeats = true;
+				this.put(AmmoGatewayMessage.newHeartbeat(System.currentTimeMillis())
+						.flags(AmmoGatewayMessage.FLAG_HEARTBEAT_REPLY).build());
+			}
+			if (agm.hasFlag(AmmoGatewayMessage.FLAG_HEARTBEAT_REPLY))
+				this.rtt.answered(System.currentTimeMillis());
+			if (agm.isCompressed()) {
+				final AmmoGatewayMessage inflated = this.compressor.decompress(agm, maxMessageSize);
+				agm.releasePayload();
+				if (inflated == null) {
+					logger.warn("discarding corrupt compressed message {}", agm);
+					return false;
+				}
+				final boolean result = this.deliver(inflated);
+				if (!result)
+					inflated.releasePayload();
+				return result;
+			}
+			if (agm.isBatch()) {
+				final List<AmmoGatewayMessage> batch = agm.unpackBatch();
+				agm.releasePayload();
+				if (batch == null) {
+					logger.warn("discarding corrupt batch {}", agm);
+					return false;
+				}
+				boolean result = true;
+				for (final AmmoGatewayMessage msg : batch)
+					result &= this.deliver(msg);
+				return result;
+			}
+			if (agm.isChunk() || agm.isChunkAck()) {
+				// chunks are not offered to clients
+				logger.warn("discarding chunk from client {}", this.name);
+				return false;
+			}
+			if (!this.authorized)
+				return this.deliverMessage(agm);
+			return mChannelManager.deliver(agm);
+		}
+
+		/**
+		 * Close the socket and tell the distributor of the messages not sent.
+		 */
+		void close() {
+			synchronized (this) {
+				if (this.closed)
+					return;
+				this.closed = true;
+			}
+			logger.info("closing client {}", this.name);
+			try {
+				this.socket.close();
+			} catch (IOException ex) {
+				logger.warn("could not close client socket {}", this.name);
+			}
+			this.sender.interrupt();
+			final AmmoGatewayMessage pending = this.batcher.takePending();
+			if (pending != null && pending.handler != null)
+				pending.handler.ack(TcpChannelServer.this.name, DisposalState.PENDING);
+			for (final AmmoGatewayMessage msg : this.lanes.drain()) {
+				if (msg.handler != null)
+					msg.handler.ack(TcpChannelServer.this.name, DisposalState.PENDING);
+			}
+		}
+	}
+
 	@Override
 	public void toLog(String context) {
 		PLogger.SET_PANTHR_GW.debug(" {}:{} timeout={} sec", new Object[] {
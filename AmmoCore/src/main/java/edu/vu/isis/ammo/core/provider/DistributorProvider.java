@@ -23,6 +23,7 @@
 package edu.vu.isis.ammo.core.provider;
 
 import java.io.FileNotFoundException;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicReference;
 
 import org.slf4j.Logger;
@@ -36,6 +37,7 @@ import android.content.Intent;
 import android.content.ServiceConnection;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.MatrixCursor;
 import android.net.Uri;
 import android.os.IBinder;
 import android.os.ParcelFileDescriptor;
@@ -43,6 +45,7 @@ import edu.vu.isis.ammo.core.AmmoService;
 import edu.vu.isis.ammo.core.NetworkManager;
 import edu.vu.isis.ammo.core.distributor.DistributorDataStore;
 import edu.vu.isis.ammo.core.distributor.store.RelationsHelper;
+import edu.vu.isis.ammo.core.metrics.MetricsRegistry;
 import edu.vu.isis.ammo.util.Genealogist;
 
 public class DistributorProvider extends ContentProvider {
@@ -55,6 +58,19 @@ public class DistributorProvider extends ContentProvider {
 
     private static final UriMatcher uriMatcher;
     private static final UriMatcher garbageMatcher;
+
+    /**
+     * A snapshot of the metrics registry, one row per metric ordered by name.
+     * For a counter the value is its rate per second, for a histogram it is
+     * the mean; the percentiles are those of histograms, in milliseconds.
+     */
+    public static final String METRICS_PATH = "metrics";
+    public static final Uri METRICS_URI =
+            Uri.parse("content://" + DistributorSchema.AUTHORITY + "/" + METRICS_PATH);
+    public static final String[] METRICS_COLUMNS = new String[] {
+            "name", "kind", "count", "value", "p50", "p90", "p99", "max"
+    };
+    private static final int METRICS_MATCH = Relations.values().length;
     /**
      * ordinal values are returned by the uri which may then be used to retrieve
      * the relation enum.
@@ -67,6 +83,7 @@ public class DistributorProvider extends ContentProvider {
             garbageMatcher.addURI(DistributorSchema.AUTHORITY, table.n + "/garbage",
                     table.ordinal());
         }
+        uriMatcher.addURI(DistributorSchema.AUTHORITY, METRICS_PATH, METRICS_MATCH);
     }
 
     // =================================
@@ -151,6 +168,8 @@ public class DistributorProvider extends ContentProvider {
         if (this.dds == null)
             return -1;
         logger.trace("delete on distributor provider {} {}", uri, selection);
+        if (uriMatcher.match(uri) == METRICS_MATCH)
+            return -1;
 
         switch (RelationsHelper.getValue(uriMatcher.match(uri))) {
             case POSTAL:
@@ -207,6 +226,10 @@ public class DistributorProvider extends ContentProvider {
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
             String sortOrder) {
+        // the metrics do not depend on the service
+        if (uriMatcher.match(uri) == METRICS_MATCH)
+            return this.queryMetrics();
+
         if (!this.isBound) {
             logger.warn("query on unbound distributor {} {}", uri, selection);
             return null;
@@ -261,6 +284,18 @@ public class DistributorProvider extends ContentProvider {
         return cursor;
     }
 
+    private Cursor queryMetrics() {
+        final List<MetricsRegistry.Snapshot> snapshot = MetricsRegistry.getInstance().snapshot();
+        final MatrixCursor cursor = new MatrixCursor(METRICS_COLUMNS, snapshot.size());
+        for (final MetricsRegistry.Snapshot metric : snapshot) {
+            cursor.addRow(new Object[] {
+                    metric.name, metric.kind, metric.count, metric.value,
+                    metric.p50, metric.p90, metric.p99, metric.max
+            });
+        }
+        return cursor;
+    }
+
     @Override
     public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
         logger.warn("no updates allowed on distributor provider {} {}", uri, values);
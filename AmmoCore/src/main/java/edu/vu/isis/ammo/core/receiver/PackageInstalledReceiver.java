@@ -27,7 +27,13 @@ import org.slf4j.LoggerFactory;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.content.pm.ProviderInfo;
+import android.net.Uri;
 import edu.vu.isis.ammo.IntentNames;
+import edu.vu.isis.ammo.core.distributor.SerialMetadataCache;
 
 public class PackageInstalledReceiver extends BroadcastReceiver {
 
@@ -49,6 +55,8 @@ public class PackageInstalledReceiver extends BroadcastReceiver {
 		final String action = intent.getAction();
 		final String packageName = intent.getDataString();
 
+		invalidateMetadata(context, action, intent.getData());
+
 		// If this is an ammo package, broadcast an intent that the Ammo is ready.  
 		if (action.equalsIgnoreCase(Intent.ACTION_PACKAGE_ADDED) 
 				|| action.equalsIgnoreCase(Intent.ACTION_PACKAGE_REPLACED)) {
@@ -60,4 +68,35 @@ public class PackageInstalledReceiver extends BroadcastReceiver {
 			}
 		}
 	}
+
+	/**
+	 * The serialization metadata of the package's content providers
+	 * may have changed.
+	 */
+	private void invalidateMetadata(Context context, String action, Uri data) {
+		final SerialMetadataCache cache = SerialMetadataCache.getInstance();
+		if (data == null || action.equalsIgnoreCase(Intent.ACTION_PACKAGE_REMOVED)) {
+			cache.invalidateAll();
+			return;
+		}
+		final String name = data.getSchemeSpecificPart();
+		final PackageInfo info;
+		try {
+			info = context.getPackageManager().getPackageInfo(name,
+					PackageManager.GET_PROVIDERS);
+		} catch (NameNotFoundException ex) {
+			logger.warn("package {} not found", name);
+			cache.invalidateAll();
+			return;
+		}
+		if (info.providers == null)
+			return;
+		for (final ProviderInfo provider : info.providers) {
+			if (provider.authority == null)
+				continue;
+			for (final String authority : provider.authority.split(";")) {
+				cache.invalidate(authority);
+			}
+		}
+	}
 }
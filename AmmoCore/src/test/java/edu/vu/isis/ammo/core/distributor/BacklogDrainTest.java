@@ -0,0 +1,104 @@
+/* Copyright (c) 2010-2015 Vanderbilt University
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+
+package edu.vu.isis.ammo.core.distributor;
+
+import org.hamcrest.CoreMatchers;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test the pages, the sweeps and the pacing of the backlog drain.
+ */
+public class BacklogDrainTest {
+
+    @Test
+    public void pagesInTableOrder() {
+        final BacklogDrain drain = new BacklogDrain(null, 2, 0);
+        Assert.assertFalse(drain.isPending());
+        drain.request(100L);
+        Assert.assertThat(drain.since(), CoreMatchers.is(100L));
+
+        BacklogDrain.Checkpoint page = drain.begin();
+        Assert.assertThat(page.table, CoreMatchers.is(BacklogDrain.Table.SUBSCRIBE));
+        Assert.assertThat("from the top", page.priority(), CoreMatchers.is(Integer.MAX_VALUE));
+        page.advance(5, 1);
+        page.advance(5, 7);
+        drain.end(page, 100L);
+
+        page = drain.begin();
+        Assert.assertThat("full page carries on", page.table,
+                CoreMatchers.is(BacklogDrain.Table.SUBSCRIBE));
+        Assert.assertThat(page.priority(), CoreMatchers.is(5));
+        Assert.assertThat(page.id(), CoreMatchers.is(7L));
+        page.advance(3, 2);
+        drain.end(page, 100L);
+
+        page = drain.begin();
+        Assert.assertThat(page.table, CoreMatchers.is(BacklogDrain.Table.RETRIEVAL));
+        drain.end(page, 100L);
+        page = drain.begin();
+        Assert.assertThat(page.table, CoreMatchers.is(BacklogDrain.Table.POSTAL));
+        drain.end(page, 100L);
+
+        Assert.assertFalse(drain.isPending());
+        Assert.assertThat(drain.since(), CoreMatchers.is(0L));
+    }
+
+    @Test
+    public void requestDuringSweep() {
+        final BacklogDrain drain = new BacklogDrain(null, 1, 0);
+        drain.request(100L);
+        BacklogDrain.Checkpoint page = drain.begin();
+        page.advance(5, 1);
+        drain.end(page, 100L);
+
+        drain.request(200L);
+        page = drain.begin();
+        Assert.assertThat(page.id(), CoreMatchers.is(1L));
+        drain.end(page, 200L);
+
+        page = drain.begin();
+        Assert.assertThat("swept again from the top", page.table,
+                CoreMatchers.is(BacklogDrain.Table.SUBSCRIBE));
+        Assert.assertThat(page.id(), CoreMatchers.is(-1L));
+    }
+
+    @Test
+    public void pacedAndCancelled() {
+        final BacklogDrain drain = new BacklogDrain(null, 10, 100);
+        drain.request(1000L);
+        Assert.assertTrue(drain.isDue(1000L));
+
+        BacklogDrain.Checkpoint page = drain.begin();
+        Assert.assertFalse("one page at a time", drain.isDue(1000L));
+        drain.cancel(page);
+        Assert.assertTrue("a cancelled page is taken again", drain.isDue(1000L));
+
+        page = drain.begin();
+        drain.end(page, 1000L);
+        Assert.assertFalse(drain.isDue(1050L));
+        Assert.assertThat(drain.untilDue(1050L, 20000L), CoreMatchers.is(50L));
+        Assert.assertTrue(drain.isDue(1100L));
+    }
+}
@@ -0,0 +1,128 @@
+/* Copyright (c) 2010-2015 Vanderbilt University
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+
+package edu.vu.isis.ammo.core.distributor;
+
+import java.util.LinkedList;
+
+import org.hamcrest.CoreMatchers;
+import org.junit.Assert;
+import org.junit.Test;
+
+import edu.vu.isis.ammo.core.metrics.MetricsRegistry;
+
+/**
+ * Test the shares, the maximum age and the room of the distributor scheduler.
+ */
+public class DistributorSchedulerTest {
+
+    /**
+     * A queue of the times its items were queued.
+     */
+    private static class FakeSource implements DistributorScheduler.Source {
+        final LinkedList<Long> queue = new LinkedList<Long>();
+        boolean room = true;
+        int served = 0;
+
+        FakeSource fill(int count, long queued) {
+            for (int ix = 0; ix < count; ++ix)
+                this.queue.add(queued);
+            return this;
+        }
+
+        @Override
+        public long headTime() {
+            return this.queue.isEmpty() ? 0 : this.queue.getFirst();
+        }
+
+        @Override
+        public boolean isReady() {
+            return this.room && !this.queue.isEmpty();
+        }
+
+        @Override
+        public void dispatch() {
+            this.queue.removeFirst();
+            this.served++;
+        }
+    }
+
+    @Test
+    public void sharesByWeight() {
+        final long now = 1000000L;
+        final FakeSource request = new FakeSource().fill(1000, now);
+        final FakeSource response = new FakeSource().fill(1000, now);
+        final DistributorScheduler scheduler = new DistributorScheduler()
+                .add("request", request, 3, 0)
+                .add("response", response, 1, 0);
+        for (int ix = 0; ix < 100; ++ix)
+            scheduler.round(now);
+        Assert.assertThat(request.served, CoreMatchers.is(300));
+        Assert.assertThat(response.served, CoreMatchers.is(100));
+    }
+
+    @Test
+    public void floodDoesNotStarve() {
+        final long now = 1000000L;
+        final FakeSource request = new FakeSource().fill(1000, now);
+        final FakeSource response = new FakeSource();
+        final DistributorScheduler scheduler = new DistributorScheduler()
+                .add("request", request, 4, 0)
+                .add("response", response, 4, 0);
+        scheduler.round(now);
+        response.fill(1, now);
+        scheduler.round(now);
+        Assert.assertThat("served in the next round", response.served, CoreMatchers.is(1));
+        Assert.assertThat(request.served, CoreMatchers.is(8));
+    }
+
+    @Test
+    public void overdueServedFirst() {
+        final long now = 1000000L;
+        final FakeSource request = new FakeSource().fill(10, now);
+        final FakeSource ack = new FakeSource().fill(3, now - 5000);
+        final DistributorScheduler scheduler = new DistributorScheduler()
+                .add("request", request, 1, 0)
+                .add("ack", ack, 1, 1000);
+        scheduler.round(now);
+        Assert.assertThat("served out of turn, which uses its credit", ack.served,
+                CoreMatchers.is(1));
+        Assert.assertThat(request.served, CoreMatchers.is(1));
+        Assert.assertThat(MetricsRegistry.getInstance().gauge("distributor.sched.ack.wait").get(),
+                CoreMatchers.is(5000L));
+    }
+
+    @Test
+    public void fullStageWaits() {
+        final long now = 1000000L;
+        final FakeSource request = new FakeSource().fill(10, now);
+        request.room = false;
+        final DistributorScheduler scheduler = new DistributorScheduler()
+                .add("request", request, 2, 0);
+        Assert.assertFalse(scheduler.isReady());
+        Assert.assertThat(scheduler.round(now), CoreMatchers.is(0));
+        request.room = true;
+        Assert.assertTrue(scheduler.isReady());
+        Assert.assertThat(scheduler.round(now), CoreMatchers.is(2));
+    }
+}
@@ -0,0 +1,168 @@
+/* Copyright (c) 2010-2015 Vanderbilt University
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package edu.vu.isis.ammo.core.distributor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.hamcrest.CoreMatchers;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test the ordering by key, the bounds and the room signal of a distributor stage.
+ */
+public class DistributorStageTest {
+
+    @Test
+    public void orderByKey() throws InterruptedException {
+        final DistributorStage stage = new DistributorStage("order", 3, 100, null).start();
+        final List<Integer> chat = new ArrayList<Integer>();
+        final CountDownLatch done = new CountDownLatch(50);
+        try {
+            for (int ix = 0; ix < 50; ++ix) {
+                final int seq = ix;
+                Assert.assertTrue(stage.submit("chat", new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (chat) {
+                            chat.add(seq);
+                        }
+                        done.countDown();
+                    }
+                }));
+            }
+            Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+            for (int ix = 0; ix < 50; ++ix)
+                Assert.assertThat("in order given", chat.get(ix), CoreMatchers.is(ix));
+        } finally {
+            stage.stop();
+        }
+    }
+
+    @Test
+    public void slowKeyHoldsOnlyItsLane() throws InterruptedException {
+        final DistributorStage stage = new DistributorStage("slow", 2, 10, null).start();
+        final String blob = "blob";
+        String chat = "chat";
+        for (int ix = 0; stage.laneOf(chat) == stage.laneOf(blob); ++ix)
+            chat = "chat" + ix;
+
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch delivered = new CountDownLatch(1);
+        try {
+            stage.submit(blob, new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        release.await(5, TimeUnit.SECONDS);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+            stage.submit(chat, new Runnable() {
+                @Override
+                public void run() {
+                    delivered.countDown();
+                }
+            });
+            Assert.assertTrue("not held by the blob", delivered.await(2, TimeUnit.SECONDS));
+        } finally {
+            release.countDown();
+            stage.stop();
+        }
+    }
+
+    @Test
+    public void room() throws InterruptedException {
+        final AtomicInteger signals = new AtomicInteger();
+        final DistributorStage stage = new DistributorStage("room", 1, 2, new Runnable() {
+            @Override
+            public void run() {
+                signals.incrementAndGet();
+            }
+        });
+        final Runnable nothing = new Runnable() {
+            @Override
+            public void run() {
+            }
+        };
+        // not started so nothing is taken
+        Assert.assertTrue(stage.submit("a", nothing));
+        Assert.assertTrue(stage.submit("b", nothing));
+        Assert.assertThat(stage.size(), CoreMatchers.is(2));
+        Assert.assertFalse("full", stage.hasRoom("a"));
+        Assert.assertFalse("full", stage.submit("c", nothing));
+
+        stage.start();
+        try {
+            for (int ix = 0; ix < 100 && stage.size() > 0; ++ix)
+                Thread.sleep(10);
+            Assert.assertThat(stage.size(), CoreMatchers.is(0));
+            Assert.assertThat("signalled once room was made", signals.get(), CoreMatchers.is(1));
+            Assert.assertTrue(stage.hasRoom("a"));
+        } finally {
+            stage.stop();
+        }
+    }
+
+    @Test
+    public void putWaitsForRoom() throws InterruptedException {
+        final DistributorStage stage = new DistributorStage("put", 1, 1, null);
+        final CountDownLatch done = new CountDownLatch(2);
+        final Runnable count = new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        };
+        stage.put("a", count);
+        final Thread replay = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    stage.put("a", count);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        replay.start();
+        try {
+            replay.join(100);
+            Assert.assertTrue("waiting for room", replay.isAlive());
+
+            stage.start();
+            replay.join(5000);
+            Assert.assertFalse(replay.isAlive());
+            Assert.assertTrue("both done", done.await(5, TimeUnit.SECONDS));
+        } finally {
+            replay.interrupt();
+            stage.stop();
+        }
+    }
+}
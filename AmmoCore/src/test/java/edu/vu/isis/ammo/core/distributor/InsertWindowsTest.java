@@ -0,0 +1,155 @@
+/* Copyright (c) 2010-2015 Vanderbilt University
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package edu.vu.isis.ammo.core.distributor;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.hamcrest.CoreMatchers;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test the windows, the merging and the lingering of batched inserts.
+ */
+public class InsertWindowsTest {
+
+    private static final String PROVIDER = "content://edu.vu.isis.ammo.test/position";
+
+    /**
+     * Keeps what was inserted, a row with a "bad" value fails.
+     */
+    private static class Recorder implements InsertWindows.Inserter<String, Map<String, String>> {
+        final List<Integer> batches = new ArrayList<Integer>();
+        final List<Map<String, String>> rows = new ArrayList<Map<String, String>>();
+
+        @Override
+        public synchronized void insertAll(String provider, List<Map<String, String>> rows)
+                throws Exception {
+            for (final Map<String, String> row : rows) {
+                if (row.containsKey("bad"))
+                    throw new IllegalArgumentException("bad row");
+            }
+            this.batches.add(rows.size());
+            this.rows.addAll(rows);
+            this.notifyAll();
+        }
+
+        @Override
+        public synchronized boolean insert(String provider, Map<String, String> row) {
+            if (row.containsKey("bad"))
+                return false;
+            this.rows.add(row);
+            return true;
+        }
+
+        @Override
+        public void merge(Map<String, String> row, Map<String, String> later) {
+            row.putAll(later);
+        }
+
+        synchronized boolean awaitBatch(long timeoutMillis) throws InterruptedException {
+            final long deadline = System.currentTimeMillis() + timeoutMillis;
+            for (long remaining = timeoutMillis; this.batches.isEmpty() && remaining > 0; remaining = deadline
+                    - System.currentTimeMillis()) {
+                this.wait(remaining);
+            }
+            return !this.batches.isEmpty();
+        }
+    }
+
+    private static Map<String, String> row(String name, String value) {
+        final Map<String, String> row = new HashMap<String, String>();
+        row.put(name, value);
+        return row;
+    }
+
+    private final Recorder recorder = new Recorder();
+    private InsertWindows<String, Map<String, String>> windows;
+
+    @After
+    public void tearDown() {
+        if (this.windows != null)
+            this.windows.stop();
+    }
+
+    @Test
+    public void fullWindowInserted() {
+        this.windows = new InsertWindows<String, Map<String, String>>(this.recorder, 3, 60 * 1000);
+        this.windows.start();
+        this.windows.add(PROVIDER, null, row("lat", "1"));
+        this.windows.add(PROVIDER, null, row("lat", "2"));
+        Assert.assertTrue("still waiting", this.recorder.rows.isEmpty());
+        this.windows.add(PROVIDER, null, row("lat", "3"));
+        Assert.assertThat(this.recorder.batches.size(), CoreMatchers.is(1));
+        Assert.assertThat(this.recorder.rows.get(0).get("lat"), CoreMatchers.is("1"));
+        Assert.assertThat("in order", this.recorder.rows.get(2).get("lat"), CoreMatchers.is("3"));
+    }
+
+    @Test
+    public void sameKeyMerged() {
+        this.windows = new InsertWindows<String, Map<String, String>>(this.recorder, 10, 60 * 1000);
+        this.windows.start();
+        this.windows.add(PROVIDER, "alpha", row("lat", "1"));
+        this.windows.add(PROVIDER, "bravo", row("lat", "2"));
+        this.windows.add(PROVIDER, "alpha", row("lat", "3"));
+        this.windows.flush(PROVIDER);
+        Assert.assertThat(this.recorder.rows.size(), CoreMatchers.is(2));
+        Assert.assertThat("later values win", this.recorder.rows.get(0).get("lat"), CoreMatchers.is("3"));
+    }
+
+    @Test
+    public void lingeringWindowInserted() throws InterruptedException {
+        this.windows = new InsertWindows<String, Map<String, String>>(this.recorder, 10, 20);
+        this.windows.start();
+        this.windows.add(PROVIDER, null, row("lat", "1"));
+        Assert.assertTrue("inserted after the linger", this.recorder.awaitBatch(5000));
+        Assert.assertThat(this.recorder.rows.size(), CoreMatchers.is(1));
+    }
+
+    @Test
+    public void failedBatchInsertedOnce() {
+        this.windows = new InsertWindows<String, Map<String, String>>(this.recorder, 3, 60 * 1000);
+        this.windows.start();
+        this.windows.add(PROVIDER, null, row("lat", "1"));
+        this.windows.add(PROVIDER, null, row("bad", "2"));
+        this.windows.add(PROVIDER, null, row("lat", "3"));
+        Assert.assertTrue(this.recorder.batches.isEmpty());
+        Assert.assertThat("the good rows, once each", this.recorder.rows.size(), CoreMatchers.is(2));
+    }
+
+    @Test
+    public void stopInsertsWaiting() {
+        this.windows = new InsertWindows<String, Map<String, String>>(this.recorder, 10, 60 * 1000);
+        this.windows.start();
+        this.windows.add(PROVIDER, null, row("lat", "1"));
+        this.windows.stop();
+        Assert.assertThat(this.recorder.rows.size(), CoreMatchers.is(1));
+
+        // once stopped nothing waits for the timer
+        this.windows.add(PROVIDER, null, row("lat", "2"));
+        Assert.assertThat(this.recorder.rows.size(), CoreMatchers.is(2));
+    }
+}
@@ -0,0 +1,103 @@
+/* Copyright (c) 2010-2015 Vanderbilt University
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+
+
+package edu.vu.isis.ammo.core.distributor;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.hamcrest.CoreMatchers;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test the keeping and dropping of serialized postal payloads.
+ */
+public class PostalPayloadCacheTest {
+
+    private static final String TOPIC = "ammo/edu.vu.isis.ammo.test.picture";
+    private static final String TUPLE = "content://edu.vu.isis.ammo.test/picture/7";
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        this.dir = File.createTempFile("postal", "");
+        this.dir.delete();
+        this.dir.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        new PostalPayloadCache(this.dir, null);
+        this.dir.delete();
+    }
+
+    @Test
+    public void retryReadsWhatWasPut() {
+        final PostalPayloadCache cache = new PostalPayloadCache(this.dir, null);
+        final byte[] bytes = new byte[] { 1, 2, 3 };
+        Assert.assertThat(cache.get(TOPIC, TUPLE, "JSON"), CoreMatchers.nullValue());
+        cache.put(TOPIC, TUPLE, "JSON", bytes);
+
+        Assert.assertTrue(Arrays.equals(bytes, cache.get(TOPIC, TUPLE, "JSON")));
+        Assert.assertThat("other encoding", cache.get(TOPIC, TUPLE, "TERSE"),
+                CoreMatchers.nullValue());
+        Assert.assertThat("other topic", cache.get("ammo/other", TUPLE, "JSON"),
+                CoreMatchers.nullValue());
+    }
+
+    @Test
+    public void putWithoutMissIsDropped() {
+        final PostalPayloadCache cache = new PostalPayloadCache(this.dir, null);
+        cache.get(TOPIC, TUPLE, "JSON");
+        cache.invalidate(TOPIC, TUPLE);
+        cache.put(TOPIC, TUPLE, "JSON", new byte[] { 1 });
+        Assert.assertThat("changed while serializing", cache.get(TOPIC, TUPLE, "JSON"),
+                CoreMatchers.nullValue());
+    }
+
+    @Test
+    public void invalidateRetainAndRestart() {
+        PostalPayloadCache cache = new PostalPayloadCache(this.dir, null);
+        cache.get(TOPIC, TUPLE, "JSON");
+        cache.put(TOPIC, TUPLE, "JSON", new byte[] { 1 });
+
+        cache.retain(Collections.singleton(PostalPayloadCache.keyOf(TOPIC, TUPLE)));
+        Assert.assertThat(cache.get(TOPIC, TUPLE, "JSON"), CoreMatchers.notNullValue());
+        cache.retain(Collections.<String> emptySet());
+        Assert.assertThat("postal deleted", cache.get(TOPIC, TUPLE, "JSON"),
+                CoreMatchers.nullValue());
+
+        cache.put(TOPIC, TUPLE, "JSON", new byte[] { 1 });
+        cache = new PostalPayloadCache(this.dir, null);
+        Assert.assertThat("cleared when made", cache.get(TOPIC, TUPLE, "JSON"),
+                CoreMatchers.nullValue());
+        Assert.assertThat(this.dir.list().length, CoreMatchers.is(0));
+    }
+}
@@ -0,0 +1,76 @@
+/* Copyright (c) 2010-2015 Vanderbilt University
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package edu.vu.isis.ammo.core.distributor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hamcrest.CoreMatchers;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test the subscription index follows the subscribe table.
+ */
+public class SubscriptionIndexTest {
+
+    @Test
+    public void firstSubscriberReceives() {
+        final SubscriptionIndex index = new SubscriptionIndex();
+        Assert.assertThat(index.providerOf("ammo/chat"), CoreMatchers.nullValue());
+
+        index.add("ammo/chat", "content://chat/msg");
+        index.add("ammo/chat", "content://log/msg");
+        index.add("ammo/chat", "content://chat/msg");
+        Assert.assertThat(index.providerOf("ammo/chat"), CoreMatchers.is("content://chat/msg"));
+        Assert.assertThat("no duplicates", index.providersOf("ammo/chat").size(), CoreMatchers.is(2));
+        Assert.assertThat("exact topics only", index.providerOf("ammo/chat/group"),
+                CoreMatchers.nullValue());
+
+        index.remove("ammo/chat", "content://chat/msg");
+        Assert.assertThat(index.providerOf("ammo/chat"), CoreMatchers.is("content://log/msg"));
+        index.remove("ammo/chat", "content://log/msg");
+        Assert.assertThat(index.providerOf("ammo/chat"), CoreMatchers.nullValue());
+        Assert.assertThat(index.size(), CoreMatchers.is(0));
+    }
+
+    @Test
+    public void replace() {
+        final SubscriptionIndex index = new SubscriptionIndex();
+        index.add("ammo/stale", "content://stale");
+
+        final List<String[]> rows = new ArrayList<String[]>();
+        rows.add(new String[] { "ammo/pli", "content://map/pli" });
+        rows.add(new String[] { "ammo/chat", "content://chat/msg" });
+        rows.add(new String[] { "ammo/pli", "content://log/pli" });
+        index.replace(rows);
+
+        Assert.assertThat(index.providerOf("ammo/stale"), CoreMatchers.nullValue());
+        Assert.assertThat("in table order", index.providerOf("ammo/pli"),
+                CoreMatchers.is("content://map/pli"));
+        Assert.assertThat(index.providersOf("ammo/pli").size(), CoreMatchers.is(2));
+
+        index.clear();
+        Assert.assertThat(index.providerOf("ammo/chat"), CoreMatchers.nullValue());
+    }
+}
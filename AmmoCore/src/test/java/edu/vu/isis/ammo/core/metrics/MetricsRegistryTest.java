@@ -0,0 +1,97 @@
+/* Copyright (c) 2010-2015 Vanderbilt University
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package edu.vu.isis.ammo.core.metrics;
+
+import java.util.List;
+
+import org.hamcrest.CoreMatchers;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test the histogram percentiles and the sampling of the registry.
+ */
+public class MetricsRegistryTest {
+
+	@Test
+	public void buckets() {
+		Assert.assertThat(Histogram.bucketOf(0), CoreMatchers.is(0));
+		Assert.assertThat(Histogram.bucketOf(1), CoreMatchers.is(0));
+		Assert.assertThat(Histogram.bucketOf(2), CoreMatchers.is(1));
+		Assert.assertThat(Histogram.bucketOf(3), CoreMatchers.is(2));
+		Assert.assertThat(Histogram.bucketOf(1000), CoreMatchers.is(9));
+		Assert.assertThat("overflow", Histogram.bucketOf(Long.MAX_VALUE), CoreMatchers.is(18));
+	}
+
+	@Test
+	public void percentiles() {
+		final Histogram histogram = new Histogram();
+		Assert.assertThat("empty", histogram.percentile(0.5), CoreMatchers.is(0L));
+		for (int ix = 0; ix < 98; ++ix)
+			histogram.record(4);
+		histogram.record(150);
+		histogram.record(900000);
+
+		Assert.assertThat(histogram.count(), CoreMatchers.is(100L));
+		Assert.assertThat("bucket bound", histogram.percentile(0.50), CoreMatchers.is(5L));
+		Assert.assertThat(histogram.percentile(0.99), CoreMatchers.is(200L));
+		Assert.assertThat("overflow is the max", histogram.percentile(1.0), CoreMatchers.is(900000L));
+		Assert.assertThat(histogram.max(), CoreMatchers.is(900000L));
+
+		final Histogram small = new Histogram();
+		small.record(3);
+		small.record(-7);
+		Assert.assertThat("no more than the max", small.percentile(0.99), CoreMatchers.is(3L));
+		Assert.assertThat("negative in the first bucket", small.percentile(0.5), CoreMatchers.is(1L));
+	}
+
+	@Test
+	public void sampling() {
+		final MetricsRegistry registry = new MetricsRegistry(0);
+		final MetricsRegistry.Counter counter = registry.counter("b.count");
+		Assert.assertThat("same metric", registry.counter("b.count"), CoreMatchers.sameInstance(counter));
+
+		final long[] elapsed = new long[] { 0 };
+		registry.addSampler(new MetricsRegistry.Sampler() {
+			@Override
+			public void sample(long elapsedMillis) {
+				elapsed[0] = elapsedMillis;
+			}
+		});
+		final long start = System.currentTimeMillis();
+		registry.sample(start);
+		counter.add(500);
+		registry.sample(start + 2000);
+		Assert.assertThat("per second", counter.rate(), CoreMatchers.is(250L));
+		Assert.assertThat(elapsed[0], CoreMatchers.is(2000L));
+
+		registry.gauge("c.level").set(7);
+		registry.histogram("a.latency").record(12);
+		final List<MetricsRegistry.Snapshot> snapshot = registry.snapshot();
+		Assert.assertThat(snapshot.size(), CoreMatchers.is(3));
+		Assert.assertThat("by name", snapshot.get(0).name, CoreMatchers.is("a.latency"));
+		Assert.assertThat(snapshot.get(0).p50, CoreMatchers.is(12L));
+		Assert.assertThat(snapshot.get(1).value, CoreMatchers.is(250L));
+		Assert.assertThat(snapshot.get(2).kind, CoreMatchers.is(MetricsRegistry.GAUGE));
+	}
+}
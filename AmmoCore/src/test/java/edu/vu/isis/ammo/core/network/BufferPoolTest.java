@@ -0,0 +1,79 @@
+/* Copyright (c) 2010-2015 Vanderbilt University
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package edu.vu.isis.ammo.core.network;
+
+import org.hamcrest.CoreMatchers;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test the size classes and recycling of the buffer pool.
+ */
+public class BufferPoolTest {
+
+	@Test
+	public void sizeClasses() {
+		final BufferPool pool = new BufferPool(9, 12, 0x4000);
+
+		Assert.assertThat("smallest class", pool.acquire(1).array.length, CoreMatchers.is(512));
+		Assert.assertThat("exact fit", pool.acquire(1024).array.length, CoreMatchers.is(1024));
+		Assert.assertThat("next class up", pool.acquire(1025).array.length, CoreMatchers.is(2048));
+		Assert.assertThat("largest class", pool.acquire(4096).array.length, CoreMatchers.is(4096));
+		Assert.assertThat("too large to pool", pool.acquire(4097).array.length, CoreMatchers.is(4097));
+	}
+
+	@Test
+	public void recycle() {
+		final BufferPool pool = new BufferPool(9, 12, 0x4000);
+
+		final BufferPool.Slab first = pool.acquire(700);
+		first.retain();
+		first.release();
+		Assert.assertThat("still referenced", pool.freeSlabs(), CoreMatchers.is(0));
+		first.release();
+		Assert.assertThat("returned to pool", pool.freeSlabs(), CoreMatchers.is(1));
+
+		final BufferPool.Slab second = pool.acquire(1000);
+		Assert.assertThat("reused", second, CoreMatchers.sameInstance(first));
+		Assert.assertThat("single reference", second.refCount(), CoreMatchers.is(1));
+
+		second.release();
+		second.release();
+		Assert.assertThat("over release ignored", pool.freeSlabs(), CoreMatchers.is(1));
+
+		pool.acquire(5000).release();
+		Assert.assertThat("unpooled not kept", pool.freeSlabs(), CoreMatchers.is(1));
+	}
+
+	@Test
+	public void bounded() {
+		// 4k budget allows eight 512 byte slabs
+		final BufferPool pool = new BufferPool(9, 12, 0x1000);
+		final BufferPool.Slab[] slabs = new BufferPool.Slab[12];
+		for (int ix = 0; ix < slabs.length; ++ix)
+			slabs[ix] = pool.acquire(100);
+		for (BufferPool.Slab slab : slabs)
+			slab.release();
+		Assert.assertThat("bounded by budget", pool.freeSlabs(), CoreMatchers.is(8));
+	}
+}
@@ -0,0 +1,149 @@
+/* Copyright (c) 2010-2015 Vanderbilt University
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package edu.vu.isis.ammo.core.network;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import org.hamcrest.CoreMatchers;
+import org.junit.Assert;
+import org.junit.Test;
+
+import edu.vu.isis.ammo.core.distributor.DistributorDataStore.DisposalState;
+
+/**
+ * Test that a transfer is kept until the receiver reports it complete.
+ */
+public class ChunkSplitterTest {
+
+	private static final INetworkService.OnSendMessageHandler HANDLER = new INetworkService.OnSendMessageHandler() {
+		@Override
+		public boolean ack(String channel, DisposalState status) {
+			return true;
+		}
+	};
+
+	private static ChunkSplitter splitter(long completeTimeout) {
+		final ChunkSplitter splitter = new ChunkSplitter(completeTimeout);
+		splitter.configure(100);
+		splitter.negotiate(AmmoGatewayMessage.newBuilder()
+				.size(0)
+				.payload(new byte[0])
+				.flags(AmmoGatewayMessage.FLAG_ACCEPTS_CHUNKS)
+				.build());
+		return splitter;
+	}
+
+	private static AmmoGatewayMessage message(int size) {
+		final byte[] payload = new byte[size];
+		new Random(size).nextBytes(payload);
+		return AmmoGatewayMessage.newBuilder()
+				.size(payload.length)
+				.payload(payload)
+				.checksum(AmmoGatewayMessage.CheckSum.newInstance(payload).asLong())
+				.handler(HANDLER)
+				.build();
+	}
+
+	private static int offsetOf(AmmoGatewayMessage chunk) {
+		final ByteBuffer body = ByteBuffer.wrap(chunk.payload, 0, chunk.size);
+		body.order(ByteOrder.BIG_ENDIAN);
+		body.getLong();
+		return body.getInt();
+	}
+
+	/**
+	 * Send every chunk of the current transfer.
+	 */
+	private static int drain(ChunkSplitter splitter) {
+		int count = 0;
+		for (AmmoGatewayMessage chunk = splitter.nextChunk(); chunk != null; chunk = splitter.nextChunk()) {
+			Assert.assertNull("chunks carry no handler", chunk.handler);
+			++count;
+		}
+		return count;
+	}
+
+	@Test
+	public void keptUntilComplete() {
+		final ChunkSplitter splitter = splitter(60 * 1000);
+		final AmmoGatewayMessage msg = message(250);
+		Assert.assertTrue(splitter.shouldSplit(msg));
+		splitter.start(msg);
+
+		Assert.assertThat(drain(splitter), CoreMatchers.is(3));
+		Assert.assertFalse("nothing left to send", splitter.isSending());
+		Assert.assertTrue("waiting to be reported complete", splitter.isWaiting());
+
+		final long id = ChunkSplitter.transferId(msg);
+		Assert.assertNull(splitter.onAck(ChunkSplitter.newAck(id, 200, ChunkSplitter.ACK_PROGRESS, null)));
+		Assert.assertSame(msg, splitter.onAck(ChunkSplitter.newAck(id, 250, ChunkSplitter.ACK_COMPLETE, null)));
+		Assert.assertFalse(splitter.isWaiting());
+		Assert.assertNull("reported once", splitter.onAck(ChunkSplitter.newAck(id, 250, ChunkSplitter.ACK_COMPLETE, null)));
+	}
+
+	@Test
+	public void resyncAfterLastChunk() {
+		final ChunkSplitter splitter = splitter(60 * 1000);
+		final AmmoGatewayMessage msg = message(250);
+		splitter.start(msg);
+		drain(splitter);
+
+		// the reassembled payload failed its checksum
+		final long id = ChunkSplitter.transferId(msg);
+		Assert.assertNull(splitter.onAck(ChunkSplitter.newAck(id, 0, ChunkSplitter.ACK_RESYNC, null)));
+		Assert.assertTrue(splitter.isSending());
+		final AmmoGatewayMessage first = splitter.nextChunk();
+		Assert.assertThat("sent over", offsetOf(first), CoreMatchers.is(0));
+		Assert.assertThat(drain(splitter), CoreMatchers.is(2));
+		Assert.assertSame(msg, splitter.onAck(ChunkSplitter.newAck(id, 250, ChunkSplitter.ACK_COMPLETE, null)));
+	}
+
+	@Test
+	public void resentWhenNotComplete() {
+		final ChunkSplitter splitter = splitter(0);
+		final AmmoGatewayMessage msg = message(250);
+		splitter.start(msg);
+		final long id = ChunkSplitter.transferId(msg);
+		splitter.nextChunk();
+		splitter.nextChunk();
+		splitter.onAck(ChunkSplitter.newAck(id, 200, ChunkSplitter.ACK_PROGRESS, null));
+		Assert.assertThat("the last chunk", offsetOf(splitter.nextChunk()), CoreMatchers.is(200));
+
+		// no report came in time, resend from the progress reported
+		Assert.assertTrue(splitter.isSending());
+		Assert.assertThat(offsetOf(splitter.nextChunk()), CoreMatchers.is(200));
+	}
+
+	@Test
+	public void resetReturnsUnconfirmed() {
+		final ChunkSplitter splitter = splitter(60 * 1000);
+		final AmmoGatewayMessage msg = message(250);
+		splitter.start(msg);
+		drain(splitter);
+
+		Assert.assertThat(splitter.reset().size(), CoreMatchers.is(1));
+		Assert.assertFalse(splitter.isWaiting());
+	}
+}
@@ -0,0 +1,81 @@
+/* Copyright (c) 2010-2015 Vanderbilt University
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package edu.vu.isis.ammo.core.network;
+
+import java.util.List;
+
+import org.hamcrest.CoreMatchers;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test the parsing and ranking of gateway endpoints.
+ */
+public class GatewayEndpointsTest {
+
+	@Test
+	public void parse() {
+		final GatewayEndpoints endpoints = new GatewayEndpoints();
+		endpoints.configure("gw1, gw2:4000 ,[fe80::1]:5000,[fe80::2],, :7", 33289);
+		final List<GatewayEndpoints.Endpoint> ranked = endpoints.ranked();
+		Assert.assertThat(ranked.size(), CoreMatchers.is(4));
+		Assert.assertThat(ranked.get(0).toString(), CoreMatchers.is("gw1:33289"));
+		Assert.assertThat(ranked.get(1).toString(), CoreMatchers.is("gw2:4000"));
+		Assert.assertThat(ranked.get(2).host, CoreMatchers.is("fe80::1"));
+		Assert.assertThat(ranked.get(2).port, CoreMatchers.is(5000));
+		Assert.assertThat(ranked.get(3).toString(), CoreMatchers.is("[fe80::2]:33289"));
+	}
+
+	@Test
+	public void ranking() {
+		final GatewayEndpoints endpoints = new GatewayEndpoints();
+		endpoints.configure("a,b,c,d", 1);
+		List<GatewayEndpoints.Endpoint> ranked = endpoints.ranked();
+		endpoints.connected(ranked.get(0), 300);
+		endpoints.connected(ranked.get(1), 40);
+		endpoints.failed(ranked.get(2), 5);
+
+		ranked = endpoints.ranked();
+		Assert.assertThat("untried first", ranked.get(0).host, CoreMatchers.is("d"));
+		Assert.assertThat("fastest", ranked.get(1).host, CoreMatchers.is("b"));
+		Assert.assertThat(ranked.get(2).host, CoreMatchers.is("a"));
+		Assert.assertThat("failed last", ranked.get(3).host, CoreMatchers.is("c"));
+
+		final GatewayEndpoints.Endpoint b = ranked.get(1);
+		for (int ix = 0; ix < 20; ++ix)
+			endpoints.connected(b, 1000);
+		Assert.assertThat("smoothed toward recent", b.latency() > 900, CoreMatchers.is(true));
+		Assert.assertThat(endpoints.ranked().get(2).host, CoreMatchers.is("b"));
+	}
+
+	@Test
+	public void reconfigure() {
+		final GatewayEndpoints endpoints = new GatewayEndpoints();
+		endpoints.configure("a,b", 1);
+		endpoints.connected(endpoints.ranked().get(1), 40);
+		endpoints.configure("c,B", 1);
+		final List<GatewayEndpoints.Endpoint> ranked = endpoints.ranked();
+		Assert.assertThat(ranked.get(0).host, CoreMatchers.is("c"));
+		Assert.assertThat("kept", ranked.get(1).latency(), CoreMatchers.is(40L));
+	}
+}
@@ -0,0 +1,579 @@
+/* Copyright (c) 2010-2015 Vanderbilt University
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package edu.vu.isis.ammo.core.network;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.vu.isis.ammo.core.pb.AmmoMessages;
+import edu.vu.isis.ammo.core.pb.AmmoMessages.MessageWrapper.MessageType;
+
+/**
+ * A stand-in for the gateway, listening on the loopback interface, so the
+ * TCP channel can be driven without one.
+ * <p>
+ * It speaks the full header framing and answers the authentication message
+ * with a result. Each data message is echoed back, acknowledged as received
+ * or simply consumed, depending on the mode. Heartbeats are answered and
+ * batches are unpacked; compression and chunks are never advertised so the
+ * channel does not use them.
+ * <p>
+ * The script adds trouble: a delay before every reply, dropping every so
+ * many data messages and closing the connection every so many. It may also
+ * grant a session on authentication, one for the last client authorized,
+ * counting the frames received and reporting the count every so many; a
+ * request to resume it is accepted, or refused if the script says so.
+ */
+public class GatewaySimulator {
+	private static final Logger logger = LoggerFactory.getLogger("test.gateway");
+
+	private static final ByteOrder ENDIAN = ByteOrder.LITTLE_ENDIAN;
+	private static final int RECV_BUFF_SIZE = 0x15554;
+	private static final int SEND_FRAME_SIZE = 0x2000;
+	/** how long stop waits for each thread */
+	private static final long STOP_WAIT = 2000;
+	/** how many frames of a session are received between reports */
+	private static final int REPORT_EVERY = 16;
+
+	public enum Mode {
+		/** send each data message back */
+		ECHO,
+		/** answer each data message with a push acknowledgement */
+		ACK,
+		/** consume each data message */
+		SINK
+	}
+
+	public static class Script {
+		private long replyDelay = 0;
+		private int dropEvery = 0;
+		private int disconnectEvery = 0;
+		private int disconnectLimit = 0;
+		private boolean refuseAuth = false;
+		private long sessionLease = 0;
+		private boolean refuseResume = false;
+
+		/** wait this long before each reply */
+		public Script replyDelay(long millis) {
+			this.replyDelay = Math.max(0, millis);
+			return this;
+		}
+
+		/** ignore every nth data message, zero for none */
+		public Script dropEvery(int count) {
+			this.dropEvery = Math.max(0, count);
+			return this;
+		}
+
+		/** close the connection after every nth data message, zero for never */
+		public Script disconnectEvery(int count) {
+			this.disconnectEvery = Math.max(0, count);
+			return this;
+		}
+
+		/** close the connection at most this many times, zero for no limit */
+		public Script disconnectLimit(int count) {
+			this.disconnectLimit = Math.max(0, count);
+			return this;
+		}
+
+		/** answer authentication with a failure */
+		public Script refuseAuth(boolean refuse) {
+			this.refuseAuth = refuse;
+			return this;
+		}
+
+		/** grant a session with this lease on authentication, zero for none */
+		public Script grantSessions(long leaseMillis) {
+			this.sessionLease = Math.max(0, leaseMillis);
+			return this;
+		}
+
+		/** answer a request to resume the session with a refusal */
+		public Script refuseResume(boolean refuse) {
+			this.refuseResume = refuse;
+			return this;
+		}
+
+		@Override
+		public String toString() {
+			return new StringBuilder()
+					.append("delay=").append(this.replyDelay)
+					.append(" drop every=").append(this.dropEvery)
+					.append(" disconnect every=").append(this.disconnectEvery)
+					.append(" disconnect limit=").append(this.disconnectLimit)
+					.append(" refuse auth=").append(this.refuseAuth)
+					.append(" session lease=").append(this.sessionLease)
+					.append(" refuse resume=").append(this.refuseResume)
+					.toString();
+		}
+	}
+
+	private final Mode mode;
+	private final Script script;
+
+	private final ScheduledExecutorService replies = Executors.newSingleThreadScheduledExecutor();
+	private final List<Peer> peers = new CopyOnWriteArrayList<Peer>();
+	private volatile ServerSocket server = null;
+	private Thread acceptor = null;
+	private volatile boolean stopped = false;
+
+	private final AtomicInteger connections = new AtomicInteger();
+	private final AtomicInteger received = new AtomicInteger();
+	private final AtomicInteger dropped = new AtomicInteger();
+	private final AtomicInteger replied = new AtomicInteger();
+	private final AtomicInteger disconnects = new AtomicInteger();
+	private final AtomicInteger authentications = new AtomicInteger();
+	private final AtomicInteger resumed = new AtomicInteger();
+	private final AtomicInteger refused = new AtomicInteger();
+	/** the uris of the data messages received */
+	private final Set<String> distinct = new HashSet<String>();
+
+	/** the granted session, zero if none */
+	private long token = 0;
+	/** the frames received in the session */
+	private int counted = 0;
+	private final Random tokens = new Random();
+
+	public GatewaySimulator(Mode mode, Script script) {
+		this.mode = mode;
+		this.script = (script == null) ? new Script() : script;
+	}
+
+	/**
+	 * Listen on an ephemeral loopback port.
+	 *
+	 * @return the port
+	 */
+	public int start() throws IOException {
+		this.server = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+		this.acceptor = new Thread("gateway-simulator") {
+			@Override
+			public void run() {
+				accept();
+			}
+		};
+		this.acceptor.setDaemon(true);
+		this.acceptor.start();
+		logger.info("simulating gateway on {} mode={} {}",
+				new Object[] { this.server.getLocalPort(), this.mode, this.script });
+		return this.server.getLocalPort();
+	}
+
+	public void stop() {
+		this.stopped = true;
+		try {
+			if (this.server != null)
+				this.server.close();
+		} catch (IOException ex) {
+			logger.debug("closing the server socket", ex);
+		}
+		final List<Peer> closed = new ArrayList<Peer>(this.peers);
+		for (final Peer peer : closed)
+			peer.close();
+		this.replies.shutdownNow();
+		try {
+			if (this.acceptor != null)
+				this.acceptor.join(STOP_WAIT);
+			for (final Peer peer : closed)
+				peer.join(STOP_WAIT);
+			this.replies.awaitTermination(STOP_WAIT, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void accept() {
+		while (!this.stopped) {
+			try {
+				final Socket socket = this.server.accept();
+				socket.setTcpNoDelay(true);
+				final Peer peer = new Peer(socket, this.connections.incrementAndGet());
+				this.peers.add(peer);
+				peer.start();
+			} catch (IOException ex) {
+				if (!this.stopped)
+					logger.warn("accept failed", ex);
+			}
+		}
+	}
+
+	/** the connections accepted */
+	public int connections() {
+		return this.connections.get();
+	}
+
+	/** the data messages received */
+	public int received() {
+		return this.received.get();
+	}
+
+	/**
+	 * Wait for the data messages received to reach the count, a sender may
+	 * be done with them while they are still on their way.
+	 *
+	 * @return the data messages received
+	 */
+	public int awaitReceived(int count, long timeoutMillis) throws InterruptedException {
+		final long deadline = System.currentTimeMillis() + timeoutMillis;
+		synchronized (this.received) {
+			for (long remaining = timeoutMillis; this.received.get() < count && remaining > 0; remaining = deadline
+					- System.currentTimeMillis()) {
+				this.received.wait(remaining);
+			}
+			return this.received.get();
+		}
+	}
+
+	/** the data messages ignored by the script */
+	public int dropped() {
+		return this.dropped.get();
+	}
+
+	/** the replies to data messages written */
+	public int replied() {
+		return this.replied.get();
+	}
+
+	/** the connections closed by the script */
+	public int disconnects() {
+		return this.disconnects.get();
+	}
+
+	/** the authentication messages answered */
+	public int authentications() {
+		return this.authentications.get();
+	}
+
+	/** the sessions resumed */
+	public int resumed() {
+		return this.resumed.get();
+	}
+
+	/** the requests to resume refused */
+	public int refused() {
+		return this.refused.get();
+	}
+
+	/** the data messages received, each counted once however often it came */
+	public int distinct() {
+		synchronized (this.distinct) {
+			return this.distinct.size();
+		}
+	}
+
+	/**
+	 * A new session for the client just authorized.
+	 *
+	 * @return the grant, null if the script grants none
+	 */
+	private synchronized AmmoGatewayMessage grant() {
+		if (this.script.sessionLease < 1)
+			return null;
+		long granted = 0;
+		while (granted == 0)
+			granted = this.tokens.nextLong();
+		this.token = granted;
+		this.counted = 0;
+		return SessionResumption.newControl(SessionResumption.GRANT, granted,
+				(int) this.script.sessionLease, 0, null);
+	}
+
+	/**
+	 * Count a frame toward the session.
+	 *
+	 * @return the report to send, null if none is due
+	 */
+	private synchronized AmmoGatewayMessage count() {
+		if (this.token == 0)
+			return null;
+		++this.counted;
+		if (this.counted % REPORT_EVERY != 0)
+			return null;
+		return SessionResumption.newControl(SessionResumption.ACK, this.token, this.counted, 0, null);
+	}
+
+	/**
+	 * A request to resume the session; a refusal ends it.
+	 *
+	 * @return the frames received in the session, negative if refused
+	 */
+	private synchronized int resumeSession(long requested) {
+		if (this.token == 0 || requested != this.token || this.script.refuseResume) {
+			this.refused.incrementAndGet();
+			this.token = 0;
+			return -1;
+		}
+		this.resumed.incrementAndGet();
+		return this.counted;
+	}
+
+	private class Peer extends Thread {
+		private final Socket socket;
+		private final OutputStream out;
+		private final ByteBuffer frame = ByteBuffer.allocate(SEND_FRAME_SIZE);
+		private volatile boolean closed = false;
+		/** the frames count toward the session once authorized */
+		private boolean authorized = false;
+
+		Peer(Socket socket, int ordinal) throws IOException {
+			super("gateway-simulator-" + ordinal);
+			this.setDaemon(true);
+			this.socket = socket;
+			this.out = new BufferedOutputStream(socket.getOutputStream());
+		}
+
+		@Override
+		public void run() {
+			final ByteBuffer bbuf = ByteBuffer.allocate(RECV_BUFF_SIZE);
+			bbuf.order(ENDIAN);
+			try {
+				final DataInputStream in = new DataInputStream(this.socket.getInputStream());
+				while (!this.closed) {
+					final int position = bbuf.position();
+					final int bytesRead = in.read(bbuf.array(), position, bbuf.remaining());
+					if (bytesRead < 0)
+						break;
+					bbuf.position(position + bytesRead);
+					bbuf.flip();
+					for (AmmoGatewayMessage.Builder agmb = AmmoGatewayMessage.extractHeader(bbuf); agmb != null; agmb = AmmoGatewayMessage
+							.extractHeader(bbuf)) {
+						final int size = agmb.size();
+						final byte[] payload = new byte[size];
+						final int buffered = Math.min(bbuf.remaining(), size);
+						bbuf.get(payload, 0, buffered);
+						in.readFully(payload, buffered, size - buffered);
+						this.receive(agmb.payload(payload).build());
+						if (this.closed)
+							return;
+					}
+					bbuf.compact();
+				}
+			} catch (IOException ex) {
+				if (!this.closed)
+					logger.info("{} lost the connection {}", this.getName(), ex.getMessage());
+			}
+			this.close();
+		}
+
+		/**
+		 * Count the frame toward the session, reporting the count now and
+		 * then, and handle it.
+		 */
+		private void receive(AmmoGatewayMessage agm) throws IOException {
+			if (this.authorized && SessionResumption.counts(agm)) {
+				final AmmoGatewayMessage report = count();
+				if (report != null)
+					this.write(report, 0);
+			}
+			this.handle(agm);
+		}
+
+		private void handle(AmmoGatewayMessage agm) throws IOException {
+			if (agm.hasFlag(AmmoGatewayMessage.FLAG_HEARTBEAT))
+				this.write(AmmoGatewayMessage.newHeartbeat(System.currentTimeMillis())
+						.flags(AmmoGatewayMessage.FLAG_HEARTBEAT_REPLY).build(), 0);
+			if (agm.isBatch()) {
+				final List<AmmoGatewayMessage> batch = agm.unpackBatch();
+				if (batch == null)
+					throw new IOException("corrupt batch");
+				for (final AmmoGatewayMessage msg : batch)
+					this.handle(msg);
+				return;
+			}
+			if (agm.isResume()) {
+				this.onSessionControl(agm);
+				return;
+			}
+			if (agm.isChunk() || agm.isChunkAck() || agm.isCompressed()) {
+				logger.warn("{} unexpected message {}", this.getName(), agm);
+				return;
+			}
+			final AmmoMessages.MessageWrapper mw = agm.parsePayload();
+			final MessageType type = mw.getType();
+			if (type == MessageType.AUTHENTICATION_MESSAGE) {
+				authentications.incrementAndGet();
+				this.write(newAuthenticationResult(!script.refuseAuth), script.replyDelay);
+				if (script.refuseAuth)
+					return;
+				this.authorized = true;
+				final AmmoGatewayMessage grant = grant();
+				if (grant != null)
+					this.write(grant, script.replyDelay);
+				return;
+			}
+			if (type != MessageType.DATA_MESSAGE)
+				return;
+
+			final int count;
+			synchronized (received) {
+				count = received.incrementAndGet();
+				received.notifyAll();
+			}
+			synchronized (distinct) {
+				distinct.add(mw.getDataMessage().getUri());
+			}
+			if (script.dropEvery > 0 && count % script.dropEvery == 0) {
+				dropped.incrementAndGet();
+			} else {
+				switch (mode) {
+					case ECHO:
+						this.reply(newEcho(agm));
+						break;
+					case ACK:
+						this.reply(newAck(mw.getDataMessage().getUri()));
+						break;
+					case SINK:
+						break;
+				}
+			}
+			if (script.disconnectEvery > 0 && count % script.disconnectEvery == 0
+					&& (script.disconnectLimit == 0 || disconnects.get() < script.disconnectLimit)) {
+				logger.info("{} disconnecting after {} messages", this.getName(), count);
+				disconnects.incrementAndGet();
+				this.close();
+			}
+		}
+
+		/**
+		 * Only a request to resume is answered, the reports of the client
+		 * are ignored as nothing is sent again from here.
+		 */
+		private void onSessionControl(AmmoGatewayMessage agm) {
+			final ByteBuffer body = ByteBuffer.wrap(agm.payload, 0, agm.size);
+			body.order(ByteOrder.BIG_ENDIAN);
+			final long requested = body.getLong();
+			if (body.get() != SessionResumption.REQUEST)
+				return;
+			final int counted = resumeSession(requested);
+			this.authorized = counted >= 0;
+			logger.info("{} {} session {}", new Object[] { this.getName(),
+					this.authorized ? "resumed" : "refused", Long.toHexString(requested) });
+			this.write(this.authorized
+					? SessionResumption.newControl(SessionResumption.ACCEPT, requested, counted, 0, null)
+					: SessionResumption.newControl(SessionResumption.REFUSE, requested, 0, 0, null),
+					script.replyDelay);
+		}
+
+		private void reply(AmmoGatewayMessage msg) {
+			replied.incrementAndGet();
+			this.write(msg, script.replyDelay);
+		}
+
+		/**
+		 * Replies go through the one scheduler, so they keep their order.
+		 */
+		private void write(final AmmoGatewayMessage msg, long delay) {
+			final Runnable task = new Runnable() {
+				@Override
+				public void run() {
+					if (closed)
+						return;
+					try {
+						synchronized (out) {
+							msg.writeTo(out, frame, ENDIAN, AmmoGatewayMessage.VERSION_1_FULL, (byte) 0);
+							out.flush();
+						}
+					} catch (IOException ex) {
+						logger.info("{} write failed {}", getName(), ex.getMessage());
+						close();
+					}
+				}
+			};
+			try {
+				replies.schedule(task, delay, TimeUnit.MILLISECONDS);
+			} catch (RuntimeException ex) {
+				logger.debug("simulator stopped", ex);
+			}
+		}
+
+		void close() {
+			this.closed = true;
+			peers.remove(this);
+			try {
+				this.socket.close();
+			} catch (IOException ex) {
+				logger.debug("closing the socket", ex);
+			}
+		}
+	}
+
+	static AmmoGatewayMessage newAuthenticationResult(boolean success) {
+		final AmmoMessages.AuthenticationResult.Builder result = AmmoMessages.AuthenticationResult
+				.newBuilder()
+				.setResult(success ? AmmoMessages.AuthenticationResult.Status.SUCCESS
+						: AmmoMessages.AuthenticationResult.Status.FAILED)
+				.setMessage(success ? "simulated" : "refused by script");
+		final AmmoMessages.MessageWrapper.Builder mw = AmmoMessages.MessageWrapper.newBuilder()
+				.setType(MessageType.AUTHENTICATION_RESULT)
+				.setAuthenticationResult(result);
+		return AmmoGatewayMessage.newBuilder(mw, null).build();
+	}
+
+	static AmmoGatewayMessage newEcho(AmmoGatewayMessage agm) {
+		return AmmoGatewayMessage.newBuilder()
+				.size(agm.size)
+				.payload(agm.payload)
+				.checksum(AmmoGatewayMessage.CheckSum.newInstance(agm.payload).asLong())
+				.priority(agm.priority)
+				.version(AmmoGatewayMessage.VERSION_1_FULL)
+				.build();
+	}
+
+	static AmmoGatewayMessage newAck(String uri) {
+		final AmmoMessages.PushAcknowledgement.Builder pushAck = AmmoMessages.PushAcknowledgement
+				.newBuilder()
+				.setUri(uri)
+				.setThreshold(AmmoMessages.AcknowledgementThresholds.newBuilder()
+						.setDeviceDelivered(true))
+				.setDestinationDevice("")
+				.setDestinationUser("")
+				.setAcknowledgingDevice("gateway-simulator")
+				.setAcknowledgingUser("gateway-simulator")
+				.setStatus(AmmoMessages.PushAcknowledgement.PushStatus.RECEIVED);
+		final AmmoMessages.MessageWrapper.Builder mw = AmmoMessages.MessageWrapper.newBuilder()
+				.setType(MessageType.PUSH_ACKNOWLEDGEMENT)
+				.setPushAcknowledgement(pushAck);
+		return AmmoGatewayMessage.newBuilder(mw, null).build();
+	}
+}
@@ -0,0 +1,155 @@
+/* Copyright (c) 2010-2015 Vanderbilt University
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package edu.vu.isis.ammo.core.network;
+
+import java.io.IOException;
+
+import org.hamcrest.CoreMatchers;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Drive the real tcp client against the gateway simulator.
+ * <p>
+ * These run over real loopback sockets with their own threads, so the
+ * timeout is generous; it is only reached by the messages a test expects
+ * to lose, and by a failure.
+ */
+public class GatewaySimulatorTest {
+
+	/** how long to wait for authorization and between completions */
+	private static final long TIMEOUT = 10000;
+
+	private GatewaySimulator gateway = null;
+	private LoadGenerator load = null;
+
+	private LoadGenerator.Report run(GatewaySimulator.Mode mode, GatewaySimulator.Script script,
+			int count) throws IOException, InterruptedException {
+		this.gateway = new GatewaySimulator(mode, script);
+		final int port = this.gateway.start();
+		this.load = new LoadGenerator(mode);
+		return this.load
+				.count(count)
+				.payloadSize(128)
+				.timeout(TIMEOUT)
+				// every message may be in flight when the gateway hangs up
+				.sessionLease(TIMEOUT, count)
+				.run("127.0.0.1", port);
+	}
+
+	@After
+	public void stop() {
+		if (this.load != null)
+			this.load.close();
+		if (this.gateway != null)
+			this.gateway.stop();
+	}
+
+	@Test
+	public void echo() throws Exception {
+		final LoadGenerator.Report report = run(GatewaySimulator.Mode.ECHO,
+				new GatewaySimulator.Script(), 200);
+		Assert.assertThat("every message echoed", report.completed, CoreMatchers.is(200));
+		Assert.assertThat(this.gateway.received(), CoreMatchers.is(200));
+		Assert.assertThat(this.gateway.connections(), CoreMatchers.is(1));
+		Assert.assertTrue("percentiles in order", report.p50 <= report.p99 && report.p99 <= report.max);
+	}
+
+	@Test
+	public void drops() throws Exception {
+		final LoadGenerator.Report report = run(GatewaySimulator.Mode.ACK,
+				new GatewaySimulator.Script().dropEvery(10), 200);
+		Assert.assertThat(this.gateway.received(), CoreMatchers.is(200));
+		Assert.assertThat(this.gateway.dropped(), CoreMatchers.is(20));
+		Assert.assertThat("only the dropped are lost", report.lost(), CoreMatchers.is(20));
+		Assert.assertThat(this.gateway.connections(), CoreMatchers.is(1));
+	}
+
+	@Test
+	public void sink() throws Exception {
+		final LoadGenerator.Report report = run(GatewaySimulator.Mode.SINK,
+				new GatewaySimulator.Script(), 200);
+		Assert.assertThat("complete once sent", report.completed, CoreMatchers.is(200));
+		Assert.assertThat(this.gateway.awaitReceived(200, TIMEOUT), CoreMatchers.is(200));
+		Assert.assertThat(this.gateway.replied(), CoreMatchers.is(0));
+	}
+
+	/**
+	 * The messages queued or in flight when the gateway hangs up are lost,
+	 * how many depends on timing, but every hang up is followed by a
+	 * reconnect and traffic carries on over the new connection.
+	 */
+	@Test
+	public void disconnects() throws Exception {
+		final LoadGenerator.Report report = run(GatewaySimulator.Mode.ECHO,
+				new GatewaySimulator.Script().disconnectEvery(50), 200);
+		final int disconnects = this.gateway.disconnects();
+		Assert.assertThat("hung up every 50", disconnects,
+				CoreMatchers.is(this.gateway.received() / 50));
+		Assert.assertTrue("carried on after reconnecting", disconnects >= 2);
+		Assert.assertThat("reconnected after each", this.gateway.connections(),
+				CoreMatchers.is(disconnects + 1));
+		Assert.assertTrue("some echoed", report.completed > 0);
+		Assert.assertTrue("the last before each hang up is not echoed",
+				report.completed <= this.gateway.received() - disconnects);
+	}
+
+	/**
+	 * With a session the channel picks it up after each hang up without
+	 * authenticating, the gateway gets every message once. The replies in
+	 * flight at each hang up are lost, as they are without a session.
+	 */
+	@Test
+	public void resumes() throws Exception {
+		final LoadGenerator.Report report = run(GatewaySimulator.Mode.ACK,
+				new GatewaySimulator.Script().grantSessions(TIMEOUT).disconnectEvery(60), 200);
+		final int disconnects = this.gateway.disconnects();
+		Assert.assertThat(disconnects, CoreMatchers.is(3));
+		Assert.assertThat("resumed after each", this.gateway.resumed(), CoreMatchers.is(disconnects));
+		Assert.assertThat("authenticated once", this.gateway.authentications(), CoreMatchers.is(1));
+		Assert.assertThat("each received once", this.gateway.received(), CoreMatchers.is(200));
+		Assert.assertThat(this.gateway.distinct(), CoreMatchers.is(200));
+		Assert.assertTrue("some acknowledged", report.completed > 0);
+	}
+
+	/**
+	 * A refused session is given up and the channel authenticates again.
+	 * The messages the gateway had not reported are sent again, those still
+	 * queued are handed back; none go missing. The hang ups are limited as
+	 * the messages sent again count toward the next.
+	 */
+	@Test
+	public void refusedResume() throws Exception {
+		final LoadGenerator.Report report = run(GatewaySimulator.Mode.ACK,
+				new GatewaySimulator.Script().grantSessions(TIMEOUT).refuseResume(true)
+						.disconnectEvery(60).disconnectLimit(2), 200);
+		Assert.assertThat(this.gateway.disconnects(), CoreMatchers.is(2));
+		Assert.assertTrue("refused", this.gateway.refused() > 0);
+		Assert.assertThat("authenticated again after each", this.gateway.authentications(),
+				CoreMatchers.is(3));
+		Assert.assertThat("sent or handed back", this.gateway.distinct() + this.load.returned(),
+				CoreMatchers.is(200));
+		Assert.assertTrue("some acknowledged", report.completed > 0);
+	}
+}
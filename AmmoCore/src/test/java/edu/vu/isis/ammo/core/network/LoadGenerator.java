@@ -0,0 +1,384 @@
+/* Copyright (c) 2010-2015 Vanderbilt University
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package edu.vu.isis.ammo.core.network;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.protobuf.ByteString;
+
+import edu.vu.isis.ammo.core.distributor.DistributorDataStore.DisposalState;
+import edu.vu.isis.ammo.core.pb.AmmoMessages;
+import edu.vu.isis.ammo.core.pb.AmmoMessages.MessageWrapper.MessageType;
+
+/**
+ * Pushes data messages through a real TcpChannelClient to a gateway,
+ * normally the GatewaySimulator, and reports the rate and latency.
+ * <p>
+ * A message is complete when its echo or acknowledgement is delivered by
+ * the channel or, when the gateway sinks the traffic, when the channel
+ * reports it sent. The latency runs from offering the message to the
+ * channel until then. When the send lanes are full the generator waits
+ * and offers the message again. Messages not complete once nothing has
+ * happened for the timeout are counted as lost.
+ * <p>
+ * Run from the test classpath:
+ *
+ * <pre>
+ * LoadGenerator mode [count [size [delay [dropEvery [disconnectEvery]]]]]
+ * </pre>
+ *
+ * where mode is echo, ack or sink.
+ */
+public class LoadGenerator {
+	private static final Logger logger = LoggerFactory.getLogger("test.load");
+
+	private static final String URI_PREFIX = "ammo/load/";
+	private static final String MIME_TYPE = "application/vnd.edu.vu.isis.ammo.load";
+
+	public static class Report {
+		public final int sent;
+		public final int completed;
+		public final long elapsedMillis;
+		/** in microseconds */
+		public final long p50;
+		public final long p90;
+		public final long p99;
+		public final long max;
+
+		Report(int sent, long[] latencies, int completed, long elapsedMillis) {
+			this.sent = sent;
+			this.completed = completed;
+			this.elapsedMillis = elapsedMillis;
+			final long[] sorted = new long[completed];
+			System.arraycopy(latencies, 0, sorted, 0, completed);
+			Arrays.sort(sorted);
+			this.p50 = percentile(sorted, 0.50);
+			this.p90 = percentile(sorted, 0.90);
+			this.p99 = percentile(sorted, 0.99);
+			this.max = (completed < 1) ? 0 : sorted[completed - 1];
+		}
+
+		private static long percentile(long[] sorted, double fraction) {
+			if (sorted.length < 1)
+				return 0;
+			final int rank = (int) Math.ceil(fraction * sorted.length);
+			return sorted[Math.max(0, Math.min(sorted.length, rank) - 1)];
+		}
+
+		public int lost() {
+			return this.sent - this.completed;
+		}
+
+		public long messagesPerSecond() {
+			return (this.elapsedMillis < 1) ? 0 : this.completed * 1000L / this.elapsedMillis;
+		}
+
+		@Override
+		public String toString() {
+			return new StringBuilder()
+					.append("sent=").append(this.sent)
+					.append(" completed=").append(this.completed)
+					.append(" lost=").append(this.lost())
+					.append(" elapsed=").append(this.elapsedMillis).append("ms")
+					.append(" rate=").append(this.messagesPerSecond()).append("msg/s")
+					.append(" latency us p50=").append(this.p50)
+					.append(" p90=").append(this.p90)
+					.append(" p99=").append(this.p99)
+					.append(" max=").append(this.max)
+					.toString();
+		}
+	}
+
+	private final GatewaySimulator.Mode mode;
+	private int count = 10000;
+	private int payloadSize = 256;
+	private long timeoutMillis = 5000;
+	private long sessionLease = SessionResumption.DEFAULT_LEASE;
+	private int replayLimit = SessionResumption.DEFAULT_REPLAY_LIMIT;
+
+	private long[] offered;
+	/** in the order completed, microseconds */
+	private long[] latencies;
+	private boolean[] done;
+	private int completed;
+	/** handed back by the channel, not sent */
+	private int returned;
+	private long start;
+	private long lastProgress;
+	private final CountDownLatch authorized = new CountDownLatch(1);
+	private TcpChannelClient channel = null;
+
+	public LoadGenerator(GatewaySimulator.Mode mode) {
+		this.mode = mode;
+	}
+
+	public LoadGenerator count(int count) {
+		this.count = Math.max(1, count);
+		return this;
+	}
+
+	public LoadGenerator payloadSize(int size) {
+		this.payloadSize = Math.max(0, size);
+		return this;
+	}
+
+	/** how long to wait without progress before giving up on the rest */
+	public LoadGenerator timeout(long millis) {
+		this.timeoutMillis = Math.max(1, millis);
+		return this;
+	}
+
+	/** resume sessions granted by the gateway, see setSessionLease() */
+	public LoadGenerator sessionLease(long leaseMillis, int replayLimit) {
+		this.sessionLease = leaseMillis;
+		this.replayLimit = replayLimit;
+		return this;
+	}
+
+	/**
+	 * Connect to the gateway and send every message.
+	 */
+	public Report run(String host, int port) throws InterruptedException {
+		this.offered = new long[this.count];
+		this.latencies = new long[this.count];
+		this.done = new boolean[this.count];
+		this.completed = 0;
+		this.returned = 0;
+
+		final TcpChannelClient channel = TcpChannelClient.getInstance("load", new Manager());
+		this.channel = channel;
+		// the channel starts enabled, keep it from trying the default port
+		channel.disable();
+		channel.setHost(host);
+		channel.setPort(port);
+		channel.setSessionLease(this.sessionLease, this.replayLimit);
+		channel.enable();
+		try {
+			if (!this.authorized.await(this.timeoutMillis, TimeUnit.MILLISECONDS)) {
+				logger.error("not authorized within {} ms", this.timeoutMillis);
+				return new Report(this.count, this.latencies, 0, 0);
+			}
+			final byte[] data = new byte[this.payloadSize];
+			synchronized (this) {
+				this.start = System.currentTimeMillis();
+				this.lastProgress = this.start;
+			}
+			for (int seq = 0; seq < this.count; ++seq) {
+				final AmmoGatewayMessage agm = this.newMessage(seq, data);
+				final long deadline = System.currentTimeMillis() + this.timeoutMillis;
+				while (true) {
+					synchronized (this) {
+						this.offered[seq] = System.nanoTime();
+					}
+					if (channel.sendRequest(agm) == DisposalState.QUEUED)
+						break;
+					if (System.currentTimeMillis() > deadline) {
+						logger.error("channel busy for {} ms, stopped after {}", this.timeoutMillis, seq);
+						return this.awaitCompletion(seq);
+					}
+					// the lanes are full, give the sender a moment
+					Thread.sleep(0, 100000);
+				}
+			}
+			return this.awaitCompletion(this.count);
+		} finally {
+			channel.disable();
+		}
+	}
+
+	/**
+	 * Close the channel, stopping its threads and its metrics.
+	 */
+	public void close() {
+		if (this.channel != null)
+			this.channel.close();
+		this.channel = null;
+	}
+
+	private synchronized Report awaitCompletion(int sent) throws InterruptedException {
+		long now = System.currentTimeMillis();
+		while (this.completed < sent && now - this.lastProgress < this.timeoutMillis) {
+			this.wait(this.timeoutMillis - (now - this.lastProgress));
+			now = System.currentTimeMillis();
+		}
+		final long end = (this.completed < sent) ? this.lastProgress : now;
+		return new Report(sent, this.latencies, this.completed, end - this.start);
+	}
+
+	/**
+	 * The messages the channel handed back unsent, as it does with those
+	 * queued when it gives up a session; a distributor would send them again.
+	 */
+	public synchronized int returned() {
+		return this.returned;
+	}
+
+	private synchronized void complete(int seq) {
+		final long now = System.nanoTime();
+		if (seq < 0 || seq >= this.count || this.done[seq])
+			return;
+		this.done[seq] = true;
+		this.latencies[this.completed++] = (now - this.offered[seq]) / 1000;
+		this.lastProgress = System.currentTimeMillis();
+		this.notifyAll();
+	}
+
+	private synchronized void handedBack() {
+		++this.returned;
+	}
+
+	private AmmoGatewayMessage newMessage(final int seq, byte[] data) {
+		final AmmoMessages.DataMessage.Builder dm = AmmoMessages.DataMessage.newBuilder()
+				.setUri(URI_PREFIX + seq)
+				.setMimeType(MIME_TYPE)
+				.setEncoding("CUSTOM")
+				.setUserId("load")
+				.setOriginDevice("load")
+				.setData(ByteString.copyFrom(data));
+		final AmmoMessages.MessageWrapper.Builder mw = AmmoMessages.MessageWrapper.newBuilder()
+				.setType(MessageType.DATA_MESSAGE)
+				.setMessagePriority(AmmoGatewayMessage.PriorityLevel.NORMAL.v)
+				.setDataMessage(dm);
+		return AmmoGatewayMessage.newBuilder(mw, new INetworkService.OnSendMessageHandler() {
+			@Override
+			public boolean ack(String channel, DisposalState status) {
+				if (mode == GatewaySimulator.Mode.SINK && status == DisposalState.SENT)
+					complete(seq);
+				else if (status == DisposalState.PENDING)
+					handedBack();
+				return true;
+			}
+		}).isGateway(true).build();
+	}
+
+	private static int sequenceOf(String uri) {
+		if (uri == null || !uri.startsWith(URI_PREFIX))
+			return -1;
+		try {
+			return Integer.parseInt(uri.substring(URI_PREFIX.length()));
+		} catch (NumberFormatException ex) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Stands in for the network manager, it only watches for completions.
+	 */
+	private class Manager implements IChannelManager {
+		@Override
+		public boolean auth() {
+			return true;
+		}
+
+		@Override
+		public boolean deliver(AmmoGatewayMessage message) {
+			try {
+				final AmmoMessages.MessageWrapper mw = message.parsePayload();
+				if (mw.getType() == MessageType.DATA_MESSAGE)
+					complete(sequenceOf(mw.getDataMessage().getUri()));
+				else if (mw.getType() == MessageType.PUSH_ACKNOWLEDGEMENT)
+					complete(sequenceOf(mw.getPushAcknowledgement().getUri()));
+			} catch (IOException ex) {
+				logger.warn("could not parse {}", message, ex);
+			} finally {
+				message.releasePayload();
+			}
+			return true;
+		}
+
+		@Override
+		public void statusChange(NetChannel channel, int lastConnStatus, int connStatus,
+				int lastSendStatus, int sendStatus, int lastRecvStatus, int recvStatus) {
+		}
+
+		@Override
+		public boolean isAnyLinkUp() {
+			return true;
+		}
+
+		@Override
+		public void authorizationSucceeded(NetChannel channel, AmmoGatewayMessage agm) {
+			agm.releasePayload();
+			authorized.countDown();
+		}
+
+		@Override
+		public void sessionResumed(NetChannel channel) {
+		}
+
+		@Override
+		public AmmoMessages.MessageWrapper.Builder buildAuthenticationRequest() {
+			final AmmoMessages.AuthenticationMessage.Builder authreq = AmmoMessages.AuthenticationMessage
+					.newBuilder()
+					.setDeviceId("load")
+					.setUserId("load")
+					.setUserKey("load");
+			return AmmoMessages.MessageWrapper.newBuilder()
+					.setType(MessageType.AUTHENTICATION_MESSAGE)
+					.setAuthenticationMessage(authreq)
+					.setMessagePriority(AmmoGatewayMessage.PriorityLevel.AUTH.v);
+		}
+
+		@Override
+		public String getOperatorId() {
+			return "load";
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		final GatewaySimulator.Mode mode = (args.length > 0)
+				? GatewaySimulator.Mode.valueOf(args[0].toUpperCase()) : GatewaySimulator.Mode.ECHO;
+		final int count = (args.length > 1) ? Integer.parseInt(args[1]) : 10000;
+		final int size = (args.length > 2) ? Integer.parseInt(args[2]) : 256;
+		final GatewaySimulator.Script script = new GatewaySimulator.Script()
+				.replyDelay((args.length > 3) ? Long.parseLong(args[3]) : 0)
+				.dropEvery((args.length > 4) ? Integer.parseInt(args[4]) : 0)
+				.disconnectEvery((args.length > 5) ? Integer.parseInt(args[5]) : 0);
+
+		final GatewaySimulator gateway = new GatewaySimulator(mode, script);
+		final int port = gateway.start();
+		final LoadGenerator load = new LoadGenerator(mode);
+		try {
+			final Report report = load
+					.count(count)
+					.payloadSize(size)
+					.run("127.0.0.1", port);
+			System.out.println(mode + " " + script);
+			System.out.println(report);
+			System.out.println("gateway connections=" + gateway.connections()
+					+ " received=" + gateway.received()
+					+ " dropped=" + gateway.dropped()
+					+ " replied=" + gateway.replied());
+		} finally {
+			load.close();
+			gateway.stop();
+		}
+		System.exit(0);
+	}
+}
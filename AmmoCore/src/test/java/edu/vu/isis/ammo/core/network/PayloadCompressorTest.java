@@ -0,0 +1,111 @@
+/* Copyright (c) 2010-2015 Vanderbilt University
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package edu.vu.isis.ammo.core.network;
+
+import java.util.Random;
+
+import org.hamcrest.CoreMatchers;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test the negotiation and the round trip of compressed payloads.
+ */
+public class PayloadCompressorTest {
+
+	private static AmmoGatewayMessage message(byte[] payload, int flags) {
+		return AmmoGatewayMessage.newBuilder()
+				.size(payload.length)
+				.payload(payload)
+				.checksum(AmmoGatewayMessage.CheckSum.newInstance(payload).asLong())
+				.flags(flags)
+				.build();
+	}
+
+	private static byte[] text(int repeat) {
+		final StringBuilder sb = new StringBuilder();
+		for (int ix = 0; ix < repeat; ++ix)
+			sb.append("{\"mime\":\"application/vnd.edu.vu.isis.ammo.sms\",\"user\":\"ammo\"}");
+		return sb.toString().getBytes();
+	}
+
+	@Test
+	public void negotiate() {
+		final PayloadCompressor compressor = new PayloadCompressor();
+		final AmmoGatewayMessage msg = message(text(20), 0);
+
+		compressor.configure(true, 256);
+		Assert.assertThat("advertised", compressor.advertise(),
+				CoreMatchers.is(AmmoGatewayMessage.FLAG_ACCEPTS_COMPRESSION));
+		Assert.assertThat("not agreed", compressor.compress(msg), CoreMatchers.sameInstance(msg));
+
+		compressor.negotiate(message(new byte[0], 0));
+		Assert.assertThat("peer declined", compressor.compress(msg), CoreMatchers.sameInstance(msg));
+
+		compressor.negotiate(message(new byte[0], AmmoGatewayMessage.FLAG_ACCEPTS_COMPRESSION));
+		Assert.assertThat("peer accepted", compressor.compress(msg).isCompressed(), CoreMatchers.is(true));
+
+		compressor.reset();
+		Assert.assertThat("agreement reset", compressor.compress(msg), CoreMatchers.sameInstance(msg));
+	}
+
+	@Test
+	public void roundTrip() {
+		final PayloadCompressor sender = new PayloadCompressor();
+		sender.configure(true, 256);
+		sender.assumeNegotiated();
+		final byte[] payload = text(20);
+
+		final AmmoGatewayMessage compressed = sender.compress(message(payload, 0));
+		Assert.assertThat("smaller", compressed.size < payload.length, CoreMatchers.is(true));
+
+		final AmmoGatewayMessage inflated = new PayloadCompressor().decompress(compressed, 0x10000);
+		Assert.assertThat("size restored", inflated.size, CoreMatchers.is(payload.length));
+		Assert.assertThat("flag cleared", inflated.isCompressed(), CoreMatchers.is(false));
+		for (int ix = 0; ix < payload.length; ++ix)
+			Assert.assertThat("payload restored", inflated.payload[ix], CoreMatchers.is(payload[ix]));
+
+		Assert.assertThat("too large", new PayloadCompressor().decompress(compressed, 100),
+				CoreMatchers.nullValue());
+	}
+
+	@Test
+	public void rejected() {
+		final PayloadCompressor sender = new PayloadCompressor();
+		sender.configure(true, 256);
+		sender.assumeNegotiated();
+
+		final AmmoGatewayMessage small = message(text(1), 0);
+		Assert.assertThat("below threshold", sender.compress(small), CoreMatchers.sameInstance(small));
+
+		final byte[] noise = new byte[1000];
+		new Random(1).nextBytes(noise);
+		final AmmoGatewayMessage random = message(noise, 0);
+		Assert.assertThat("incompressible", sender.compress(random), CoreMatchers.sameInstance(random));
+
+		final AmmoGatewayMessage compressed = sender.compress(message(text(20), 0));
+		compressed.payload[compressed.size - 1] ^= 0x01;
+		Assert.assertThat("corrupt", new PayloadCompressor().decompress(compressed, 0x10000),
+				CoreMatchers.nullValue());
+	}
+}
@@ -0,0 +1,122 @@
+/* Copyright (c) 2010-2015 Vanderbilt University
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package edu.vu.isis.ammo.core.network;
+
+import org.hamcrest.CoreMatchers;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test the round trip estimate and the heartbeat decisions taken from it.
+ */
+public class RttEstimatorTest {
+
+	@Test
+	public void smoothing() {
+		final RttEstimator rtt = new RttEstimator();
+		Assert.assertThat("initial timeout", rtt.rto(), CoreMatchers.is(RttEstimator.INITIAL_RTO));
+
+		rtt.sample(100);
+		Assert.assertThat("first sample", rtt.srtt(), CoreMatchers.is(100L));
+		Assert.assertThat("first variation", rtt.rttvar(), CoreMatchers.is(50L));
+		Assert.assertThat(rtt.rto(), CoreMatchers.is(300L));
+
+		for (int ix = 0; ix < 50; ++ix)
+			rtt.sample(100);
+		Assert.assertThat("steady", rtt.srtt(), CoreMatchers.is(100L));
+		Assert.assertThat("variation decays", rtt.rttvar(), CoreMatchers.is(0L));
+		Assert.assertThat("granularity", rtt.rto(), CoreMatchers.is(110L));
+	}
+
+	@Test
+	public void bounds() {
+		final RttEstimator rtt = new RttEstimator();
+		rtt.configure(1000, 8000, 20000);
+		rtt.sample(10);
+		Assert.assertThat("fast link interval", rtt.interval(), CoreMatchers.is(1000L));
+		Assert.assertThat("fast link timeout", rtt.timeout(), CoreMatchers.is(RttEstimator.DEFAULT_MIN_TIMEOUT));
+
+		for (int ix = 0; ix < 20; ++ix)
+			rtt.sample(30000);
+		Assert.assertThat("slow link interval", rtt.interval(), CoreMatchers.is(8000L));
+		Assert.assertThat("slow link timeout", rtt.timeout(), CoreMatchers.is(20000L));
+	}
+
+	@Test
+	public void heartbeat() {
+		final RttEstimator rtt = new RttEstimator();
+		rtt.configure(2000, 10000, 45000);
+		rtt.restart(0);
+		final long interval = rtt.interval();
+
+		Assert.assertThat("just heard", rtt.heartbeatDue(interval - 1), CoreMatchers.is(false));
+		rtt.heard(interval - 1);
+		Assert.assertThat("data arriving", rtt.heartbeatDue(interval + 1), CoreMatchers.is(false));
+
+		final long due = 2 * interval;
+		Assert.assertThat("quiet", rtt.heartbeatDue(due), CoreMatchers.is(true));
+		Assert.assertThat("already queued", rtt.heartbeatDue(due + 1), CoreMatchers.is(false));
+
+		rtt.sentHeartbeat(due + 10);
+		Assert.assertThat("outstanding", rtt.hasExpired(due + 10 + rtt.timeout()), CoreMatchers.is(false));
+		rtt.heard(due + 60);
+		rtt.answered(due + 60);
+		Assert.assertThat("answered", rtt.samples(), CoreMatchers.is(1));
+		Assert.assertThat(rtt.srtt(), CoreMatchers.is(50L));
+
+		final long later = due + 60 + rtt.interval();
+		Assert.assertThat(rtt.heartbeatDue(later), CoreMatchers.is(true));
+		rtt.sentHeartbeat(later);
+		Assert.assertThat("unanswered", rtt.hasExpired(later + rtt.timeout() + 1), CoreMatchers.is(true));
+		Assert.assertThat("check for an answer", rtt.untilNextCheck(later), CoreMatchers.is(rtt.interval()));
+		Assert.assertThat("check at expiry", rtt.untilNextCheck(later + rtt.timeout() - 10), CoreMatchers.is(11L));
+	}
+
+	@Test
+	public void onlyRepliesSampled() {
+		final RttEstimator rtt = new RttEstimator();
+		rtt.restart(0);
+		rtt.sentHeartbeat(1000);
+		rtt.heard(1010);
+		Assert.assertThat("other traffic is not a sample", rtt.samples(), CoreMatchers.is(0));
+		Assert.assertThat("but keeps the link", rtt.hasExpired(1010 + 10 * rtt.timeout()), CoreMatchers.is(false));
+		rtt.answered(1200);
+		Assert.assertThat("the reply is", rtt.srtt(), CoreMatchers.is(200L));
+
+		rtt.answered(1300);
+		Assert.assertThat("a reply is timed once", rtt.samples(), CoreMatchers.is(1));
+	}
+
+	@Test
+	public void writing() {
+		final RttEstimator rtt = new RttEstimator();
+		rtt.restart(0);
+		final long timeout = rtt.timeout();
+		rtt.writing(true, 1000);
+		rtt.sentHeartbeat(1000);
+		Assert.assertThat("blocked writing", rtt.hasExpired(1000 + 10 * timeout), CoreMatchers.is(false));
+		rtt.writing(false, 1000 + 10 * timeout);
+		Assert.assertThat("from the end of the write", rtt.hasExpired(1000 + 10 * timeout + timeout), CoreMatchers.is(false));
+		Assert.assertThat(rtt.hasExpired(1000 + 11 * timeout + 1), CoreMatchers.is(true));
+	}
+}
@@ -0,0 +1,161 @@
+/* Copyright (c) 2010-2015 Vanderbilt University
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package edu.vu.isis.ammo.core.network;
+
+import org.hamcrest.CoreMatchers;
+import org.junit.Assert;
+import org.junit.Test;
+
+import edu.vu.isis.ammo.core.metrics.Histogram;
+import edu.vu.isis.ammo.core.network.AmmoGatewayMessage.PriorityLevel;
+
+/**
+ * Test the ordering, bounds, busy signal and waits of the send lanes.
+ */
+public class SendLanesTest {
+
+	private static AmmoGatewayMessage message(PriorityLevel level, int size) {
+		final byte[] payload = new byte[size];
+		return AmmoGatewayMessage.newBuilder()
+				.size(size)
+				.payload(payload)
+				.priority(level.b())
+				.build();
+	}
+
+	@Test
+	public void order() throws InterruptedException {
+		final SendLanes lanes = new SendLanes(4);
+		final AmmoGatewayMessage first = message(PriorityLevel.NORMAL, 1);
+		final AmmoGatewayMessage second = message(PriorityLevel.NORMAL, 2);
+		final AmmoGatewayMessage urgent = message(PriorityLevel.URGENT, 3);
+		final AmmoGatewayMessage background = message(PriorityLevel.BACKGROUND, 4);
+		lanes.offer(background);
+		lanes.offer(first);
+		lanes.offer(urgent);
+		lanes.offer(second);
+
+		Assert.assertThat("highest first", lanes.take(), CoreMatchers.sameInstance(urgent));
+		Assert.assertThat("in order offered", lanes.take(), CoreMatchers.sameInstance(first));
+		Assert.assertThat("in order offered", lanes.take(), CoreMatchers.sameInstance(second));
+		Assert.assertThat("lowest last", lanes.poll(0), CoreMatchers.sameInstance(background));
+		Assert.assertThat("empty", lanes.poll(10), CoreMatchers.nullValue());
+	}
+
+	@Test
+	public void bounded() {
+		final SendLanes lanes = new SendLanes(2);
+		Assert.assertThat(lanes.offer(message(PriorityLevel.NORMAL, 1)), CoreMatchers.is(true));
+		Assert.assertThat(lanes.offer(message(PriorityLevel.NORMAL, 1)), CoreMatchers.is(true));
+		Assert.assertThat("lane full", lanes.offer(message(PriorityLevel.NORMAL, 1)), CoreMatchers.is(false));
+		Assert.assertThat("other lane open", lanes.offer(message(PriorityLevel.FLASH, 1)), CoreMatchers.is(true));
+		Assert.assertThat(lanes.refused(), CoreMatchers.is(1));
+		Assert.assertThat(lanes.size(), CoreMatchers.is(3));
+
+		lanes.poll();
+		lanes.poll();
+		Assert.assertThat("room again", lanes.offer(message(PriorityLevel.NORMAL, 1)), CoreMatchers.is(true));
+		Assert.assertThat(lanes.drain().size(), CoreMatchers.is(2));
+		Assert.assertThat(lanes.size(), CoreMatchers.is(0));
+	}
+
+	@Test
+	public void busy() {
+		final SendLanes lanes = new SendLanes(8);
+		lanes.configure(8, 3);
+		lanes.offer(message(PriorityLevel.NORMAL, 1));
+		lanes.offer(message(PriorityLevel.CTRL, 1));
+		Assert.assertThat("below high water", lanes.isBusy(), CoreMatchers.is(false));
+		lanes.offer(message(PriorityLevel.BACKGROUND, 1));
+		Assert.assertThat("at high water", lanes.isBusy(), CoreMatchers.is(true));
+		lanes.poll();
+		Assert.assertThat("drained", lanes.isBusy(), CoreMatchers.is(false));
+	}
+
+	@Test
+	public void busyWhenLaneFull() {
+		final SendLanes lanes = new SendLanes(2);
+		lanes.configure(2, 4);
+		lanes.offer(message(PriorityLevel.NORMAL, 1));
+		Assert.assertThat("lane has room", lanes.isBusy(), CoreMatchers.is(false));
+		lanes.offer(message(PriorityLevel.NORMAL, 2));
+		Assert.assertThat("lane full below high water", lanes.isBusy(), CoreMatchers.is(true));
+		Assert.assertThat(lanes.offer(message(PriorityLevel.NORMAL, 3)), CoreMatchers.is(false));
+		lanes.poll();
+		Assert.assertThat("room again", lanes.isBusy(), CoreMatchers.is(false));
+	}
+
+	@Test
+	public void resize() {
+		final SendLanes lanes = new SendLanes(4);
+		for (int ix = 0; ix < 4; ++ix)
+			lanes.offer(message(PriorityLevel.NORMAL, ix + 1));
+		lanes.poll();
+		lanes.configure(2, 10);
+		Assert.assertThat("kept when shrunk", lanes.size(), CoreMatchers.is(3));
+		Assert.assertThat("over capacity", lanes.offer(message(PriorityLevel.NORMAL, 9)), CoreMatchers.is(false));
+		Assert.assertThat("order kept", lanes.poll().size, CoreMatchers.is(2));
+		Assert.assertThat("order kept", lanes.poll().size, CoreMatchers.is(3));
+		Assert.assertThat("order kept", lanes.poll().size, CoreMatchers.is(4));
+	}
+
+	@Test
+	public void dwell() throws InterruptedException {
+		final SendLanes lanes = new SendLanes(4);
+		final Histogram dwell = new Histogram();
+		lanes.setDwell(dwell);
+		lanes.offer(message(PriorityLevel.NORMAL, 1));
+		lanes.offer(message(PriorityLevel.NORMAL, 2));
+		Thread.sleep(30);
+		lanes.poll();
+		Assert.assertThat("one taken", dwell.count(), CoreMatchers.is(1L));
+		Assert.assertThat("waited", dwell.max() >= 30, CoreMatchers.is(true));
+		lanes.drain();
+		Assert.assertThat("drained not recorded", dwell.count(), CoreMatchers.is(1L));
+		Assert.assertThat(lanes.size(), CoreMatchers.is(0));
+	}
+
+	@Test
+	public void wakeReturnsTake() throws InterruptedException {
+		final SendLanes lanes = new SendLanes(4);
+		final Thread waker = new Thread() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(30);
+				} catch (InterruptedException ex) {
+					return;
+				}
+				lanes.wake();
+			}
+		};
+		waker.start();
+		Assert.assertThat("woken without a message", lanes.take(), CoreMatchers.nullValue());
+		waker.join();
+
+		lanes.wake();
+		lanes.offer(message(PriorityLevel.NORMAL, 1));
+		Assert.assertThat("the message is not lost", lanes.take().size, CoreMatchers.is(1));
+		Assert.assertThat(lanes.size(), CoreMatchers.is(0));
+	}
+}
@@ -0,0 +1,229 @@
+/* Copyright (c) 2010-2015 Vanderbilt University
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package edu.vu.isis.ammo.core.network;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import org.hamcrest.CoreMatchers;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test the frames kept for a session and when it may be resumed.
+ */
+public class SessionResumptionTest {
+
+	private static final long TOKEN = 0x1234567890L;
+
+	private static AmmoGatewayMessage.Builder builder(int id) {
+		final byte[] payload = new byte[] { (byte) id };
+		return AmmoGatewayMessage.newBuilder()
+				.size(payload.length)
+				.payload(payload)
+				.checksum(AmmoGatewayMessage.CheckSum.newInstance(payload).asLong())
+				.priority(AmmoGatewayMessage.PriorityLevel.NORMAL.b())
+				.version(AmmoGatewayMessage.VERSION_1_FULL);
+	}
+
+	private static AmmoGatewayMessage frame(int id) {
+		return builder(id).build();
+	}
+
+	private static SessionResumption granted(long lease) {
+		final SessionResumption session = new SessionResumption();
+		session.configure(lease, 8);
+		session.start();
+		final int kind = session.onControl(
+				SessionResumption.newControl(SessionResumption.GRANT, TOKEN, (int) lease, 0, null));
+		Assert.assertThat("granted", kind, CoreMatchers.is((int) SessionResumption.GRANT));
+		return session;
+	}
+
+	private static void report(SessionResumption session, int count) {
+		session.onControl(SessionResumption.newControl(SessionResumption.ACK, TOKEN, count, 0, null));
+	}
+
+	@Test
+	public void replay() {
+		final SessionResumption session = granted(1000);
+		final AmmoGatewayMessage[] sent = new AmmoGatewayMessage[5];
+		for (int ix = 0; ix < sent.length; ++ix) {
+			sent[ix] = frame(ix);
+			Assert.assertThat("kept", session.sent(sent[ix], 0), CoreMatchers.is(true));
+		}
+		report(session, 2);
+		Assert.assertThat("reported dropped", session.unconfirmed(), CoreMatchers.is(3));
+
+		Assert.assertThat("under lease", session.suspend(100), CoreMatchers.is(true));
+		final AmmoGatewayMessage request = session.newRequest(null);
+		Assert.assertThat(request.isResume(), CoreMatchers.is(true));
+		final ByteBuffer body = ByteBuffer.wrap(request.payload, 0, request.size);
+		Assert.assertThat("token", body.getLong(), CoreMatchers.is(TOKEN));
+		Assert.assertThat("kind", body.get(), CoreMatchers.is(SessionResumption.REQUEST));
+		Assert.assertThat("received", body.getInt(), CoreMatchers.is(0));
+		Assert.assertThat("first sent again", body.getInt(), CoreMatchers.is(3));
+
+		// the peer already has the third
+		final int kind = session.onControl(
+				SessionResumption.newControl(SessionResumption.ACCEPT, TOKEN, 3, 0, null));
+		Assert.assertThat("accepted", kind, CoreMatchers.is((int) SessionResumption.ACCEPT));
+		final List<AmmoGatewayMessage> replay = session.resume();
+		Assert.assertThat(replay.size(), CoreMatchers.is(2));
+		for (int ix = 0; ix < replay.size(); ++ix)
+			Assert.assertThat("in order", replay.get(ix), CoreMatchers.sameInstance(sent[ix + 3]));
+
+		for (final AmmoGatewayMessage msg : replay)
+			session.sent(msg, 0);
+		report(session, 5);
+		Assert.assertThat("counted again", session.unconfirmed(), CoreMatchers.is(0));
+	}
+
+	@Test
+	public void lease() {
+		final SessionResumption session = granted(1000);
+		Assert.assertThat("connected", session.canResume(0), CoreMatchers.is(false));
+		session.suspend(100);
+		Assert.assertThat(session.canResume(1099), CoreMatchers.is(true));
+		Assert.assertThat(session.hasExpired(1099), CoreMatchers.is(false));
+		Assert.assertThat(session.canResume(1100), CoreMatchers.is(false));
+		Assert.assertThat(session.hasExpired(1100), CoreMatchers.is(true));
+
+		final SessionResumption never = new SessionResumption();
+		never.start();
+		never.sent(frame(0), 0);
+		Assert.assertThat("no token", never.suspend(0), CoreMatchers.is(false));
+		Assert.assertThat("nothing to expire", never.hasExpired(0), CoreMatchers.is(false));
+	}
+
+	@Test
+	public void gaps() {
+		final SessionResumption session = new SessionResumption();
+		session.configure(1000, 8);
+		session.start();
+		session.sent(frame(0), 0);
+		Assert.assertThat("kept before the grant", session.unconfirmed(), CoreMatchers.is(1));
+		for (int ix = 1; ix < 9; ++ix)
+			session.sent(frame(ix), 0);
+		Assert.assertThat("too many without a grant", session.unconfirmed(), CoreMatchers.is(0));
+		session.onControl(SessionResumption.newControl(SessionResumption.GRANT, TOKEN, 1000, 0, null));
+		session.sent(frame(9), 0);
+		session.suspend(0);
+		Assert.assertThat("frames before the grant unreported", session.canResume(1), CoreMatchers.is(false));
+		report(session, 9);
+		Assert.assertThat("frames before the grant reported", session.canResume(1), CoreMatchers.is(true));
+		session.resume();
+
+		for (int ix = 0; ix < 9; ++ix)
+			session.sent(frame(ix), 0);
+		session.suspend(2);
+		Assert.assertThat("more than the replay limit", session.canResume(3), CoreMatchers.is(false));
+		Assert.assertThat("every frame carried", session.forfeit().size(), CoreMatchers.is(9));
+		Assert.assertThat("forfeit", session.isGranted(), CoreMatchers.is(false));
+	}
+
+	@Test
+	public void held() {
+		final SessionResumption session = granted(1000);
+		final AmmoGatewayMessage[] sent = new AmmoGatewayMessage[3];
+		for (int ix = 0; ix < sent.length; ++ix) {
+			sent[ix] = frame(ix);
+			session.sent(sent[ix], 0);
+		}
+		// the write of the last two failed
+		session.hold(sent[1]);
+		session.hold(sent[2]);
+		report(session, 2);
+		final List<AmmoGatewayMessage> reported = session.takeReported();
+		Assert.assertThat(reported.size(), CoreMatchers.is(1));
+		Assert.assertThat("reported by the peer", reported.get(0), CoreMatchers.sameInstance(sent[1]));
+		Assert.assertThat("taken once", session.takeReported().isEmpty(), CoreMatchers.is(true));
+
+		// the other is carried to a new session and written again
+		final List<AmmoGatewayMessage> carried = session.forfeit();
+		Assert.assertThat(carried.size(), CoreMatchers.is(1));
+		Assert.assertThat("still held", session.release(carried.get(0)), CoreMatchers.is(true));
+		Assert.assertThat("released once", session.release(carried.get(0)), CoreMatchers.is(false));
+	}
+
+	@Test
+	public void neverGranted() {
+		final SessionResumption session = new SessionResumption();
+		session.configure(1000, 8);
+		session.start();
+		final AmmoGatewayMessage[] sent = new AmmoGatewayMessage[3];
+		for (int ix = 0; ix < sent.length; ++ix) {
+			sent[ix] = frame(ix);
+			session.sent(sent[ix], 0);
+		}
+		// the write of the last failed
+		session.hold(sent[2]);
+		final List<AmmoGatewayMessage> carried = session.forfeit();
+		Assert.assertThat("only the failed write", carried.size(), CoreMatchers.is(1));
+		Assert.assertThat(carried.get(0), CoreMatchers.sameInstance(sent[2]));
+
+		// sent again, it is not carried a second time
+		session.sent(carried.get(0), 0);
+		session.release(carried.get(0));
+		Assert.assertThat("sent once more", session.forfeit().isEmpty(), CoreMatchers.is(true));
+	}
+
+	@Test
+	public void timedReport() {
+		final SessionResumption session = granted(1000);
+		for (int ix = 0; ix < 16; ++ix)
+			session.sent(frame(ix), 100 + ix);
+		report(session, 8);
+		Assert.assertThat("not reported on receipt", session.takeReportedSentAt(), CoreMatchers.is(0L));
+		report(session, 16);
+		Assert.assertThat("sent at", session.takeReportedSentAt(), CoreMatchers.is(115L));
+		Assert.assertThat("taken once", session.takeReportedSentAt(), CoreMatchers.is(0L));
+	}
+
+	@Test
+	public void control() {
+		final SessionResumption session = granted(1000);
+		final int other = session.onControl(
+				SessionResumption.newControl(SessionResumption.REFUSE, TOKEN + 1, 0, 0, null));
+		Assert.assertThat("other session", other, CoreMatchers.is(-1));
+		final int unasked = session.onControl(
+				SessionResumption.newControl(SessionResumption.ACCEPT, TOKEN, 0, 0, null));
+		Assert.assertThat("not resuming", unasked, CoreMatchers.is(-1));
+
+		final AmmoGatewayMessage heartbeat = builder(0)
+				.flags(AmmoGatewayMessage.FLAG_HEARTBEAT).build();
+		Assert.assertThat("heartbeats not counted", session.sent(heartbeat, 0), CoreMatchers.is(false));
+
+		boolean reported = false;
+		for (int ix = 0; ix < 16; ++ix)
+			reported = session.received(frame(ix));
+		Assert.assertThat("report due", reported, CoreMatchers.is(true));
+
+		final SessionResumption off = new SessionResumption();
+		off.configure(0, 8);
+		Assert.assertThat("not advertised", off.advertise(), CoreMatchers.is((byte) 0));
+		final int kind = off.onControl(
+				SessionResumption.newControl(SessionResumption.GRANT, TOKEN, 1000, 0, null));
+		Assert.assertThat("not granted", kind, CoreMatchers.is(-1));
+	}
+}
@@ -0,0 +1,134 @@
+/* Copyright (c) 2010-2015 Vanderbilt University
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package edu.vu.isis.ammo.core.bench;
+
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.xml.sax.InputSource;
+
+import edu.vu.isis.ammo.core.distributor.DistributorDataStore.DisposalState;
+import edu.vu.isis.ammo.core.distributor.DistributorDataStore.DisposalTotalState;
+import edu.vu.isis.ammo.core.distributor.DistributorPolicy;
+import edu.vu.isis.ammo.core.distributor.Dispersal;
+
+/**
+ * Evaluation of the distribution policy for a request.
+ * <p>
+ * multiplexRequest only turns to the network manager for channels the
+ * request has not yet been tried on. Here every channel already has a
+ * disposition, as when a request is taken from the cache and retried, so
+ * what is measured is the evaluation of the clauses and the bookkeeping of
+ * the dispersal, without a network manager. Channels which are PENDING or
+ * BUSY are checked again with the network manager, so no preset uses them.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class DispersalBenchmark {
+
+    private static final String POLICY =
+            "<?xml version=\"1.0\"?>"
+            + "<policy>"
+            + "<topic type=\"ammo/edu.vu.isis.ammo.bench\">"
+            + "<routing category=\"postal\" lifespan=\"30\" priority=\"normal\">"
+            + "<clause>"
+            + "<literal condition=\"success\" encoding=\"json\" term=\"usb\" />"
+            + "<literal condition=\"success\" encoding=\"json\" term=\"gateway\" />"
+            + "<literal condition=\"success\" encoding=\"json\" term=\"reliablemulticast\" />"
+            + "<literal condition=\"success\" encoding=\"terse\" term=\"serial\" />"
+            + "</clause>"
+            + "<clause>"
+            + "<literal condition=\"success\" encoding=\"json\" term=\"multicast\" />"
+            + "<literal condition=\"failure\" encoding=\"json\" term=\"gateway\" />"
+            + "</clause>"
+            + "</routing>"
+            + "</topic>"
+            + "</policy>";
+
+    private static final String[] TERMS = {
+            "usb", "gateway", "reliablemulticast", "serial", "multicast"
+    };
+
+    /**
+     * Where the clauses are satisfied:
+     * first, by the first literal of each clause;
+     * last, only by the last literal of each clause;
+     * none, not at all.
+     */
+    @Param({ "first", "last", "none" })
+    public String outcome;
+
+    private DistributorPolicy.Topic topic;
+    private DisposalState[] states;
+
+    @Setup
+    public void setup() {
+        final DistributorPolicy policy = DistributorPolicy.newInstance(
+                new InputSource(new StringReader(POLICY)));
+        this.topic = policy.matchPostal("ammo/edu.vu.isis.ammo.bench/message");
+
+        this.states = new DisposalState[TERMS.length];
+        if ("first".equals(this.outcome)) {
+            this.states[0] = DisposalState.SENT;
+            this.states[1] = DisposalState.QUEUED;
+            this.states[2] = DisposalState.REJECTED;
+            this.states[3] = DisposalState.REJECTED;
+            this.states[4] = DisposalState.QUEUED;
+        } else if ("last".equals(this.outcome)) {
+            this.states[0] = DisposalState.REJECTED;
+            this.states[1] = DisposalState.BAD;
+            this.states[2] = DisposalState.REJECTED;
+            this.states[3] = DisposalState.QUEUED;
+            this.states[4] = DisposalState.BAD;
+        } else {
+            this.states[0] = DisposalState.REJECTED;
+            this.states[1] = DisposalState.TOLD;
+            this.states[2] = DisposalState.REJECTED;
+            this.states[3] = DisposalState.BAD;
+            this.states[4] = DisposalState.REJECTED;
+        }
+    }
+
+    @Benchmark
+    public Dispersal multiplexRequest() {
+        final Dispersal dispersal = this.topic.makeRouteMap(null);
+        for (int ix = 0; ix < TERMS.length; ix++) {
+            dispersal.put(TERMS[ix], this.states[ix]);
+        }
+        return dispersal.multiplexRequest(null, null);
+    }
+
+    @Benchmark
+    public DisposalTotalState multiplexAndAggregate() {
+        return this.multiplexRequest().aggregate();
+    }
+}
@@ -0,0 +1,126 @@
+/* Copyright (c) 2010-2015 Vanderbilt University
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package edu.vu.isis.ammo.core.bench;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import edu.vu.isis.ammo.core.network.AmmoGatewayMessage;
+
+/**
+ * Framing of gateway messages, as done by the channel sender and receiver
+ * threads, for the full and terse headers over a range of payload sizes.
+ * <p>
+ * The frame buffer is reused between invocations as the channels do.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FramingBenchmark {
+
+    @Param({ "full", "terse" })
+    public String form;
+
+    /** the terse header carries a two byte size, hence the largest size */
+    @Param({ "64", "512", "4096", "16384" })
+    public int size;
+
+    private byte version;
+    private AmmoGatewayMessage msg;
+    private ByteBuffer frame;
+    private ByteBuffer header;
+    private ByteBuffer received;
+
+    @Setup
+    public void setup() {
+        this.version = "terse".equals(this.form)
+                ? AmmoGatewayMessage.VERSION_1_TERSE
+                : AmmoGatewayMessage.VERSION_1_FULL;
+
+        final byte[] payload = new byte[this.size];
+        new Random(this.size).nextBytes(payload);
+        this.msg = AmmoGatewayMessage.newBuilder()
+                .size(payload.length)
+                .payload(payload)
+                .checksum(AmmoGatewayMessage.CheckSum.newInstance(payload).asLong())
+                .priority(AmmoGatewayMessage.PriorityLevel.NORMAL.b())
+                .version(this.version)
+                .build();
+
+        this.frame = ByteBuffer.allocate(AmmoGatewayMessage.HEADER_LENGTH + this.size);
+        this.header = AmmoGatewayMessage.newHeaderBuffer();
+
+        final ByteBuffer whole = this.msg.serialize(null, ByteOrder.LITTLE_ENDIAN, this.version, (byte) 0);
+        this.received = ByteBuffer.allocate(whole.remaining());
+        this.received.put(whole);
+        this.received.flip();
+        this.received.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * The header alone, as for a gathering write.
+     */
+    @Benchmark
+    public ByteBuffer serializeHeader() {
+        return this.msg.serializeHeader(this.header, ByteOrder.LITTLE_ENDIAN, this.version, (byte) 0);
+    }
+
+    /**
+     * The whole message in one buffer, as for a datagram.
+     */
+    @Benchmark
+    public ByteBuffer serialize() {
+        return this.msg.serialize(this.frame, ByteOrder.LITTLE_ENDIAN, this.version, (byte) 0);
+    }
+
+    @Benchmark
+    public AmmoGatewayMessage.Builder extractHeader() throws IOException {
+        this.received.rewind();
+        return AmmoGatewayMessage.extractHeader(this.received);
+    }
+
+    /**
+     * The header followed by the checksum of the payload, which is what the
+     * receiver does for every message.
+     */
+    @Benchmark
+    public boolean extractAndVerify() throws IOException {
+        this.received.rewind();
+        final AmmoGatewayMessage.Builder builder = AmmoGatewayMessage.extractHeader(this.received);
+        final byte[] payload = new byte[builder.size()];
+        this.received.get(payload);
+        return builder.payload(payload).build().hasValidChecksum();
+    }
+}
@@ -0,0 +1,107 @@
+/* Copyright (c) 2010-2015 Vanderbilt University
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package edu.vu.isis.ammo.core.bench;
+
+import java.io.UnsupportedEncodingException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import edu.vu.isis.ammo.pretrie.PrefixList;
+import edu.vu.isis.ammo.pretrie.Pretrie;
+
+/**
+ * Topic lookup by longest prefix, as the distributor policy does for every
+ * request, with the PrefixList the policy uses and the Pretrie.
+ * <p>
+ * The prefixes are mime types like those of the policy topics, nested a few
+ * levels deep. The keys looked up are the prefixes extended by a subtype,
+ * and keys which match nothing beyond the empty prefix.
+ * <p>
+ * PrefixList remembers each answer under the key object, which compares by
+ * identity, so lookups by string never hit that cache but do grow it. The
+ * structures are rebuilt each iteration to keep that growth bounded.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PrefixBenchmark {
+
+    @Param({ "8", "64", "512" })
+    public int prefixCount;
+
+    private static final int KEY_COUNT = 1024;
+
+    private PrefixList<String> list;
+    private Pretrie<String> trie;
+    private String[] keys;
+    private int ix = 0;
+
+    @Setup(Level.Iteration)
+    public void setup() throws UnsupportedEncodingException {
+        this.list = new PrefixList<String>();
+        this.trie = new Pretrie<String>("");
+        this.list.insert("", "");
+
+        final String[] prefixes = new String[this.prefixCount];
+        for (int px = 0; px < this.prefixCount; px++) {
+            final StringBuilder sb = new StringBuilder("ammo/edu.vu.isis.ammo");
+            sb.append(".app").append(px % 16);
+            if (px >= 16)
+                sb.append('/').append("kind").append(px / 16);
+            prefixes[px] = sb.toString();
+            this.list.insert(prefixes[px], prefixes[px]);
+            this.trie.insert(prefixes[px], prefixes[px]);
+        }
+
+        this.keys = new String[KEY_COUNT];
+        for (int kx = 0; kx < KEY_COUNT; kx++) {
+            this.keys[kx] = (kx % 4 == 0)
+                    ? "urn:unmatched/topic" + kx
+                    : prefixes[kx % this.prefixCount] + "/item" + kx;
+        }
+    }
+
+    private String nextKey() {
+        this.ix = (this.ix + 1) % KEY_COUNT;
+        return this.keys[this.ix];
+    }
+
+    @Benchmark
+    public String prefixList() {
+        return this.list.longestPrefix(this.nextKey());
+    }
+
+    @Benchmark
+    public String pretrie() throws UnsupportedEncodingException {
+        return this.trie.longestPrefix(this.nextKey());
+    }
+}
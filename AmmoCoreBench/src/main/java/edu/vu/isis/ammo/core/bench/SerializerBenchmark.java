@@ -0,0 +1,145 @@
+/* Copyright (c) 2010-2015 Vanderbilt University
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package edu.vu.isis.ammo.core.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.w3c.dom.Element;
+
+import android.content.ContentValues;
+import edu.vu.isis.ammo.core.distributor.ContractStore;
+import edu.vu.isis.ammo.core.distributor.DistributorPolicy.Encoding;
+import edu.vu.isis.ammo.core.distributor.RequestSerializer.DeserializedMessage;
+import edu.vu.isis.ammo.core.distributor.RequestSerializer.FieldType;
+import edu.vu.isis.ammo.core.distributor.serializer.ContentValuesContentItem;
+import edu.vu.isis.ammo.core.distributor.serializer.ISerializer;
+import edu.vu.isis.ammo.core.distributor.serializer.JsonSerializer;
+import edu.vu.isis.ammo.core.distributor.serializer.TerseSerializer;
+
+/**
+ * Encoding and decoding of a tuple by the json and terse serializers, as
+ * done for each postal request sent and each message received.
+ * <p>
+ * The tuple is described by a contract relation, as the serializers get it
+ * from the contract store, with a text field of varying size.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SerializerBenchmark {
+
+    private static final String RELATION =
+            "<relation name=\"bench\">"
+            + "<field type=\"TEXT\" name=\"topic\" default=\"unknown\"/>"
+            + "<field type=\"TEXT\" name=\"sender\" default=\"\"/>"
+            + "<field type=\"LONG\" name=\"thread\" default=\"0\"/>"
+            + "<field type=\"INTEGER\" name=\"count\" default=\"0\"/>"
+            + "<field type=\"REAL\" name=\"latitude\" default=\"0\"/>"
+            + "<field type=\"TEXT\" name=\"payload\" default=\"\"/>"
+            + "</relation>";
+
+    @Param({ "json", "terse" })
+    public String encoding;
+
+    /** the terse encoding carries a two byte text length */
+    @Param({ "16", "256", "4096" })
+    public int textSize;
+
+    private ISerializer serializer;
+    private ContractStore.Relation relation;
+    private Encoding enc;
+    private ContentValues cv;
+    private List<String> fieldNames;
+    private List<FieldType> dataTypes;
+    private byte[] encoded;
+
+    @Setup
+    public void setup() throws Exception {
+        final Element xml = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+                .parse(new ByteArrayInputStream(RELATION.getBytes("UTF-8")))
+                .getDocumentElement();
+        this.relation = ContractStore.Relation.newInstance(xml);
+
+        if ("terse".equals(this.encoding)) {
+            this.serializer = new TerseSerializer();
+            this.enc = Encoding.newInstance(Encoding.Type.TERSE);
+        } else {
+            this.serializer = new JsonSerializer();
+            this.enc = Encoding.newInstance(Encoding.Type.JSON);
+        }
+
+        final StringBuilder text = new StringBuilder(this.textSize);
+        for (int ix = 0; ix < this.textSize; ix++) {
+            text.append((char) ('a' + (ix % 26)));
+        }
+        this.cv = new ContentValues();
+        this.cv.put("topic", "ammo/edu.vu.isis.ammo.bench");
+        this.cv.put("sender", "device-0042");
+        this.cv.put("thread", 1234567890123L);
+        this.cv.put("count", 42);
+        this.cv.put("latitude", 36.1447);
+        this.cv.put("payload", text.toString());
+
+        this.fieldNames = new ArrayList<String>();
+        this.dataTypes = new ArrayList<FieldType>();
+        for (final ContractStore.Field field : this.relation.getFields()) {
+            this.fieldNames.add(field.getName().getSnake());
+            this.dataTypes.add(FieldType.fromContractString(field.getDtype()));
+        }
+        this.encoded = this.serialize();
+    }
+
+    @Benchmark
+    public byte[] serialize() throws IOException {
+        final ContentValuesContentItem item = new ContentValuesContentItem(this.cv, this.relation, this.enc);
+        try {
+            return this.serializer.serialize(item);
+        } finally {
+            item.close();
+        }
+    }
+
+    @Benchmark
+    public DeserializedMessage deserialize() {
+        return this.serializer.deserialize(this.encoded, this.fieldNames, this.dataTypes);
+    }
+
+    @Benchmark
+    public DeserializedMessage roundTrip() throws IOException {
+        return this.serializer.deserialize(this.serialize(), this.fieldNames, this.dataTypes);
+    }
+}
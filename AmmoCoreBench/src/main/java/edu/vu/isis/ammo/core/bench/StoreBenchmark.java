@@ -0,0 +1,112 @@
+/* Copyright (c) 2010-2015 Vanderbilt University
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package edu.vu.isis.ammo.core.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import edu.vu.isis.ammo.core.distributor.store.Capability;
+import edu.vu.isis.ammo.core.distributor.store.Presence;
+
+/**
+ * The presence and capability upserts made for each heartbeat and capability
+ * message received from the gateway.
+ * <p>
+ * The devices cycle over a fixed population, so after the first pass every
+ * upsert is an update of an existing item, as in the field. The relations are
+ * process wide, the contended case shows the cost of their lock.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class StoreBenchmark {
+
+    @Param({ "16", "1024" })
+    public int deviceCount;
+
+    private static final String[] TOPICS = {
+            "ammo/edu.vu.isis.ammo.dash.event",
+            "ammo/edu.vu.isis.ammo.map.location",
+            "ammo/transapps.chat.message",
+    };
+
+    private String[] devices;
+    private String[] operators;
+    private int ix = 0;
+
+    @Setup
+    public void setup() {
+        this.devices = new String[this.deviceCount];
+        this.operators = new String[this.deviceCount];
+        for (int dx = 0; dx < this.deviceCount; dx++) {
+            this.devices[dx] = "device-" + dx;
+            this.operators[dx] = "operator-" + dx;
+        }
+    }
+
+    private int next() {
+        this.ix = (this.ix + 1) % this.deviceCount;
+        return this.ix;
+    }
+
+    @Benchmark
+    public long presence() {
+        final int dx = this.next();
+        return Presence.getWorker()
+                .device(this.devices[dx])
+                .operator(this.operators[dx])
+                .upsert();
+    }
+
+    @Benchmark
+    public long capability() {
+        final int dx = this.next();
+        return Capability.getWorker()
+                .origin(this.devices[dx])
+                .operator(this.operators[dx])
+                .topic(TOPICS[dx % TOPICS.length])
+                .subtopic("")
+                .upsert();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public long presenceContended() {
+        return this.presence();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public long capabilityContended() {
+        return this.capability();
+    }
+}